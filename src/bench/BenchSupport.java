@@ -0,0 +1,218 @@
+package bench;
+
+import common.ChatterboxProtocol;
+import server.ChatterboxServer;
+import server.ServerBase;
+import server.ServerConfig;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Helpers shared by the standalone benchmark mains
+ */
+final class BenchSupport {
+
+    /**
+     * One operation to time
+     */
+    interface Op {
+        void Run () throws Exception;
+    }
+
+    /**
+     * A text protocol client connection, read from a selector thread
+     */
+    static class Session {
+        final SocketChannel channel;
+        final StringBuilder line = new StringBuilder ();
+        boolean connected;
+
+        Session (SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Called for each line a session receives after its 'CONNECTED'
+     */
+    interface LineHandler {
+        void OnLine (Session session, String line);
+    }
+
+    private BenchSupport () {
+    }
+
+    /**
+     * Runs 'op' a tenth of 'iterations' times to warm up, then 'iterations' times timed, and prints the time and
+     * bytes allocated per operation
+     *
+     * @param name What to print the result as
+     * @param iterations How many times to time 'op'
+     * @param op The operation
+     * @throws Exception Whatever 'op' throws
+     */
+    static void Measure (String name, int iterations, Op op) throws Exception {
+        for (int i = 0; i < iterations / 10; i++) {
+            op.Run ();
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean ();
+        long allocatedBefore = threads.getThreadAllocatedBytes (Thread.currentThread ().getId ());
+        long start = System.nanoTime ();
+        for (int i = 0; i < iterations; i++) {
+            op.Run ();
+        }
+        long nanos = System.nanoTime () - start;
+        long allocated = threads.getThreadAllocatedBytes (Thread.currentThread ().getId ()) - allocatedBefore;
+
+        System.out.printf ("%-24s %8.1f ns/op %8.2f bytes/op%n", name, (double) nanos / iterations,
+                (double) allocated / iterations);
+    }
+
+    /**
+     * Writes one text protocol line, blocking or spinning until it is all written
+     */
+    static void Send (Session session, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap ((line + "\n").getBytes (StandardCharsets.UTF_8));
+        while (buffer.hasRemaining ()) {
+            session.channel.write (buffer);
+        }
+    }
+
+    /**
+     * Reads what every ready session has to read
+     *
+     * @param selector The selector the sessions are registered with, each attached to its key
+     * @param timeoutMs How long to wait for one to be ready; 0 does not wait
+     * @param buffer Scratch space to read into
+     * @param handler Given each complete line
+     * @return How many sessions had something to read
+     */
+    static int Drain (Selector selector, long timeoutMs, ByteBuffer buffer, LineHandler handler) throws IOException {
+        int ready = timeoutMs == 0 ? selector.selectNow () : selector.select (timeoutMs);
+        Iterator<SelectionKey> keys = selector.selectedKeys ().iterator ();
+        while (keys.hasNext ()) {
+            SelectionKey key = keys.next ();
+            keys.remove ();
+            Read (key, buffer, handler);
+        }
+        return ready;
+    }
+
+    /**
+     * Reads what one session has to read, marking it connected on its 'CONNECTED' and disconnected once the server
+     * closes it, and handing every other complete line to 'handler'
+     */
+    static void Read (SelectionKey key, ByteBuffer buffer, LineHandler handler) throws IOException {
+        Session session = (Session) key.attachment ();
+        buffer.clear ();
+        if (session.channel.read (buffer) < 0) {
+            key.cancel ();
+            session.connected = false;
+            return;
+        }
+        buffer.flip ();
+        String text = StandardCharsets.UTF_8.decode (buffer).toString ();
+        for (int i = 0; i < text.length (); i++) {
+            char c = text.charAt (i);
+            if (c != '\n') {
+                session.line.append (c);
+                continue;
+            }
+            String line = session.line.toString ();
+            session.line.setLength (0);
+            if (line.equals (ChatterboxProtocol.CONNECTED)) {
+                session.connected = true;
+            } else {
+                handler.OnLine (session, line);
+            }
+        }
+    }
+
+    /**
+     * @return A loopback port nothing was listening on a moment ago
+     */
+    static int FreePort () throws IOException {
+        try (ServerSocket socket = new ServerSocket (0, 1, InetAddress.getLoopbackAddress ())) {
+            return socket.getLocalPort ();
+        }
+    }
+
+    /**
+     * Starts the nodes of a cluster in this JVM, named 'node0' upwards and linked over loopback on free ports, and
+     * waits until each is linked to every other. None opens a client port; users are connected in-process
+     *
+     * @param count How many nodes
+     * @param secret The '--cluster-secret' they share
+     * @return The nodes, which the caller must 'close'
+     * @throws IllegalStateException If they are not all linked within 30 s; they are closed first
+     */
+    static ServerBase[] Cluster (int count, String secret) throws IOException, InterruptedException {
+        int[] ports = new int[count];
+        StringBuilder peers = new StringBuilder ();
+        for (int n = 0; n < count; n++) {
+            ports[n] = FreePort ();
+            peers.append (n == 0 ? "" : ",").append ("node").append (n).append ("@localhost:").append (ports[n]);
+        }
+        ServerBase[] nodes = new ServerBase[count];
+        for (int n = 0; n < count; n++) {
+            nodes[n] = new ServerBase (ServerConfig.Parse (new String[] {"--node=node" + n, "--cluster-port=" +
+                    ports[n], "--peers=" + peers, "--cluster-secret=" + secret, "--metrics-sample=0"}));
+        }
+
+        long deadline = System.nanoTime () + 30_000_000_000L;
+        for (ServerBase node : nodes) {
+            while (node.getCluster ().getLinkedNodes ().size () < count - 1) {
+                if (System.nanoTime () > deadline) {
+                    for (ServerBase started : nodes) {
+                        started.close ();
+                    }
+                    throw new IllegalStateException ("The nodes did not link within 30 s");
+                }
+                Thread.sleep (20);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Starts a server in this JVM that serves until the JVM exits. Its logging goes to 'System.out', which is muted
+     * for good
+     *
+     * @param port The port to listen on
+     * @param options Any further server options, e.g. "--mode=nio"
+     */
+    static void StartServer (int port, String options) throws IOException {
+        System.setOut (new PrintStream (new OutputStream () {
+            @Override
+            public void write (int b) {
+            }
+        }));
+        Serve (port, options);
+    }
+
+    /**
+     * Starts a server in this JVM, leaving 'System.out' as it is. It is listening by the time this returns, and
+     * serves on daemon threads until closed
+     *
+     * @param port The port to listen on, or 0 for any free one
+     * @param options Any further server options, e.g. "--mode=nio --loops=2"
+     * @return The server's open port; close it, then its 'getServer', to stop the server
+     */
+    static ChatterboxServer.Listener Serve (int port, String options) throws IOException {
+        ServerConfig config = ServerConfig.Parse (("--port=" + port + " " + options).trim ().split (" +"));
+        return ChatterboxServer.Start (config, new ServerBase (config));
+    }
+}
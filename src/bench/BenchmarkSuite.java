@@ -0,0 +1,139 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.ChatterboxServer;
+import server.ServerBase;
+import server.ServerConfig;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The regression suite: JMH benchmarks over the server's hot paths, against in-memory 'NullConnection' recipients:
+ *
+ * 'broadcast' and 'whisper' at 10, 1k and 10k users
+ * 'parse' - 'ClientConnection.ParseUserCommand' for a whisper
+ * 'userList' - 'ServerBase.getUserList' with the membership unchanged
+ * 'churn' - one user connecting and disconnecting while the rest are online
+ *
+ * 'gradle jmh' runs them with the 'gc' profiler, for the bytes allocated per operation, and writes the results as
+ * JSON to 'build/reports/jmh/results.json', so two runs can be diffed directly
+ */
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (2)
+public class BenchmarkSuite {
+
+    private static final byte[] MESSAGE = "hello everybody, how is it going today?".getBytes (StandardCharsets.UTF_8);
+
+    /**
+     * A server with 'users' in-memory users, named 'user0' onwards
+     */
+    @State (Scope.Thread)
+    public static class Room {
+        @Param ({"10", "1000", "10000"})
+        public int users;
+
+        ServerBase server;
+        String recipient;
+        NullConnection requestor;
+        String[] names;
+        int next;
+
+        @Setup (Level.Trial)
+        public void Populate () throws Exception {
+            server = BenchmarkSuite.Populate (users);
+            recipient = "user" + (users - 1);
+            requestor = new NullConnection (server, "requestor");
+            server.connect (requestor);
+            names = new String[1024];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = "churn" + i;
+            }
+        }
+
+        @TearDown (Level.Trial)
+        public void Close () {
+            server.close ();
+        }
+    }
+
+    /**
+     * A server with a few users and one more whose commands are parsed
+     */
+    @State (Scope.Thread)
+    public static class Parser {
+        static final String LINE = "send_whisper::user1::hello everybody, how is it going today?";
+
+        ServerBase server;
+        NullConnection sender;
+
+        @Setup (Level.Trial)
+        public void Populate () throws Exception {
+            server = BenchmarkSuite.Populate (10);
+            sender = new NullConnection (server, "sender");
+            server.connect (sender);
+        }
+
+        @TearDown (Level.Trial)
+        public void Close () {
+            server.close ();
+        }
+    }
+
+    @Benchmark
+    public void broadcast (Room room) throws Exception {
+        room.server.broadcast ("user0", MESSAGE);
+    }
+
+    @Benchmark
+    public void whisper (Room room) throws Exception {
+        room.server.whisper ("user0", room.recipient, MESSAGE);
+    }
+
+    @Benchmark
+    public long parse (Parser parser) throws Exception {
+        parser.sender.ParseUserCommand (Parser.LINE);
+        return parser.sender.getFrames ();
+    }
+
+    @Benchmark
+    public long userList (Room room) {
+        room.server.getUserList (room.requestor);
+        return room.requestor.getBytes ();
+    }
+
+    @Benchmark
+    public long churn (Room room) throws Exception {
+        NullConnection client = new NullConnection (room.server, room.names[room.next++ & (room.names.length - 1)]);
+        room.server.connect (client);
+        room.server.disconnect (client);
+        return client.getFrames ();
+    }
+
+    /**
+     * @return A server with 'users' in-memory users, named 'user0' onwards, with only warnings logged
+     */
+    private static ServerBase Populate (int users) throws Exception {
+        ChatterboxServer.setLogLevel (ServerConfig.LogLevel.WARN);
+        ServerBase server = new ServerBase (new ServerConfig ());
+        for (int i = 0; i < users; i++) {
+            server.connect (new NullConnection (server, "user" + i));
+        }
+        return server;
+    }
+}
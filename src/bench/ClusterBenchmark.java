@@ -0,0 +1,155 @@
+package bench;
+
+import common.ChatterboxProtocol;
+import common.Exceptions.UserNotInitializedException;
+import common.Frame;
+import server.ChatterboxServer;
+import server.ClientConnection;
+import server.Histogram;
+import server.ServerBase;
+import server.ServerConfig;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Links a few nodes in this JVM over loopback, each with in-memory users, and measures relaying between them: the
+ * delivery latency of chat sent at a steady rate from node0, to node0's own users and to the other nodes', and then
+ * how many deliveries a second the cluster keeps up with while a user on every node floods it.
+ *
+ * Usage: ClusterBenchmark [nodes] [usersPerNode] [ratePerSecond] [messages] [floodSeconds]
+ */
+public class ClusterBenchmark {
+
+    private static final String PADDING = "hello everybody, how is it going today?";
+
+    /**
+     * An in-memory user that times the chat it receives against the send time at the front of each message
+     */
+    private static final class Receiver extends ClientConnection {
+
+        private final Histogram latency;
+        private final LongAdder delivered;
+
+        Receiver (ServerBase server, String username, Histogram latency, LongAdder delivered) {
+            super (server);
+            this.username = username;
+            this.usernameBytes = username.getBytes (StandardCharsets.UTF_8);
+            this.latency = latency;
+            this.delivered = delivered;
+        }
+
+        @Override
+        public void Send (Frame frame) {
+            if (!ChatterboxProtocol.CHAT_RECEIVED.equals (frame.getCommand ())) {
+                return;
+            }
+            long received = System.nanoTime ();
+            delivered.increment ();
+            String line = frame.toString ();
+            int start = line.indexOf ('#');
+            int end = line.indexOf ('#', start + 1);
+            if (start >= 0 && end > start) {
+                latency.Record (received - Long.parseLong (line.substring (start + 1, end)));
+            }
+        }
+    }
+
+    public static void main (String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt (args[0]) : 3;
+        int users = args.length > 1 ? Integer.parseInt (args[1]) : 100;
+        int rate = args.length > 2 ? Integer.parseInt (args[2]) : 2000;
+        int messages = args.length > 3 ? Integer.parseInt (args[3]) : 4000;
+        long floodSeconds = args.length > 4 ? Long.parseLong (args[4]) : 2;
+
+        ChatterboxServer.setLogLevel (ServerConfig.LogLevel.WARN);
+        ServerBase[] servers = BenchSupport.Cluster (nodes, "cluster-benchmark-secret");
+        Histogram sameNode = new Histogram ();
+        Histogram crossNode = new Histogram ();
+        LongAdder delivered = new LongAdder ();
+        try {
+            for (int n = 0; n < nodes; n++) {
+                for (int i = 0; i < users; i++) {
+                    servers[n].connect (new Receiver (servers[n], "n" + n + "u" + i, n == 0 ? sameNode : crossNode,
+                            delivered));
+                }
+            }
+            // Let every node hear about every user before anything is timed
+            Thread.sleep (500);
+
+            long interval = 1_000_000_000L / rate;
+            long next = System.nanoTime ();
+            for (int i = 0; i < messages; i++) {
+                while (System.nanoTime () < next) {
+                    Thread.onSpinWait ();
+                }
+                servers[0].broadcast ("n0u0", ("#" + System.nanoTime () + "#" + PADDING).getBytes (
+                        StandardCharsets.UTF_8));
+                next += interval;
+            }
+            Await (delivered, (long) messages * nodes * users);
+            System.out.printf ("%d messages at %d/s: same node p50 %.2fms p99 %.2fms, cross node p50 %.2fms p99 " +
+                    "%.2fms%n", messages, rate, sameNode.Percentile (50) / 1e6, sameNode.Percentile (99) / 1e6,
+                    crossNode.Percentile (50) / 1e6, crossNode.Percentile (99) / 1e6);
+
+            Flood (servers, users, floodSeconds, delivered);
+        } finally {
+            for (ServerBase server : servers) {
+                server.close ();
+            }
+        }
+    }
+
+    /**
+     * Has one user on every node broadcast as fast as it can for 'seconds', then waits for everything to be
+     * delivered and prints the rate
+     */
+    private static void Flood (ServerBase[] servers, int users, long seconds, LongAdder delivered)
+            throws InterruptedException {
+        long before = delivered.sum ();
+        long start = System.nanoTime ();
+        long deadline = start + seconds * 1_000_000_000L;
+        Thread[] senders = new Thread[servers.length];
+        long[] counts = new long[servers.length];
+        for (int n = 0; n < servers.length; n++) {
+            ServerBase server = servers[n];
+            String sender = "n" + n + "u0";
+            int node = n;
+            senders[n] = new Thread (() -> {
+                byte[] message = PADDING.getBytes (StandardCharsets.UTF_8);
+                try {
+                    while (System.nanoTime () < deadline) {
+                        server.broadcast (sender, message);
+                        counts[node]++;
+                    }
+                } catch (UserNotInitializedException e) {
+                    throw new IllegalStateException (e);
+                }
+            });
+            senders[n].start ();
+        }
+        long broadcasts = 0;
+        for (int n = 0; n < servers.length; n++) {
+            senders[n].join ();
+            broadcasts += counts[n];
+        }
+        Await (delivered, before + broadcasts * servers.length * users);
+        double elapsed = (System.nanoTime () - start) / 1e9;
+        long deliveries = delivered.sum () - before;
+        System.out.printf ("Flood: %d broadcasts, %d deliveries in %.2fs, %,.0f deliveries/s%n", broadcasts,
+                deliveries, elapsed, deliveries / elapsed);
+    }
+
+    /**
+     * Waits up to 30 s for 'delivered' to reach 'expected'
+     */
+    private static void Await (LongAdder delivered, long expected) throws InterruptedException {
+        long deadline = System.nanoTime () + 30_000_000_000L;
+        while (delivered.sum () < expected) {
+            if (System.nanoTime () > deadline) {
+                throw new IllegalStateException ("Only " + delivered.sum () + " of " + expected + " delivered");
+            }
+            Thread.sleep (20);
+        }
+    }
+}
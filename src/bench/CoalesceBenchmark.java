@@ -0,0 +1,139 @@
+package bench;
+
+import common.ChatterboxProtocol;
+import server.ChatterboxServer;
+import server.ServerBase;
+import server.ServerConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures write coalescing under a steady broadcast load. For each flush mode an in-process 'ChatterboxServer'
+ * is started, a set of receivers connect and just count the lines they get, and one sender broadcasts at a fixed
+ * rate. Reports the delivered messages per second and how many socket writes the server made per delivered
+ * message (the syscalls/message the coalescing is meant to bring down).
+ *
+ * Usage: CoalesceBenchmark [receivers] [messagesPerSecond] [seconds] [server options...]
+ */
+public class CoalesceBenchmark {
+
+    public static void main (String[] args) throws Exception {
+        int receivers = args.length > 0 ? Integer.parseInt (args[0]) : 20;
+        int rate = args.length > 1 ? Integer.parseInt (args[1]) : 10000;
+        long seconds = args.length > 2 ? Long.parseLong (args[2]) : 10;
+
+        PrintStream console = System.out;
+        System.setOut (new PrintStream (new OutputStream () {
+            @Override
+            public void write (int b) {
+            }
+        }));
+
+        int port = ChatterboxProtocol.PORT + 2;
+        for (String flush : new String[] {"latency", "throughput"}) {
+            List<String> serverArgs = new ArrayList<> ();
+            serverArgs.add ("--port=" + port);
+            serverArgs.add ("--flush=" + flush);
+            for (int i = 3; i < args.length; i++) {
+                serverArgs.add (args[i]);
+            }
+            ServerConfig config = ServerConfig.Parse (serverArgs.toArray (new String[0]));
+            console.printf ("%s: %s%n", flush, Run (config, receivers, rate, seconds));
+            port++;
+        }
+        // Leave the server's output muted; its threads are still logging the receivers leaving
+        System.exit (0);
+    }
+
+    private static String Run (ServerConfig config, int receivers, int rate, long seconds) throws Exception {
+        ServerBase server = new ServerBase (config);
+        Thread serverThread = new Thread (() -> {
+            try {
+                ChatterboxServer.Run (config, server);
+            } catch (IOException e) {
+                e.printStackTrace ();
+            }
+        }, "chatterbox-server");
+        serverThread.setDaemon (true);
+        serverThread.start ();
+        Thread.sleep (500);
+
+        LongAdder received = new LongAdder ();
+        List<Socket> sockets = new ArrayList<> ();
+        for (int i = 0; i < receivers; i++) {
+            Socket socket = Connect (config.getPort (), "receiver" + i);
+            sockets.add (socket);
+            Thread reader = new Thread (() -> Count (socket, received));
+            reader.setDaemon (true);
+            reader.start ();
+        }
+        Socket sender = Connect (config.getPort (), "sender");
+        sockets.add (sender);
+        Thread.sleep (1000);
+
+        byte[] line = (ChatterboxProtocol.SEND_CHAT + ChatterboxProtocol.SEPARATOR +
+                "a broadcast line of roughly the length people actually type\n").getBytes ();
+        OutputStream out = sender.getOutputStream ();
+
+        long receivedBefore = received.sum ();
+        long writesBefore = server.getSocketWrites ();
+        long framesBefore = server.getFramesWritten ();
+        long start = System.nanoTime ();
+        long sent = 0;
+        long end = start + seconds * 1_000_000_000L;
+        while (System.nanoTime () < end) {
+            long due = (System.nanoTime () - start) * rate / 1_000_000_000L;
+            while (sent < due) {
+                out.write (line);
+                sent++;
+            }
+            LockSupport.parkNanos (100_000);
+        }
+        Thread.sleep (500);
+        long nanos = System.nanoTime () - start;
+
+        long delivered = received.sum () - receivedBefore;
+        long writes = server.getSocketWrites () - writesBefore;
+        long frames = server.getFramesWritten () - framesBefore;
+        for (Socket socket : sockets) {
+            socket.close ();
+        }
+
+        return String.format ("%,d sent, %,.0f delivered/s, %,d writes for %,d frames (%.3f syscalls/message)",
+                sent, delivered / (nanos / 1e9), writes, frames, (double) writes / Math.max (1, frames));
+    }
+
+    private static Socket Connect (int port, String name) throws IOException {
+        Socket socket = new Socket ("localhost", port);
+        socket.getOutputStream ().write ((ChatterboxProtocol.CONNECT + ChatterboxProtocol.SEPARATOR + name + "\n")
+                .getBytes ());
+        return socket;
+    }
+
+    private static void Count (Socket socket, LongAdder received) {
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            InputStream in = socket.getInputStream ();
+            int read;
+            while ((read = in.read (buffer)) > 0) {
+                int lines = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+                received.add (lines);
+            }
+        } catch (IOException e) {
+            //
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package bench;
+
+import common.BinaryCodec;
+import common.ChatterboxProtocol;
+import common.Exceptions.ParseException;
+import common.Frame;
+import common.Message;
+import common.MessageAssembler;
+
+/**
+ * Compares encode and decode cost of the v1 text framing against the v2 binary framing for a 'CHAT_RECEIVED'
+ * message, reporting time and bytes allocated per operation. The v1 decode is measured both as the original
+ * 'String.split' parse and through 'Message.ParseText'.
+ *
+ * Usage: CodecBenchmark [messageLength] [iterations]
+ */
+public class CodecBenchmark {
+
+    private static long sink;
+
+    public static void main (String[] args) throws Exception {
+        int length = args.length > 0 ? Integer.parseInt (args[0]) : 100;
+        int iterations = args.length > 1 ? Integer.parseInt (args[1]) : 2_000_000;
+
+        StringBuilder text = new StringBuilder ();
+        for (int i = 0; i < length; i++) {
+            text.append ((char) ('a' + i % 26));
+        }
+        String message = text.toString ();
+        String line = ChatterboxProtocol.CHAT_RECEIVED + ChatterboxProtocol.SEPARATOR + "someuser" +
+                ChatterboxProtocol.SEPARATOR + message;
+        byte[] textBytes = (line + "\n").getBytes ();
+        byte[] binaryBytes = BinaryCodec.Encode (ChatterboxProtocol.CHAT_RECEIVED, new String[] {"someuser", message});
+
+        MessageAssembler textAssembler = new MessageAssembler ();
+        MessageAssembler binaryAssembler = new MessageAssembler ();
+        binaryAssembler.SwitchToBinary ();
+
+        System.out.printf ("Wire size: v1 %d bytes, v2 %d bytes%n", textBytes.length, binaryBytes.length);
+
+        BenchSupport.Measure ("v1 encode", iterations, () ->
+                sink += Frame.Of (ChatterboxProtocol.CHAT_RECEIVED, "someuser", message)
+                        .Length (Frame.Encoding.TEXT));
+        BenchSupport.Measure ("v2 encode", iterations, () ->
+                sink += Frame.Of (ChatterboxProtocol.CHAT_RECEIVED, "someuser", message)
+                        .Length (Frame.Encoding.BINARY));
+        BenchSupport.Measure ("v1 decode (split)", iterations, () -> {
+            String[] data = new String (textBytes, 0, textBytes.length - 1).trim ()
+                    .split (ChatterboxProtocol.SEPARATOR, 3);
+            sink += data[2].length ();
+        });
+        BenchSupport.Measure ("v1 decode (assembler)", iterations, () -> sink += Decode (textAssembler, textBytes));
+        BenchSupport.Measure ("v2 decode (assembler)", iterations, () -> sink += Decode (binaryAssembler, binaryBytes));
+    }
+
+    private static int Decode (MessageAssembler assembler, byte[] bytes) throws ParseException {
+        assembler.Feed (bytes, 0, bytes.length);
+        return assembler.Take ().getField (1).length ();
+    }
+}
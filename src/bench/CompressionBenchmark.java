@@ -0,0 +1,149 @@
+package bench;
+
+import common.BinaryCodec;
+import common.ChatterboxProtocol;
+import common.CommandView;
+import common.Compression;
+import common.Frame;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Measures what 'CAPABILITY_DEFLATE' saves and costs for chat of different sizes. Each message is made of words
+ * drawn at random from a small vocabulary, like typed or pasted prose; a line of random base64 stands in for
+ * pasted data that does not compress. For each size it reports the bytes a 'CHAT_RECEIVED' takes on the wire
+ * plain, compressed with the shared dictionary and without it, then the CPU spent compressing it once (the
+ * server's cost per broadcast) and inflating it (each recipient's cost), and the bytes saved across a broadcast
+ * to '--recipients'.
+ *
+ * Usage: CompressionBenchmark [--recipients=1000] [--iterations=20000]
+ */
+public class CompressionBenchmark {
+
+    private static final int[] SIZES = {128, 512, 1024, 4096, 16384, 65536};
+    private static final String[] WORDS = ("the of and to a in is it you that he was for on are with as I his they " +
+            "be at one have this from or had by word but what some we can out other were all there when up use " +
+            "your how said an each she which do their time if will way about many then them write would like so " +
+            "these her long make thing see him two has look more day could go come did number sound no most " +
+            "people my over know water than call first who may down side been now find any new work part take " +
+            "get place made live where after back little only round man year came show every good me give our " +
+            "under name very through just form sentence great think say help low line differ turn cause much " +
+            "mean before move right boy old too same tell does set three want air well also play small end put " +
+            "home read hand port large spell add even land here must big high such follow act why ask men " +
+            "change went light kind off need house picture try us again animal point mother world near build " +
+            "self earth father server client message thread socket queue latency broadcast whisper room chat")
+            .split (" ");
+
+    private static long sink;
+
+    public static void main (String[] args) throws Exception {
+        int recipients = 1000;
+        int iterations = 20_000;
+        for (String arg : args) {
+            String value = arg.substring (arg.indexOf ('=') + 1);
+            if (arg.startsWith ("--recipients=")) {
+                recipients = Integer.parseInt (value);
+            } else if (arg.startsWith ("--iterations=")) {
+                iterations = Integer.parseInt (value);
+            } else {
+                throw new IllegalArgumentException ("Unknown option '" + arg + "'");
+            }
+        }
+
+        Random random = new Random (42);
+        System.out.printf ("%-6s %7s %7s %7s %8s %10s %10s %14s%n", "kind", "bytes", "plain", "deflate", "no-dict",
+                "comp ns", "infl ns", "saved/bcast");
+        for (String kind : new String[] {"prose", "random"}) {
+            for (int size : SIZES) {
+                byte[] message = kind.equals ("prose") ? Prose (random, size) : Noise (random, size);
+                Run (kind, message, recipients, Math.max (200, iterations * 512 / size));
+            }
+        }
+        System.out.println ("(sink " + (sink & 1) + ")");
+    }
+
+    private static void Run (String kind, byte[] message, int recipients, int iterations) throws Exception {
+        byte[] sender = "someone".getBytes (StandardCharsets.UTF_8);
+        Frame sample = Frame.OfBytes (ChatterboxProtocol.CHAT_RECEIVED, sender, message);
+        sample.Compress (Compression.DEFAULT_THRESHOLD);
+        int plain = sample.Length (Frame.Encoding.BINARY);
+        int deflated = sample.Length (Frame.Encoding.DEFLATE);
+        byte[] binary = new byte[plain];
+        sample.CopyTo (binary, 0, Frame.Encoding.BINARY);
+        int noDictionary = NoDictionary (binary);
+
+        // Compressing: a fresh frame each time, less what encoding it plainly costs
+        long compress = 0;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime ();
+            for (int i = 0; i < iterations; i++) {
+                Frame frame = Frame.OfBytes (ChatterboxProtocol.CHAT_RECEIVED, sender, message);
+                frame.Compress (Compression.DEFAULT_THRESHOLD);
+                sink += frame.Length (Frame.Encoding.DEFLATE);
+            }
+            long middle = System.nanoTime ();
+            for (int i = 0; i < iterations; i++) {
+                Frame frame = Frame.OfBytes (ChatterboxProtocol.CHAT_RECEIVED, sender, message);
+                sink += frame.Length (Frame.Encoding.BINARY);
+            }
+            compress = ((middle - start) - (System.nanoTime () - middle)) / iterations;
+        }
+
+        // Inflating, as a recipient's decoder does
+        byte[] wire = new byte[deflated];
+        sample.CopyTo (wire, 0, Frame.Encoding.DEFLATE);
+        BinaryCodec.Decoder decoder = new BinaryCodec.Decoder ();
+        CommandView view = new CommandView ();
+        long inflate = 0;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime ();
+            for (int i = 0; i < iterations; i++) {
+                decoder.Feed (wire, 0, wire.length);
+                decoder.TakeInto (view);
+                sink += view.getFieldCount ();
+            }
+            inflate = (System.nanoTime () - start) / iterations;
+        }
+
+        System.out.printf ("%-6s %7d %7d %7d %8d %10d %10d %14d%n", kind, message.length, plain, deflated,
+                noDictionary, compress, deflated == plain ? 0 : inflate, (long) (plain - deflated) * recipients);
+    }
+
+    /**
+     * @return The size of a 'COMPRESSED' frame made without the shared dictionary
+     */
+    private static int NoDictionary (byte[] frame) {
+        Deflater deflater = new Deflater ();
+        deflater.setInput (frame);
+        deflater.finish ();
+        byte[] out = new byte[frame.length + 64];
+        int length = 0;
+        while (!deflater.finished ()) {
+            length += deflater.deflate (out, length, out.length - length);
+        }
+        deflater.end ();
+        byte[] deflated = Arrays.copyOf (out, length);
+        return Math.min (frame.length, BinaryCodec.Encode (ChatterboxProtocol.COMPRESSED, new byte[][] {deflated})
+                .length);
+    }
+
+    private static byte[] Prose (Random random, int size) {
+        StringBuilder text = new StringBuilder ();
+        while (text.length () < size) {
+            text.append (WORDS[random.nextInt (WORDS.length)]);
+            text.append (random.nextInt (12) == 0 ? ". " : " ");
+        }
+        text.setLength (size);
+        return text.toString ().getBytes (StandardCharsets.UTF_8);
+    }
+
+    private static byte[] Noise (Random random, int size) {
+        byte[] raw = new byte[size * 3 / 4];
+        random.nextBytes (raw);
+        return Base64.getEncoder ().encode (raw);
+    }
+}
@@ -0,0 +1,187 @@
+package bench;
+
+import common.ChatterboxProtocol;
+import server.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * A reconnect storm: starts '--connections' non-blocking connects to a server all at once from one selector
+ * thread, has each send 'CONNECT' as soon as its socket is up, and times how long each takes from its connect
+ * call to its 'CONNECTED' reply. Reports how many completed per second across the storm, the percentiles of that
+ * time, and how many failed (refused, reset, or still waiting after '--timeout' seconds).
+ *
+ * Each connection closes as soon as it is connected, so the server is measured admitting users rather than
+ * telling thousands of them about each other; '--hold' keeps them all open instead.
+ *
+ * Usage: ConnectStormBenchmark [--host=localhost] [--port=6789] [--connections=10000] [--timeout=60] [--hold]
+ *                              [--local] [server options...]
+ *
+ * '--local' starts an in-process server first, given whatever other options there are (e.g. '--mode=nio
+ * --backlog=50', or '--max-handshakes=256 --handshake-timeout=10000' to cap handshakes); as both ends then share
+ * one file descriptor limit, 10,000 connections need it at 20,000 or more. Against a separate server, start it
+ * with the options to compare
+ */
+public class ConnectStormBenchmark {
+
+    private static class Attempt {
+        final long started;
+        final ByteBuffer hello;
+        final StringBuilder line = new StringBuilder ();
+        boolean done;
+
+        Attempt (long started, String name) {
+            this.started = started;
+            this.hello = ByteBuffer.wrap ((ChatterboxProtocol.CONNECT + ChatterboxProtocol.SEPARATOR + name + "\n")
+                    .getBytes (StandardCharsets.UTF_8));
+        }
+    }
+
+    public static void main (String[] args) throws IOException, InterruptedException {
+        String host = "localhost";
+        int port = ChatterboxProtocol.PORT;
+        int connections = 10_000;
+        long timeout = 60;
+        boolean hold = false;
+        boolean local = false;
+        StringBuilder options = new StringBuilder ();
+        for (String arg : args) {
+            String value = arg.substring (arg.indexOf ('=') + 1);
+            if (arg.startsWith ("--host=")) {
+                host = value;
+            } else if (arg.startsWith ("--port=")) {
+                port = Integer.parseInt (value);
+            } else if (arg.startsWith ("--connections=")) {
+                connections = Integer.parseInt (value);
+            } else if (arg.startsWith ("--timeout=")) {
+                timeout = Long.parseLong (value);
+            } else if (arg.equals ("--hold")) {
+                hold = true;
+            } else if (arg.equals ("--local")) {
+                local = true;
+            } else {
+                options.append (" ").append (arg);
+            }
+        }
+
+        PrintStream console = System.out;
+        if (local) {
+            BenchSupport.StartServer (port, options.toString ());
+        } else if (options.length () > 0) {
+            throw new IllegalArgumentException ("Server options need '--local':" + options);
+        }
+
+        Selector selector = Selector.open ();
+        InetSocketAddress address = new InetSocketAddress (host, port);
+        Histogram latency = new Histogram ();
+        int failed = 0;
+
+        long start = System.nanoTime ();
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open ();
+            channel.configureBlocking (false);
+            Attempt attempt = new Attempt (System.nanoTime (), "storm" + i);
+            if (channel.connect (address)) {
+                channel.register (selector, SelectionKey.OP_WRITE, attempt);
+            } else {
+                channel.register (selector, SelectionKey.OP_CONNECT, attempt);
+            }
+        }
+        long issued = System.nanoTime ();
+
+        int pending = connections;
+        long last = issued;
+        long deadline = start + timeout * 1_000_000_000L;
+        ByteBuffer readBuffer = ByteBuffer.allocate (64 * 1024);
+        while (pending > 0 && System.nanoTime () < deadline) {
+            selector.select (100);
+            Iterator<SelectionKey> keys = selector.selectedKeys ().iterator ();
+            while (keys.hasNext ()) {
+                SelectionKey key = keys.next ();
+                keys.remove ();
+                SocketChannel channel = (SocketChannel) key.channel ();
+                Attempt attempt = (Attempt) key.attachment ();
+                try {
+                    if (key.isConnectable ()) {
+                        channel.finishConnect ();
+                        key.interestOps (SelectionKey.OP_WRITE);
+                    }
+                    if (key.isValid () && key.isWritable ()) {
+                        channel.write (attempt.hello);
+                        if (!attempt.hello.hasRemaining ()) {
+                            key.interestOps (SelectionKey.OP_READ);
+                        }
+                    }
+                    if (key.isValid () && key.isReadable ()) {
+                        readBuffer.clear ();
+                        if (channel.read (readBuffer) < 0) {
+                            throw new IOException ("Closed before 'CONNECTED'");
+                        }
+                        if (attempt.done) {
+                            // Held open after connecting; whatever else arrives is thrown away
+                            continue;
+                        }
+                        if (Connected (attempt, readBuffer)) {
+                            last = System.nanoTime ();
+                            latency.Record (last - attempt.started);
+                            pending--;
+                            if (hold) {
+                                attempt.done = true;
+                            } else {
+                                key.cancel ();
+                                channel.close ();
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!attempt.done) {
+                        failed++;
+                        pending--;
+                    }
+                    key.cancel ();
+                    channel.close ();
+                }
+            }
+        }
+
+        double seconds = (last - start) / 1e9;
+        console.printf ("%d connections, issued in %.0f ms%n", connections, (issued - start) / 1e6);
+        console.printf ("connected: %d in %.2f s (%.0f/s), failed: %d, timed out: %d%n", latency.Count (), seconds,
+                latency.Count () / seconds, failed, pending);
+        console.printf ("time to CONNECTED ms: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f%n",
+                latency.Percentile (50) / 1e6, latency.Percentile (90) / 1e6, latency.Percentile (99) / 1e6,
+                latency.Max () / 1e6);
+        System.exit (0);
+    }
+
+    /**
+     * Adds what arrived to the attempt's first line
+     *
+     * @return 'true' once that line is complete and is a 'CONNECTED'
+     * @throws IOException If the first line is anything else
+     */
+    private static boolean Connected (Attempt attempt, ByteBuffer received) throws IOException {
+        received.flip ();
+        while (received.hasRemaining ()) {
+            char next = (char) received.get ();
+            if (next == '\n') {
+                String line = attempt.line.toString ();
+                if (!line.equals (ChatterboxProtocol.CONNECTED) &&
+                        !line.startsWith (ChatterboxProtocol.CONNECTED + ChatterboxProtocol.SEPARATOR)) {
+                    throw new IOException ("Expected 'CONNECTED', got '" + line + "'");
+                }
+                return true;
+            }
+            attempt.line.append (next);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,110 @@
+package bench;
+
+import common.ChatterboxProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens a large number of connections against a running 'ChatterboxServer' from a single selector thread. Most of
+ * them just sit there after connecting; the 'active' ones send a chat line every interval and time how long it
+ * takes to see their own line come back as 'CHAT_RECEIVED'.
+ *
+ * Usage: ConnectionCountBenchmark [host] [port] [idle] [active] [intervalMs] [seconds]
+ *
+ * The defaults (50,000 idle, 5,000 active) need a raised file descriptor limit on both ends and, for a single
+ * client address, enough ephemeral ports; start the server with '--mode=nio' to compare against thread mode
+ */
+public class ConnectionCountBenchmark {
+
+    private static class Session extends BenchSupport.Session {
+        final String name;
+        final boolean active;
+
+        Session (SocketChannel channel, String name, boolean active) {
+            super (channel);
+            this.name = name;
+            this.active = active;
+        }
+    }
+
+    public static void main (String[] args) throws IOException, InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt (args[1]) : ChatterboxProtocol.PORT;
+        int idle = args.length > 2 ? Integer.parseInt (args[2]) : 50000;
+        int active = args.length > 3 ? Integer.parseInt (args[3]) : 5000;
+        long intervalMs = args.length > 4 ? Long.parseLong (args[4]) : 10000;
+        long seconds = args.length > 5 ? Long.parseLong (args[5]) : 60;
+
+        Selector selector = Selector.open ();
+        ByteBuffer buffer = ByteBuffer.allocate (64 * 1024);
+        List<Session> sessions = new ArrayList<> ();
+
+        long start = System.nanoTime ();
+        for (int i = 0; i < idle + active; i++) {
+            SocketChannel channel = SocketChannel.open (new InetSocketAddress (host, port));
+            Session session = new Session (channel, "bench" + i, i >= idle);
+            BenchSupport.Send (session, ChatterboxProtocol.CONNECT + ChatterboxProtocol.SEPARATOR + session.name);
+            channel.configureBlocking (false);
+            channel.register (selector, SelectionKey.OP_READ, session);
+            sessions.add (session);
+
+            if (i % 1000 == 999) {
+                BenchSupport.Drain (selector, 0, buffer, (connecting, line) -> {
+                });
+                System.out.println ((i + 1) + " connections open");
+            }
+        }
+        double connectSeconds = (System.nanoTime () - start) / 1e9;
+        System.out.printf ("Opened %d connections in %.2fs (%.0f/s)%n", sessions.size (), connectSeconds,
+                sessions.size () / connectSeconds);
+
+        Stats stats = new Stats ();
+        long end = System.currentTimeMillis () + seconds * 1000;
+        long nextRound = 0;
+        while (System.currentTimeMillis () < end) {
+            if (System.currentTimeMillis () >= nextRound) {
+                for (Session session : sessions) {
+                    if (session.active && session.connected) {
+                        BenchSupport.Send (session, ChatterboxProtocol.SEND_CHAT + ChatterboxProtocol.SEPARATOR +
+                                System.nanoTime ());
+                        stats.sent++;
+                    }
+                }
+                nextRound = System.currentTimeMillis () + intervalMs;
+            }
+            BenchSupport.Drain (selector, 100, buffer, (session, line) -> OnLine ((Session) session, line, stats));
+        }
+
+        long connected = sessions.stream ().filter (s -> s.connected).count ();
+        System.out.println ("Connected sessions: " + connected + " / " + sessions.size ());
+        System.out.println ("Chat lines sent: " + stats.sent + ", echoes timed: " + stats.echoes +
+                ", lines received: " + stats.lines);
+        if (stats.echoes > 0) {
+            System.out.printf ("Mean echo latency: %.2fms, max: %.2fms%n",
+                    stats.totalNanos / 1e6 / stats.echoes, stats.maxNanos / 1e6);
+        }
+    }
+
+    private static class Stats {
+        long sent, echoes, lines, totalNanos, maxNanos;
+    }
+
+    private static void OnLine (Session session, String line, Stats stats) {
+        stats.lines++;
+        String ownEcho = ChatterboxProtocol.CHAT_RECEIVED + ChatterboxProtocol.SEPARATOR + session.name +
+                ChatterboxProtocol.SEPARATOR;
+        if (line.startsWith (ownEcho)) {
+            long nanos = System.nanoTime () - Long.parseLong (line.substring (ownEcho.length ()));
+            stats.echoes++;
+            stats.totalNanos += nanos;
+            stats.maxNanos = Math.max (stats.maxNanos, nanos);
+        }
+    }
+}
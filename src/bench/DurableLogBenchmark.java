@@ -0,0 +1,106 @@
+package bench;
+
+import server.ChatLog;
+import server.ServerBase;
+import server.ServerConfig;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Measures what the durable chat log costs and how fast it reads back. Times every 'ServerBase.broadcast' call
+ * against in-memory recipients with and without '--log-dir' and reports the latency percentiles, then reopens the
+ * log the way a restarted server would and times a full scan by offset and a scan from half-way by time.
+ *
+ * Usage: DurableLogBenchmark [recipients] [broadcasts] [logDirectory]
+ */
+public class DurableLogBenchmark {
+
+    public static void main (String[] args) throws Exception {
+        int recipients = args.length > 0 ? Integer.parseInt (args[0]) : 100;
+        int broadcasts = args.length > 1 ? Integer.parseInt (args[1]) : 200000;
+        Path directory = args.length > 2 ? Paths.get (args[2]) : Files.createTempDirectory ("chatterbox-log");
+
+        PrintStream console = System.out;
+        System.setOut (new PrintStream (new OutputStream () {
+            @Override
+            public void write (int b) {
+            }
+        }));
+
+        console.printf ("in memory only: %s%n", Measure (new ServerBase (), recipients, broadcasts));
+
+        ServerBase logged = new ServerBase (ServerConfig.Parse (new String[] {"--log-dir=" + directory}));
+        console.printf ("durable log:    %s%n", Measure (logged, recipients, broadcasts));
+        ChatLog log = logged.getLog ();
+        while (log.getPending () > 0) {
+            Thread.sleep (10);
+        }
+        console.printf ("appended %,d records with %,d forces (%.1f records per force), %,d dropped%n",
+                log.getNextOffset (), log.getForces (), (double) log.getNextOffset () / Math.max (1, log.getForces ()),
+                log.getDropped ());
+        logged.close ();
+
+        long start = System.nanoTime ();
+        ChatLog reopened = ChatLog.Open (directory, 64 * 1024 * 1024, 0, 0);
+        long[] first = {-1};
+        long[] middle = {-1};
+        long[] records = {0};
+        reopened.Scan (0, (offset, timestamp, frame) -> {
+            if (first[0] < 0) {
+                first[0] = timestamp;
+            }
+            if (offset == reopened.getNextOffset () / 2) {
+                middle[0] = timestamp;
+            }
+            records[0]++;
+            return true;
+        });
+        long nanos = System.nanoTime () - start;
+        console.printf ("reopened and scanned %,d records in %.1fms (%,.0f records/s)%n", records[0], nanos / 1e6,
+                records[0] / (nanos / 1e9));
+
+        start = System.nanoTime ();
+        records[0] = 0;
+        reopened.ScanFromTime (middle[0], (offset, timestamp, frame) -> {
+            records[0]++;
+            return true;
+        });
+        console.printf ("scanned %,d records from half-way by time in %.1fms%n", records[0],
+                (System.nanoTime () - start) / 1e6);
+        reopened.Close ();
+
+        if (args.length <= 2) {
+            try (Stream<Path> files = Files.walk (directory)) {
+                files.sorted (Comparator.reverseOrder ()).forEach (file -> file.toFile ().delete ());
+            }
+        }
+        System.setOut (console);
+    }
+
+    private static String Measure (ServerBase server, int recipients, int broadcasts) throws Exception {
+        for (int i = 0; i < recipients; i++) {
+            server.connect (new NullConnection (server, "user" + i));
+        }
+        byte[] message = "a broadcast line of roughly the length people actually type".getBytes ();
+
+        long[] nanos = new long[broadcasts];
+        for (int i = 0; i < broadcasts; i++) {
+            long start = System.nanoTime ();
+            server.broadcast ("user0", message);
+            nanos[i] = System.nanoTime () - start;
+        }
+
+        // Leave out the first tenth as warm-up
+        long[] measured = Arrays.copyOfRange (nanos, broadcasts / 10, broadcasts);
+        Arrays.sort (measured);
+        return String.format ("broadcast p50 %.2fus p99 %.2fus p99.9 %.2fus", measured[measured.length / 2] / 1e3,
+                measured[(int) (measured.length * 0.99)] / 1e3, measured[(int) (measured.length * 0.999)] / 1e3);
+    }
+}
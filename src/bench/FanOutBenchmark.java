@@ -0,0 +1,64 @@
+package bench;
+
+import server.ServerBase;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures 'ServerBase.broadcast' fan-out throughput and allocation against in-memory recipients, once with every
+ * recipient sharing the pre-encoded frame and once with every recipient encoding the line again itself (the old
+ * 'PrintWriter' path).
+ *
+ * Usage: FanOutBenchmark [recipients] [broadcasts] [messageLength]
+ */
+public class FanOutBenchmark {
+
+    public static void main (String[] args) throws Exception {
+        int recipients = args.length > 0 ? Integer.parseInt (args[0]) : 1000;
+        int broadcasts = args.length > 1 ? Integer.parseInt (args[1]) : 20000;
+        int length = args.length > 2 ? Integer.parseInt (args[2]) : 100;
+
+        StringBuilder message = new StringBuilder ();
+        for (int i = 0; i < length; i++) {
+            message.append ((char) ('a' + i % 26));
+        }
+
+        PrintStream console = System.out;
+        System.setOut (new PrintStream (new OutputStream () {
+            @Override
+            public void write (int b) {
+            }
+        }));
+
+        for (boolean encodeEach : new boolean[] {true, false}) {
+            ServerBase server = new ServerBase ();
+            for (int i = 0; i < recipients; i++) {
+                server.connect (new NullConnection (server, "user" + i, encodeEach));
+            }
+
+            // Warm up, then measure
+            Run (server, message.toString (), broadcasts / 10);
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean ();
+            long allocatedBefore = threads.getThreadAllocatedBytes (Thread.currentThread ().getId ());
+            long start = System.nanoTime ();
+            Run (server, message.toString (), broadcasts);
+            long nanos = System.nanoTime () - start;
+            long allocated = threads.getThreadAllocatedBytes (Thread.currentThread ().getId ()) - allocatedBefore;
+
+            console.printf ("%-20s %d recipients: %,.0f broadcasts/s, %,.0f deliveries/s, %,d bytes allocated per " +
+                            "broadcast%n", encodeEach ? "encode per recipient" : "shared frame", recipients,
+                    broadcasts / (nanos / 1e9), (double) broadcasts * recipients / (nanos / 1e9),
+                    allocated / broadcasts);
+        }
+        System.setOut (console);
+    }
+
+    private static void Run (ServerBase server, String message, int broadcasts) throws Exception {
+        for (int i = 0; i < broadcasts; i++) {
+            server.broadcast ("user0", message);
+        }
+    }
+}
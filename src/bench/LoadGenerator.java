@@ -0,0 +1,456 @@
+package bench;
+
+import common.BinaryCodec;
+import common.ChatterboxProtocol;
+import common.CommandView;
+import common.Exceptions.ParseException;
+import common.MessageAssembler;
+import server.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A headless load generator for a running 'ChatterboxServer'. Connects a number of simulated users over v2, ramping
+ * them up over '--ramp' seconds, then sends a mix of chat, whispers and user list requests at a total rate that
+ * follows '--profile':
+ *
+ * 'constant' - the full '--rate' throughout
+ * 'linear' - rising steadily from nothing to '--rate'
+ * 'step' - a quarter of '--rate', then half, three quarters and the full rate, each for a quarter of the run
+ *
+ * Every chat and whisper carries the time it was due to be sent in its body, and every delivery of it is timed
+ * against that; a user list is timed from its request to the reply. Timing from when a message was due rather than
+ * when it went out means a generator that falls behind still reports the delay, instead of hiding it. All users
+ * live in this one JVM, so their replies are read by a few selector threads rather than a thread each.
+ *
+ * Reports sends and deliveries per second as it goes, and at the end the throughput and p50 / p99 / p999 delivery
+ * latency for each message type.
+ *
+ * Usage: LoadGenerator [--host=localhost] [--port=6789] [--users=500] [--seconds=30] [--rate=500]
+ *                      [--mix=chat:70,whisper:25,list:5] [--ramp=5] [--profile=constant|linear|step]
+ *                      [--size=64] [--loops=2] [--local]
+ *
+ * '--local' starts an in-process server on the port first, with its console output muted
+ */
+public class LoadGenerator {
+
+    /**
+     * What a simulated user can send
+     */
+    private enum Type {
+        CHAT, WHISPER, LIST
+    }
+
+    /**
+     * The traffic for one message type
+     */
+    private static final class Stats {
+        final LongAdder sent = new LongAdder ();
+        final LongAdder delivered = new LongAdder ();
+        final Histogram latency = new Histogram ();
+    }
+
+    /**
+     * One simulated user. Only its loop's thread reads from it; only the sending thread writes to it
+     */
+    private static final class User {
+        final String name;
+        final SocketChannel channel;
+        final MessageAssembler assembler;
+        final CommandView command;
+        final Queue<Long> listsPending;
+        volatile boolean connected;
+        int replaying;
+
+        User (String name, SocketChannel channel) {
+            this.name = name;
+            this.channel = channel;
+            this.assembler = new MessageAssembler ();
+            this.command = new CommandView ();
+            this.listsPending = new ConcurrentLinkedQueue<> ();
+        }
+    }
+
+    private static final int CHAT_RECEIVED = BinaryCodec.Opcode (ChatterboxProtocol.CHAT_RECEIVED);
+    private static final int WHISPER_RECEIVED = BinaryCodec.Opcode (ChatterboxProtocol.WHISPER_RECEIVED);
+    private static final int USERS = BinaryCodec.Opcode (ChatterboxProtocol.USERS);
+    private static final int HISTORY = BinaryCodec.Opcode (ChatterboxProtocol.HISTORY);
+
+    private final Stats[] stats;
+    private final LongAdder writeStalls;
+    private final PrintStream console;
+
+    private LoadGenerator (PrintStream console) {
+        this.console = console;
+        stats = new Stats[Type.values ().length];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new Stats ();
+        }
+        writeStalls = new LongAdder ();
+    }
+
+    public static void main (String[] args) throws Exception {
+        String host = "localhost";
+        int port = ChatterboxProtocol.PORT;
+        int users = 500;
+        long seconds = 30;
+        double rate = 500;
+        String mix = "chat:70,whisper:25,list:5";
+        long ramp = 5;
+        String profile = "constant";
+        int size = 64;
+        int loops = 2;
+        boolean local = false;
+        for (String arg : args) {
+            String value = arg.substring (arg.indexOf ('=') + 1);
+            if (arg.startsWith ("--host=")) {
+                host = value;
+            } else if (arg.startsWith ("--port=")) {
+                port = Integer.parseInt (value);
+            } else if (arg.startsWith ("--users=")) {
+                users = Integer.parseInt (value);
+            } else if (arg.startsWith ("--seconds=")) {
+                seconds = Long.parseLong (value);
+            } else if (arg.startsWith ("--rate=")) {
+                rate = Double.parseDouble (value);
+            } else if (arg.startsWith ("--mix=")) {
+                mix = value;
+            } else if (arg.startsWith ("--ramp=")) {
+                ramp = Long.parseLong (value);
+            } else if (arg.startsWith ("--profile=")) {
+                profile = value;
+            } else if (arg.startsWith ("--size=")) {
+                size = Integer.parseInt (value);
+            } else if (arg.startsWith ("--loops=")) {
+                loops = Integer.parseInt (value);
+            } else if (arg.equals ("--local")) {
+                local = true;
+            } else {
+                throw new IllegalArgumentException ("Unknown option '" + arg + "'");
+            }
+        }
+
+        PrintStream console = System.out;
+        if (local) {
+            console.println ("Starting a local server on port " + port);
+            BenchSupport.StartServer (port, "--mode=nio");
+        }
+        new LoadGenerator (console).Run (new InetSocketAddress (host, port), users, seconds, rate, ParseMix (mix), ramp,
+                profile, size, loops);
+        System.exit (0);
+    }
+
+    /**
+     * @return The weight of each 'Type', in 'Type' order
+     */
+    private static int[] ParseMix (String mix) {
+        int[] weights = new int[Type.values ().length];
+        for (String part : mix.split (",")) {
+            String[] entry = part.split (":");
+            weights[Type.valueOf (entry[0].trim ().toUpperCase ()).ordinal ()] = Integer.parseInt (entry[1].trim ());
+        }
+        return weights;
+    }
+
+    private void Run (InetSocketAddress address, int userCount, long seconds, double rate, int[] weights, long ramp,
+                      String profile, int size, int loopCount) throws Exception {
+        Selector[] loops = new Selector[Math.max (1, loopCount)];
+        List<Queue<User>> registrations = new ArrayList<> ();
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = Selector.open ();
+            Queue<User> pending = new ConcurrentLinkedQueue<> ();
+            registrations.add (pending);
+            Selector selector = loops[i];
+            Thread thread = new Thread (() -> Read (selector, pending), "load-loop-" + i);
+            thread.setDaemon (true);
+            thread.start ();
+        }
+
+        int totalWeight = 0;
+        for (int weight : weights) {
+            totalWeight += weight;
+        }
+        if (totalWeight <= 0) {
+            throw new IllegalArgumentException ("'--mix' must give some message type a weight");
+        }
+
+        byte[] padding = new byte[Math.max (0, size)];
+        for (int i = 0; i < padding.length; i++) {
+            padding[i] = (byte) ('a' + i % 26);
+        }
+
+        List<User> users = new ArrayList<> ();
+        Random random = new Random (42);
+        long start = System.nanoTime ();
+        long rampNanos = ramp * 1_000_000_000L;
+        long runNanos = seconds * 1_000_000_000L;
+        long nextSend = start;
+        long nextReport = start + 1_000_000_000L;
+        long[] lastSent = new long[1];
+        long[] lastDelivered = new long[1];
+
+        while (true) {
+            long now = System.nanoTime ();
+            long elapsed = now - start;
+            if (elapsed >= runNanos) {
+                break;
+            }
+
+            // Bring users online in step with the ramp
+            long due = rampNanos <= 0 ? userCount : Math.min (userCount, userCount * elapsed / rampNanos + 1);
+            while (users.size () < due) {
+                User user = Connect (address, "load" + users.size ());
+                int loop = users.size () % loops.length;
+                users.add (user);
+                registrations.get (loop).add (user);
+                loops[loop].wakeup ();
+            }
+
+            double current = Rate (profile, rate, elapsed, runNanos);
+            if (current <= 0 || users.isEmpty ()) {
+                nextSend = now + 1_000_000;
+            } else if (now >= nextSend) {
+                User from = users.get (random.nextInt (users.size ()));
+                if (from.connected) {
+                    Send (from, Pick (weights, totalWeight, random), users, random, padding, nextSend);
+                }
+                nextSend += (long) (1e9 / current);
+            }
+
+            if (now >= nextReport) {
+                Report (elapsed, users.size (), lastSent, lastDelivered);
+                nextReport += 1_000_000_000L;
+            }
+            LockSupport.parkNanos (Math.max (0, Math.min (nextSend, nextReport) - System.nanoTime ()));
+        }
+
+        // Give the last messages time to arrive
+        Thread.sleep (2000);
+        Summary (seconds);
+        for (User user : users) {
+            user.channel.close ();
+        }
+    }
+
+    /**
+     * @return The send rate the profile calls for, 'elapsed' into a run 'total' long
+     */
+    private static double Rate (String profile, double rate, long elapsed, long total) {
+        switch (profile) {
+            case "linear":
+                return rate * elapsed / total;
+            case "step":
+                return rate * (Math.min (3, 4 * elapsed / total) + 1) / 4;
+            case "constant":
+            default:
+                return rate;
+        }
+    }
+
+    private static Type Pick (int[] weights, int totalWeight, Random random) {
+        int pick = random.nextInt (totalWeight);
+        for (Type type : Type.values ()) {
+            pick -= weights[type.ordinal ()];
+            if (pick < 0) {
+                return type;
+            }
+        }
+        return Type.CHAT;
+    }
+
+    /**
+     * Connects one user in the text protocol, offering v2; its loop switches it over once 'CONNECTED' comes back
+     */
+    private static User Connect (InetSocketAddress address, String name) throws IOException {
+        SocketChannel channel = SocketChannel.open (address);
+        channel.socket ().setTcpNoDelay (true);
+        User user = new User (name, channel);
+        byte[] connect = (ChatterboxProtocol.CONNECT + ChatterboxProtocol.SEPARATOR + name +
+                ChatterboxProtocol.SEPARATOR + ChatterboxProtocol.CAPABILITY_BINARY + "\n")
+                .getBytes (StandardCharsets.UTF_8);
+        channel.write (ByteBuffer.wrap (connect));
+        channel.configureBlocking (false);
+        return user;
+    }
+
+    /**
+     * @param due The 'System.nanoTime' this message was due to go out, written into its body
+     */
+    private void Send (User from, Type type, List<User> users, Random random, byte[] padding, long due)
+            throws IOException {
+        byte[] frame;
+        byte[] body = ("#" + due + "#").getBytes (StandardCharsets.UTF_8);
+        body = Concat (body, padding);
+        switch (type) {
+            case WHISPER:
+                User to = users.get (random.nextInt (users.size ()));
+                frame = BinaryCodec.Encode (ChatterboxProtocol.SEND_WHISPER,
+                        new byte[][] {to.name.getBytes (StandardCharsets.UTF_8), body});
+                break;
+            case LIST:
+                from.listsPending.add (due);
+                frame = BinaryCodec.Encode (ChatterboxProtocol.LIST_USERS, new byte[0][]);
+                break;
+            case CHAT:
+            default:
+                frame = BinaryCodec.Encode (ChatterboxProtocol.SEND_CHAT, new byte[][] {body});
+                break;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap (frame);
+        from.channel.write (buffer);
+        while (buffer.hasRemaining ()) {
+            // The server is not reading this user fast enough; that is worth knowing, not worth a thread
+            writeStalls.increment ();
+            Thread.yield ();
+            from.channel.write (buffer);
+        }
+        stats[type.ordinal ()].sent.increment ();
+    }
+
+    private static byte[] Concat (byte[] first, byte[] second) {
+        byte[] joined = new byte[first.length + second.length];
+        System.arraycopy (first, 0, joined, 0, first.length);
+        System.arraycopy (second, 0, joined, first.length, second.length);
+        return joined;
+    }
+
+    /**
+     * A reading loop's thread: registers new users as they are handed over and times everything they receive
+     */
+    private void Read (Selector selector, Queue<User> pending) {
+        ByteBuffer readBuffer = ByteBuffer.allocate (64 * 1024);
+        try {
+            while (true) {
+                selector.select ();
+                User added;
+                while ((added = pending.poll ()) != null) {
+                    added.channel.register (selector, SelectionKey.OP_READ, added);
+                }
+                for (SelectionKey key : selector.selectedKeys ()) {
+                    User user = (User) key.attachment ();
+                    try {
+                        readBuffer.clear ();
+                        if (user.channel.read (readBuffer) < 0) {
+                            key.cancel ();
+                            continue;
+                        }
+                        readBuffer.flip ();
+                        Receive (user, readBuffer.array (), readBuffer.limit ());
+                    } catch (IOException | ParseException e) {
+                        key.cancel ();
+                    }
+                }
+                selector.selectedKeys ().clear ();
+            }
+        } catch (IOException e) {
+            //
+        }
+    }
+
+    private void Receive (User user, byte[] data, int limit) throws ParseException {
+        int position = 0;
+        while (position < limit) {
+            position += user.assembler.Feed (data, position, limit - position);
+            if (!user.assembler.HasMessage ()) {
+                continue;
+            }
+            CommandView command = user.command;
+            user.assembler.TakeInto (command);
+            long now = System.nanoTime ();
+
+            if (!user.connected) {
+                if (ChatterboxProtocol.CONNECTED.equals (command.getCommand ())) {
+                    user.connected = true;
+                    user.assembler.SwitchToBinary ();
+                }
+                continue;
+            }
+
+            int opcode = command.getOpcode ();
+            if (opcode == HISTORY) {
+                user.replaying = Integer.parseInt (command.Field (0));
+            } else if (opcode == CHAT_RECEIVED || opcode == WHISPER_RECEIVED) {
+                if (user.replaying > 0) {
+                    // Sent before this user joined, maybe by an earlier run
+                    user.replaying--;
+                    continue;
+                }
+                Stats type = stats[(opcode == CHAT_RECEIVED ? Type.CHAT : Type.WHISPER).ordinal ()];
+                long due = Due (command.FieldBytes (1));
+                if (due != 0) {
+                    type.delivered.increment ();
+                    type.latency.Record (now - due);
+                }
+            } else if (opcode == USERS) {
+                Long due = user.listsPending.poll ();
+                if (due != null) {
+                    stats[Type.LIST.ordinal ()].delivered.increment ();
+                    stats[Type.LIST.ordinal ()].latency.Record (now - due);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The due time written at the start of a message body by 'Send', or 0 if there is none
+     */
+    private static long Due (byte[] body) {
+        if (body.length < 2 || body[0] != '#') {
+            return 0;
+        }
+        // 'System.nanoTime' may well be negative
+        boolean negative = body[1] == '-';
+        long due = 0;
+        for (int i = negative ? 2 : 1; i < body.length; i++) {
+            if (body[i] == '#') {
+                return negative ? -due : due;
+            } else if (body[i] < '0' || body[i] > '9') {
+                return 0;
+            }
+            due = due * 10 + (body[i] - '0');
+        }
+        return 0;
+    }
+
+    private void Report (long elapsed, int users, long[] lastSent, long[] lastDelivered) {
+        long sent = 0;
+        long delivered = 0;
+        for (Stats type : stats) {
+            sent += type.sent.sum ();
+            delivered += type.delivered.sum ();
+        }
+        console.printf ("%4ds %6d users %8d sent/s %10d delivered/s%n", elapsed / 1_000_000_000L, users,
+                sent - lastSent[0], delivered - lastDelivered[0]);
+        lastSent[0] = sent;
+        lastDelivered[0] = delivered;
+    }
+
+    private void Summary (long seconds) {
+        console.printf ("%-8s %10s %10s %12s %10s %10s %10s %10s%n", "type", "sent", "sent/s", "delivered/s",
+                "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (Type type : Type.values ()) {
+            Stats of = stats[type.ordinal ()];
+            Histogram latency = of.latency;
+            console.printf ("%-8s %10d %10.1f %12.1f %10.3f %10.3f %10.3f %10.3f%n", type.name ().toLowerCase (),
+                    of.sent.sum (), (double) of.sent.sum () / seconds, (double) of.delivered.sum () / seconds,
+                    latency.Percentile (50) / 1e6, latency.Percentile (99) / 1e6, latency.Percentile (99.9) / 1e6,
+                    latency.Max () / 1e6);
+        }
+        console.println ("Write stalls: " + writeStalls.sum ());
+    }
+}
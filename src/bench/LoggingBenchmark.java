@@ -0,0 +1,98 @@
+package bench;
+
+import server.ChatterboxServer;
+import server.Histogram;
+import server.ServerBase;
+import server.ServerConfig;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures how long a sender spends inside 'broadcast' while the server's console output goes somewhere real (a
+ * file, '/dev/null' by default), so that whatever logging costs the sending thread, console lock included, shows
+ * up in the time. Several senders run at once to show contention; each call is timed and the percentiles are
+ * reported across all of them.
+ *
+ * Usage: LoggingBenchmark [--users=100] [--threads=4] [--seconds=3] [--console=/dev/null] [server options...]
+ *
+ * Anything else is handed to 'ServerConfig', e.g. '--log-level=debug'
+ */
+public class LoggingBenchmark {
+
+    private static final byte[] MESSAGE = "hello everybody, how is it going today?".getBytes (StandardCharsets.UTF_8);
+
+    public static void main (String[] args) throws Exception {
+        int users = 100;
+        int threads = 4;
+        int seconds = 3;
+        String consolePath = "/dev/null";
+        StringBuilder options = new StringBuilder ();
+        for (String arg : args) {
+            String value = arg.substring (arg.indexOf ('=') + 1);
+            if (arg.startsWith ("--users=")) {
+                users = Integer.parseInt (value);
+            } else if (arg.startsWith ("--threads=")) {
+                threads = Integer.parseInt (value);
+            } else if (arg.startsWith ("--seconds=")) {
+                seconds = Integer.parseInt (value);
+            } else if (arg.startsWith ("--console=")) {
+                consolePath = value;
+            } else {
+                options.append (options.length () == 0 ? "" : " ").append (arg);
+            }
+        }
+
+        PrintStream console = System.out;
+        System.setOut (new PrintStream (new FileOutputStream (consolePath), false));
+        ServerConfig config = ServerConfig.Parse (options.length () == 0 ? new String[0] :
+                options.toString ().split (" "));
+        ChatterboxServer.setLogLevel (config.getLogLevel ());
+        ServerBase server = new ServerBase (config);
+        for (int i = 0; i < users; i++) {
+            server.connect (new NullConnection (server, "user" + i));
+        }
+
+        // Once to warm up, once to measure
+        Histogram latency = null;
+        long calls = 0;
+        for (int round = 0; round < 2; round++) {
+            latency = new Histogram ();
+            Histogram into = latency;
+            long deadline = System.nanoTime () + seconds * 1_000_000_000L;
+            long[] counts = new long[threads];
+            Thread[] senders = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                String sender = "user" + t % users;
+                senders[t] = new Thread (() -> {
+                    try {
+                        long start = System.nanoTime ();
+                        while (start < deadline) {
+                            server.broadcast (sender, MESSAGE);
+                            long end = System.nanoTime ();
+                            into.Record (end - start);
+                            counts[thread]++;
+                            start = end;
+                        }
+                    } catch (Exception e) {
+                        throw new IllegalStateException (e);
+                    }
+                });
+                senders[t].start ();
+            }
+            calls = 0;
+            for (int t = 0; t < threads; t++) {
+                senders[t].join ();
+                calls += counts[t];
+            }
+        }
+
+        console.printf ("%s: %d users, %d threads, %d broadcasts/s%n", options.length () == 0 ? "defaults" : options,
+                users, threads, calls / seconds);
+        console.printf ("broadcast ns: p50 %d, p90 %d, p99 %d, p99.9 %d, max %d%n", latency.Percentile (50),
+                latency.Percentile (90), latency.Percentile (99), latency.Percentile (99.9), latency.Max ());
+        server.close ();
+    }
+}
@@ -0,0 +1,123 @@
+package bench;
+
+import common.BinaryCodec;
+import common.ChatterboxProtocol;
+import common.CommandView;
+import common.MessageAssembler;
+import server.ServerBase;
+import server.ServerConfig;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Measures what 'Metrics' adds to each command: a parsed 'list_users' is handed to connections once through
+ * 'Dispatch' alone and once the way the transports do it, through 'HandleCommand' with the clock read when
+ * 'TimeCommand' says so. That is done with the default sampling and with every command timed, from one thread
+ * and then from several at once so that they share the histograms. The difference between the untimed and timed
+ * runs is the recording overhead, which should stay under 100 ns per command with the default sampling.
+ *
+ * Usage: MetricsBenchmark [iterations] [threads]
+ */
+public class MetricsBenchmark {
+
+    /**
+     * A 'NullConnection' that lets the benchmark call its command handling directly
+     */
+    private static final class TimedConnection extends NullConnection {
+
+        TimedConnection (ServerBase server, String username) {
+            super (server, username);
+        }
+
+        void Untimed (CommandView command) {
+            Dispatch (command);
+        }
+
+        void Timed (CommandView command) {
+            HandleCommand (command, TimeCommand () ? System.nanoTime () : 0);
+        }
+    }
+
+    public static void main (String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt (args[0]) : 5_000_000;
+        int threads = args.length > 1 ? Integer.parseInt (args[1]) : 4;
+
+        PrintStream console = System.out;
+        System.setOut (new PrintStream (new OutputStream () {
+            @Override
+            public void write (int b) {
+            }
+        }));
+
+        ServerBase server = null;
+        for (String sample : new String[] {"8", "1"}) {
+            server = new ServerBase (ServerConfig.Parse (new String[] {"--metrics-sample=" + sample}));
+            for (int count : new int[] {1, threads}) {
+                double untimed = Run (server, count, iterations, false);
+                double timed = Run (server, count, iterations, true);
+                console.printf ("sample 1/%s, %d thread(s): dispatch %6.1f ns/command, timed %6.1f ns/command, " +
+                        "overhead %6.1f ns%n", sample, count, untimed, timed, timed - untimed);
+            }
+        }
+        System.setOut (console);
+        for (String line : server.getMetrics ().Report ()) {
+            if (line.contains (ChatterboxProtocol.LIST_USERS)) {
+                System.out.println (line);
+            }
+        }
+    }
+
+    /**
+     * @return The wall-clock time per command, in nanoseconds, with 'count' threads each handling 'iterations'
+     */
+    private static double Run (ServerBase server, int count, int iterations, boolean timed) throws Exception {
+        TimedConnection[] connections = new TimedConnection[count];
+        CommandView[] commands = new CommandView[count];
+        for (int t = 0; t < count; t++) {
+            connections[t] = new TimedConnection (server, "timed" + timed + count + "-" + t);
+            server.connect (connections[t]);
+            commands[t] = Parse (ChatterboxProtocol.LIST_USERS);
+            for (int i = 0; i < iterations / 10; i++) {
+                Handle (connections[t], commands[t], timed);
+            }
+        }
+
+        Thread[] workers = new Thread[count];
+        for (int t = 0; t < count; t++) {
+            TimedConnection connection = connections[t];
+            CommandView command = commands[t];
+            workers[t] = new Thread (() -> {
+                for (int i = 0; i < iterations; i++) {
+                    Handle (connection, command, timed);
+                }
+            });
+        }
+        long start = System.nanoTime ();
+        for (Thread worker : workers) {
+            worker.start ();
+        }
+        for (Thread worker : workers) {
+            worker.join ();
+        }
+        return (double) (System.nanoTime () - start) / count / iterations;
+    }
+
+    private static void Handle (TimedConnection connection, CommandView command, boolean timed) {
+        if (timed) {
+            connection.Timed (command);
+        } else {
+            connection.Untimed (command);
+        }
+    }
+
+    private static CommandView Parse (String command) throws Exception {
+        MessageAssembler assembler = new MessageAssembler ();
+        assembler.SwitchToBinary ();
+        byte[] bytes = BinaryCodec.Encode (command, new String[0]);
+        assembler.Feed (bytes, 0, bytes.length);
+        CommandView view = new CommandView ();
+        assembler.TakeInto (view);
+        return view;
+    }
+}
@@ -0,0 +1,230 @@
+package bench;
+
+import common.ChatterboxProtocol;
+import server.ChatterboxServer;
+import server.ServerBase;
+import server.ServerConfig;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Compares the server's execution modes (platform threads, virtual threads, selectors). Each mode gets a fresh
+ * server in its own child JVM, so their memory does not mix; this process then opens the client connections from a
+ * single selector thread and measures:
+ *
+ *  - memory per connection: the growth of the server's heap (after GC) and, on Linux, of its resident set size,
+ *    divided by the number of connections
+ *  - broadcast latency: one client broadcasts a line, and every client times its arrival; reported per delivery
+ *    (median, 99th percentile) and per broadcast (until the last client has it)
+ *
+ * A mode the child JVM cannot run (virtual threads before JDK 21) is reported as unavailable.
+ *
+ * Usage: ModeComparisonBenchmark [connections] [broadcasts] [modes, comma separated]
+ */
+public class ModeComparisonBenchmark {
+
+    private static final String SERVE = "--serve";
+
+    private static class Session extends BenchSupport.Session {
+        int lastRound = -1;
+
+        Session (SocketChannel channel) {
+            super (channel);
+        }
+    }
+
+    public static void main (String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals (SERVE)) {
+            Serve (Arrays.copyOfRange (args, 1, args.length));
+            return;
+        }
+
+        int connections = args.length > 0 ? Integer.parseInt (args[0]) : 1000;
+        int broadcasts = args.length > 1 ? Integer.parseInt (args[1]) : 100;
+        String[] modes = (args.length > 2 ? args[2] : "threads,virtual,nio").split (",");
+
+        int port = ChatterboxProtocol.PORT + 3;
+        for (String mode : modes) {
+            System.out.printf ("%-8s %s%n", mode, Compare (mode, port++, connections, broadcasts));
+        }
+    }
+
+    private static String Compare (String mode, int port, int connections, int broadcasts) throws Exception {
+        String java = System.getProperty ("java.home") + File.separator + "bin" + File.separator + "java";
+        Process child = new ProcessBuilder (java, "-cp", System.getProperty ("java.class.path"),
+                ModeComparisonBenchmark.class.getName (), SERVE, "--mode=" + mode, "--port=" + port)
+                .redirectErrorStream (true).start ();
+        BufferedReader fromChild = new BufferedReader (new InputStreamReader (child.getInputStream ()));
+        PrintStream toChild = new PrintStream (child.getOutputStream (), true);
+
+        try {
+            String ready = fromChild.readLine ();
+            if (ready == null || !ready.equals ("ready")) {
+                return "unavailable: " + ready;
+            }
+
+            long[] before = Measure (child, fromChild, toChild);
+
+            Selector selector = Selector.open ();
+            ByteBuffer buffer = ByteBuffer.allocate (64 * 1024);
+            List<Session> sessions = new ArrayList<> ();
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open (new InetSocketAddress ("localhost", port));
+                Session session = new Session (channel);
+                BenchSupport.Send (session, ChatterboxProtocol.CONNECT + ChatterboxProtocol.SEPARATOR + "client" + i);
+                channel.configureBlocking (false);
+                channel.register (selector, SelectionKey.OP_READ, session);
+                sessions.add (session);
+                if (i % 100 == 99) {
+                    BenchSupport.Drain (selector, 0, buffer, ModeComparisonBenchmark::OnLine);
+                }
+            }
+            // Let the join storm settle
+            while (BenchSupport.Drain (selector, 1000, buffer, ModeComparisonBenchmark::OnLine) > 0) {
+            }
+
+            long[] after = Measure (child, fromChild, toChild);
+
+            long[] deliveries = new long[broadcasts * connections];
+            int delivered = 0;
+            long totalCompletion = 0;
+            for (int round = 0; round < broadcasts; round++) {
+                long start = System.nanoTime ();
+                BenchSupport.Send (sessions.get (0), ChatterboxProtocol.SEND_CHAT + ChatterboxProtocol.SEPARATOR +
+                        round);
+                int arrived = 0;
+                long last = start;
+                long giveUp = start + 10_000_000_000L;
+                while (arrived < connections && System.nanoTime () < giveUp) {
+                    if (selector.select (100) == 0) {
+                        continue;
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys ().iterator ();
+                    while (keys.hasNext ()) {
+                        SelectionKey key = keys.next ();
+                        keys.remove ();
+                        Session session = (Session) key.attachment ();
+                        int previous = session.lastRound;
+                        BenchSupport.Read (key, buffer, ModeComparisonBenchmark::OnLine);
+                        if (session.lastRound == round && previous != round) {
+                            last = System.nanoTime ();
+                            deliveries[delivered++] = last - start;
+                            arrived++;
+                        }
+                    }
+                }
+                totalCompletion += last - start;
+            }
+
+            for (Session session : sessions) {
+                session.channel.close ();
+            }
+            selector.close ();
+
+            Arrays.sort (deliveries, 0, delivered);
+            long connected = sessions.stream ().filter (s -> s.connected).count ();
+            return String.format ("%d/%d connected, heap %,d B/conn, RSS %s, %d threads | delivery p50 %.2fms " +
+                            "p99 %.2fms, broadcast complete %.2fms avg",
+                    connected, connections, (after[0] - before[0]) / connections,
+                    after[1] < 0 ? "n/a" : String.format ("%,d B/conn", (after[1] - before[1]) / connections),
+                    after[2], Percentile (deliveries, delivered, 0.50) / 1e6,
+                    Percentile (deliveries, delivered, 0.99) / 1e6, totalCompletion / 1e6 / broadcasts);
+        } finally {
+            child.destroyForcibly ();
+            child.waitFor ();
+        }
+    }
+
+    private static long Percentile (long[] sorted, int count, double fraction) {
+        return count == 0 ? 0 : sorted[Math.min (count - 1, (int) (count * fraction))];
+    }
+
+    /**
+     * @return The child's heap use after GC, resident set size in bytes (-1 if unknown) and live thread count
+     */
+    private static long[] Measure (Process child, BufferedReader fromChild, PrintStream toChild) throws IOException {
+        toChild.println ("measure");
+        String[] reply = fromChild.readLine ().split (" ");
+        return new long[] {Long.parseLong (reply[0]), Rss (child.pid ()), Long.parseLong (reply[1])};
+    }
+
+    private static long Rss (long pid) {
+        try {
+            for (String line : Files.readAllLines (Paths.get ("/proc/" + pid + "/status"))) {
+                if (line.startsWith ("VmRSS:")) {
+                    return Long.parseLong (line.replaceAll ("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            //
+        }
+        return -1;
+    }
+
+    private static void OnLine (BenchSupport.Session session, String line) {
+        if (line.startsWith (ChatterboxProtocol.CHAT_RECEIVED + ChatterboxProtocol.SEPARATOR)) {
+            ((Session) session).lastRound = Integer.parseInt (line.substring (line.lastIndexOf (':') + 1));
+        }
+    }
+
+    /**
+     * The child side: runs a server with the given options and answers 'measure' on stdin with its heap use after
+     * GC and its live thread count
+     */
+    private static void Serve (String[] args) throws Exception {
+        PrintStream control = System.out;
+        System.setOut (new PrintStream (new OutputStream () {
+            @Override
+            public void write (int b) {
+            }
+        }));
+
+        ServerConfig config = ServerConfig.Parse (args);
+        ServerBase server = new ServerBase (config);
+        Thread serverThread = new Thread (() -> {
+            try {
+                ChatterboxServer.Run (config, server);
+            } catch (Exception e) {
+                control.println (e.getMessage ());
+                System.exit (1);
+            }
+        }, "chatterbox-server");
+        serverThread.setDaemon (true);
+        serverThread.start ();
+        Thread.sleep (500);
+        control.println ("ready");
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean ();
+        BufferedReader commands = new BufferedReader (new InputStreamReader (System.in));
+        String command;
+        while ((command = commands.readLine ()) != null) {
+            if (command.equals ("measure")) {
+                for (int i = 0; i < 3; i++) {
+                    System.gc ();
+                    Thread.sleep (200);
+                }
+                control.println (memory.getHeapMemoryUsage ().getUsed () + " " +
+                        ManagementFactory.getThreadMXBean ().getThreadCount ());
+            }
+        }
+        System.exit (0);
+    }
+}
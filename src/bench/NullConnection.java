@@ -0,0 +1,49 @@
+package bench;
+
+import common.Frame;
+import server.ClientConnection;
+import server.ServerBase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An in-memory 'ClientConnection' for driving 'ServerBase' without sockets. Every frame sent to it is only
+ * counted; with 'encodeEach' set it instead re-encodes the frame's text the way a per-recipient 'PrintWriter'
+ * would, to stand in for the old write path
+ */
+public class NullConnection extends ClientConnection {
+
+    private final boolean encodeEach;
+    private long frames;
+    private long bytes;
+
+    public NullConnection (ServerBase server, String username, boolean encodeEach) {
+        super (server);
+        this.username = username;
+        this.encodeEach = encodeEach;
+    }
+
+    public NullConnection (ServerBase server, String username) {
+        this (server, username, false);
+    }
+
+    @Override
+    public void Send (Frame frame) {
+        Compress (frame);
+        frames++;
+        if (encodeEach) {
+            bytes += (frame.toString () + "\n").getBytes ().length;
+        } else {
+            ByteBuffer view = frame.Buffer (encoding);
+            bytes += view.remaining ();
+        }
+    }
+
+    public long getFrames () {
+        return frames;
+    }
+
+    public long getBytes () {
+        return bytes;
+    }
+}
@@ -0,0 +1,65 @@
+package bench;
+
+import common.BinaryCodec;
+import common.ChatterboxProtocol;
+import common.CommandView;
+import common.Exceptions.ParseException;
+import common.MessageAssembler;
+
+/**
+ * Measures the server's inbound command parse: feeding a received command into a 'MessageAssembler' and parsing it
+ * into a reused 'CommandView', for each client command in both framings. In steady state this should report zero
+ * bytes allocated per command; the old 'trim' / 'split' parse is measured alongside for comparison.
+ *
+ * Usage: ParserBenchmark [iterations]
+ */
+public class ParserBenchmark {
+
+    private static long sink;
+
+    public static void main (String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt (args[0]) : 5_000_000;
+
+        String[][] commands = {
+                {ChatterboxProtocol.SEND_CHAT, "hello everybody, how is it going today?"},
+                {ChatterboxProtocol.SEND_WHISPER, "someone", "just between the two of us"},
+                {ChatterboxProtocol.LIST_USERS},
+                {ChatterboxProtocol.DISCONNECT},
+        };
+
+        for (String[] command : commands) {
+            String[] fields = new String[command.length - 1];
+            System.arraycopy (command, 1, fields, 0, fields.length);
+            StringBuilder line = new StringBuilder (command[0]);
+            for (String field : fields) {
+                line.append (ChatterboxProtocol.SEPARATOR).append (field);
+            }
+            String text = line.toString ();
+            byte[] textBytes = (text + "\n").getBytes ();
+            byte[] binaryBytes = BinaryCodec.Encode (command[0], fields);
+
+            MessageAssembler textAssembler = new MessageAssembler ();
+            MessageAssembler binaryAssembler = new MessageAssembler ();
+            binaryAssembler.SwitchToBinary ();
+            CommandView view = new CommandView ();
+
+            BenchSupport.Measure (command[0] + " split", iterations, () -> {
+                String[] data = text.trim ().split (ChatterboxProtocol.SEPARATOR, 2);
+                if (data[0].equals (ChatterboxProtocol.SEND_WHISPER)) {
+                    data = text.trim ().split (ChatterboxProtocol.SEPARATOR, 3);
+                }
+                sink += data.length;
+            });
+            BenchSupport.Measure (command[0] + " view v1", iterations, () ->
+                    sink += Parse (textAssembler, view, textBytes));
+            BenchSupport.Measure (command[0] + " view v2", iterations, () ->
+                    sink += Parse (binaryAssembler, view, binaryBytes));
+        }
+    }
+
+    private static int Parse (MessageAssembler assembler, CommandView view, byte[] bytes) throws ParseException {
+        assembler.Feed (bytes, 0, bytes.length);
+        assembler.TakeInto (view);
+        return view.getOpcode () + view.getFieldCount ();
+    }
+}
@@ -0,0 +1,84 @@
+package bench;
+
+import server.ServerBase;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures room chat against in-memory recipients: many rooms with a few members each, every sender thread
+ * posting to its own share of the rooms. The cost of a room message should follow the room's size, not the number
+ * of users on the server, so a global 'broadcast' over the same users is measured alongside for comparison.
+ *
+ * Usage: RoomBenchmark [rooms] [membersPerRoom] [messagesPerThread] [threads]
+ */
+public class RoomBenchmark {
+
+    public static void main (String[] args) throws Exception {
+        int rooms = args.length > 0 ? Integer.parseInt (args[0]) : 1000;
+        int members = args.length > 1 ? Integer.parseInt (args[1]) : 50;
+        int messages = args.length > 2 ? Integer.parseInt (args[2]) : 200000;
+        int threads = args.length > 3 ? Integer.parseInt (args[3]) : 4;
+
+        PrintStream console = System.out;
+        System.setOut (new PrintStream (new OutputStream () {
+            @Override
+            public void write (int b) {
+            }
+        }));
+
+        ServerBase server = new ServerBase ();
+        for (int room = 0; room < rooms; room++) {
+            for (int member = 0; member < members; member++) {
+                NullConnection client = new NullConnection (server, "user" + room + "_" + member);
+                server.connect (client);
+                server.joinRoom (client, "room" + room);
+            }
+        }
+        byte[] message = "hello room, how is it going today?".getBytes (StandardCharsets.UTF_8);
+
+        // Warm up, then measure
+        Run (server, rooms, members, messages / 10, threads, message);
+        long start = System.nanoTime ();
+        Run (server, rooms, members, messages, threads, message);
+        long nanos = System.nanoTime () - start;
+
+        long total = (long) messages * threads;
+        console.printf ("rooms: %d rooms x %d members, %d threads: %,.0f room messages/s, %,.0f deliveries/s%n",
+                rooms, members, threads, total / (nanos / 1e9), (double) total * members / (nanos / 1e9));
+
+        int broadcasts = Math.max (1, messages / 1000);
+        start = System.nanoTime ();
+        for (int i = 0; i < broadcasts; i++) {
+            server.broadcast ("user0_0", message);
+        }
+        nanos = System.nanoTime () - start;
+        console.printf ("global: %d users, 1 thread: %,.0f broadcasts/s, %,.0f deliveries/s%n",
+                rooms * members, broadcasts / (nanos / 1e9), (double) broadcasts * rooms * members / (nanos / 1e9));
+
+        System.setOut (console);
+    }
+
+    private static void Run (ServerBase server, int rooms, int members, int messages, int threads, byte[] message)
+            throws InterruptedException {
+        CountDownLatch done = new CountDownLatch (threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            new Thread (() -> {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        int room = (thread + i * threads) % rooms;
+                        server.roomBroadcast ("user" + room + "_" + (i % members), "room" + room, message);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace ();
+                } finally {
+                    done.countDown ();
+                }
+            }).start ();
+        }
+        done.await ();
+    }
+}
@@ -0,0 +1,177 @@
+package bench;
+
+import common.Frame;
+import server.ClientConnection;
+import server.ServerBase;
+import server.ServerConfig;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how aggregate broadcast and whisper throughput grows with '--shards'. For each shard count, as many
+ * threads as there are shards broadcast (or whisper to random users) at once, and the clock stops when every
+ * copy has reached its recipient; '--shards=0' is the unsharded server, where each sender delivers on its own
+ * thread. Each in-memory recipient counts what it gets with an atomic, standing in for the lock every real
+ * connection's send queue takes, so senders that share recipients contend the way they would on a real server.
+ *
+ * Usage: ShardBenchmark [--users=10000] [--max-shards=cores] [--broadcasts=2000] [--whispers=2000000]
+ */
+public class ShardBenchmark {
+
+    private static final byte[] MESSAGE = "hello everybody, how is it going today?".getBytes (StandardCharsets.UTF_8);
+
+    /**
+     * An in-memory user that only counts the frames it is sent
+     */
+    private static final class CountingConnection extends ClientConnection {
+
+        private final AtomicLong frames;
+
+        CountingConnection (ServerBase server, String username) {
+            super (server);
+            this.username = username;
+            this.usernameBytes = username.getBytes (StandardCharsets.UTF_8);
+            this.frames = new AtomicLong ();
+        }
+
+        @Override
+        public void Send (Frame frame) {
+            frames.incrementAndGet ();
+        }
+    }
+
+    /**
+     * What each sending thread does, 'count' times
+     */
+    private interface Sender {
+        void Send (ServerBase server, int thread, int count) throws Exception;
+    }
+
+    public static void main (String[] args) throws Exception {
+        int users = 10_000;
+        int maxShards = Runtime.getRuntime ().availableProcessors ();
+        int broadcasts = 2000;
+        int whispers = 2_000_000;
+        for (String arg : args) {
+            String value = arg.substring (arg.indexOf ('=') + 1);
+            if (arg.startsWith ("--users=")) {
+                users = Integer.parseInt (value);
+            } else if (arg.startsWith ("--max-shards=")) {
+                maxShards = Integer.parseInt (value);
+            } else if (arg.startsWith ("--broadcasts=")) {
+                broadcasts = Integer.parseInt (value);
+            } else if (arg.startsWith ("--whispers=")) {
+                whispers = Integer.parseInt (value);
+            } else {
+                throw new IllegalArgumentException ("Unknown option '" + arg + "'");
+            }
+        }
+
+        // 'ServerBase' logs every fan-out to the console, which would swamp everything being measured
+        PrintStream console = System.out;
+        System.setOut (new PrintStream (new OutputStream () {
+            @Override
+            public void write (int b) {
+            }
+        }));
+
+        int population = users;
+        console.printf ("%d users, %d cores%n", users, Runtime.getRuntime ().availableProcessors ());
+        console.printf ("%-8s %8s %18s %18s%n", "shards", "threads", "broadcast del/s", "whisper del/s");
+        for (int shards = 0; shards <= maxShards; shards = shards == 0 ? 1 : shards * 2) {
+            int threads = Math.max (1, shards);
+            // Warm up once, then measure
+            double broadcast = 0;
+            double whisper = 0;
+            for (int round = 0; round < 2; round++) {
+                broadcast = Run (shards, threads, users, broadcasts / threads, users, (server, thread, count) -> {
+                    String sender = "user" + thread;
+                    for (int i = 0; i < count; i++) {
+                        server.broadcast (sender, MESSAGE);
+                    }
+                });
+                whisper = Run (shards, threads, users, whispers / threads, 2, (server, thread, count) -> {
+                    String sender = "user" + thread;
+                    int next = thread * 7919;
+                    for (int i = 0; i < count; i++) {
+                        next = (next * 1103515245 + 12345) & Integer.MAX_VALUE;
+                        server.whisper (sender, "user" + next % population, MESSAGE);
+                    }
+                });
+            }
+            console.printf ("%-8d %8d %18.0f %18.0f%n", shards, threads, broadcast, whisper);
+        }
+    }
+
+    /**
+     * @param copies How many frames each send delivers
+     * @return Deliveries per second with 'threads' senders each doing 'count' sends on a server with 'shards'
+     */
+    private static double Run (int shards, int threads, int users, int count, int copies, Sender sender)
+            throws Exception {
+        ServerBase server = new ServerBase (ServerConfig.Parse (new String[] {"--shards=" + shards,
+                "--metrics-sample=0", "--history=0"}));
+        CountingConnection[] connections = new CountingConnection[users];
+        for (int i = 0; i < users; i++) {
+            connections[i] = new CountingConnection (server, "user" + i);
+            server.connect (connections[i]);
+        }
+        long before = Delivered (connections);
+
+        Thread[] workers = new Thread[threads];
+        Exception[] failure = new Exception[1];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread (() -> {
+                try {
+                    sender.Send (server, thread, count);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+        }
+        long start = System.nanoTime ();
+        for (Thread worker : workers) {
+            worker.start ();
+        }
+        for (Thread worker : workers) {
+            worker.join ();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        // The shards may still be delivering. Chat they dropped for a full backlog never arrives, so once they are
+        // idle whatever has arrived is all there is
+        long expected = (long) threads * count * copies;
+        long delivered;
+        while ((delivered = Delivered (connections) - before) < expected) {
+            if (server.getShardBacklog () == 0) {
+                long idleSince = System.nanoTime ();
+                Thread.sleep (20);
+                if (Delivered (connections) - before == delivered) {
+                    start += System.nanoTime () - idleSince;
+                    break;
+                }
+            }
+            Thread.yield ();
+        }
+        double elapsed = (System.nanoTime () - start) / 1e9;
+        if (server.getShardDropped () > 0) {
+            System.err.printf ("%d shards: %d tasks dropped for a full backlog%n", shards, server.getShardDropped ());
+        }
+        server.close ();
+        return delivered / elapsed;
+    }
+
+    private static long Delivered (CountingConnection[] connections) {
+        long total = 0;
+        for (CountingConnection connection : connections) {
+            total += connection.frames.get ();
+        }
+        return total;
+    }
+}
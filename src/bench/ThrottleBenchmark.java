@@ -0,0 +1,116 @@
+package bench;
+
+import common.ChatterboxProtocol;
+import common.Exceptions.ParseException;
+import common.Frame;
+import server.ChatterboxServer;
+import server.ClientConnection;
+import server.ServerBase;
+import server.ServerConfig;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One user floods 'SEND_CHAT' as fast as one thread can parse it, into a room of '--users' others, for '--seconds'.
+ * Reports how many commands the flooder got through per second, how many frames that fanned out to the room and how
+ * many 'THROTTLED' replies it was sent; first with '--chat-limit=0' (no limit, the default), then with each
+ * '--limit' given, or 20/40 if none is.
+ *
+ * Usage: ThrottleBenchmark [--users=1000] [--seconds=3] [--limit=20/40]...
+ */
+public class ThrottleBenchmark {
+
+    /**
+     * A user that only counts what it is sent
+     */
+    private static class CountingConnection extends ClientConnection {
+        private final LongAdder frames;
+        private final LongAdder throttled;
+
+        CountingConnection (ServerBase server, String username, LongAdder frames, LongAdder throttled) {
+            super (server);
+            this.username = username;
+            this.usernameBytes = username.getBytes (StandardCharsets.UTF_8);
+            this.frames = frames;
+            this.throttled = throttled;
+            capabilities.add (ChatterboxProtocol.CAPABILITY_NO_PRESENCE);
+        }
+
+        @Override
+        public void Send (Frame frame) {
+            if (frame.getCommand ().equals (ChatterboxProtocol.THROTTLED)) {
+                throttled.increment ();
+            } else {
+                frames.increment ();
+            }
+        }
+    }
+
+    public static void main (String[] args) throws Exception {
+        ChatterboxServer.setLogLevel (ServerConfig.LogLevel.WARN);
+        int users = 1000;
+        long seconds = 3;
+        StringBuilder limits = new StringBuilder ("0");
+        for (String arg : args) {
+            String value = arg.substring (arg.indexOf ('=') + 1);
+            if (arg.startsWith ("--users=")) {
+                users = Integer.parseInt (value);
+            } else if (arg.startsWith ("--seconds=")) {
+                seconds = Long.parseLong (value);
+            } else if (arg.startsWith ("--limit=")) {
+                limits.append (" ").append (value);
+            } else {
+                throw new IllegalArgumentException ("Unknown option '" + arg + "'");
+            }
+        }
+        if (limits.indexOf (" ") < 0) {
+            limits.append (" 20/40");
+        }
+
+        System.out.printf ("1 user flooding chat to %d others for %d s%n", users, seconds);
+        System.out.printf ("%-12s %14s %14s %16s %14s%n", "chat-limit", "commands/s", "accepted", "frames out",
+                "throttled");
+        for (String limit : limits.toString ().split (" ")) {
+            Run (limit, users, seconds);
+        }
+    }
+
+    private static void Run (String limit, int users, long seconds) throws Exception {
+        ServerBase server = new ServerBase (ServerConfig.Parse (new String[] {"--chat-limit=" + limit,
+                "--replay=0", "--history=0"}));
+        LongAdder frames = new LongAdder ();
+        LongAdder throttled = new LongAdder ();
+        for (int i = 0; i < users; i++) {
+            server.connect (new CountingConnection (server, "user" + i, frames, throttled));
+        }
+        CountingConnection flooder = new CountingConnection (server, "flooder", new LongAdder (), throttled);
+        server.connect (flooder);
+        frames.reset ();
+
+        String line = ChatterboxProtocol.SEND_CHAT + ChatterboxProtocol.SEPARATOR +
+                "a line of roughly the length people actually type, sent far faster than anyone types";
+        long commands = 0;
+        long start = System.nanoTime ();
+        long deadline = start + seconds * 1_000_000_000L;
+        while (System.nanoTime () < deadline) {
+            for (int i = 0; i < 100; i++) {
+                Flood (flooder, line);
+            }
+            commands += 100;
+        }
+        double elapsed = (System.nanoTime () - start) / 1e9;
+
+        System.out.printf ("%-12s %14.0f %14d %16d %14d%n", limit, commands / elapsed,
+                commands - server.getThrottledCommands (), frames.sum (), throttled.sum ());
+        server.close ();
+    }
+
+    private static void Flood (ClientConnection flooder, String line) {
+        try {
+            flooder.ParseUserCommand (line);
+        } catch (ParseException e) {
+            throw new IllegalStateException (e);
+        }
+    }
+}
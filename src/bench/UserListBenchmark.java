@@ -0,0 +1,131 @@
+package bench;
+
+import common.ChatterboxProtocol;
+import common.Exceptions.NameTakenException;
+import common.Exceptions.UserNotInitializedException;
+import common.Frame;
+import server.ChatterboxServer;
+import server.ClientConnection;
+import server.ServerBase;
+import server.ServerConfig;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Times 'LIST_USERS' in a large room whose membership keeps changing. '--users' users are connected; then, over and
+ * over, '--churn' of them leave and come back and one user asks who is online, as a client polling the list would.
+ * Reports the server time per request (including rebuilding whatever the changes made stale) and the size of the
+ * reply in the connection's encoding.
+ *
+ * This is run for a 'legacy' client, sent the whole 'USERS' list each time, and an 'ids' client that agreed on
+ * 'CAPABILITY_USER_IDS' and asks with the version of the table it was last sent, so is sent a 'USER_DELTA'
+ *
+ * Usage: UserListBenchmark [--users=10000] [--churn=2] [--requests=2000] [--encoding=binary|deflate|text]
+ */
+public class UserListBenchmark {
+
+    /**
+     * A user that keeps the last frame it was sent
+     */
+    private static class ListingConnection extends ClientConnection {
+        Frame last;
+
+        ListingConnection (ServerBase server, String username, boolean ids, Frame.Encoding encoding) {
+            super (server);
+            this.username = username;
+            this.usernameBytes = username.getBytes (StandardCharsets.UTF_8);
+            this.encoding = encoding;
+            capabilities.add (ChatterboxProtocol.CAPABILITY_NO_PRESENCE);
+            if (ids) {
+                capabilities.add (ChatterboxProtocol.CAPABILITY_USER_IDS);
+            }
+        }
+
+        @Override
+        public void Send (Frame frame) {
+            Compress (frame);
+            last = frame;
+        }
+
+        /**
+         * @return The table version the last 'USER_TABLE' or 'USER_DELTA' brings the client to, or -1 for anything
+         * else
+         */
+        long Version () {
+            // Both start with it: "command::version::..."
+            if (last.getCommand ().equals (ChatterboxProtocol.USER_TABLE) ||
+                    last.getCommand ().equals (ChatterboxProtocol.USER_DELTA)) {
+                return Long.parseLong (last.toString ().split (ChatterboxProtocol.SEPARATOR, 3)[1]);
+            }
+            return -1;
+        }
+    }
+
+    public static void main (String[] args) throws Exception {
+        ChatterboxServer.setLogLevel (ServerConfig.LogLevel.WARN);
+        int users = 10_000;
+        int churn = 2;
+        int requests = 2000;
+        Frame.Encoding encoding = Frame.Encoding.BINARY;
+        for (String arg : args) {
+            String value = arg.substring (arg.indexOf ('=') + 1);
+            if (arg.startsWith ("--users=")) {
+                users = Integer.parseInt (value);
+            } else if (arg.startsWith ("--churn=")) {
+                churn = Integer.parseInt (value);
+            } else if (arg.startsWith ("--requests=")) {
+                requests = Integer.parseInt (value);
+            } else if (arg.startsWith ("--encoding=")) {
+                encoding = Frame.Encoding.valueOf (value.toUpperCase ());
+            } else {
+                throw new IllegalArgumentException ("Unknown option '" + arg + "'");
+            }
+        }
+
+        System.out.printf ("%d users, %d leave and rejoin between requests, %s encoding%n", users, churn,
+                encoding.name ().toLowerCase ());
+        System.out.printf ("%-7s %12s %14s%n", "client", "us/request", "bytes/request");
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up
+            Run (false, users, churn, requests, encoding, round == 1);
+            Run (true, users, churn, requests, encoding, round == 1);
+        }
+    }
+
+    private static void Run (boolean ids, int users, int churn, int requests, Frame.Encoding encoding, boolean print)
+            throws NameTakenException, UserNotInitializedException {
+        ServerBase server = new ServerBase (ServerConfig.Parse (new String[] {"--presence-millis=0",
+                "--replay=0"}));
+        ListingConnection[] connections = new ListingConnection[users];
+        for (int i = 0; i < users; i++) {
+            connections[i] = new ListingConnection (server, "user" + i, ids, encoding);
+            server.connect (connections[i]);
+        }
+        ListingConnection requestor = connections[0];
+        server.getUserList (requestor, -1);
+        long version = requestor.Version ();
+
+        long elapsed = 0;
+        long bytes = 0;
+        int next = 1;
+        for (int request = 0; request < requests; request++) {
+            for (int i = 0; i < churn; i++) {
+                server.disconnect (connections[next]);
+                connections[next] = new ListingConnection (server, "user" + next, ids, encoding);
+                server.connect (connections[next]);
+                next = next % (users - 1) + 1;
+            }
+            long start = System.nanoTime ();
+            server.getUserList (requestor, version);
+            bytes += requestor.last.Length (encoding);
+            elapsed += System.nanoTime () - start;
+            version = requestor.Version ();
+        }
+
+        if (print) {
+            System.out.printf ("%-7s %12.1f %14d%n", ids ? "ids" : "legacy", elapsed / 1e3 / requests,
+                    bytes / requests);
+        }
+        server.close ();
+    }
+}
@@ -1,12 +1,19 @@
 package client;
 
 import common.ChatterboxProtocol;
+import common.Compression;
 import common.Exceptions.ParseException;
-import server.ChatterboxServer;
+import common.Frame;
+import common.Message;
+import common.MessageReader;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 public class Client implements ChatterboxProtocol {
     /**
@@ -24,128 +31,217 @@ public class Client implements ChatterboxProtocol {
     public static final String ANSI_WHITE = "\u001B[37m";
 
     public static void main (String[] args) throws IOException {
-        Client client = null;
-        if (args.length == 0) {
-            client = new Client ("localHost");
-        } else {
-            client = new Client (args[0]);
+        // Besides the host name, in any order: '--text' to stay on the v1 text framing, '--no-deflate' to never
+        // compress, or '--no-presence' to not hear about users coming and going
+        String hostName = "localHost";
+        List<String> options = new ArrayList<> ();
+        for (String arg : args) {
+            if (!arg.startsWith ("--")) {
+                hostName = arg;
+            } else if (arg.equals ("--text") || arg.equals ("--no-deflate") || arg.equals ("--no-presence")) {
+                options.add (arg);
+            } else {
+                throw new IllegalArgumentException ("Unknown option '" + arg + "'");
+            }
         }
-        client.Connect ();
-
-        while (client.isConnected ()) {
-            try {
-                String fromConsole = client.GetConsoleCommand ();
-                if (!fromConsole.isEmpty ()) {
-                    client.ParseUserCommand (fromConsole);
-                }
-            } catch (ParseException e) {
-                //
+        Client client = new Client (hostName);
+        client.offerBinary = !options.contains ("--text");
+        client.offerDeflate = !options.contains ("--no-deflate");
+        client.offerPresence = !options.contains ("--no-presence");
+
+        // The server is read on its own thread, so this one only ever waits for the next line typed
+        while (true) {
+            if (!client.isConnected ()) {
+                client.Connect ();
+            }
+            String fromConsole = client.NextConsoleLine ();
+            if (fromConsole == null) {
+                break;
             }
-
-
             try {
-                String fromServer = client.GetServerCommand ();
-                if (!fromServer.isEmpty ()) {
-                    client.ParseServerCommand (fromServer);
-                }
+                client.ParseUserCommand (fromConsole);
             } catch (ParseException e) {
                 //
             }
-
+            client.renderer.Flush ();
         }
 
-
+        // Out of console input: keep showing what the server sends until it goes away
+        client.AwaitServer ();
     }
 
     //--------------------------------------------<Fields>--------------------------------------------//
     //------------------------------<Network Layer>-------------------------------//
+    private final String hostName;
+    //  Opened once a username has been chosen, so a server's handshake timeout does not run while the user types
     private Socket socket;
 
     //---------------------------------<Inputs>-----------------------------------//
     //  Streams
     private InputStream serverIn;
-    private InputStream consoleIn;
 
     //  Readers
-    private Scanner serverReader;
-    private Scanner consoleReader;
+    private MessageReader serverReader;
+    private BufferedReader consoleReader;
+    private Thread serverThread;
 
-    //  Buffers
-    private String serverInBuffer;
-    private String consoleInBuffer;
+    //  Replies to 'CONNECT', handed from the server thread to 'Connect'
+    private BlockingQueue<Message> handshakes;
 
 
     //---------------------------------<Outputs>----------------------------------//
     //  Streams
     private OutputStream serverOut;
+    private ConsoleRenderer renderer;
 
-    //  Writers
-    private PrintStream serverPrinter;
-
-    //  Buffers
+    //  Framing
+    private boolean offerBinary;
+    private boolean offerDeflate;
+    private boolean offerPresence;
+    private volatile Frame.Encoding encoding;
 
     //-----------------------------------<Misc>-----------------------------------//
-    private boolean connected;
-    private boolean useSound;
-    private boolean verboseChat;
-    private String username;
+    private volatile boolean connected;
+    private volatile boolean useSound;
+    private volatile boolean verboseChat;
+    private int replaying;
+    private volatile String username;
+    private int userId;
+    private volatile boolean userIds;
+    private volatile boolean listing;
+    private volatile UserTable users;
 
 
     //-------------------------------------------<Methods>--------------------------------------------//
     public Client () throws IOException {
-        new Client ("localHost");
+        this ("localHost");
     }
 
     public Client (String hostName) throws IOException {
+        this.hostName = hostName;
+
+        consoleReader = new BufferedReader (new InputStreamReader (System.in));
+        serverThread = new Thread (this::ReadServer, "server-reader");
+        serverThread.setDaemon (true);
+        handshakes = new LinkedBlockingQueue<> ();
+
+        renderer = new ConsoleRenderer ();
+        System.setOut (renderer.getOut ());
+
+        offerBinary = true;
+        offerDeflate = true;
+        offerPresence = true;
+        encoding = Frame.Encoding.TEXT;
+
+        users = new UserTable ();
+
+        connected = false;
+        useSound = false;
+        verboseChat = true;
+    }
+
+    /**
+     * Connects to the server and starts reading from it; called by 'Connect' once there is a username to send
+     */
+    private void Open () throws IOException {
         try {
             this.socket = new Socket (hostName, ChatterboxProtocol.PORT);
         } catch (IOException e) {
             System.out.println ("Failed to connect to Server, shutting down client");
+            renderer.Flush ();
             System.exit (0);
         }
         serverIn = socket.getInputStream ();
-        consoleIn = System.in;
         serverOut = socket.getOutputStream ();
 
-        serverInBuffer = "";
-        consoleInBuffer = "";
-
-        serverReader = new Scanner (serverIn);
-        consoleReader = new Scanner (consoleIn);
-        serverPrinter = new PrintStream (serverOut);
-
-        connected = false;
-        useSound = false;
-        verboseChat = true;
+        serverReader = new MessageReader (serverIn);
+        serverThread.start ();
     }
 
     public void Connect () throws IOException {
         while (!connected) {
             System.out.print ("Choose a username: ");
-            this.username = consoleReader.nextLine ().trim ();
-            if (username.compareToIgnoreCase ("Quit") == 0)
+            renderer.Flush ();
+            String line = NextConsoleLine ();
+            if (line == null || line.trim ().compareToIgnoreCase ("Quit") == 0) {
                 this.Close ();
-            else {
-                serverPrinter.println (ChatterboxProtocol.CONNECT + ChatterboxProtocol.SEPARATOR + username);
-                System.out.println ("Waiting for connection acc");
-                String response = "";
-                do {
-                    response = this.GetServerCommand ().trim ();
-                } while (response.isEmpty ());
-                System.out.println (response);
-
-                if (response.compareTo (ChatterboxProtocol.CONNECTED) == 0) {
-                    connected = true;
-                    this.username = username;
-                    System.out.println ("Connected to server as " + username);
+                renderer.Flush ();
+                System.exit (0);
+            }
+            this.username = line.trim ();
+            if (socket == null) {
+                Open ();
+            }
+            List<String> offer = new ArrayList<> ();
+            offer.add (username);
+            if (offerBinary) {
+                offer.add (ChatterboxProtocol.CAPABILITY_BINARY);
+                if (offerDeflate) {
+                    offer.add (ChatterboxProtocol.CAPABILITY_DEFLATE);
+                }
+            }
+            offer.add (offerPresence ? ChatterboxProtocol.CAPABILITY_PRESENCE_BATCH :
+                    ChatterboxProtocol.CAPABILITY_NO_PRESENCE);
+            offer.add (ChatterboxProtocol.CAPABILITY_USER_IDS);
+            Send (ChatterboxProtocol.CONNECT, offer.toArray (new String[0]));
+            System.out.println ("Waiting for connection acc");
+            renderer.Flush ();
+            Message response;
+            try {
+                response = handshakes.take ();
+            } catch (InterruptedException e) {
+                Thread.currentThread ().interrupt ();
+                return;
+            }
+            System.out.println (response);
+
+            if (response.getCommand ().equals (ChatterboxProtocol.CONNECTED)) {
+                List<String> accepted = Arrays.asList (response.getFields ());
+                if (accepted.contains (ChatterboxProtocol.CAPABILITY_BINARY)) {
+                    encoding = accepted.contains (ChatterboxProtocol.CAPABILITY_DEFLATE) ?
+                            Frame.Encoding.DEFLATE : Frame.Encoding.BINARY;
+                }
+                userIds = accepted.contains (ChatterboxProtocol.CAPABILITY_USER_IDS);
+                for (String field : accepted) {
+                    if (field.startsWith ("id=")) {
+                        userId = Integer.parseInt (field.substring (3));
+                    }
+                }
+                users = new UserTable ();
+                connected = true;
+                System.out.println ("Connected to server as " + username + (userIds ? " (#" + userId + ")" : ""));
+                if (userIds) {
+                    // Fetched once so leaves can be named; every change after this comes as a delta
+                    Send (ChatterboxProtocol.LIST_USERS);
+                }
+            } else {
+                try {
+                    Display (response);
+                } catch (ParseException e) {
+                    //
                 }
             }
+            renderer.Flush ();
         }
     }
 
+    /**
+     * Waits for the server to close the connection, which ends the client
+     */
+    public void AwaitServer () {
+        try {
+            serverThread.join ();
+        } catch (InterruptedException e) {
+            Thread.currentThread ().interrupt ();
+        }
+        renderer.Flush ();
+    }
 
     public void Close () {
         // close the connection safely; insure all written data is sent
+        if (socket == null) {
+            return;
+        }
         try {
             socket.shutdownOutput ();
             socket.shutdownInput ();
@@ -172,18 +268,40 @@ public class Client implements ChatterboxProtocol {
                 String commandTag = toCompare.substring (1).split (" ")[0];
                 switch (commandTag.toUpperCase ().trim ()) {
                     case "LIST":
-                        serverPrinter.println (ChatterboxProtocol.LIST_USERS);
+                        ListUsers ();
                         break;
                     case "TELL":
                     case "WHISPER":
                     case "MSG":
                         String[] data = toCompare.split (" ", 3);
-                        serverPrinter.println (ChatterboxProtocol.SEND_WHISPER + ChatterboxProtocol.SEPARATOR + data[1] +
-                                ChatterboxProtocol.SEPARATOR + data[2]);
+                        Send (ChatterboxProtocol.SEND_WHISPER, data[1], data[2]);
+                        break;
+                    case "JOIN":
+                        Send (ChatterboxProtocol.JOIN_ROOM, toCompare.split (" ", 3)[1]);
+                        break;
+                    case "PART":
+                    case "LEAVE":
+                        Send (ChatterboxProtocol.PART_ROOM, toCompare.split (" ", 3)[1]);
+                        break;
+                    case "ROOM":
+                    case "R":
+                        String[] roomData = toCompare.split (" ", 3);
+                        Send (ChatterboxProtocol.SEND_ROOM, roomData[1], roomData[2]);
+                        break;
+                    case "HISTORY":
+                        String[] historyData = toCompare.split (" ", 3);
+                        if (historyData.length > 1) {
+                            Send (ChatterboxProtocol.GET_HISTORY, historyData[1]);
+                        } else {
+                            Send (ChatterboxProtocol.GET_HISTORY);
+                        }
+                        break;
+                    case "STATS":
+                        Send (ChatterboxProtocol.STATS);
                         break;
                     case "DISCONNECT":
                     case "DCN":
-                        serverPrinter.println (ChatterboxProtocol.DISCONNECT);
+                        Send (ChatterboxProtocol.DISCONNECT);
                         break;
                     case "SOUND":
                         useSound = !useSound;
@@ -199,7 +317,7 @@ public class Client implements ChatterboxProtocol {
                 System.out.println ("\t***ERROR! too few arguments in command");
             }
         } else {
-            serverPrinter.println (ChatterboxProtocol.SEND_CHAT + ChatterboxProtocol.SEPARATOR + strIn);
+            Send (ChatterboxProtocol.SEND_CHAT, toCompare);
         }
 
     }
@@ -210,118 +328,309 @@ public class Client implements ChatterboxProtocol {
      */
     @Override
     public void ParseServerCommand (String strIn) throws ParseException {
-        if (!strIn.trim ().isEmpty ())
-//            System.out.println ("Passed server command: " + strIn);
-        strIn = strIn.trim ();
-        String[] data = strIn.split (ChatterboxProtocol.SEPARATOR, 2);
+        Display (Message.ParseText (strIn));
+    }
 
-        switch (data[0]) {
+    /**
+     * Shows a message from the server to the user
+     *
+     * @param message The message received
+     * @throws ParseException Iff the command tag sent is not recognized
+     */
+    public void Display (Message message) throws ParseException {
+        String[] data = message.getFields ();
+
+        switch (message.getCommand ()) {
             case ChatterboxProtocol.CONNECTED:
                 System.out.println ("Connected to server");
                 break;
             case ChatterboxProtocol.DISCONNECTED:
                 System.out.println ("disconnected from the server, shutting down");
                 this.Close ();
+                renderer.Flush ();
                 System.exit (42);
                 break;
+            case ChatterboxProtocol.HISTORY:
+                replaying = Integer.parseInt (data[0]);
+                System.out.println ("-----" + data[0] + " earlier message(s)" + (data.length > 1 ? " in '" + data[1] +
+                        "'" : "") + "-----");
+                break;
             case ChatterboxProtocol.CHAT_RECEIVED:
-                if (useSound)
+                if (useSound && replaying == 0)
                     java.awt.Toolkit.getDefaultToolkit ().beep ();
-                data = strIn.split (ChatterboxProtocol.SEPARATOR, 3);
-                if (data[1].trim ().equals (username.trim ())) {
+                if (data[0].trim ().equals (username.trim ())) {
 
-                    System.out.println (ANSI_BLUE + "<you> " + data[2].trim () + ANSI_RESET);
+                    System.out.println (ANSI_BLUE + "<you> " + data[1].trim () + ANSI_RESET);
                 } else {
-                    System.out.println (ANSI_RED + "<" + data[1] + "> " + data[2].trim () + ANSI_RESET);
+                    System.out.println (ANSI_RED + "<" + data[0] + "> " + data[1].trim () + ANSI_RESET);
                 }
-
-
+                Replayed ();
                 break;
             case ChatterboxProtocol.WHISPER_SENT:
-                data = strIn.split (ChatterboxProtocol.SEPARATOR, 3);
-                System.out.println (ANSI_CYAN + "[direct] <You -> " + data[1] + "> " + data[2].trim () + ANSI_RESET);
+                System.out.println (ANSI_CYAN + "[direct] <You -> " + data[0] + "> " + data[1].trim () + ANSI_RESET);
                 break;
             case ChatterboxProtocol.WHISPER_RECEIVED:
                 if (useSound)
                     java.awt.Toolkit.getDefaultToolkit ().beep ();
-                data = strIn.split (ChatterboxProtocol.SEPARATOR, 3);
-                System.out.println (ANSI_GREEN + "[direct] <" + data[1] + " -> You> " + data[2].trim () + ANSI_RESET);
+                System.out.println (ANSI_GREEN + "[direct] <" + data[0] + " -> You> " + data[1].trim () + ANSI_RESET);
                 break;
             case ChatterboxProtocol.USERS:
-                data = strIn.split (ChatterboxProtocol.SEPARATOR);
-                System.out.println (data.length - 1 + " users currently online:");
-                for (int i = 1; i < data.length; i++) {
-                    String aData = data[i];
+                System.out.println (data.length + " users currently online:");
+                for (String aData : data) {
+                    System.out.println ("\t" + aData);
+                }
+                break;
+            case ChatterboxProtocol.USER_TABLE:
+                users.Replace (data);
+                if (listing) {
+                    ShowUsers ();
+                }
+                break;
+            case ChatterboxProtocol.USER_DELTA:
+                ShowDelta (data);
+                break;
+            case ChatterboxProtocol.STATS_REPORT:
+                System.out.println ("Server stats (times in ns: count,p50,p99,p999,max):");
+                for (String aData : data) {
                     System.out.println ("\t" + aData);
                 }
                 break;
             case ChatterboxProtocol.USER_JOINED:
                 if (verboseChat)
-                    System.out.println ("*****User '" + data[1] + "' has joined the chat*****");
+                    System.out.println ("*****User '" + data[0] + "' has joined the chat*****");
+                break;
+            case ChatterboxProtocol.PRESENCE:
+                if (verboseChat) {
+                    int joined = Integer.parseInt (data[0]);
+                    ShowPresence (Arrays.copyOfRange (data, 1, joined + 1), "joined");
+                    ShowPresence (Arrays.copyOfRange (data, joined + 1, data.length), "left");
+                }
                 break;
             case ChatterboxProtocol.USER_LEFT:
                 if (verboseChat)
-                    System.out.println ("*****User '" + data[1] + "' has left the chat*****");
+                    System.out.println ("*****User '" + data[0] + "' has left the chat*****");
+                break;
+            case ChatterboxProtocol.ROOM_CHAT_RECEIVED:
+                if (data[1].equals (username.trim ())) {
+                    System.out.println (ANSI_BLUE + "[" + data[0] + "] <you> " + data[2].trim () + ANSI_RESET);
+                } else {
+                    System.out.println (ANSI_YELLOW + "[" + data[0] + "] <" + data[1] + "> " + data[2].trim () +
+                            ANSI_RESET);
+                }
+                Replayed ();
+                break;
+            case ChatterboxProtocol.ROOM_JOINED:
+                if (data[1].equals (username.trim ())) {
+                    System.out.println ("*****You have joined room '" + data[0] + "'*****");
+                } else if (verboseChat) {
+                    System.out.println ("*****User '" + data[1] + "' has joined room '" + data[0] + "'*****");
+                }
+                break;
+            case ChatterboxProtocol.ROOM_LEFT:
+                if (data[1].equals (username.trim ())) {
+                    System.out.println ("*****You have left room '" + data[0] + "'*****");
+                } else if (verboseChat) {
+                    System.out.println ("*****User '" + data[1] + "' has left room '" + data[0] + "'*****");
+                }
+                break;
+            case ChatterboxProtocol.ROOM_ERROR:
+                System.out.println ("\t***ERROR! You are not in room '" + data[0] +
+                        "', or it is not a valid room name");
                 break;
             case ChatterboxProtocol.TARGET_ERROR:
-                System.out.println ("\t***ERROR! The user you whispered to, '" + data[1] + "' is not logged onto the " +
+                System.out.println ("\t***ERROR! The user you whispered to, '" + data[0] + "' is not logged onto the " +
                         "server");
                 break;
             case ChatterboxProtocol.NON_INITIALIZED_ERROR:
                 System.out.println ("\t***ERROR! You have not negotiated a username with the server");
+                // The console thread asks for a username again before its next command
                 connected = false;
-                try {
-                    this.Connect ();
-                } catch (IOException e) {
-                    e.printStackTrace ();
-                }
                 break;
             case ChatterboxProtocol.NAME_TAKEN_ERROR:
-                System.out.println ("\t***ERROR! the username you have chosen ('" + data[1] + "') is already taken");
+                System.out.println ("\t***ERROR! the username you have chosen ('" + data[0] + "') is already taken");
+                break;
+            case ChatterboxProtocol.FATAL_ERROR:
+                System.out.println ("\t***FATAL ERROR! " + (data.length > 0 ? data[0] : "") + ", shutting down");
+                this.Close ();
+                renderer.Flush ();
+                System.exit (43);
+                break;
+            case ChatterboxProtocol.THROTTLED:
+                System.out.println ("\t***ERROR! You are sending '" + data[0] + "' too fast; it was not sent, nor " +
+                        "will any more be for " + data[1] + " ms");
                 break;
             case ChatterboxProtocol.PARSE_ERROR:
                 System.out.println ("\t***Error! The server encountered an error in attempting to parse your command");
                 break;
             default:
-                throw new ParseException (strIn);
+                throw new ParseException (message.toString ());
         }
     }
 
-    private String NextConsole () {
-        return nextLine (consoleIn, consoleReader);
+    /**
+     * Asks the server who is online. With a table to go on, only what changed since its version is asked for
+     */
+    private void ListUsers () {
+        long version = users.getVersion ();
+        listing = true;
+        if (userIds && version >= 0) {
+            Send (ChatterboxProtocol.LIST_USERS, String.valueOf (version));
+        } else {
+            Send (ChatterboxProtocol.LIST_USERS);
+        }
     }
 
-    private String NextServer () {
-        return nextLine (serverIn, serverReader);
+    /**
+     * Shows the user table, as the reply to '/list'
+     */
+    private void ShowUsers () {
+        listing = false;
+        List<String> names = users.Names ();
+        System.out.println (names.size () + " users currently online:");
+        for (String name : names) {
+            System.out.println ("\t" + name);
+        }
     }
 
-    private String GetConsoleCommand () throws ParseException {
-        String lastLine = NextConsole ();
-        if (!lastLine.isEmpty ()) {
-            if (lastLine.charAt (lastLine.length () - 1) == '\n') {
-                String temp = consoleInBuffer + lastLine;
-                consoleInBuffer = "";
-                return (temp);
-            } else {
-                consoleInBuffer += lastLine;
+    /**
+     * Applies a 'USER_DELTA' to the user table and shows who came and went, or the table itself if it is the reply
+     * to '/list'
+     *
+     * @param data The delta's fields
+     */
+    private void ShowDelta (String[] data) {
+        List<String> joined = new ArrayList<> ();
+        List<String> left = new ArrayList<> ();
+        int unnamed = 0;
+        boolean applied = users.Apply (data, joined, left);
+        if (!applied) {
+            // Without a table to go by the delta still names who joined, but who left are only ids
+            int count = Integer.parseInt (data[2]);
+            for (int i = 0; i < count; i++) {
+                joined.add (data[4 + i * 2]);
             }
+            unnamed = data.length - 3 - count * 2;
         }
 
-        return "";
+        if (listing && applied) {
+            ShowUsers ();
+        } else if (verboseChat && !listing) {
+            ShowPresence (joined.toArray (new String[0]), "joined");
+            ShowPresence (left.toArray (new String[0]), "left");
+            if (unnamed > 0) {
+                System.out.println ("*****" + unnamed + " user(s) have left the chat*****");
+            }
+        }
     }
 
-    private String GetServerCommand () {
-        String lastLine = NextServer ();
-        if (!lastLine.isEmpty ()) {
-            serverInBuffer += lastLine;
-            if (lastLine.charAt(lastLine.length () - 1) == '\n') {
-                String temp = serverInBuffer;
-                serverInBuffer = "";
-                return temp;
+    /**
+     * Shows one side of a 'PRESENCE' batch: a line per user, as for 'USER_JOINED', unless there are too many to
+     * be worth reading
+     *
+     * @param names The users, which may include this one
+     * @param verb "joined" or "left"
+     */
+    private void ShowPresence (String[] names, String verb) {
+        List<String> others = new ArrayList<> (Arrays.asList (names));
+        others.remove (username);
+        if (others.size () <= 3) {
+            for (String name : others) {
+                System.out.println ("*****User '" + name + "' has " + verb + " the chat*****");
             }
+        } else {
+            System.out.println ("*****" + others.size () + " users have " + verb + " the chat: " +
+                    String.join (", ", others.subList (0, 3)) + " and " + (others.size () - 3) + " more*****");
         }
+    }
 
-        return "";
+    /**
+     * Counts off one replayed message after a 'HISTORY' header, and marks where the replay ends
+     */
+    private void Replayed () {
+        if (replaying > 0 && --replaying == 0) {
+            System.out.println ("-----end of history-----");
+        }
+    }
+
+    /**
+     * Sends a command to the server in whichever framing was negotiated at connect
+     *
+     * @param command The protocol command
+     * @param fields The command's fields, in order
+     */
+    private synchronized void Send (String command, String... fields) {
+        try {
+            Frame frame = Frame.Of (command, fields);
+            frame.Compress (Compression.DEFAULT_THRESHOLD);
+            frame.WriteTo (serverOut, encoding);
+        } catch (IllegalArgumentException e) {
+            System.out.println ("\t***ERROR! That cannot be sent: names may not contain '::' or end in ':'");
+        } catch (IOException e) {
+            System.out.println ("\t***ERROR! Lost connection to the server");
+            connected = false;
+        }
+    }
+
+    /**
+     * Blocks until the user has typed a full line
+     *
+     * @return The line, or 'null' once the console input has ended
+     */
+    private String NextConsoleLine () {
+        try {
+            return consoleReader.readLine ();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The server thread: blocks for each message and shows it, flushing the console once nothing more has arrived.
+     * Replies to 'CONNECT' are handed to 'Connect' instead, after switching to binary framing if it was accepted,
+     * so that the frames right behind the reply are read the right way
+     */
+    private void ReadServer () {
+        try {
+            while (true) {
+                Message message;
+                try {
+                    message = serverReader.Read ();
+                } catch (ParseException e) {
+                    continue;
+                }
+                if (message == null) {
+                    break;
+                }
+
+                String command = message.getCommand ();
+                if (!connected && (command.equals (ChatterboxProtocol.CONNECTED) ||
+                        command.equals (ChatterboxProtocol.NAME_TAKEN_ERROR))) {
+                    if (command.equals (ChatterboxProtocol.CONNECTED) &&
+                            Arrays.asList (message.getFields ()).contains (ChatterboxProtocol.CAPABILITY_BINARY)) {
+                        serverReader.SwitchToBinary ();
+                    }
+                    handshakes.add (message);
+                    continue;
+                }
+
+                try {
+                    Display (message);
+                } catch (ParseException e) {
+                    //
+                }
+                if (serverReader.HasPending ()) {
+                    renderer.FlushIfStale ();
+                } else {
+                    renderer.Flush ();
+                }
+            }
+        } catch (IOException e) {
+            // Treated as the server going away
+        }
+        System.out.println ("\t***ERROR! Lost connection to the server");
+        connected = false;
+        renderer.Flush ();
+        System.exit (0);
     }
 
     public boolean isConnected () {
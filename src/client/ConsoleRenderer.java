@@ -0,0 +1,51 @@
+package client;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+
+/**
+ * The client's terminal output. Lines are printed into a large buffer rather than straight to the terminal, and
+ * the server reader calls 'Flush' once it has handled everything the server has sent so far, so a burst of chat
+ * costs one terminal write instead of one per line. During a burst that never lets up the buffer is still written
+ * every 'MAX_DELAY_MILLIS', so nothing shows up later than that
+ */
+class ConsoleRenderer {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long MAX_DELAY_MILLIS = 50;
+
+    private final PrintStream out;
+    private long lastFlush;
+
+    ConsoleRenderer () {
+        this.out = new PrintStream (new BufferedOutputStream (new FileOutputStream (FileDescriptor.out), BUFFER_SIZE),
+                false);
+        this.lastFlush = System.currentTimeMillis ();
+    }
+
+    /**
+     * @return The stream to print to; it is made 'System.out' so every line of the client goes through it
+     */
+    PrintStream getOut () {
+        return out;
+    }
+
+    /**
+     * Writes out everything printed so far
+     */
+    void Flush () {
+        out.flush ();
+        lastFlush = System.currentTimeMillis ();
+    }
+
+    /**
+     * Called between messages of a burst: writes out what was printed only if the oldest of it has waited too long
+     */
+    void FlushIfStale () {
+        if (System.currentTimeMillis () - lastFlush >= MAX_DELAY_MILLIS) {
+            Flush ();
+        }
+    }
+}
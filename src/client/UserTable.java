@@ -0,0 +1,82 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The client's copy of who is online, kept when the server agreed on 'CAPABILITY_USER_IDS'. It is unknown until the
+ * first 'USER_TABLE' arrives; after that each 'USER_DELTA' that covers its version is applied, so '/list' only has
+ * to ask for what changed since
+ */
+class UserTable {
+
+    /**
+     * Names by id; ids are handed out in order, so this is also the order users arrived in
+     */
+    private final Map<Integer, String> users;
+    private long version;
+
+    UserTable () {
+        this.users = new TreeMap<> ();
+        this.version = -1;
+    }
+
+    /**
+     * @return The membership version the table is at, or -1 if it is not known yet
+     */
+    synchronized long getVersion () {
+        return version;
+    }
+
+    /**
+     * @return Everyone in the table, in the order they arrived
+     */
+    synchronized List<String> Names () {
+        return new ArrayList<> (users.values ());
+    }
+
+    /**
+     * @param fields A 'USER_TABLE''s fields: the version, then each user's id and name
+     */
+    synchronized void Replace (String[] fields) {
+        users.clear ();
+        for (int i = 1; i + 1 < fields.length; i += 2) {
+            users.put (Integer.parseInt (fields[i]), fields[i + 1]);
+        }
+        version = Long.parseLong (fields[0]);
+    }
+
+    /**
+     * Applies a 'USER_DELTA' if the table's version is between the two it spans
+     *
+     * @param fields The delta's fields
+     * @param joined Has the names of users new to the table added
+     * @param left Has the names of users removed from the table added
+     * @return 'false' if the delta did not apply, in which case nothing was changed
+     */
+    synchronized boolean Apply (String[] fields, List<String> joined, List<String> left) {
+        long to = Long.parseLong (fields[0]);
+        long from = to - Long.parseLong (fields[1]);
+        if (version < from || version > to) {
+            return false;
+        }
+
+        int count = Integer.parseInt (fields[2]);
+        int i = 3;
+        for (; i < 3 + count * 2; i += 2) {
+            if (users.put (Integer.parseInt (fields[i]), fields[i + 1]) == null) {
+                joined.add (fields[i + 1]);
+            }
+        }
+        for (; i < fields.length; i++) {
+            String name = users.remove (Integer.parseInt (fields[i]));
+            if (name != null) {
+                left.add (name);
+            }
+        }
+        version = to;
+        return true;
+    }
+}
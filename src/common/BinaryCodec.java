@@ -0,0 +1,330 @@
+package common;
+
+import common.Exceptions.ParseException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+
+/**
+ * Version 2 of the Chatterbox wire format, used once both ends have agreed on
+ * 'ChatterboxProtocol.CAPABILITY_BINARY' during the 'CONNECT' handshake.
+ *
+ * Every message is framed as
+ * <pre>
+ *     varint length | opcode | (varint fieldLength | UTF-8 field bytes)*
+ * </pre>
+ * where 'length' counts the opcode and all fields, and varints are unsigned LEB128. Fields are length-prefixed
+ * rather than separated, so they can contain anything, including 'ChatterboxProtocol.SEPARATOR'
+ */
+public final class BinaryCodec {
+
+    /**
+     * The largest frame either side will accept
+     */
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    /**
+     * Opcode 'n' is 'COMMANDS[n - 1]'; opcode 0 is never used. New commands must only ever be appended
+     */
+    private static final String[] COMMANDS = {
+            ChatterboxProtocol.CONNECT,
+            ChatterboxProtocol.DISCONNECT,
+            ChatterboxProtocol.SEND_CHAT,
+            ChatterboxProtocol.SEND_WHISPER,
+            ChatterboxProtocol.LIST_USERS,
+            ChatterboxProtocol.CONNECTED,
+            ChatterboxProtocol.DISCONNECTED,
+            ChatterboxProtocol.CHAT_RECEIVED,
+            ChatterboxProtocol.WHISPER_RECEIVED,
+            ChatterboxProtocol.WHISPER_SENT,
+            ChatterboxProtocol.USERS,
+            ChatterboxProtocol.USER_JOINED,
+            ChatterboxProtocol.USER_LEFT,
+            ChatterboxProtocol.TARGET_ERROR,
+            ChatterboxProtocol.NON_INITIALIZED_ERROR,
+            ChatterboxProtocol.NAME_TAKEN_ERROR,
+            ChatterboxProtocol.PARSE_ERROR,
+            ChatterboxProtocol.FATAL_ERROR,
+            ChatterboxProtocol.JOIN_ROOM,
+            ChatterboxProtocol.PART_ROOM,
+            ChatterboxProtocol.SEND_ROOM,
+            ChatterboxProtocol.ROOM_JOINED,
+            ChatterboxProtocol.ROOM_LEFT,
+            ChatterboxProtocol.ROOM_CHAT_RECEIVED,
+            ChatterboxProtocol.ROOM_ERROR,
+            ChatterboxProtocol.GET_HISTORY,
+            ChatterboxProtocol.HISTORY,
+            ChatterboxProtocol.STATS,
+            ChatterboxProtocol.STATS_REPORT,
+            ChatterboxProtocol.NODE_HELLO,
+            ChatterboxProtocol.NODE_USERS,
+            ChatterboxProtocol.NODE_CLAIM,
+            ChatterboxProtocol.NODE_CLAIMED,
+            ChatterboxProtocol.NODE_WHISPER,
+            ChatterboxProtocol.COMPRESSED,
+            ChatterboxProtocol.PRESENCE,
+            ChatterboxProtocol.USER_TABLE,
+            ChatterboxProtocol.USER_DELTA,
+            ChatterboxProtocol.THROTTLED,
+            ChatterboxProtocol.NODE_AUTH,
+    };
+
+    private static final Map<String, Integer> OPCODES = new HashMap<> ();
+
+    static {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            OPCODES.put (COMMANDS[i], i + 1);
+        }
+    }
+
+    private static final int COMPRESSED = Opcode (ChatterboxProtocol.COMPRESSED);
+
+    private BinaryCodec () {
+    }
+
+    /**
+     * @param command A protocol command
+     * @return The command's opcode, or 0 if it has none
+     */
+    public static int Opcode (String command) {
+        Integer opcode = OPCODES.get (command);
+        return opcode == null ? 0 : opcode;
+    }
+
+    /**
+     * @param opcode An opcode
+     * @return The command for 'opcode', or 'null' if there is none
+     */
+    public static String Command (int opcode) {
+        return opcode < 1 || opcode > COMMANDS.length ? null : COMMANDS[opcode - 1];
+    }
+
+    /**
+     * @return The highest opcode in use
+     */
+    public static int MaxOpcode () {
+        return COMMANDS.length;
+    }
+
+    /**
+     * Encodes a message into a complete v2 frame
+     *
+     * @param command The protocol command
+     * @param fields The command's fields, already UTF-8 encoded
+     * @return The frame's bytes
+     * @throws IllegalArgumentException If 'command' has no opcode
+     */
+    public static byte[] Encode (String command, byte[][] fields) {
+        int opcode = Opcode (command);
+        if (opcode == 0) {
+            throw new IllegalArgumentException ("No opcode for command '" + command + "'");
+        }
+
+        int length = 1;
+        for (byte[] field : fields) {
+            length += VarintLength (field.length) + field.length;
+        }
+
+        byte[] frame = new byte[VarintLength (length) + length];
+        int position = WriteVarint (frame, 0, length);
+        frame[position++] = (byte) opcode;
+        for (byte[] field : fields) {
+            position = WriteVarint (frame, position, field.length);
+            System.arraycopy (field, 0, frame, position, field.length);
+            position += field.length;
+        }
+        return frame;
+    }
+
+    /**
+     * Encodes a message into a complete v2 frame
+     *
+     * @param command The protocol command
+     * @param fields The command's fields
+     * @return The frame's bytes
+     * @throws IllegalArgumentException If 'command' has no opcode
+     */
+    public static byte[] Encode (String command, String[] fields) {
+        byte[][] encoded = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes (StandardCharsets.UTF_8);
+        }
+        return Encode (command, encoded);
+    }
+
+    /**
+     * @param frame A complete v2 frame
+     * @return Where its body (the opcode and fields) starts, just past the length prefix
+     */
+    static int BodyOffset (byte[] frame) {
+        int position = 0;
+        while ((frame[position] & 0x80) != 0) {
+            position++;
+        }
+        return position + 1;
+    }
+
+    static int VarintLength (int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    static int WriteVarint (byte[] target, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            target[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Incrementally reassembles v2 frames out of arbitrarily split chunks of bytes. Mirrors 'LineBuffer': feed
+     * bytes until 'HasMessage', then 'Take' the decoded message. The frame buffer only grows, so steady state
+     * decoding allocates nothing beyond the decoded 'Message', and nothing at all through 'TakeInto'.
+     *
+     * A 'COMPRESSED' frame is inflated and handed over as the frame it wraps, so callers never see one
+     */
+    public static class Decoder {
+
+        private byte[] frame;
+        private Inflater inflater;
+        private byte[] inflated;
+        private int length;
+        private int have;
+        private int shift;
+        private boolean complete;
+
+        public Decoder () {
+            frame = new byte[256];
+            length = 0;
+            have = -1;
+            shift = 0;
+            complete = false;
+        }
+
+        /**
+         * Consumes bytes up to the end of the next frame
+         *
+         * @param data The source array
+         * @param offset Where to start reading in 'data'
+         * @param count How many bytes of 'data' are available
+         * @return The number of bytes consumed from 'data'
+         * @throws ParseException If the frame length is invalid
+         */
+        public int Feed (byte[] data, int offset, int count) throws ParseException {
+            int consumed = 0;
+            while (consumed < count && !complete) {
+                if (have < 0) {
+                    // Still reading the length prefix
+                    byte b = data[offset + consumed++];
+                    length |= (b & 0x7F) << shift;
+                    shift += 7;
+                    if ((b & 0x80) == 0) {
+                        if (length <= 0 || length > MAX_FRAME_LENGTH) {
+                            throw new ParseException ("v2 frame of length " + length);
+                        }
+                        if (frame.length < length) {
+                            frame = Arrays.copyOf (frame, Math.max (length, frame.length * 2));
+                        }
+                        have = 0;
+                    } else if (shift > 28) {
+                        throw new ParseException ("v2 frame length too long");
+                    }
+                } else {
+                    int toCopy = Math.min (length - have, count - consumed);
+                    System.arraycopy (data, offset + consumed, frame, have, toCopy);
+                    have += toCopy;
+                    consumed += toCopy;
+                    complete = have == length;
+                }
+            }
+            return consumed;
+        }
+
+        /**
+         * @return 'true' iff a whole frame has been fed and not yet taken
+         */
+        public boolean HasMessage () {
+            return complete;
+        }
+
+        /**
+         * Decodes the buffered frame and resets for the next one
+         *
+         * @return The decoded message
+         * @throws ParseException If the frame's contents are malformed
+         */
+        public Message Take () throws ParseException {
+            CommandView view = new CommandView ();
+            TakeInto (view);
+            if (view.getOpcode () == 0) {
+                throw new ParseException ("v2 opcode " + (frame[0] & 0xFF));
+            }
+            return view.ToMessage ();
+        }
+
+        /**
+         * Parses the buffered frame into 'view' without copying or allocating, and resets for the next one. The
+         * view refers to this decoder's buffer, so it is only valid until the next 'Feed'
+         *
+         * @param view The view to fill
+         * @throws ParseException If the frame's fields overrun it
+         */
+        public void TakeInto (CommandView view) throws ParseException {
+            int end = length;
+            length = 0;
+            have = -1;
+            shift = 0;
+            complete = false;
+
+            if ((frame[0] & 0xFF) == COMPRESSED) {
+                int inflatedLength = Inflate (end);
+                view.ParseBinary (inflated, inflatedLength);
+            } else {
+                view.ParseBinary (frame, end);
+            }
+        }
+
+        /**
+         * Inflates the 'COMPRESSED' frame in the buffer into 'inflated'
+         *
+         * @param end The frame's length
+         * @return The inflated frame's length
+         * @throws ParseException If the frame does not hold exactly one valid deflated field
+         */
+        private int Inflate (int end) throws ParseException {
+            int position = 1;
+            int fieldLength = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (position >= end || shift > 28) {
+                    throw new ParseException ("Compressed frame's field length overruns it");
+                }
+                b = frame[position++];
+                fieldLength |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (fieldLength != end - position) {
+                throw new ParseException ("Compressed frame must hold exactly one field");
+            }
+
+            if (inflater == null) {
+                inflater = new Inflater ();
+            }
+            inflated = Compression.Inflate (inflater, frame, position, fieldLength, inflated, MAX_FRAME_LENGTH);
+            int length = (int) inflater.getBytesWritten ();
+            if (length == 0) {
+                throw new ParseException ("Compressed frame is empty");
+            }
+            return length;
+        }
+    }
+}
@@ -2,11 +2,6 @@ package common;
 
 import common.Exceptions.ParseException;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.Scanner;
-
 /**
  * Interface meant to be implemented by any classes that need to understand
  * the Chatterbox protocol.
@@ -29,7 +24,9 @@ public interface ChatterboxProtocol {
 
     /**
      * The protocol message sent from the client to the Chatterbox server to
-     * initially connect to the chat room.
+     * initially connect to the chat room. Followed by the username and then
+     * any capabilities the client would like to use; the server's
+     * 'CONNECTED' reply lists the capabilities it accepted.
      */
     public static String CONNECT = "connect";
 
@@ -57,6 +54,39 @@ public interface ChatterboxProtocol {
      */
     public static String LIST_USERS = "list_users";
 
+    /**
+     * The protocol message sent from the client to the Chatterbox server to
+     * join a named room, creating it if nobody is in it yet.
+     */
+    public static String JOIN_ROOM = "join_room";
+
+    /**
+     * The protocol message sent from the client to the Chatterbox server to
+     * leave a named room.
+     */
+    public static String PART_ROOM = "part_room";
+
+    /**
+     * The protocol message sent from the client to the Chatterbox server to
+     * send a message to everyone in a room the client has joined.
+     */
+    public static String SEND_ROOM = "send_room";
+
+    /**
+     * The protocol message sent from the client to the Chatterbox server to
+     * ask for the most recent messages in the main chat, or, if followed by
+     * a room name, in that room. Answered with 'HISTORY'.
+     */
+    public static String GET_HISTORY = "get_history";
+
+    /**
+     * The protocol message sent from the client to the Chatterbox server to
+     * ask for the server's counters and per-command timings. Answered with
+     * 'STATS_REPORT' if the user is one of the server's '--admins', and as an
+     * unknown command otherwise. Counts against the same limit as 'LIST_USERS'.
+     */
+    public static String STATS = "stats";
+
 
     //-----------------------------<SERVER MESSAGES>------------------------------//
     //      sent from server to client
@@ -110,11 +140,44 @@ public interface ChatterboxProtocol {
      */
     public static String USER_LEFT = "user_left";
 
+    /**
+     * Sent instead of 'USER_JOINED' and 'USER_LEFT' to clients that agreed
+     * on 'CAPABILITY_PRESENCE_BATCH': everyone who came or went over one of
+     * the server's presence ticks. The first field is how many users joined,
+     * followed by their names and then the names of those who left. A user
+     * who left and came back within the tick is not listed at all.
+     */
+    public static String PRESENCE = "presence";
+
+    /**
+     * Sent to clients that agreed on 'CAPABILITY_USER_IDS' with everyone
+     * connected: the membership version, then each user's id and name.
+     */
+    public static String USER_TABLE = "user_table";
+
+    /**
+     * Sent to clients that agreed on 'CAPABILITY_USER_IDS' with how the
+     * membership changed between two versions: the version it brings the
+     * table to, how many versions before that it starts from, how many users
+     * joined, each of those users' id and name, then the ids of those who
+     * left. It applies to a table at any version between the two; starting 0
+     * versions back, nothing has changed.
+     */
+    public static String USER_DELTA = "user_delta";
+
     /**
      * sent whisper specified an invalid target
      */
     public static String TARGET_ERROR = "target_error";
 
+    /**
+     * The user sent a command faster than the server allows, so it was not
+     * carried out: the command, then how many milliseconds until it would be.
+     * Sent once per wait; any more of the command sent before then are
+     * dropped without another
+     */
+    public static String THROTTLED = "throttled";
+
     /**
      * Client never negotiated a username with server
      */
@@ -138,33 +201,136 @@ public interface ChatterboxProtocol {
      */
     public static String FATAL_ERROR = "fatal_error";
 
-    //--------------------------------------------<Fields>--------------------------------------------//
+    /**
+     * The protocol message sent from the Chatterbox server to every member of
+     * a room (the new member included) when a user joins it.
+     */
+    public static String ROOM_JOINED = "room_joined";
 
+    /**
+     * The protocol message sent from the Chatterbox server to every member of
+     * a room (the leaving member included) when a user leaves it.
+     */
+    public static String ROOM_LEFT = "room_left";
 
-    //-------------------------------------------<Methods>--------------------------------------------//
+    /**
+     * The protocol message sent from the Chatterbox server to every member of
+     * a room when one of them sends a message to it.
+     */
+    public static String ROOM_CHAT_RECEIVED = "room_chat_received";
 
     /**
-     * If characters are available on the stream, this returns the next one as a 'String'.
-     * otherwise, it returns a 'null'
-     *
-     * @param stream the 'InputStream' to check
-     * @param reader 'stream's 'BufferedReader'
-     * @return returns next 'char' from 'reader' as a 'String' if available, or 'null' if no new
-     * character is available
-     */
-    default String nextLine (InputStream stream, Scanner reader) {
-        String toReturn = "";
-        try {
-            if (stream.available () > 0) {
-                toReturn = reader.nextLine ();
-            }
-        } catch (IOException e) {
-            // Ignore this
-        }
-
-        return toReturn + "\n";
-    }
+     * room name invalid, or the sender is not a member of the room
+     */
+    public static String ROOM_ERROR = "room_error";
+
+    /**
+     * The protocol message sent from the Chatterbox server to the client,
+     * on joining the chat or a room or in reply to 'GET_HISTORY', followed by
+     * a count and, for a room, the room name. The next count messages are
+     * earlier chat being replayed, oldest first, exactly as first sent.
+     */
+    public static String HISTORY = "history";
 
+    /**
+     * The protocol message sent from the Chatterbox server to the client in
+     * reply to 'STATS', followed by one 'name=value' field per statistic.
+     * Timings are in nanoseconds, given as 'count,p50,p99,p999,max'.
+     */
+    public static String STATS_REPORT = "stats_report";
+
+    /**
+     * Wraps another message, in either direction, once 'CAPABILITY_DEFLATE'
+     * has been agreed. Its one field is the wrapped message's v2 frame body
+     * (opcode and fields, without the length prefix), deflated with the
+     * dictionary in 'Compression'. Receivers handle the wrapped message as
+     * if it had been sent on its own.
+     */
+    public static String COMPRESSED = "compressed";
+
+    //------------------------------<NODE MESSAGES>-------------------------------//
+    //      sent between the server nodes of a cluster, always in the v2 framing;
+    //      'CHAT_RECEIVED', 'USER_JOINED' and 'USER_LEFT' are relayed as they are
+
+    /**
+     * The first message each node sends on a link to another, followed by
+     * its node name and a random challenge.
+     */
+    public static String NODE_HELLO = "node_hello";
+
+    /**
+     * Sent by a node once it has the other's 'NODE_HELLO', when the cluster
+     * has a secret: followed by an HMAC of the other node's challenge and
+     * the sender's name, keyed with the secret. A node links to the other
+     * only once this checks out.
+     */
+    public static String NODE_AUTH = "node_auth";
+
+    /**
+     * Sent by a node once a link is up, followed by the name of every user
+     * connected to it.
+     */
+    public static String NODE_USERS = "node_users";
+
+    /**
+     * Sent to the node that arbitrates a username to ask for it, followed by
+     * a request id and the username. Answered with 'NODE_CLAIMED'.
+     */
+    public static String NODE_CLAIM = "node_claim";
+
+    /**
+     * The answer to 'NODE_CLAIM', followed by the request id and "ok" or
+     * "taken".
+     */
+    public static String NODE_CLAIMED = "node_claimed";
+
+    /**
+     * Sent to the node a whisper's recipient is connected to, followed by the
+     * recipient, the sender and the message.
+     */
+    public static String NODE_WHISPER = "node_whisper";
+
+    //-------------------------------<CAPABILITIES>-------------------------------//
+    //      offered in 'CONNECT', echoed back in 'CONNECTED' if accepted
+
+    /**
+     * Switch both directions to the length-prefixed binary framing described
+     * in 'BinaryCodec' once the 'CONNECTED' reply has been sent.
+     */
+    public static String CAPABILITY_BINARY = "v2";
+
+    /**
+     * Chat of at least the server's size threshold may be sent as
+     * 'COMPRESSED'. Only accepted along with 'CAPABILITY_BINARY'.
+     */
+    public static String CAPABILITY_DEFLATE = "deflate";
+
+    /**
+     * Receive 'PRESENCE' once per presence tick rather than a 'USER_JOINED'
+     * or 'USER_LEFT' per user.
+     */
+    public static String CAPABILITY_PRESENCE_BATCH = "presence_batch";
+
+    /**
+     * Receive no 'USER_JOINED', 'USER_LEFT' or 'PRESENCE' at all; 'LIST_USERS'
+     * still works.
+     */
+    public static String CAPABILITY_NO_PRESENCE = "no_presence";
+
+    /**
+     * Each user gets a numeric id, given as "id=N" after the capabilities in
+     * 'CONNECTED'. 'LIST_USERS' may then be followed by the membership
+     * version the client already has, and is answered with a 'USER_DELTA'
+     * from it, or a 'USER_TABLE' if the server can no longer tell; instead of
+     * 'PRESENCE', 'USER_JOINED' and 'USER_LEFT' the client gets 'USER_DELTA's
+     * as users come and go. Not offered by a server in a cluster.
+     */
+    public static String CAPABILITY_USER_IDS = "user_ids";
+
+    //--------------------------------------------<Fields>--------------------------------------------//
+
+
+    //-------------------------------------------<Methods>--------------------------------------------//
 
     /**
      * Parses a User-side command, either creating it to send to the server or decoding it for
@@ -0,0 +1,229 @@
+package common;
+
+import common.Exceptions.ParseException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A reusable, allocation-free parse of one received command. Rather than building 'String's, it matches the
+ * command straight against the receive buffer to get its opcode and records where each field starts and how long
+ * it is. Fields are only copied out ('Field', 'FieldBytes') when the caller actually needs them.
+ *
+ * A view points into the buffer it was parsed from, so it is only valid until that buffer is next fed
+ */
+public final class CommandView {
+
+    private static final byte[][] COMMAND_BYTES = new byte[BinaryCodec.MaxOpcode () + 1][];
+    private static final int[] FIELD_LIMITS = new int[BinaryCodec.MaxOpcode () + 1];
+
+    static {
+        for (int opcode = 1; opcode <= BinaryCodec.MaxOpcode (); opcode++) {
+            String command = BinaryCodec.Command (opcode);
+            COMMAND_BYTES[opcode] = command.getBytes (StandardCharsets.UTF_8);
+            FIELD_LIMITS[opcode] = Message.FieldLimit (command);
+        }
+    }
+
+    private byte[] source;
+    private int opcode;
+    private int commandOffset;
+    private int commandLength;
+    private int fieldCount;
+    private int[] offsets;
+    private int[] lengths;
+
+    public CommandView () {
+        offsets = new int[4];
+        lengths = new int[4];
+    }
+
+    /**
+     * Parses a text protocol line in place
+     *
+     * @param bytes The buffer holding the line
+     * @param offset Where the line starts
+     * @param length The line's length, without its terminator
+     */
+    public void ParseText (byte[] bytes, int offset, int length) {
+        source = bytes;
+        fieldCount = 0;
+
+        int start = offset;
+        int end = offset + length;
+        while (start < end && (bytes[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (bytes[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+
+        int separator = IndexOfSeparator (bytes, start, end);
+        commandOffset = start;
+        commandLength = (separator < 0 ? end : separator) - start;
+        opcode = Match (bytes, commandOffset, commandLength);
+        if (separator < 0) {
+            return;
+        }
+
+        int limit = opcode == 0 ? Integer.MAX_VALUE : FIELD_LIMITS[opcode];
+        int fieldStart = separator + 2;
+        while (fieldCount < limit - 1) {
+            separator = IndexOfSeparator (bytes, fieldStart, end);
+            if (separator < 0) {
+                break;
+            }
+            AddField (fieldStart, separator - fieldStart);
+            fieldStart = separator + 2;
+        }
+        AddField (fieldStart, end - fieldStart);
+    }
+
+    /**
+     * Parses a v2 binary frame body (opcode and fields, without the length prefix) in place
+     *
+     * @param frame The buffer holding the frame body, starting at index 0
+     * @param length The body's length
+     * @throws ParseException If a field overruns the frame
+     */
+    public void ParseBinary (byte[] frame, int length) throws ParseException {
+        source = frame;
+        fieldCount = 0;
+
+        opcode = frame[0] & 0xFF;
+        if (BinaryCodec.Command (opcode) == null) {
+            opcode = 0;
+        }
+        commandOffset = 0;
+        commandLength = 0;
+
+        int position = 1;
+        while (position < length) {
+            int fieldLength = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (position >= length || shift > 28) {
+                    throw new ParseException ("v2 field length overruns frame");
+                }
+                b = frame[position++];
+                fieldLength |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            if (fieldLength < 0 || fieldLength > length - position) {
+                throw new ParseException ("v2 field overruns frame");
+            }
+            AddField (position, fieldLength);
+            position += fieldLength;
+        }
+    }
+
+    private void AddField (int offset, int length) {
+        if (fieldCount == offsets.length) {
+            offsets = Arrays.copyOf (offsets, fieldCount * 2);
+            lengths = Arrays.copyOf (lengths, fieldCount * 2);
+        }
+        offsets[fieldCount] = offset;
+        lengths[fieldCount] = length;
+        fieldCount++;
+    }
+
+    private static int IndexOfSeparator (byte[] bytes, int start, int end) {
+        for (int i = start; i < end - 1; i++) {
+            if (bytes[i] == ':' && bytes[i + 1] == ':') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int Match (byte[] bytes, int offset, int length) {
+        for (int opcode = 1; opcode < COMMAND_BYTES.length; opcode++) {
+            byte[] command = COMMAND_BYTES[opcode];
+            if (command.length == length && bytes[offset] == command[0] &&
+                    Arrays.equals (bytes, offset, offset + length, command, 0, length)) {
+                return opcode;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * v2 fields may hold any bytes, but what they carry is relayed to v1 clients as text, so commands whose fields
+     * that cannot carry are refused as they arrive
+     *
+     * @return 'true' if every field could be written as a text protocol line and read back as the same fields
+     */
+    public boolean IsTextSafe () {
+        for (int i = 0; i < fieldCount; i++) {
+            if (!Frame.IsTextSafe (source, offsets[i], lengths[i], i == fieldCount - 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 'true' iff the parsed line was blank
+     */
+    public boolean IsEmpty () {
+        return opcode == 0 && commandLength == 0 && fieldCount == 0;
+    }
+
+    /**
+     * @return The command's opcode (see 'BinaryCodec'), or 0 if it was not recognised
+     */
+    public int getOpcode () {
+        return opcode;
+    }
+
+    /**
+     * @return The command's name; allocates only for unrecognised text commands
+     */
+    public String getCommand () {
+        return opcode != 0 ? BinaryCodec.Command (opcode) :
+                new String (source, commandOffset, commandLength, StandardCharsets.UTF_8);
+    }
+
+    public int getFieldCount () {
+        return fieldCount;
+    }
+
+    /**
+     * @param index Which field to decode
+     * @return The field as a 'String'
+     * @throws ArrayIndexOutOfBoundsException If the command has too few fields
+     */
+    public String Field (int index) {
+        CheckField (index);
+        return new String (source, offsets[index], lengths[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param index Which field to copy
+     * @return A copy of the field's UTF-8 bytes
+     * @throws ArrayIndexOutOfBoundsException If the command has too few fields
+     */
+    public byte[] FieldBytes (int index) {
+        CheckField (index);
+        return Arrays.copyOfRange (source, offsets[index], offsets[index] + lengths[index]);
+    }
+
+    private void CheckField (int index) {
+        if (index < 0 || index >= fieldCount) {
+            throw new ArrayIndexOutOfBoundsException (index);
+        }
+    }
+
+    /**
+     * @return A standalone 'Message' with the same command and fields
+     */
+    public Message ToMessage () {
+        String[] fields = new String[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            fields[i] = Field (i);
+        }
+        return new Message (getCommand (), fields);
+    }
+}
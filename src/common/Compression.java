@@ -0,0 +1,151 @@
+package common;
+
+import common.Exceptions.ParseException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression for connections that agreed on 'ChatterboxProtocol.CAPABILITY_DEFLATE'. A chat frame whose
+ * payload is at least the sender's threshold is sent as a 'COMPRESSED' frame wrapping its own deflated v2 body.
+ * 'Frame.Compress' does that at most once per frame, on the thread sending it, so every recipient of a broadcast is
+ * sent the very same compressed bytes. Both ends prime zlib with 'DICTIONARY', a
+ * preset dictionary of common chat words, which mostly pays off for messages just over the threshold
+ */
+public final class Compression {
+
+    /**
+     * The payload size from which chat is compressed, unless the server is given '--compress-threshold'
+     */
+    public static final int DEFAULT_THRESHOLD = 512;
+
+    /**
+     * Shared by both ends and part of the protocol: changing it breaks every peer using the old one. zlib looks
+     * back from the end, so the most common strings come last
+     */
+    private static final byte[] DICTIONARY = ("because would could should there their about after again people " +
+            "really think going thanks please sorry maybe today tomorrow yesterday tonight morning evening " +
+            "something anything nothing everyone anyone someone everybody somebody actually probably though " +
+            "through without between before never always still where which while other these those thing " +
+            "https://www. http:// .com .org :) :( lol haha okay yeah what when with from have this that your " +
+            "know just like good time will the and you for are but not was all can out get now how why who ")
+            .getBytes (StandardCharsets.US_ASCII);
+
+    /**
+     * The fastest level: each broadcast is compressed on a sender's thread, and beyond a few kilobytes the default
+     * level costs several times as much for a few percent more
+     */
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial (() -> new Deflater (Deflater.BEST_SPEED));
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial (() -> new byte[4096]);
+
+    private static final LongAdder compressedFrames = new LongAdder ();
+    private static final LongAdder bytesBefore = new LongAdder ();
+    private static final LongAdder bytesAfter = new LongAdder ();
+
+    private Compression () {
+    }
+
+    /**
+     * @return How many frames have been compressed since startup
+     */
+    public static long getCompressedFrames () {
+        return compressedFrames.sum ();
+    }
+
+    /**
+     * @return The bytes those frames took before and after compression
+     */
+    public static long[] getBytes () {
+        return new long[] {bytesBefore.sum (), bytesAfter.sum ()};
+    }
+
+    /**
+     * Compresses a complete v2 frame into a 'COMPRESSED' one
+     *
+     * @param frame The frame, length prefix included
+     * @return The 'COMPRESSED' frame, or 'frame' itself if compressing would not make it smaller
+     */
+    static byte[] Compress (byte[] frame) {
+        int body = BinaryCodec.BodyOffset (frame);
+        byte[] deflated = Deflate (frame, body, frame.length - body);
+        if (deflated.length + 1 + BinaryCodec.VarintLength (deflated.length) + body >= frame.length) {
+            return frame;
+        }
+
+        byte[] compressed = BinaryCodec.Encode (ChatterboxProtocol.COMPRESSED, new byte[][] {deflated});
+        compressedFrames.increment ();
+        bytesBefore.add (frame.length);
+        bytesAfter.add (compressed.length);
+        return compressed;
+    }
+
+    /**
+     * @return 'data' deflated with 'DICTIONARY', in a new array
+     */
+    public static byte[] Deflate (byte[] data, int offset, int length) {
+        Deflater deflater = DEFLATERS.get ();
+        deflater.reset ();
+        deflater.setDictionary (DICTIONARY);
+        deflater.setInput (data, offset, length);
+        deflater.finish ();
+
+        byte[] out = SCRATCH.get ();
+        int have = 0;
+        while (!deflater.finished ()) {
+            if (have == out.length) {
+                out = Arrays.copyOf (out, out.length * 2);
+                SCRATCH.set (out);
+            }
+            have += deflater.deflate (out, have, out.length - have);
+        }
+        return Arrays.copyOf (out, have);
+    }
+
+    /**
+     * Inflates data deflated by 'Deflate'
+     *
+     * @param inflater The inflater to use; reset first
+     * @param data The source array
+     * @param offset Where the deflated bytes start
+     * @param length How many deflated bytes there are
+     * @param into A buffer to inflate into, or 'null'
+     * @param max The most bytes the result may take
+     * @return 'into', or a bigger replacement for it, holding the inflated bytes from index 0; their count is
+     * 'inflater.getBytesWritten'
+     * @throws ParseException If the data is not valid, or inflates to more than 'max' bytes
+     */
+    public static byte[] Inflate (Inflater inflater, byte[] data, int offset, int length, byte[] into, int max)
+            throws ParseException {
+        inflater.reset ();
+        inflater.setInput (data, offset, length);
+        byte[] out = into != null ? into : new byte[Math.min (max, length * 4 + 64)];
+        int have = 0;
+        try {
+            while (!inflater.finished ()) {
+                if (have == out.length) {
+                    if (out.length >= max) {
+                        throw new ParseException ("Compressed frame inflates past " + max + " bytes");
+                    }
+                    out = Arrays.copyOf (out, Math.min (max, out.length * 2));
+                }
+                int inflated = inflater.inflate (out, have, out.length - have);
+                if (inflated == 0) {
+                    if (inflater.needsDictionary ()) {
+                        inflater.setDictionary (DICTIONARY);
+                    } else if (inflater.needsInput ()) {
+                        throw new ParseException ("Compressed frame is truncated");
+                    }
+                }
+                have += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new ParseException ("Compressed frame is corrupt: " + e.getMessage ());
+        }
+        return out;
+    }
+}
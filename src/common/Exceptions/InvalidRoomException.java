@@ -0,0 +1,7 @@
+package common.Exceptions;
+
+public class InvalidRoomException extends Exception {
+    public InvalidRoomException (String room) {
+        super("Specified room ('" + room + "') invalid");
+    }
+}
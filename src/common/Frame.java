@@ -0,0 +1,329 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * One protocol message, encoded to its wire bytes at most once per 'Encoding'. A 'Frame' is immutable, so the
+ * same instance can be queued on any number of connections; each one writes it out through its own read-only
+ * view of the bytes in whichever encoding that connection negotiated
+ */
+public final class Frame {
+
+    /**
+     * The wire formats a frame can be written in
+     */
+    public enum Encoding {
+        /** Version 1: 'ChatterboxProtocol.SEPARATOR' separated text lines */
+        TEXT,
+        /** Version 2: length-prefixed binary frames, see 'BinaryCodec' */
+        BINARY,
+        /** Version 2, with large chat sent as 'COMPRESSED', see 'Compression' */
+        DEFLATE
+    }
+
+    private static final byte[] SEPARATOR_BYTES = ChatterboxProtocol.SEPARATOR.getBytes (StandardCharsets.UTF_8);
+
+    /**
+     * Chat traffic; the only frames a slow consumer's connection may throw away
+     */
+    private static final Set<String> DROPPABLE = new HashSet<> (Arrays.asList (
+            ChatterboxProtocol.CHAT_RECEIVED,
+            ChatterboxProtocol.WHISPER_RECEIVED,
+            ChatterboxProtocol.ROOM_CHAT_RECEIVED));
+
+    /**
+     * Frames that carry a user's message or a list of users, and so are worth compressing when it is long
+     */
+    private static final Set<String> COMPRESSIBLE = new HashSet<> (Arrays.asList (
+            ChatterboxProtocol.CHAT_RECEIVED,
+            ChatterboxProtocol.WHISPER_RECEIVED,
+            ChatterboxProtocol.WHISPER_SENT,
+            ChatterboxProtocol.ROOM_CHAT_RECEIVED,
+            ChatterboxProtocol.PRESENCE,
+            ChatterboxProtocol.USER_TABLE,
+            ChatterboxProtocol.USER_DELTA,
+            ChatterboxProtocol.SEND_CHAT,
+            ChatterboxProtocol.SEND_WHISPER,
+            ChatterboxProtocol.SEND_ROOM));
+
+    private final String command;
+    private final byte[][] fields;
+    private final boolean textOnly;
+    private final boolean droppable;
+    private final boolean compressible;
+
+    private volatile byte[] text;
+    private volatile byte[] binary;
+    private volatile byte[] deflated;
+
+    private Frame (String command, byte[][] fields, boolean textOnly) {
+        this.command = command;
+        this.fields = fields;
+        this.textOnly = textOnly;
+        this.droppable = DROPPABLE.contains (command);
+        this.compressible = COMPRESSIBLE.contains (command);
+    }
+
+    private static byte[][] Encode (String[] fields) {
+        byte[][] encoded = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes (StandardCharsets.UTF_8);
+        }
+        return encoded;
+    }
+
+    /**
+     * Builds a frame from a full text protocol line, split the same way a receiver would split it
+     *
+     * @param line The line, without a terminator
+     * @return The frame
+     */
+    public static Frame Of (String line) {
+        return Of (Message.ParseText (line));
+    }
+
+    /**
+     * @param message The message to send
+     * @return A frame carrying 'message'
+     */
+    public static Frame Of (Message message) {
+        return new Frame (message.getCommand (), Encode (message.getFields ()), false);
+    }
+
+    /**
+     * Builds a frame from its command and fields
+     *
+     * @param command The protocol command
+     * @param fields The command's fields, in order
+     * @return The frame
+     */
+    public static Frame Of (String command, String... fields) {
+        return new Frame (command, Encode (fields), false);
+    }
+
+    /**
+     * Builds a frame from its command and already UTF-8 encoded fields. The arrays are kept, not copied, and must
+     * not be modified afterwards
+     *
+     * @param command The protocol command
+     * @param fields The command's fields, in order
+     * @return The frame
+     */
+    public static Frame OfBytes (String command, byte[]... fields) {
+        return new Frame (command, fields, false);
+    }
+
+    /**
+     * Rebuilds a frame from a parsed command, copying its fields out of the buffer it was parsed from
+     *
+     * @param command The parsed command
+     * @return The frame
+     */
+    public static Frame Of (CommandView command) {
+        byte[][] fields = new byte[command.getFieldCount ()][];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = command.FieldBytes (i);
+        }
+        return new Frame (command.getCommand (), fields, false);
+    }
+
+    /**
+     * Builds a handshake reply. These are always written as text, whatever the connection's encoding, as the peer
+     * only switches framing after reading them
+     *
+     * @param command The protocol command
+     * @param fields The command's fields, in order
+     * @return The frame
+     */
+    public static Frame Handshake (String command, Collection<String> fields) {
+        return new Frame (command, Encode (fields.toArray (new String[0])), true);
+    }
+
+    private byte[] Bytes (Encoding encoding) {
+        if (encoding == Encoding.DEFLATE) {
+            byte[] bytes = deflated;
+            if (bytes != null) {
+                return bytes;
+            }
+        }
+
+        if (encoding != Encoding.TEXT && !textOnly) {
+            byte[] bytes = binary;
+            if (bytes == null) {
+                binary = bytes = BinaryCodec.Encode (command, fields);
+            }
+            return bytes;
+        }
+
+        byte[] bytes = text;
+        if (bytes == null) {
+            text = bytes = EncodeText ();
+        }
+        return bytes;
+    }
+
+    /**
+     * @throws IllegalArgumentException If a field could not be read back from the line as the same field; the
+     * server refuses such fields as they arrive, so this only guards against a caller that did not
+     */
+    private byte[] EncodeText () {
+        byte[] commandBytes = command.getBytes (StandardCharsets.UTF_8);
+        int length = commandBytes.length + 1;
+        for (int i = 0; i < fields.length; i++) {
+            if (!IsTextSafe (fields[i], 0, fields[i].length, i == fields.length - 1)) {
+                throw new IllegalArgumentException ("Field " + i + " of '" + command + "' cannot be sent as text");
+            }
+            length += SEPARATOR_BYTES.length + fields[i].length;
+        }
+
+        byte[] line = new byte[length];
+        System.arraycopy (commandBytes, 0, line, 0, commandBytes.length);
+        int position = commandBytes.length;
+        for (byte[] field : fields) {
+            System.arraycopy (SEPARATOR_BYTES, 0, line, position, SEPARATOR_BYTES.length);
+            position += SEPARATOR_BYTES.length;
+            System.arraycopy (field, 0, line, position, field.length);
+            position += field.length;
+        }
+        line[position] = '\n';
+        return line;
+    }
+
+    /**
+     * Whether a field survives the text protocol: a line break would end the line early, and in any but the last
+     * field a separator, or a ':' at its end (which runs into the next separator), would split it in two
+     *
+     * @param bytes The buffer holding the field
+     * @param offset Where the field starts
+     * @param length The field's length
+     * @param last 'true' if it is the command's last field, which is never split
+     * @return 'true' if the field reads back as itself
+     */
+    static boolean IsTextSafe (byte[] bytes, int offset, int length, boolean last) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = bytes[i];
+            if (b == '\n' || b == '\r') {
+                return false;
+            }
+            if (b == ':' && !last && (i + 1 == end || bytes[i + 1] == ':')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param encoding The wire format wanted
+     * @return A new read-only buffer over this frame's bytes, positioned at the start
+     */
+    public ByteBuffer Buffer (Encoding encoding) {
+        return ByteBuffer.wrap (Bytes (encoding)).asReadOnlyBuffer ();
+    }
+
+    /**
+     * Writes this frame's bytes to a stream without copying them
+     *
+     * @param stream The stream to write to
+     * @param encoding The wire format wanted
+     * @throws IOException If the write fails
+     */
+    public void WriteTo (OutputStream stream, Encoding encoding) throws IOException {
+        stream.write (Bytes (encoding));
+    }
+
+    /**
+     * Copies this frame's bytes into a buffer, for batching several frames into one write
+     *
+     * @param destination The buffer to copy into; must have 'Length (encoding)' bytes free from 'offset'
+     * @param offset Where to start copying to
+     * @param encoding The wire format wanted
+     * @return The number of bytes copied
+     */
+    public int CopyTo (byte[] destination, int offset, Encoding encoding) {
+        byte[] bytes = Bytes (encoding);
+        System.arraycopy (bytes, 0, destination, offset, bytes.length);
+        return bytes.length;
+    }
+
+    /**
+     * Copies this frame's bytes into a buffer at its position, advancing it
+     *
+     * @param destination The buffer to copy into; must have 'Length (encoding)' bytes remaining
+     * @param encoding The wire format wanted
+     */
+    public void CopyTo (ByteBuffer destination, Encoding encoding) {
+        destination.put (Bytes (encoding));
+    }
+
+    /**
+     * Decides how this frame is written in 'DEFLATE': as 'COMPRESSED' if it carries a message or a list of users
+     * whose payload is at least 'threshold' bytes, and as plain binary otherwise, which is also how it is written if
+     * this is never called. Meant for the sending thread, before the frame is queued anywhere, so a frame going to
+     * many users is compressed once and never under a queue's lock. Only the first call decides
+     *
+     * @param threshold The smallest payload, in bytes, to compress; 0 never compresses
+     */
+    public void Compress (int threshold) {
+        if (deflated != null) {
+            return;
+        }
+        byte[] binary = Bytes (Encoding.BINARY);
+        if (compressible && !textOnly && threshold > 0 && PayloadLength () >= threshold) {
+            deflated = Compression.Compress (binary);
+        } else {
+            deflated = binary;
+        }
+    }
+
+    /**
+     * @param encoding The wire format wanted
+     * @return The number of bytes this frame takes on the wire
+     */
+    public int Length (Encoding encoding) {
+        return Bytes (encoding).length;
+    }
+
+    /**
+     * @return The size of the command and fields, without any framing; the same whatever the encoding, and
+     * computed without encoding anything
+     */
+    public int PayloadLength () {
+        int length = command.length ();
+        for (byte[] field : fields) {
+            length += field.length;
+        }
+        return length;
+    }
+
+    public String getCommand () {
+        return command;
+    }
+
+    /**
+     * @return 'true' if this is chat, which may be dropped rather than queued for a client that is not keeping up;
+     * anything else (replies, errors, presence) must always be delivered
+     */
+    public boolean IsDroppable () {
+        return droppable;
+    }
+
+    /**
+     * @return The text protocol line this frame carries, without its terminator
+     */
+    @Override
+    public String toString () {
+        StringBuilder line = new StringBuilder (command);
+        for (byte[] field : fields) {
+            line.append (ChatterboxProtocol.SEPARATOR).append (new String (field, StandardCharsets.UTF_8));
+        }
+        return line.toString ();
+    }
+}
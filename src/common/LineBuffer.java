@@ -0,0 +1,89 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A reusable buffer that assembles newline terminated protocol lines out of arbitrarily split chunks of bytes.
+ * The backing array only ever grows, so once it has reached the size of the longest line seen no further
+ * allocation happens apart from the decoded 'String' itself
+ */
+public class LineBuffer {
+
+    private static final int INITIAL_SIZE = 256;
+
+    private byte[] bytes;
+    private int length;
+    private boolean complete;
+
+    public LineBuffer () {
+        bytes = new byte[INITIAL_SIZE];
+        length = 0;
+        complete = false;
+    }
+
+    /**
+     * Copies bytes into the buffer up to and including the first '\n'. Stops early if a complete line is already
+     * buffered and not yet taken
+     *
+     * @param data The source array
+     * @param offset Where to start reading in 'data'
+     * @param count How many bytes of 'data' are available
+     * @return The number of bytes consumed from 'data'
+     */
+    public int Feed (byte[] data, int offset, int count) {
+        if (complete) {
+            return 0;
+        }
+
+        int consumed = 0;
+        while (consumed < count) {
+            byte b = data[offset + consumed++];
+            if (b == '\n') {
+                complete = true;
+                break;
+            }
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf (bytes, bytes.length * 2);
+            }
+            bytes[length++] = b;
+        }
+        return consumed;
+    }
+
+    /**
+     * @return 'true' iff a full line has been fed and not yet taken
+     */
+    public boolean HasLine () {
+        return complete;
+    }
+
+    /**
+     * Decodes and returns the buffered line without its terminator (a trailing '\r' is dropped as well), and
+     * resets the buffer for the next one
+     *
+     * @return The buffered line
+     */
+    public String TakeLine () {
+        int end = length;
+        if (end > 0 && bytes[end - 1] == '\r') {
+            end--;
+        }
+        String line = new String (bytes, 0, end, StandardCharsets.UTF_8);
+        length = 0;
+        complete = false;
+        return line;
+    }
+
+    /**
+     * Parses the buffered line into 'view' without copying or allocating, and resets the buffer. The view refers
+     * to this buffer's bytes, so it is only valid until the next 'Feed'
+     *
+     * @param view The view to fill
+     */
+    public void TakeInto (CommandView view) {
+        view.ParseText (bytes, 0, length);
+        length = 0;
+        complete = false;
+    }
+}
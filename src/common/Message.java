@@ -0,0 +1,125 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A decoded protocol message: its command and the fields that followed it. Produced by both the text and the
+ * binary decoders, so code that acts on messages does not need to care which framing the peer used
+ */
+public final class Message {
+
+    private static final String[] NO_FIELDS = new String[0];
+
+    /**
+     * How many fields each text command is split into. The last field takes the rest of the line, separators and
+     * all, so a chat message may itself contain 'ChatterboxProtocol.SEPARATOR'. Commands not listed here are split
+     * on every separator
+     */
+    private static final Map<String, Integer> FIELD_COUNTS = new HashMap<> ();
+
+    static {
+        FIELD_COUNTS.put (ChatterboxProtocol.SEND_CHAT, 1);
+        FIELD_COUNTS.put (ChatterboxProtocol.SEND_WHISPER, 2);
+        FIELD_COUNTS.put (ChatterboxProtocol.CHAT_RECEIVED, 2);
+        FIELD_COUNTS.put (ChatterboxProtocol.WHISPER_RECEIVED, 2);
+        FIELD_COUNTS.put (ChatterboxProtocol.WHISPER_SENT, 2);
+        FIELD_COUNTS.put (ChatterboxProtocol.USER_JOINED, 1);
+        FIELD_COUNTS.put (ChatterboxProtocol.USER_LEFT, 1);
+        FIELD_COUNTS.put (ChatterboxProtocol.TARGET_ERROR, 1);
+        FIELD_COUNTS.put (ChatterboxProtocol.NAME_TAKEN_ERROR, 1);
+        FIELD_COUNTS.put (ChatterboxProtocol.FATAL_ERROR, 1);
+        FIELD_COUNTS.put (ChatterboxProtocol.JOIN_ROOM, 1);
+        FIELD_COUNTS.put (ChatterboxProtocol.PART_ROOM, 1);
+        FIELD_COUNTS.put (ChatterboxProtocol.SEND_ROOM, 2);
+        FIELD_COUNTS.put (ChatterboxProtocol.ROOM_JOINED, 2);
+        FIELD_COUNTS.put (ChatterboxProtocol.ROOM_LEFT, 2);
+        FIELD_COUNTS.put (ChatterboxProtocol.ROOM_CHAT_RECEIVED, 3);
+        FIELD_COUNTS.put (ChatterboxProtocol.ROOM_ERROR, 1);
+        FIELD_COUNTS.put (ChatterboxProtocol.GET_HISTORY, 1);
+        FIELD_COUNTS.put (ChatterboxProtocol.HISTORY, 2);
+        FIELD_COUNTS.put (ChatterboxProtocol.NODE_HELLO, 2);
+        FIELD_COUNTS.put (ChatterboxProtocol.NODE_AUTH, 1);
+        FIELD_COUNTS.put (ChatterboxProtocol.NODE_CLAIM, 2);
+        FIELD_COUNTS.put (ChatterboxProtocol.NODE_CLAIMED, 2);
+        FIELD_COUNTS.put (ChatterboxProtocol.NODE_WHISPER, 3);
+        FIELD_COUNTS.put (ChatterboxProtocol.COMPRESSED, 1);
+    }
+
+    private final String command;
+    private final String[] fields;
+
+    public Message (String command, String... fields) {
+        this.command = command;
+        this.fields = fields;
+    }
+
+    /**
+     * Splits a text protocol line into its command and fields
+     *
+     * @param line The line, with or without surrounding whitespace
+     * @return The parsed message
+     */
+    public static Message ParseText (String line) {
+        line = line.trim ();
+        int separator = line.indexOf (ChatterboxProtocol.SEPARATOR);
+        if (separator < 0) {
+            return new Message (line, NO_FIELDS);
+        }
+
+        String command = line.substring (0, separator);
+        return new Message (command, Split (line, separator + ChatterboxProtocol.SEPARATOR.length (),
+                FieldLimit (command)));
+    }
+
+    /**
+     * @param command A text protocol command
+     * @return How many fields the command's line is split into
+     */
+    static int FieldLimit (String command) {
+        Integer limit = FIELD_COUNTS.get (command);
+        return limit == null ? Integer.MAX_VALUE : limit;
+    }
+
+    private static String[] Split (String line, int start, int limit) {
+        List<String> fields = new ArrayList<> ();
+        while (fields.size () < limit - 1) {
+            int separator = line.indexOf (ChatterboxProtocol.SEPARATOR, start);
+            if (separator < 0) {
+                break;
+            }
+            fields.add (line.substring (start, separator));
+            start = separator + ChatterboxProtocol.SEPARATOR.length ();
+        }
+        fields.add (line.substring (start));
+        return fields.toArray (NO_FIELDS);
+    }
+
+    public String getCommand () {
+        return command;
+    }
+
+    public String[] getFields () {
+        return fields;
+    }
+
+    /**
+     * @param index Which field to get
+     * @return The field at 'index'
+     * @throws ArrayIndexOutOfBoundsException If the message has too few fields
+     */
+    public String getField (int index) {
+        return fields[index];
+    }
+
+    @Override
+    public String toString () {
+        StringBuilder line = new StringBuilder (command);
+        for (String field : fields) {
+            line.append (ChatterboxProtocol.SEPARATOR).append (field);
+        }
+        return line.toString ();
+    }
+}
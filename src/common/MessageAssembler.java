@@ -0,0 +1,70 @@
+package common;
+
+import common.Exceptions.ParseException;
+
+/**
+ * Turns a stream of received bytes into 'Message's. Starts out reading newline terminated text lines and can be
+ * switched to v2 binary frames once the handshake has agreed on them; the switch only affects bytes fed after it
+ */
+public class MessageAssembler {
+
+    private final LineBuffer lines;
+    private BinaryCodec.Decoder frames;
+
+    public MessageAssembler () {
+        lines = new LineBuffer ();
+        frames = null;
+    }
+
+    /**
+     * Consumes bytes up to the end of the next message. Callers should 'Take' and act on each message before
+     * feeding more, as acting on it may switch the framing
+     *
+     * @param data The source array
+     * @param offset Where to start reading in 'data'
+     * @param count How many bytes of 'data' are available
+     * @return The number of bytes consumed from 'data'
+     * @throws ParseException If the bytes are not a valid binary frame
+     */
+    public int Feed (byte[] data, int offset, int count) throws ParseException {
+        return frames == null ? lines.Feed (data, offset, count) : frames.Feed (data, offset, count);
+    }
+
+    /**
+     * @return 'true' iff a whole message has been fed and not yet taken
+     */
+    public boolean HasMessage () {
+        return frames == null ? lines.HasLine () : frames.HasMessage ();
+    }
+
+    /**
+     * @return The buffered message
+     * @throws ParseException If the buffered binary frame is malformed
+     */
+    public Message Take () throws ParseException {
+        return frames == null ? Message.ParseText (lines.TakeLine ()) : frames.Take ();
+    }
+
+    /**
+     * Parses the buffered message into 'view' without allocating; see 'CommandView' for how long it stays valid
+     *
+     * @param view The view to fill
+     * @throws ParseException If the buffered binary frame is malformed
+     */
+    public void TakeInto (CommandView view) throws ParseException {
+        if (frames == null) {
+            lines.TakeInto (view);
+        } else {
+            frames.TakeInto (view);
+        }
+    }
+
+    /**
+     * Decodes everything fed from now on as v2 binary frames. Does nothing if already switched
+     */
+    public void SwitchToBinary () {
+        if (frames == null) {
+            frames = new BinaryCodec.Decoder ();
+        }
+    }
+}
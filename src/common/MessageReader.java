@@ -0,0 +1,122 @@
+package common;
+
+import common.Exceptions.ParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads protocol messages from a blocking 'InputStream'. This parks the calling thread in the read until data
+ * arrives, so an idle connection costs no CPU
+ */
+public class MessageReader {
+
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    private final InputStream stream;
+    private final byte[] readBuffer;
+    private int position;
+    private int limit;
+    private long parseStarted;
+
+    private final MessageAssembler assembler;
+
+    public MessageReader (InputStream stream) {
+        this.stream = stream;
+        this.readBuffer = new byte[READ_BUFFER_SIZE];
+        this.position = 0;
+        this.limit = 0;
+        this.assembler = new MessageAssembler ();
+    }
+
+    /**
+     * Blocks until a full message is available
+     *
+     * @return The next message, or 'null' once the stream has ended
+     * @throws IOException If the underlying read fails
+     * @throws ParseException If the peer sent a malformed binary frame
+     */
+    public Message Read () throws IOException, ParseException {
+        while (true) {
+            if (position == limit) {
+                limit = stream.read (readBuffer);
+                position = 0;
+                if (limit < 0) {
+                    limit = 0;
+                    return null;
+                }
+            }
+
+            position += assembler.Feed (readBuffer, position, limit - position);
+            if (assembler.HasMessage ()) {
+                return assembler.Take ();
+            }
+        }
+    }
+
+    /**
+     * Blocks until a full message is available and parses it into 'view' without allocating. The view is only
+     * valid until the next read
+     *
+     * @param view The view to fill
+     * @return 'false' once the stream has ended, 'true' otherwise
+     * @throws IOException If the underlying read fails
+     * @throws ParseException If the peer sent a malformed binary frame
+     */
+    public boolean ReadInto (CommandView view) throws IOException, ParseException {
+        return ReadInto (view, false);
+    }
+
+    /**
+     * As 'ReadInto (view)', optionally noting when parsing started for 'getParseStarted'
+     *
+     * @param view The view to fill
+     * @param timed 'true' to read the clock just before parsing
+     * @return 'false' once the stream has ended, 'true' otherwise
+     * @throws IOException If the underlying read fails
+     * @throws ParseException If the peer sent a malformed binary frame
+     */
+    public boolean ReadInto (CommandView view, boolean timed) throws IOException, ParseException {
+        while (true) {
+            if (position == limit) {
+                limit = stream.read (readBuffer);
+                position = 0;
+                if (limit < 0) {
+                    limit = 0;
+                    return false;
+                }
+            }
+
+            position += assembler.Feed (readBuffer, position, limit - position);
+            if (assembler.HasMessage ()) {
+                parseStarted = timed ? System.nanoTime () : 0;
+                assembler.TakeInto (view);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return The 'System.nanoTime' at which a timed 'ReadInto' last started parsing a message it had received in
+     * full, or 0 if the last one was not timed
+     */
+    public long getParseStarted () {
+        return parseStarted;
+    }
+
+    /**
+     * @return 'true' if the next read can make progress without blocking, because bytes are left in the buffer or
+     * are waiting on the stream
+     * @throws IOException If the stream cannot be queried
+     */
+    public boolean HasPending () throws IOException {
+        return position < limit || stream.available () > 0;
+    }
+
+    /**
+     * Reads v2 binary frames from now on, see 'MessageAssembler.SwitchToBinary'
+     */
+    public void SwitchToBinary () {
+        assembler.SwitchToBinary ();
+    }
+}
@@ -0,0 +1,286 @@
+package server;
+
+import common.CommandView;
+import common.Exceptions.ParseException;
+import common.Frame;
+import common.MessageAssembler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A 'ClientConnection' backed by a non-blocking 'SocketChannel'. All reads and writes happen on the owning
+ * 'EventLoop' thread; other threads only ever queue outbound frames and ask the loop to flush them. Frames move from
+ * the bounded send queue to a short in-flight list of buffers as the socket takes them
+ */
+public class ChannelConnection extends ClientConnection {
+
+    private static final int READ_BUFFER_SIZE = 1024;
+    private static final int MAX_GATHER = 64;
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private SelectionKey key;
+
+    private final ByteBuffer readBuffer;
+    private final MessageAssembler assembler;
+    private final CommandView command;
+
+    private final ArrayDeque<ByteBuffer> inFlight;
+    private final ByteBuffer[] gather;
+    private final AtomicBoolean flushScheduled;
+    private final AtomicBoolean flushUrgent;
+    private final int coalesceBytes;
+    private final long coalesceNanos;
+
+    private boolean closing;
+    private long handshakeDeadline;
+    private long flushDeadline;
+    private boolean deferred;
+    private long queuedSince;
+
+    public ChannelConnection (SocketChannel channel, EventLoop loop, ServerBase server) {
+        super (server);
+        this.channel = channel;
+        this.loop = loop;
+
+        readBuffer = ByteBuffer.allocate (READ_BUFFER_SIZE);
+        assembler = new MessageAssembler ();
+        command = new CommandView ();
+
+        inFlight = new ArrayDeque<> ();
+        gather = new ByteBuffer[MAX_GATHER];
+        flushScheduled = new AtomicBoolean (false);
+        flushUrgent = new AtomicBoolean (false);
+        coalesceBytes = server.getConfig ().getCoalesceBytes ();
+        coalesceNanos = server.getConfig ().getCoalesceMicros () * 1000;
+
+        closing = false;
+    }
+
+    void setKey (SelectionKey key) {
+        this.key = key;
+    }
+
+    SocketChannel getChannel () {
+        return channel;
+    }
+
+    /**
+     * Called by the owning loop when the channel is readable. Splits whatever arrived into messages and hands each
+     * complete one to 'HandleCommand'
+     *
+     * @throws IOException If the read fails or the client has closed the connection
+     */
+    void OnReadable () throws IOException {
+        int read = channel.read (readBuffer);
+        if (read < 0) {
+            throw new IOException ("End of stream");
+        }
+
+        readBuffer.flip ();
+        Parse ();
+    }
+
+    /**
+     * Called by the owning loop once the claim 'Parse' stopped for has been decided. Finishes the user's connect,
+     * then goes on with whatever they sent after it
+     *
+     * @throws IOException If what follows cannot be framed
+     */
+    void OnClaimed () throws IOException {
+        FinishConnect ();
+        if (encoding != Frame.Encoding.TEXT) {
+            assembler.SwitchToBinary ();
+        }
+        key.interestOps (key.interestOps () | SelectionKey.OP_READ);
+        Parse ();
+    }
+
+    /**
+     * Hands each complete message left in the read buffer to 'HandleCommand'. Stops at a connect whose name another
+     * node arbitrates, leaving the rest in the buffer and the channel unread, until 'OnClaimed'
+     */
+    private void Parse () throws IOException {
+        byte[] data = readBuffer.array ();
+        while (readBuffer.hasRemaining () && !closing) {
+            try {
+                int position = readBuffer.position ();
+                readBuffer.position (position + assembler.Feed (data, position, readBuffer.remaining ()));
+                if (assembler.HasMessage ()) {
+                    boolean wasConnected = connected;
+                    long received = TimeCommand () ? System.nanoTime () : 0;
+                    assembler.TakeInto (command);
+                    HandleCommand (command, received);
+                    CompletableFuture<Boolean> claim = getPendingClaim ();
+                    if (claim != null) {
+                        key.interestOps (key.interestOps () & ~SelectionKey.OP_READ);
+                        claim.thenRun (() -> loop.ScheduleClaimed (this));
+                        return;
+                    }
+                    if (encoding != Frame.Encoding.TEXT) {
+                        assembler.SwitchToBinary ();
+                    }
+                    if (wasConnected && !connected) {
+                        // The user sent 'DISCONNECT'; drop anything else they sent and close once flushed
+                        closing = true;
+                    }
+                }
+            } catch (ParseException e) {
+                throw new IOException (e);
+            }
+        }
+        readBuffer.clear ();
+
+        if (closing) {
+            key.interestOps (0);
+            OnFlush (true);
+        }
+    }
+
+    /**
+     * Called by the owning loop when a flush was requested or the channel became writable again. Writes as much
+     * of the outbound queue as the socket will take without blocking, handing up to 'MAX_GATHER' queued frames
+     * (and at most about 'ServerConfig.getCoalesceBytes') to the kernel in each gathering write. A connection being
+     * dropped for overflowing gets one try at writing its 'FATAL_ERROR' and is then closed.
+     *
+     * In throughput mode a requested flush is first put off until 'ServerConfig.getCoalesceMicros' have passed
+     * or that many bytes are queued, whichever comes first; sends made meanwhile do not wake the loop at all
+     *
+     * @param due 'false' if this flush may still be put off
+     * @throws IOException If the write fails
+     */
+    void OnFlush (boolean due) throws IOException {
+        if (!due && coalesceNanos > 0 && !closing && !outbound.IsAborted () && outbound.getBytes () < coalesceBytes) {
+            if (!deferred) {
+                deferred = true;
+                flushDeadline = System.nanoTime () + coalesceNanos;
+                loop.Defer (this);
+            }
+            return;
+        }
+        flushScheduled.set (false);
+        flushUrgent.set (false);
+
+        while (true) {
+            Frame next;
+            int bytes = 0;
+            for (ByteBuffer buffer : inFlight) {
+                bytes += buffer.remaining ();
+            }
+            while (inFlight.size () < MAX_GATHER && bytes < coalesceBytes && (next = outbound.Poll ()) != null) {
+                if (inFlight.isEmpty ()) {
+                    queuedSince = outbound.getTakenSince ();
+                }
+                ByteBuffer buffer = next.Buffer (encoding);
+                bytes += buffer.remaining ();
+                inFlight.add (buffer);
+            }
+            if (inFlight.isEmpty ()) {
+                break;
+            }
+
+            int count = 0;
+            for (ByteBuffer buffer : inFlight) {
+                gather[count++] = buffer;
+            }
+
+            channel.write (gather, 0, count);
+            boolean full = gather[count - 1].hasRemaining ();
+            Arrays.fill (gather, 0, count, null);
+
+            int written = 0;
+            ByteBuffer head;
+            while ((head = inFlight.peek ()) != null && !head.hasRemaining ()) {
+                inFlight.poll ();
+                written++;
+            }
+            server.CountWrite (written, queuedSince);
+            if (full) {
+                if (outbound.IsAborted ()) {
+                    Close ();
+                    return;
+                }
+                // Socket buffer full, wait until the selector says we can write again
+                key.interestOps (key.interestOps () | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+
+        if (closing || outbound.IsAborted ()) {
+            Close ();
+        } else if (key.isValid ()) {
+            key.interestOps (key.interestOps () & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Called by the owning loop once a flush put off by 'OnFlush' is due. Until then the connection stays on the
+     * loop's deferred list, even if an urgent flush went out in the meantime
+     *
+     * @throws IOException If the write fails
+     */
+    void OnDeferredFlush () throws IOException {
+        deferred = false;
+        OnFlush (true);
+    }
+
+    /**
+     * @return The 'System.nanoTime' by which the user must have a username, see 'EventLoop.ExpireHandshakes'
+     */
+    long getHandshakeDeadline () {
+        return handshakeDeadline;
+    }
+
+    void setHandshakeDeadline (long handshakeDeadline) {
+        this.handshakeDeadline = handshakeDeadline;
+    }
+
+    /**
+     * @return The 'System.nanoTime' a deferred flush is due at
+     */
+    long getFlushDeadline () {
+        return flushDeadline;
+    }
+
+    /**
+     * @return 'true' if enough has been queued since a flush was put off that it should go out now
+     */
+    boolean isFlushUrgent () {
+        return flushUrgent.get ();
+    }
+
+    /**
+     * Closes the channel and removes the user from the server if they were still connected
+     */
+    void Close () {
+        outbound.Close ();
+        key.cancel ();
+        try {
+            channel.close ();
+        } catch (IOException e) {
+            //
+        }
+        Dropped ();
+    }
+
+    @Override
+    public void Send (Frame frame) {
+        if (!Enqueue (frame)) {
+            return;
+        }
+        if (flushScheduled.compareAndSet (false, true)) {
+            loop.ScheduleFlush (this);
+        } else if (coalesceNanos > 0 && outbound.getBytes () >= coalesceBytes &&
+                flushUrgent.compareAndSet (false, true)) {
+            // A deferred flush has gathered enough to go now
+            loop.ScheduleFlush (this);
+        }
+    }
+}
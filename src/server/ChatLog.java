@@ -0,0 +1,425 @@
+package server;
+
+import common.CommandView;
+import common.Exceptions.ParseException;
+import common.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * A durable, append-only log of delivered chat, kept in memory-mapped segment files named after the offset of
+ * their first record. Delivering threads only hand frames to a queue ('Append'); a single appender thread copies
+ * them into the active segment and forces it to disk, once per batch of whatever queued up meanwhile (group commit)
+ * or at most once per configured interval.
+ *
+ * The queue is bounded by the payload size of what is in it. Should the disk fall that far behind, further frames
+ * are dropped from the log (still delivered, and counted by 'getDropped') rather than blocking the delivering
+ * threads, which include the event loops, or growing until the heap runs out
+ *
+ * Each record is
+ *
+ *     int length | int CRC-32 (timestamp and frame) | long timestamp (ms) | frame in v2 binary encoding
+ *
+ * and a zero length marks the end of a segment's records. Offsets count records from the start of the log, so a
+ * record's offset is its segment's base offset plus its position in the segment
+ */
+public class ChatLog {
+
+    /**
+     * Called for each record found by a scan
+     */
+    public interface Visitor {
+        /**
+         * @param offset The record's offset
+         * @param timestamp When the record was appended, in milliseconds since the epoch
+         * @param frame The logged frame
+         * @return 'false' to stop the scan
+         */
+        boolean Visit (long offset, long timestamp, Frame frame);
+    }
+
+    private static final int HEADER = 16;
+    private static final String SUFFIX = ".log";
+
+    private static final class Segment {
+        final long baseOffset;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        volatile int end;
+        volatile int count;
+        volatile long firstTimestamp;
+
+        Segment (long baseOffset, FileChannel channel, MappedByteBuffer buffer) {
+            this.baseOffset = baseOffset;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.firstTimestamp = Long.MAX_VALUE;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long syncNanos;
+
+    private final List<Segment> segments;
+    private Segment active;
+    private volatile long nextOffset;
+    private volatile long forces;
+
+    private final ConcurrentLinkedQueue<Frame> pending;
+    /**
+     * The payload size of what is in 'pending'
+     */
+    private final AtomicLong pendingBytes;
+    private final long queueBytes;
+    private final LongAdder dropped;
+    private final AtomicBoolean sleeping;
+    private final Thread appender;
+    private final CRC32 crc;
+    private volatile boolean closed;
+
+    private ChatLog (Path directory, int segmentBytes, long syncMillis, long queueBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.syncNanos = syncMillis * 1_000_000;
+        this.queueBytes = queueBytes > 0 ? queueBytes : Long.MAX_VALUE;
+
+        segments = new CopyOnWriteArrayList<> ();
+        pending = new ConcurrentLinkedQueue<> ();
+        pendingBytes = new AtomicLong ();
+        dropped = new LongAdder ();
+        sleeping = new AtomicBoolean (false);
+        crc = new CRC32 ();
+        appender = new Thread (this::Run, "chatterbox-log");
+        appender.setDaemon (true);
+    }
+
+    /**
+     * Opens the log in a directory, creating it if needed, and recovers the end of the log from its segments. A
+     * torn record at the end (from a crash mid-write) is ignored and overwritten by the next append
+     *
+     * @param directory Where the segment files live
+     * @param segmentBytes How big each segment file is
+     * @param syncMillis The least time between forces to disk; 0 forces after every batch
+     * @param queueBytes How much payload may wait for the appender before frames are dropped; 0 for no limit
+     * @return The open log, with its appender thread running
+     * @throws IOException If the directory or a segment cannot be opened
+     */
+    public static ChatLog Open (Path directory, int segmentBytes, long syncMillis, long queueBytes)
+            throws IOException {
+        ChatLog log = new ChatLog (directory, segmentBytes, syncMillis, queueBytes);
+        Files.createDirectories (directory);
+
+        List<Long> bases = new ArrayList<> ();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream (directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName ().toString ();
+                try {
+                    bases.add (Long.parseLong (name.substring (0, name.length () - SUFFIX.length ())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        bases.sort (null);
+
+        for (long base : bases) {
+            Segment segment = log.Map (base, 0);
+            Recover (segment);
+            log.segments.add (segment);
+            log.nextOffset = base + segment.count;
+        }
+        if (!log.segments.isEmpty ()) {
+            log.active = log.segments.get (log.segments.size () - 1);
+        }
+
+        log.appender.start ();
+        return log;
+    }
+
+    private Segment Map (long baseOffset, int minimumBytes) throws IOException {
+        Path file = directory.resolve (String.format ("%020d%s", baseOffset, SUFFIX));
+        FileChannel channel = FileChannel.open (file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long size = Math.max (channel.size (), Math.max (segmentBytes, minimumBytes));
+        return new Segment (baseOffset, channel, channel.map (FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+
+    private static void Recover (Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        CRC32 check = new CRC32 ();
+        int position = 0;
+        int count = 0;
+        while (position + HEADER <= buffer.capacity ()) {
+            int length = buffer.getInt (position);
+            if (length <= 0 || length > buffer.capacity () - position - HEADER) {
+                break;
+            }
+            ByteBuffer record = buffer.duplicate ();
+            record.limit (position + HEADER + length).position (position + 8);
+            check.reset ();
+            check.update (record);
+            if ((int) check.getValue () != buffer.getInt (position + 4)) {
+                break;
+            }
+            if (count == 0) {
+                segment.firstTimestamp = buffer.getLong (position + 8);
+            }
+            count++;
+            position += HEADER + length;
+        }
+        segment.end = position;
+        segment.count = count;
+    }
+
+    /**
+     * Queues a delivered frame to be logged. Never blocks and never touches the disk; if the queue is full the
+     * frame is dropped instead
+     *
+     * @param frame The frame to log
+     */
+    public void Append (Frame frame) {
+        int size = frame.PayloadLength ();
+        if (pendingBytes.addAndGet (size) > queueBytes) {
+            pendingBytes.addAndGet (-size);
+            dropped.increment ();
+            return;
+        }
+        pending.offer (frame);
+        if (sleeping.get () && sleeping.compareAndSet (true, false)) {
+            LockSupport.unpark (appender);
+        }
+    }
+
+    /**
+     * The appender thread's loop
+     */
+    private void Run () {
+        long lastForce = System.nanoTime ();
+        boolean dirty = false;
+        while (true) {
+            try {
+                Frame frame;
+                while ((frame = pending.poll ()) != null) {
+                    pendingBytes.addAndGet (-frame.PayloadLength ());
+                    Write (frame);
+                    dirty = true;
+                }
+
+                long sinceForce = System.nanoTime () - lastForce;
+                if (dirty && (sinceForce >= syncNanos || closed)) {
+                    active.buffer.force ();
+                    forces++;
+                    lastForce = System.nanoTime ();
+                    dirty = false;
+                }
+
+                if (pending.isEmpty ()) {
+                    if (closed) {
+                        break;
+                    }
+                    sleeping.set (true);
+                    if (pending.isEmpty ()) {
+                        if (dirty) {
+                            LockSupport.parkNanos (syncNanos - sinceForce);
+                        } else {
+                            LockSupport.park ();
+                        }
+                    }
+                    sleeping.set (false);
+                }
+            } catch (IOException e) {
+                ServerLog.Warn ("ChatLog: Error in writing the log, carrying on regardless");
+            }
+        }
+    }
+
+    private void Write (Frame frame) throws IOException {
+        int length = frame.Length (Frame.Encoding.BINARY);
+        if (active == null || active.buffer.capacity () - active.end < HEADER + length) {
+            Roll (HEADER + length);
+        }
+
+        MappedByteBuffer buffer = active.buffer;
+        int position = active.end;
+        long timestamp = System.currentTimeMillis ();
+        buffer.putLong (position + 8, timestamp);
+        buffer.position (position + HEADER);
+        frame.CopyTo (buffer, Frame.Encoding.BINARY);
+
+        ByteBuffer record = buffer.duplicate ();
+        record.limit (position + HEADER + length).position (position + 8);
+        crc.reset ();
+        crc.update (record);
+        buffer.putInt (position + 4, (int) crc.getValue ());
+        // Written last, so a record only exists once the rest of it does
+        buffer.putInt (position, length);
+
+        if (active.count == 0) {
+            active.firstTimestamp = timestamp;
+        }
+        active.end = position + HEADER + length;
+        active.count++;
+        nextOffset++;
+    }
+
+    private void Roll (int minimumBytes) throws IOException {
+        if (active != null && active.count == 0) {
+            // Too small for even one record; remap the same file bigger
+            segments.remove (active);
+            active.channel.close ();
+        } else if (active != null) {
+            active.buffer.force ();
+            forces++;
+        }
+        active = Map (nextOffset, minimumBytes);
+        segments.add (active);
+    }
+
+    /**
+     * Visits every record from an offset onwards, in order, up to whatever had been appended when each segment was
+     * reached. Safe to call while the log is being appended to
+     *
+     * @param fromOffset The first offset wanted
+     * @param visitor Called for each record
+     */
+    public void Scan (long fromOffset, Visitor visitor) {
+        Scan (fromOffset, Long.MIN_VALUE, visitor);
+    }
+
+    /**
+     * Visits every record appended at or after a time, in order
+     *
+     * @param fromMillis The earliest timestamp wanted, in milliseconds since the epoch
+     * @param visitor Called for each record
+     */
+    public void ScanFromTime (long fromMillis, Visitor visitor) {
+        Scan (Long.MIN_VALUE, fromMillis, visitor);
+    }
+
+    private void Scan (long fromOffset, long fromMillis, Visitor visitor) {
+        Object[] snapshot = segments.toArray ();
+
+        // Start at the last segment that begins at or before what was asked for
+        int first = 0;
+        for (int i = 1; i < snapshot.length; i++) {
+            Segment segment = (Segment) snapshot[i];
+            if (segment.baseOffset <= fromOffset || (fromMillis != Long.MIN_VALUE && segment.count > 0 &&
+                    segment.firstTimestamp <= fromMillis)) {
+                first = i;
+            }
+        }
+
+        CommandView view = new CommandView ();
+        for (int i = first; i < snapshot.length; i++) {
+            Segment segment = (Segment) snapshot[i];
+            ByteBuffer buffer = segment.buffer.duplicate ();
+            int end = segment.end;
+            int position = 0;
+            long offset = segment.baseOffset;
+            while (position < end) {
+                int length = buffer.getInt (position);
+                long timestamp = buffer.getLong (position + 8);
+                if (offset >= fromOffset && timestamp >= fromMillis) {
+                    try {
+                        if (!visitor.Visit (offset, timestamp, Decode (buffer, position + HEADER, length, view))) {
+                            return;
+                        }
+                    } catch (ParseException e) {
+                        // A record we cannot read back; skip it
+                    }
+                }
+                position += HEADER + length;
+                offset++;
+            }
+        }
+    }
+
+    private static Frame Decode (ByteBuffer buffer, int position, int length, CommandView view) throws
+            ParseException {
+        // Skip the frame's own varint length prefix
+        int prefix = 0;
+        while ((buffer.get (position + prefix) & 0x80) != 0) {
+            prefix++;
+        }
+        prefix++;
+
+        byte[] body = new byte[length - prefix];
+        ByteBuffer source = buffer.duplicate ();
+        source.position (position + prefix);
+        source.get (body);
+        view.ParseBinary (body, body.length);
+        return Frame.Of (view);
+    }
+
+    /**
+     * @return The offset the next appended record will get
+     */
+    public long getNextOffset () {
+        return nextOffset;
+    }
+
+    /**
+     * @return How many times the log has been forced to disk
+     */
+    public long getForces () {
+        return forces;
+    }
+
+    /**
+     * @return How many frames are waiting for the appender
+     */
+    public int getPending () {
+        return pending.size ();
+    }
+
+    /**
+     * @return The payload size of the frames waiting for the appender
+     */
+    public long getPendingBytes () {
+        return pendingBytes.get ();
+    }
+
+    /**
+     * @return How many frames were not logged because the queue was full
+     */
+    public long getDropped () {
+        return dropped.sum ();
+    }
+
+    /**
+     * Writes and forces everything queued so far, then stops the appender and closes the segment files
+     */
+    public void Close () {
+        closed = true;
+        LockSupport.unpark (appender);
+        try {
+            appender.join ();
+        } catch (InterruptedException e) {
+            //
+        }
+        for (Segment segment : segments) {
+            try {
+                segment.channel.close ();
+            } catch (IOException e) {
+                //
+            }
+        }
+    }
+}
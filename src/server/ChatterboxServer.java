@@ -1,10 +1,17 @@
 package server;
 
-import common.ChatterboxProtocol;
-
+import javax.management.JMException;
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The Base Server Runnable. Opens a server socket on the 'ChatterboxProtocol' specified
@@ -12,37 +19,280 @@ import java.net.Socket;
  */
 public class ChatterboxServer {
 
+    /**
+     * A server's open client port and the threads serving it, as started by 'Start'. Those threads are daemons, so
+     * something else has to keep the JVM up while they serve; 'Run' waits on them
+     */
+    public static final class Listener implements Closeable {
+
+        private final ServerBase server;
+        private final Closeable socket;
+        private final int port;
+        private final EventLoop[] loops;
+        private final List<Thread> acceptors;
+        private volatile boolean closed;
+
+        private Listener (ServerBase server, Closeable socket, int port, EventLoop[] loops) {
+            this.server = server;
+            this.socket = socket;
+            this.port = port;
+            this.loops = loops;
+            this.acceptors = new ArrayList<> ();
+            this.closed = false;
+        }
+
+        public ServerBase getServer () {
+            return server;
+        }
+
+        /**
+         * @return The port clients connect to; the one picked for it if '--port=0'
+         */
+        public int getPort () {
+            return port;
+        }
+
+        public boolean isClosed () {
+            return closed;
+        }
+
+        /**
+         * Waits until every acceptor has stopped, i.e. until 'close'
+         *
+         * @throws InterruptedException If interrupted while waiting
+         */
+        public void Join () throws InterruptedException {
+            for (Thread acceptor : acceptors) {
+                acceptor.join ();
+            }
+        }
+
+        /**
+         * Stops accepting, and stops the event loops with every connection on them. In the thread-per-connection
+         * modes connections already made are left to their own threads, which end as their users leave. The
+         * 'ServerBase' is not closed
+         */
+        @Override
+        public void close () {
+            closed = true;
+            try {
+                socket.close ();
+            } catch (IOException e) {
+                //
+            }
+            for (Thread acceptor : acceptors) {
+                // Wakes any waiting for a handshake slot
+                acceptor.interrupt ();
+            }
+            for (EventLoop loop : loops) {
+                loop.Close ();
+            }
+        }
+    }
+
     /**
      * Run this to start the server
      *
      * Creates an outwards facing 'ServerSocket' on the port specified in 'ChatterboxProtocol', and then creates
-     * a new serverBase
+     * a new serverBase. By default every client gets its own thread; pass '--mode=virtual' to make those virtual
+     * threads, or '--mode=nio' to instead share a fixed set of selector threads ('--loops=N', one per core by
+     * default) between all clients. Given '--node=NAME' and '--peers=name@host:port,...' the server becomes one
+     * node of a 'Cluster', linking to the other nodes on '--cluster-port' (the client port + 100 by default). That
+     * port only listens on loopback unless given '--cluster-bind'; give every node the same '--cluster-secret'
+     * before binding it anywhere else.
+     * '--acceptors=N' accepts on N threads, and '--max-handshakes' caps how many accepted connections may be
+     * negotiating a username at once
      *
-     * @param args Do nothing
+     * @param args Startup options, see 'ServerConfig'
      * @throws IOException Thrown if unable to connect on the ChatterboxProtocol port
      */
     public static void main (String[] args) throws IOException {
-        ServerSocket server = new ServerSocket (ChatterboxProtocol.PORT);
-        ServerBase serverBase = new ServerBase ();
+        ServerConfig config = ServerConfig.Parse (args);
+        setLogLevel (config.getLogLevel ());
+        ServerBase serverBase = new ServerBase (config);
+        Runtime.getRuntime ().addShutdownHook (new Thread (serverBase::close, "chatterbox-shutdown"));
+        try {
+            ServerStats.Register (serverBase);
+        } catch (JMException e) {
+            ServerLog.Warn ("ChatterboxServer: Could not publish stats over JMX, carrying on without: " + e);
+        }
+        Run (config, serverBase);
+    }
+
+    /**
+     * Sets how much is logged to the console. There is one console log for the whole JVM, shared by every server in
+     * it, so this is set once: by 'main' from '--log-level', or by whatever else starts servers in-process
+     *
+     * @param level The least severe level logged from now on
+     */
+    public static void setLogLevel (ServerConfig.LogLevel level) {
+        ServerLog.setLevel (level);
+    }
+
+    /**
+     * Accepts clients for 'serverBase' the way 'config' says to, until interrupted
+     *
+     * @param config Startup options
+     * @param serverBase The server the clients join
+     * @throws IOException Thrown if unable to listen on the configured port
+     */
+    public static void Run (ServerConfig config, ServerBase serverBase) throws IOException {
+        Listener listener = Start (config, serverBase);
+        try {
+            listener.Join ();
+        } catch (InterruptedException e) {
+            listener.close ();
+        }
+    }
+
+    /**
+     * Opens the client port and starts accepting clients for 'serverBase' the way 'config' says to, on threads of
+     * its own
+     *
+     * @param config Startup options
+     * @param serverBase The server the clients join
+     * @return The open port; clients can connect as soon as this returns, until it is closed
+     * @throws IOException Thrown if unable to listen on the configured port
+     */
+    public static Listener Start (ServerConfig config, ServerBase serverBase) throws IOException {
+        switch (config.getMode ()) {
+            case NIO:
+                return StartSelectors (config, serverBase);
+            case VIRTUAL:
+                return StartThreads (config, serverBase, VirtualThreads ());
+            case THREADS:
+            default:
+                return StartThreads (config, serverBase, Thread::new);
+        }
+    }
+
+    /**
+     * Looks up 'Thread.ofVirtual ().factory ()' reflectively, so the server still builds and runs on JDKs without
+     * virtual threads
+     *
+     * @return A factory of virtual threads
+     * @throws UnsupportedOperationException If this JDK has no virtual threads
+     */
+    private static ThreadFactory VirtualThreads () {
+        try {
+            Object builder = Thread.class.getMethod ("ofVirtual").invoke (null);
+            return (ThreadFactory) Class.forName ("java.lang.Thread$Builder").getMethod ("factory").invoke (builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException ("'--mode=virtual' needs a JDK with virtual threads (21 or " +
+                    "later), this is " + System.getProperty ("java.version"), e);
+        }
+    }
+
+    /**
+     * Accepts one connection and hands it on; the connection's setup must happen elsewhere, not on the acceptor
+     */
+    private interface Acceptor {
+        void AcceptOne () throws IOException;
+    }
+
+    private static Listener StartThreads (ServerConfig config, ServerBase serverBase, ThreadFactory threads)
+            throws IOException {
+        ServerSocket server = new ServerSocket (config.getPort (), config.getBacklog ());
+        Listener listener = new Listener (serverBase, server, server.getLocalPort (), new EventLoop[0]);
+
+        StartAcceptors (config, listener, () -> {
+            Socket client = server.accept ();
+            threads.newThread (() -> Serve (client, serverBase, threads)).start ();
+        });
+        return listener;
+    }
 
-        while (true) {
+    /**
+     * A connection thread's body: sets the connection up, then runs it
+     */
+    private static void Serve (Socket client, ServerBase serverBase, ThreadFactory threads) {
+        SocketConnection connection;
+        try {
+            connection = new SocketConnection (client, serverBase, threads);
+        } catch (IOException e) {
+            ServerLog.Warn ("ChatterboxServer: Error in opening a connection, dropped connection and carrying on " +
+                    "regardless");
+            serverBase.HandshakeEnded ();
             try {
-                Socket client = server.accept ();
-                System.out.println("New User connected");
-                ClientConnection connection = new ClientConnection (client, serverBase);
-                System.out.println ("New Thread Created");
-                new Thread (connection).start ();
-                System.out.println ("Thread started\n");
+                client.close ();
+            } catch (IOException e1) {
+                //
+            }
+            return;
+        }
+        connection.HoldHandshakeSlot ();
+        ServerLog.Debug ("New User connected");
+        connection.run ();
+    }
+
+    private static Listener StartSelectors (ServerConfig config, ServerBase serverBase) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open ();
+        server.bind (new InetSocketAddress (config.getPort ()), config.getBacklog ());
+
+        EventLoop[] loops = new EventLoop[Math.max (1, config.getEventLoops ())];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop (serverBase);
+            Thread thread = new Thread (loops[i], "chatterbox-loop-" + i);
+            thread.setDaemon (true);
+            thread.start ();
+        }
+        ServerLog.Info ("Started " + loops.length + " event loops");
+        Listener listener = new Listener (serverBase, server,
+                ((InetSocketAddress) server.getLocalAddress ()).getPort (), loops);
+
+        AtomicInteger next = new AtomicInteger ();
+        StartAcceptors (config, listener, () -> {
+            SocketChannel client = server.accept ();
+            loops[Math.floorMod (next.getAndIncrement (), loops.length)].Register (client);
+        });
+        return listener;
+    }
+
+    /**
+     * Starts '--acceptors' threads accepting with 'acceptor' until 'listener' is closed. Before each accept a
+     * thread waits for one of the server's handshake slots, so no more than '--max-handshakes' connections are
+     * ever being set up at once; the rest wait in the kernel's backlog
+     */
+    private static void StartAcceptors (ServerConfig config, Listener listener, Acceptor acceptor) {
+        int count = Math.max (1, config.getAcceptors ());
+        for (int i = 0; i < count; i++) {
+            Thread thread = new Thread (() -> Accept (listener, acceptor), "chatterbox-acceptor-" + i);
+            thread.setDaemon (true);
+            listener.acceptors.add (thread);
+        }
+        for (Thread thread : listener.acceptors) {
+            thread.start ();
+        }
+        if (count > 1) {
+            ServerLog.Info ("Started " + count + " acceptors");
+        }
+    }
+
+    private static void Accept (Listener listener, Acceptor acceptor) {
+        ServerBase serverBase = listener.getServer ();
+        while (!listener.isClosed ()) {
+            try {
+                serverBase.AwaitHandshakeSlot ();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                acceptor.AcceptOne ();
 
             } catch (IOException e){
                 // Triggered if there is an error on opening connection to a client
-                System.out.println("ChatterboxServer: Error in opening a connection, dropped connection and " +
+                serverBase.HandshakeEnded ();
+                if (listener.isClosed ()) {
+                    return;
+                }
+                ServerLog.Warn ("ChatterboxServer: Error in opening a connection, dropped connection and " +
                         "carrying on regardless");
             } catch (Exception e){
+                serverBase.HandshakeEnded ();
                 e.printStackTrace ();
             }
         }
-
     }
 
 }
@@ -3,89 +3,228 @@ package server;
 
 import common.ChatterboxProtocol;
 import common.Exceptions.InvalidRecipientException;
+import common.Exceptions.InvalidRoomException;
 import common.Exceptions.NameTakenException;
 import common.Exceptions.ParseException;
 import common.Exceptions.UserNotInitializedException;
-import javafx.css.CssParser;
+import common.CommandView;
+import common.Frame;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.util.Scanner;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class ClientConnection implements Runnable, ChatterboxProtocol {
+/**
+ * The server-side half of a single user's session. Handles the username negotiation and translates user
+ * commands into calls on the shared 'ServerBase'. How lines arrive and how replies are written is left to the
+ * transport specific subclasses ('SocketConnection' for thread-per-connection mode, 'ChannelConnection' for
+ * selector mode)
+ */
+public abstract class ClientConnection implements ChatterboxProtocol {
 
-    private final Socket socket;
-    private String username;
-    private String clientInBuffer;
-    private boolean connected;
+    /**
+     * The capabilities this server will accept from a client's 'CONNECT'
+     */
+    private static final Set<String> SUPPORTED = new HashSet<> (Arrays.asList (
+            ChatterboxProtocol.CAPABILITY_BINARY,
+            ChatterboxProtocol.CAPABILITY_DEFLATE,
+            ChatterboxProtocol.CAPABILITY_PRESENCE_BATCH,
+            ChatterboxProtocol.CAPABILITY_NO_PRESENCE,
+            ChatterboxProtocol.CAPABILITY_USER_IDS));
 
-    private ServerBase server;
+    protected String username;
+    protected byte[] usernameBytes;
+    protected boolean connected;
+    protected int userId;
+    protected final Set<String> capabilities;
+    protected final Set<String> rooms;
+    protected volatile Frame.Encoding encoding;
 
-    private InputStream clientIn;
-    private OutputStream clientOut;
+    protected final ServerBase server;
+    protected final SendQueue outbound;
+    private final TokenBucket chatLimit;
+    private final TokenBucket whisperLimit;
+    private final TokenBucket listLimit;
+    private int commands;
+    private boolean handshaking;
+    private CompletableFuture<Boolean> claim;
 
-    private Scanner clientReader;
-    private PrintWriter clientWriter;
+    protected ClientConnection (ServerBase server) {
+        this.username = "";
+        this.usernameBytes = new byte[0];
+        this.connected = false;
+        this.capabilities = new LinkedHashSet<> ();
+        this.rooms = ConcurrentHashMap.newKeySet ();
+        this.encoding = Frame.Encoding.TEXT;
 
-    public ClientConnection (Socket socket, ServerBase server) throws IOException {
-        this.socket = socket;
+        this.server = server;
+        this.outbound = new SendQueue (server.getConfig ().getSendBufferBytes (), server.getConfig ().getOverflow (),
+                server.DroppedFrameCounter (), server.getMetrics ());
+        this.chatLimit = Bucket (server.getConfig ().getChatLimit ());
+        this.whisperLimit = Bucket (server.getConfig ().getWhisperLimit ());
+        this.listLimit = Bucket (server.getConfig ().getListLimit ());
+    }
 
-        username = "";
-        clientInBuffer = "";
-        connected = false;
+    private static TokenBucket Bucket (ServerConfig.Limit limit) {
+        return limit.isLimited () ? new TokenBucket (limit) : null;
+    }
 
-        this.server = server;
+    /**
+     * Handles one complete command received from the client. Before a username has been negotiated every command
+     * is treated as a connect attempt, afterwards commands are handed to 'Dispatch'. A connect may be left waiting
+     * on another node, see 'getPendingClaim'
+     *
+     * @param command The command received from the client; only valid for the duration of this call
+     * @param received The 'System.nanoTime' at which parsing 'command' started, or 0 if 'TimeCommand' said not
+     * to time it
+     */
+    protected void HandleCommand (CommandView command, long received) {
+        if (command.IsEmpty ()) {
+            return;
+        }
 
-        clientIn = socket.getInputStream ();
-        clientOut = socket.getOutputStream ();
+        int opcode = command.getOpcode ();
+        long parsed = received != 0 ? System.nanoTime () : 0;
+        if (!command.IsTextSafe ()) {
+            Send (Frame.Of (ChatterboxProtocol.PARSE_ERROR));
+        } else if (!connected) {
+            Connect (command);
+        } else {
+            Dispatch (command);
+        }
+        if (received != 0) {
+            server.getMetrics ().Command (opcode, received, parsed, System.nanoTime ());
+        } else {
+            server.getMetrics ().Command (opcode);
+        }
+    }
 
-        clientReader = new Scanner (clientIn);
-        clientWriter = new PrintWriter (clientOut);
+    /**
+     * Marks this connection as holding the slot its acceptor took with 'ServerBase.AwaitHandshakeSlot'. The slot
+     * is given back the first time the user connects, or when the connection goes away before that
+     */
+    void HoldHandshakeSlot () {
+        handshaking = true;
+    }
 
+    /**
+     * @return 'true' while this connection holds a handshake slot, i.e. until its user first connects
+     */
+    boolean isHandshaking () {
+        return handshaking;
     }
 
-    @Override
-    public void run () {
-        //---------------------------------<Connect Phase>----------------------------------//
-        try {
-            Connect ();
-        } catch (ParseException e) {
-            //
+    private void EndHandshake () {
+        if (handshaking) {
+            handshaking = false;
+            server.HandshakeEnded ();
+        }
+    }
+
+    /**
+     * Called by the transport before it parses each command, from the one thread reading this connection
+     *
+     * @return 'true' if the transport should note when it starts parsing the next command, for 'Metrics'
+     */
+    protected boolean TimeCommand () {
+        return server.getMetrics ().Sample (++commands);
+    }
+
+    private void Connect (CommandView command) {
+        if (!ChatterboxProtocol.CONNECT.equals (command.getCommand ()) || command.getFieldCount () < 1) {
+            Send (Frame.Of (ChatterboxProtocol.NON_INITIALIZED_ERROR));
+            return;
+        }
+
+        username = command.Field (0);
+        usernameBytes = command.FieldBytes (0);
+        capabilities.clear ();
+        for (int i = 1; i < command.getFieldCount (); i++) {
+            String capability = command.Field (i);
+            if (SUPPORTED.contains (capability)) {
+                capabilities.add (capability);
+            }
+        }
+
+        // Compressed frames can hold any byte, so need the binary framing
+        if (!capabilities.contains (ChatterboxProtocol.CAPABILITY_BINARY) ||
+                server.getConfig ().getCompressThreshold () <= 0) {
+            capabilities.remove (ChatterboxProtocol.CAPABILITY_DEFLATE);
+        }
+        // Ids and versions are this server's own; a cluster's members only agree on names
+        if (server.getCluster () != null) {
+            capabilities.remove (ChatterboxProtocol.CAPABILITY_USER_IDS);
         }
 
-        //-----------------------------------<Main Phase>-----------------------------------//
-        while (connected) {
-            Process ();
+        // Switch before 'connect' publishes us, so nothing sent to us afterwards goes out in the old framing
+        if (capabilities.contains (ChatterboxProtocol.CAPABILITY_DEFLATE)) {
+            encoding = Frame.Encoding.DEFLATE;
+        } else if (capabilities.contains (ChatterboxProtocol.CAPABILITY_BINARY)) {
+            encoding = Frame.Encoding.BINARY;
         }
 
-        //---------------------------------<Shutdown Phase>---------------------------------//
+        claim = server.Claim (username);
+        if (claim.isDone ()) {
+            FinishConnect ();
+        }
     }
 
-    private void Connect () throws ParseException {
-        while (!connected && socket.isConnected ()) {
-            String[] data = clientReader.nextLine ().trim ().split (
-                    ChatterboxProtocol.SEPARATOR);
+    /**
+     * @return The claim on the user's name if the node arbitrating it had yet to answer when they connected, else
+     * 'null'. The transport must not hand on another command until it completes, and must then call 'FinishConnect'
+     * from the thread reading this connection; until then it cannot even tell which framing the user will be sent
+     */
+    protected CompletableFuture<Boolean> getPendingClaim () {
+        return claim;
+    }
 
-            if (!data[0].equals (ChatterboxProtocol.CONNECT)) {
-                clientWriter.println (ChatterboxProtocol.NON_INITIALIZED_ERROR);
-            } else {
-                try {
-                    username = data[1];
-                    server.connect (this);
-                    connected = true;
+    /**
+     * Connects the user once the claim on their name is decided, or tells them it is taken
+     */
+    protected void FinishConnect () {
+        boolean granted = claim.join ();
+        claim = null;
+        try {
+            if (!granted) {
+                throw new NameTakenException (username);
+            }
+            server.Admit (this);
+            connected = true;
+            EndHandshake ();
 
-                } catch (NameTakenException e) {
-                    try {
-                        ParseServerCommand (ChatterboxProtocol.NAME_TAKEN_ERROR +
-                                ChatterboxProtocol.SEPARATOR + username);
-                    } catch (ParseException e1) {
-                        //Do nothing, will work
-                    }
+        } catch (NameTakenException e) {
+            encoding = Frame.Encoding.TEXT;
+            capabilities.clear ();
+            Send (Frame.Of (ChatterboxProtocol.NAME_TAKEN_ERROR, username));
+        }
+    }
+
+    /**
+     * Called by the transport once the underlying connection has gone away. Removes the user from the server if
+     * they never sent a 'DISCONNECT' of their own, or gives their name back if it was still being claimed
+     */
+    protected void Dropped () {
+        EndHandshake ();
+        if (claim != null) {
+            String claimed = username;
+            claim.thenAccept (granted -> {
+                if (granted) {
+                    server.Unclaim (claimed);
                 }
+            });
+            claim = null;
+        }
+        if (connected) {
+            try {
+                server.disconnect (this);
+            } catch (UserNotInitializedException e) {
+                //Already gone
             }
+            connected = false;
         }
     }
 
@@ -93,77 +232,290 @@ public class ClientConnection implements Runnable, ChatterboxProtocol {
         this.connected = connected;
     }
 
-    private void Process () {
-        try {
-            String fromClient = GetClientCommand ();
-            if (!fromClient.isEmpty ()) {
-                ParseUserCommand (fromClient);
-            }
-        } catch (ParseException e) {
-            //
-        }
+    public boolean isConnected () {
+        return connected;
     }
 
     public String getUsername () {
         return username;
     }
 
+    /**
+     * @return The id 'ServerBase' gave this user when they connected; no other session on this server has it
+     */
+    public int getUserId () {
+        return userId;
+    }
+
+    /**
+     * @return The framing this user is sent frames in; fixed once they are connected
+     */
+    public Frame.Encoding getEncoding () {
+        return encoding;
+    }
+
+    void setUserId (int userId) {
+        this.userId = userId;
+    }
+
+    /**
+     * @return The username as UTF-8 bytes, shared by every frame this user sends; must not be modified
+     */
+    public byte[] getUsernameBytes () {
+        return usernameBytes;
+    }
+
+    /**
+     * @return The names of the rooms this user is in; only 'ServerBase' should change it
+     */
+    public Set<String> getRooms () {
+        return rooms;
+    }
+
+    /**
+     * @return How many chat frames have been dropped because this user was not keeping up
+     */
+    public long getDroppedFrames () {
+        return outbound.getDropped ();
+    }
+
+    /**
+     * @return How many frames are waiting in this user's send queue
+     */
+    public int getQueuedFrames () {
+        return outbound.getFrames ();
+    }
+
+    /**
+     * @return How many bytes are waiting in this user's send queue
+     */
+    public long getQueuedBytes () {
+        return outbound.getBytes ();
+    }
+
+    /**
+     * @return How many of this user's chat and room messages were turned away for coming too fast
+     */
+    public long getThrottledChat () {
+        return chatLimit != null ? chatLimit.getThrottled () : 0;
+    }
+
+    /**
+     * @return How many of this user's whispers were turned away for coming too fast
+     */
+    public long getThrottledWhispers () {
+        return whisperLimit != null ? whisperLimit.getThrottled () : 0;
+    }
+
+    /**
+     * @return How many of this user's 'LIST_USERS' and 'STATS' were turned away for coming too fast
+     */
+    public long getThrottledLists () {
+        return listLimit != null ? listLimit.getThrottled () : 0;
+    }
+
+    /**
+     * @return The capabilities agreed with this client during the 'CONNECT' handshake
+     */
+    public Set<String> getCapabilities () {
+        return capabilities;
+    }
+
 
     @Override
     public void ParseUserCommand (String strIn) throws ParseException {
-        strIn = strIn.trim ();
-        String[] data = strIn.split (ChatterboxProtocol.SEPARATOR, 2);
+        byte[] line = strIn.getBytes (StandardCharsets.UTF_8);
+        CommandView command = new CommandView ();
+        command.ParseText (line, 0, line.length);
+        if (!command.IsTextSafe ()) {
+            throw new ParseException (strIn);
+        }
+        Dispatch (command);
+    }
 
+    /**
+     * Carries out a command from a connected user. The chat payload is handed on as the raw bytes it arrived as,
+     * without ever being decoded. A command that is unknown, or has too few fields, is answered with 'PARSE_ERROR'
+     *
+     * @param command The parsed command
+     */
+    protected void Dispatch (CommandView command) {
         try {
-            switch (data[0]) {
+            switch (command.getCommand ()) {
                 case ChatterboxProtocol.SEND_CHAT:
-                    server.broadcast (username, data[1]);
+                    RequireFields (command, 1);
+                    if (Throttled (chatLimit, command)) {
+                        break;
+                    }
+                    server.broadcast (username, command.FieldBytes (0));
                     break;
                 case ChatterboxProtocol.SEND_WHISPER:
-                    data = strIn.split (ChatterboxProtocol.SEPARATOR, 3);
-                    server.whisper (username, data[1], data[2]);
+                    RequireFields (command, 2);
+                    if (Throttled (whisperLimit, command)) {
+                        break;
+                    }
+                    server.whisper (username, command.Field (0), command.FieldBytes (1));
                     break;
                 case ChatterboxProtocol.LIST_USERS:
-                    server.getUserList (this);
+                    if (Throttled (listLimit, command)) {
+                        break;
+                    }
+                    server.getUserList (this, command.getFieldCount () > 0 ? ParseVersion (command.Field (0)) : -1);
                     break;
                 case ChatterboxProtocol.DISCONNECT:
                     server.disconnect (this);
                     break;
+                case ChatterboxProtocol.JOIN_ROOM:
+                    RequireFields (command, 1);
+                    server.joinRoom (this, command.Field (0));
+                    break;
+                case ChatterboxProtocol.PART_ROOM:
+                    RequireFields (command, 1);
+                    server.partRoom (this, command.Field (0));
+                    break;
+                case ChatterboxProtocol.SEND_ROOM:
+                    RequireFields (command, 2);
+                    if (Throttled (chatLimit, command)) {
+                        break;
+                    }
+                    server.roomBroadcast (username, command.Field (0), command.FieldBytes (1));
+                    break;
+                case ChatterboxProtocol.GET_HISTORY:
+                    server.getHistory (this, command.getFieldCount () > 0 ? command.Field (0) : null);
+                    break;
+                case ChatterboxProtocol.STATS:
+                    // Only admins learn that the command exists
+                    if (!server.IsAdmin (username)) {
+                        throw new ParseException (command.getCommand ());
+                    }
+                    // Costs about what a whole user list does, so counts against the same limit
+                    if (Throttled (listLimit, command)) {
+                        break;
+                    }
+                    server.getStats (this);
+                    break;
                 default:
-                    throw new ParseException (strIn);
+                    throw new ParseException (command.getCommand ());
             }
         } catch (UserNotInitializedException e) {
-            ParseServerCommand (ChatterboxProtocol.NON_INITIALIZED_ERROR);
+            Send (Frame.Of (ChatterboxProtocol.NON_INITIALIZED_ERROR));
         } catch (InvalidRecipientException e) {
-            ParseServerCommand (ChatterboxProtocol.TARGET_ERROR + ChatterboxProtocol.SEPARATOR + e.getMessage ());
+            Send (Frame.Of (ChatterboxProtocol.TARGET_ERROR, e.getMessage ()));
+        } catch (InvalidRoomException e) {
+            Send (Frame.Of (ChatterboxProtocol.ROOM_ERROR, command.Field (0)));
         } catch (ParseException e) {
-            //ParseServerCommand (ChatterboxProtocol.PARSE_ERROR);
+            Send (Frame.Of (ChatterboxProtocol.PARSE_ERROR));
+        }
+    }
+
+    /**
+     * @throws ParseException If 'command' has fewer than 'fields' fields
+     */
+    private static void RequireFields (CommandView command, int fields) throws ParseException {
+        if (command.getFieldCount () < fields) {
+            throw new ParseException (command.getCommand ());
+        }
+    }
+
+    /**
+     * Takes a token for 'command', checked before anything is asked of the server so a flood of it costs no
+     * fan-out. A command over the limit is not carried out; the first of them is answered with 'THROTTLED', and any
+     * more sent before the wait it gave is up are dropped without a reply, so a flood cannot turn into one
+     *
+     * @param limit The bucket for this kind of command, or 'null' if it is not limited
+     * @param command The command about to be carried out
+     * @return 'true' if the command must not be carried out
+     */
+    private boolean Throttled (TokenBucket limit, CommandView command) {
+        if (limit == null) {
+            return false;
+        }
+        long now = System.nanoTime ();
+        long wait = limit.Take (now);
+        if (wait == 0) {
+            return false;
         }
+        server.Throttled (this, command.getCommand ());
+        if (!limit.Notify (now, wait)) {
+            return true;
+        }
+        Send (Frame.Of (ChatterboxProtocol.THROTTLED, command.getCommand (),
+                String.valueOf ((wait + 999_999) / 1_000_000)));
+        return true;
+    }
 
+    /**
+     * @return The membership version a 'LIST_USERS' says the client has, or -1 if it is not a number
+     */
+    private static long ParseVersion (String field) {
+        try {
+            return Long.parseLong (field);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
+    /**
+     * Sends a single text protocol line to this user
+     *
+     * @param strIn The protocol line to send, without a terminator
+     * @throws ParseException Never thrown by the server-side transports
+     */
     @Override
     public void ParseServerCommand (String strIn) throws ParseException {
-        //System.out.println ("Sent '" + strIn + "' to user " + username);
-        clientWriter.println (strIn);
-        clientWriter.flush ();
+        Send (Frame.Of (strIn));
     }
 
-    private String NextClient () {
-        return nextLine (clientIn, clientReader);
+    /**
+     * Compresses 'frame' with the server's '--compress-threshold' if this connection agreed on 'deflate', and so
+     * decides the bytes it is written as. 'Enqueue' does this; a transport that writes frames some other way must
+     * call it first
+     *
+     * @param frame The frame about to be written to this connection
+     */
+    protected void Compress (Frame frame) {
+        if (encoding == Frame.Encoding.DEFLATE) {
+            frame.Compress (server.getConfig ().getCompressThreshold ());
+        }
     }
 
-    private String GetClientCommand () {
-        String lastLine = NextClient ();
-        if (!lastLine.isEmpty ()) {
-            clientInBuffer += lastLine;
-            if (lastLine.charAt (lastLine.length () - 1) == '\n') {
-                String temp = clientInBuffer;
-                clientInBuffer = "";
-                return temp;
-            }
+    /**
+     * Queues a frame on this connection's bounded send buffer, applying the overflow policy if it is full. If the
+     * policy says to disconnect, the buffer is replaced by a single 'FATAL_ERROR' and 'Overflowed' is called
+     *
+     * @param frame The frame to send
+     * @return 'true' if there is something new for the transport to write
+     */
+    protected boolean Enqueue (Frame frame) {
+        Compress (frame);
+        switch (outbound.Offer (frame, encoding)) {
+            case QUEUED:
+                return true;
+            case OVERFLOW:
+                server.SlowConsumerDisconnected (this);
+                outbound.Abort (Frame.Of (ChatterboxProtocol.FATAL_ERROR, "send buffer overflow"));
+                Overflowed ();
+                return true;
+            case DROPPED:
+            case CLOSED:
+            default:
+                return false;
         }
+    }
 
-        return "";
+    /**
+     * Called once, on whichever thread overflowed the send buffer, when this connection is to be closed for not
+     * keeping up. Must not block
+     */
+    protected void Overflowed () {
     }
+
+    /**
+     * Queues an already encoded frame for this user, to be written in the encoding negotiated at connect.
+     * Implementations must be safe to call from any thread, as 'ServerBase' calls this on behalf of other users'
+     * connections
+     *
+     * @param frame The frame to send
+     */
+    public abstract void Send (Frame frame);
 }
@@ -0,0 +1,437 @@
+package server;
+
+import common.ChatterboxProtocol;
+import common.CommandView;
+import common.Frame;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Links a 'ServerBase' to the other nodes of a cluster, so users connected to different nodes can talk. Each node
+ * holds only its own users; chat and 'USER_JOINED' / 'USER_LEFT' are relayed to every other node as the very frames
+ * sent to local users, and a whisper goes only to the node its recipient is on. Every node learns every other
+ * node's users, so user lists and whisper routing need no round trip.
+ *
+ * Usernames are unique across the cluster: each name is arbitrated by one node, picked by hashing the name over
+ * the nodes currently linked, and a user may only connect once that node has agreed. If nodes come and go while
+ * a connect is in flight two nodes may briefly disagree on who arbitrates a name, and a link that drops and comes
+ * back does not undo two users having taken the same name meanwhile.
+ *
+ * Nodes are configured statically ('--node', '--peers'); of each pair, the node with the smaller name dials the
+ * other, and keeps redialling while the link is down.
+ *
+ * Nodes trust each other completely, so the cluster port listens on loopback unless told otherwise
+ * ('--cluster-bind'), and given a '--cluster-secret' a link is only made once the other end has proved it knows the
+ * secret too ('NODE_AUTH'). The secret authenticates nodes but does not encrypt the link, so nodes on different
+ * hosts should still share a private network
+ */
+public class Cluster {
+
+    private static final long CLAIM_TIMEOUT_MILLIS = 2000;
+    private static final long REDIAL_MILLIS = 1000;
+    private static final int DIAL_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * How many times a connection's send buffer a link may have queued
+     */
+    private static final int LINK_BUFFER_FACTOR = 16;
+
+    private final String name;
+    private final ServerConfig config;
+    private final ServerBase server;
+    private final ServerSocket listener;
+    /**
+     * The HMAC key links authenticate with, or 'null' if they do not
+     */
+    private final SecretKeySpec secret;
+    private final SecureRandom random;
+
+    private final ConcurrentHashMap<String, PeerLink> links;
+    private final ConcurrentHashMap<String, String> remoteUsers;
+    private final ConcurrentHashMap<String, String> claims;
+    private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> pendingClaims;
+    private final AtomicLong nextClaim;
+
+    private volatile boolean closed;
+
+    /**
+     * Opens this node's cluster port; nothing is linked until 'Start'
+     *
+     * @throws IOException If the cluster port cannot be opened
+     */
+    Cluster (ServerConfig config, ServerBase server) throws IOException {
+        this.name = config.getNodeName ();
+        this.config = config;
+        this.server = server;
+        this.listener = new ServerSocket (config.getClusterPort (), 50,
+                InetAddress.getByName (config.getClusterBind ()));
+        this.secret = config.getClusterSecret () == null ? null :
+                new SecretKeySpec (config.getClusterSecret ().getBytes (StandardCharsets.UTF_8), "HmacSHA256");
+        this.random = new SecureRandom ();
+
+        this.links = new ConcurrentHashMap<> ();
+        this.remoteUsers = new ConcurrentHashMap<> ();
+        this.claims = new ConcurrentHashMap<> ();
+        this.pendingClaims = new ConcurrentHashMap<> ();
+        this.nextClaim = new AtomicLong ();
+        this.closed = false;
+    }
+
+    /**
+     * Starts accepting links from other nodes and dialling the ones this node is to link to
+     */
+    void Start () {
+        Thread acceptor = new Thread (this::Accept, "cluster-acceptor");
+        acceptor.setDaemon (true);
+        acceptor.start ();
+        Thread dialer = new Thread (this::Dial, "cluster-dialer");
+        dialer.setDaemon (true);
+        dialer.start ();
+        ServerLog.Info ("Node '" + name + "' listening for other nodes on " + config.getClusterBind () + ":" +
+                config.getClusterPort ());
+        if (secret == null) {
+            ServerLog.Warn ("Cluster: No '--cluster-secret' given, so anything that can reach the cluster port can " +
+                    "join as a node; do not expose it");
+        }
+    }
+
+    void Close () {
+        closed = true;
+        try {
+            listener.close ();
+        } catch (IOException e) {
+            //
+        }
+        for (PeerLink link : links.values ()) {
+            link.Close ();
+        }
+    }
+
+    public String getName () {
+        return name;
+    }
+
+    /**
+     * @return The names of the nodes currently linked to this one
+     */
+    public List<String> getLinkedNodes () {
+        return new ArrayList<> (links.keySet ());
+    }
+
+    //-------------------------------------------<Links>--------------------------------------------//
+
+    private void Accept () {
+        while (!closed) {
+            try {
+                Socket socket = listener.accept ();
+                NewLink (socket).Start (name);
+            } catch (IOException e) {
+                if (!closed) {
+                    ServerLog.Warn ("Cluster: Error in accepting a link from another node, carrying on");
+                }
+            }
+        }
+    }
+
+    private void Dial () {
+        while (!closed) {
+            for (ServerConfig.Peer peer : config.getPeers ()) {
+                if (peer.getName ().compareTo (name) <= 0 || links.containsKey (peer.getName ())) {
+                    continue;
+                }
+                Socket socket = new Socket ();
+                try {
+                    socket.connect (new InetSocketAddress (peer.getHost (), peer.getPort ()), DIAL_TIMEOUT_MILLIS);
+                    NewLink (socket).Start (name);
+                } catch (IOException e) {
+                    // Not up yet; try again next round
+                    try {
+                        socket.close ();
+                    } catch (IOException closing) {
+                        //
+                    }
+                }
+            }
+            try {
+                Thread.sleep (REDIAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return 'true' if links must prove they know the cluster secret before they are made
+     */
+    boolean IsSecured () {
+        return secret != null;
+    }
+
+    /**
+     * @return A fresh random challenge for a link's 'NODE_HELLO'
+     */
+    String Challenge () {
+        byte[] bytes = new byte[16];
+        random.nextBytes (bytes);
+        return Hex (bytes);
+    }
+
+    /**
+     * The proof a node sends in 'NODE_AUTH': an HMAC of the other node's challenge and its own name, keyed with the
+     * secret. As the name is part of it, a proof cannot be sent back to the node that asked for it
+     *
+     * @param challenge The challenge from the other node's 'NODE_HELLO'
+     * @param node The name of the node proving itself
+     * @return The proof, in hex
+     */
+    String Prove (String challenge, String node) {
+        try {
+            Mac mac = Mac.getInstance ("HmacSHA256");
+            mac.init (secret);
+            mac.update (challenge.getBytes (StandardCharsets.UTF_8));
+            mac.update ((byte) 0);
+            return Hex (mac.doFinal (node.getBytes (StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            // Every JVM has HmacSHA256
+            throw new IllegalStateException (e);
+        }
+    }
+
+    private static String Hex (byte[] bytes) {
+        StringBuilder hex = new StringBuilder (bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append (Character.forDigit ((b >> 4) & 0xF, 16)).append (Character.forDigit (b & 0xF, 16));
+        }
+        return hex.toString ();
+    }
+
+    private PeerLink NewLink (Socket socket) throws IOException {
+        SendQueue outbound = new SendQueue (config.getSendBufferBytes () * LINK_BUFFER_FACTOR,
+                ServerConfig.Overflow.DROP_OLDEST, server.DroppedFrameCounter (), server.getMetrics ());
+        return new PeerLink (socket, this, outbound);
+    }
+
+    /**
+     * Called by a link once the other node has said hello
+     *
+     * @return 'false' if that node is already linked, in which case this link should be closed
+     */
+    boolean Linked (PeerLink link) {
+        if (!server.LinkPeer (link)) {
+            return false;
+        }
+        ServerLog.Info ("Linked to node '" + link.getNode () + "'");
+        return true;
+    }
+
+    /**
+     * Called by 'ServerBase.LinkPeer' under its membership lock
+     *
+     * @return 'false' if the link's node is already linked
+     */
+    boolean Add (PeerLink link) {
+        return links.putIfAbsent (link.getNode (), link) == null;
+    }
+
+    /**
+     * Called by a link once it has closed. Everyone on the other node is treated as having left
+     */
+    void Unlinked (PeerLink link) {
+        String node = link.getNode ();
+        if (node == null || !links.remove (node, link)) {
+            return;
+        }
+        ServerLog.Info ("Lost the link to node '" + node + "'");
+
+        claims.values ().removeIf (node::equals);
+        for (Map.Entry<String, String> user : remoteUsers.entrySet ()) {
+            if (user.getValue ().equals (node) && remoteUsers.remove (user.getKey (), node)) {
+                server.RemoteLeft (user.getKey ());
+            }
+        }
+    }
+
+    /**
+     * Handles one frame from another node
+     *
+     * @param link The link it came in on
+     * @param command The frame; only valid for the duration of this call
+     */
+    void Receive (PeerLink link, CommandView command) {
+        String node = link.getNode ();
+        String type = command.getCommand ();
+        if (!command.IsTextSafe ()) {
+            ServerLog.Warn ("Cluster: Dropped a '" + type + "' from node '" + node + "' that could not be sent as " +
+                    "text");
+            return;
+        }
+
+        if (type.equals (ChatterboxProtocol.CHAT_RECEIVED)) {
+            server.RemoteChat (Frame.Of (command));
+        } else if (type.equals (ChatterboxProtocol.USER_JOINED)) {
+            Joined (command.Field (0), node);
+        } else if (type.equals (ChatterboxProtocol.NODE_USERS)) {
+            for (int i = 0; i < command.getFieldCount (); i++) {
+                Joined (command.Field (i), node);
+            }
+        } else if (type.equals (ChatterboxProtocol.USER_LEFT)) {
+            String username = command.Field (0);
+            claims.remove (username, node);
+            if (remoteUsers.remove (username, node)) {
+                server.RemoteLeft (username);
+            }
+        } else if (type.equals (ChatterboxProtocol.NODE_WHISPER)) {
+            server.RemoteWhisper (command.Field (0), Frame.OfBytes (ChatterboxProtocol.WHISPER_RECEIVED,
+                    command.FieldBytes (1), command.FieldBytes (2)));
+        } else if (type.equals (ChatterboxProtocol.NODE_CLAIM)) {
+            boolean granted = Arbitrate (command.Field (1), node);
+            link.Send (Frame.Of (ChatterboxProtocol.NODE_CLAIMED, command.Field (0), granted ? "ok" : "taken"));
+        } else if (type.equals (ChatterboxProtocol.NODE_CLAIMED)) {
+            CompletableFuture<Boolean> answer = pendingClaims.get (Long.parseLong (command.Field (0)));
+            if (answer != null) {
+                answer.complete ("ok".equals (command.Field (1)));
+            }
+        }
+    }
+
+    private void Joined (String username, String node) {
+        if (remoteUsers.putIfAbsent (username, node) == null) {
+            server.RemoteJoined (username);
+        }
+    }
+
+    //-------------------------------------------<Users>--------------------------------------------//
+
+    /**
+     * @return The node that arbitrates 'username', out of this node and those linked to it
+     */
+    private String Arbiter (String username) {
+        List<String> nodes = new ArrayList<> (links.keySet ());
+        nodes.add (name);
+        Collections.sort (nodes);
+        return nodes.get (Math.floorMod (username.hashCode (), nodes.size ()));
+    }
+
+    /**
+     * Decides a claim on a name this node arbitrates
+     *
+     * @param username The name claimed
+     * @param node The node asking
+     * @return 'true' if 'node' may have the name
+     */
+    private boolean Arbitrate (String username, String node) {
+        if (remoteUsers.containsKey (username) || (!node.equals (name) && server.HasUser (username))) {
+            return false;
+        }
+        String holder = claims.putIfAbsent (username, node);
+        return holder == null || holder.equals (node);
+    }
+
+    /**
+     * Asks the cluster for a name for a user connecting to this node. Never waits: if another node arbitrates the
+     * name the answer completes on that link's reader thread, or on the timeout's
+     *
+     * @param username The name wanted
+     * @return 'true' if the name is free cluster-wide and now held for this node; 'false' if it is taken, or the
+     * arbitrating node did not answer within 'CLAIM_TIMEOUT_MILLIS'
+     */
+    CompletableFuture<Boolean> Claim (String username) {
+        String arbiter = Arbiter (username);
+        PeerLink link = links.get (arbiter);
+        if (arbiter.equals (name) || link == null) {
+            return CompletableFuture.completedFuture (Arbitrate (username, name));
+        }
+
+        long id = nextClaim.incrementAndGet ();
+        CompletableFuture<Boolean> answer = new CompletableFuture<> ();
+        pendingClaims.put (id, answer);
+        answer.whenComplete ((granted, e) -> pendingClaims.remove (id));
+        link.Send (Frame.Of (ChatterboxProtocol.NODE_CLAIM, String.valueOf (id), username));
+        return answer.completeOnTimeout (false, CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gives up a claimed name that ended up not being used
+     *
+     * @param username The name
+     */
+    void Release (String username) {
+        String arbiter = Arbiter (username);
+        claims.remove (username, name);
+        PeerLink link = links.get (arbiter);
+        if (!arbiter.equals (name) && link != null) {
+            // Tells the arbiter to drop the claim; nobody there knew the user, so nobody is told they left
+            link.Send (Frame.Of (ChatterboxProtocol.USER_LEFT, username));
+        }
+    }
+
+    /**
+     * Tells every other node a user of this node has left, which also frees their name
+     *
+     * @param username The user
+     * @param left The 'USER_LEFT' sent to local users
+     */
+    void Left (String username, Frame left) {
+        claims.remove (username, name);
+        Relay (left);
+    }
+
+    /**
+     * Sends a frame to every other node
+     *
+     * @param frame A 'CHAT_RECEIVED', 'USER_JOINED' or 'USER_LEFT' from this node
+     */
+    void Relay (Frame frame) {
+        for (PeerLink link : links.values ()) {
+            link.Send (frame);
+        }
+    }
+
+    /**
+     * Passes a whisper on to the node its recipient is connected to
+     *
+     * @return 'false' if no other node has a user by that name
+     */
+    boolean Whisper (String recipient, byte[] sender, byte[] message) {
+        String node = remoteUsers.get (recipient);
+        PeerLink link = node == null ? null : links.get (node);
+        if (link == null) {
+            return false;
+        }
+        link.Send (Frame.OfBytes (ChatterboxProtocol.NODE_WHISPER, recipient.getBytes (StandardCharsets.UTF_8),
+                sender, message));
+        return true;
+    }
+
+    /**
+     * @param local This node's users
+     * @return The 'USERS' reply for the whole cluster
+     */
+    Frame UserList (ClientConnection[] local) {
+        List<byte[]> names = new ArrayList<> ();
+        for (ClientConnection client : local) {
+            names.add (client.getUsernameBytes ());
+        }
+        for (String username : remoteUsers.keySet ()) {
+            names.add (username.getBytes (StandardCharsets.UTF_8));
+        }
+        return Frame.OfBytes (ChatterboxProtocol.USERS, names.toArray (new byte[0][]));
+    }
+}
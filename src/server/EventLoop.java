@@ -0,0 +1,254 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread. Owns a share of the server's 'ChannelConnection's and performs every read and write
+ * for them. New channels and flush requests from other threads are handed over through queues and picked up the
+ * next time the selector wakes
+ */
+public class EventLoop implements Runnable {
+
+    private final Selector selector;
+    private final ServerBase server;
+
+    private final Queue<SocketChannel> toRegister;
+    private final Queue<ChannelConnection> toFlush;
+    private final Queue<ChannelConnection> claimed;
+    private final ArrayDeque<ChannelConnection> deferred;
+    private final ArrayDeque<ChannelConnection> handshaking;
+    private final long handshakeNanos;
+    private volatile boolean closed;
+
+    public EventLoop (ServerBase server) throws IOException {
+        this.selector = Selector.open ();
+        this.server = server;
+
+        toRegister = new ConcurrentLinkedQueue<> ();
+        toFlush = new ConcurrentLinkedQueue<> ();
+        claimed = new ConcurrentLinkedQueue<> ();
+        deferred = new ArrayDeque<> ();
+        handshaking = new ArrayDeque<> ();
+        handshakeNanos = server.getConfig ().getHandshakeTimeoutMillis () * 1_000_000;
+    }
+
+    /**
+     * Hands a freshly accepted channel to this loop, along with the handshake slot its acceptor took. Safe to
+     * call from any thread
+     *
+     * @param channel The accepted channel
+     */
+    public void Register (SocketChannel channel) {
+        toRegister.add (channel);
+        selector.wakeup ();
+    }
+
+    /**
+     * Asks this loop to write out a connection's queued output. Safe to call from any thread
+     *
+     * @param connection The connection with pending output
+     */
+    void ScheduleFlush (ChannelConnection connection) {
+        toFlush.add (connection);
+        selector.wakeup ();
+    }
+
+    /**
+     * Asks this loop to finish connecting a user whose name another node has just decided on. Safe to call from any
+     * thread
+     *
+     * @param connection The connection that was waiting on 'ClientConnection.getPendingClaim'
+     */
+    void ScheduleClaimed (ChannelConnection connection) {
+        claimed.add (connection);
+        selector.wakeup ();
+    }
+
+    /**
+     * Puts off a connection's flush until its 'getFlushDeadline'. Loop thread only; every connection on a loop
+     * defers by the same amount, so deadlines come due in the order they were set
+     *
+     * @param connection The connection whose flush is put off
+     */
+    void Defer (ChannelConnection connection) {
+        deferred.add (connection);
+    }
+
+    /**
+     * Stops this loop, which closes every connection it owns on the way out. Safe to call from any thread
+     */
+    void Close () {
+        closed = true;
+        selector.wakeup ();
+    }
+
+    @Override
+    public void run () {
+        while (!closed) {
+            try {
+                ChannelConnection first = deferred.peek ();
+                ChannelConnection joining = handshaking.peek ();
+                if (first == null && joining == null) {
+                    selector.select ();
+                } else {
+                    // The selector only times out in whole milliseconds, so sub-millisecond delays round up to one
+                    long remaining = NextDeadline (first, joining) - System.nanoTime ();
+                    if (remaining > 0) {
+                        selector.select (Math.max (1, (remaining + 999_999) / 1_000_000));
+                    } else {
+                        selector.selectNow ();
+                    }
+                }
+                RegisterPending ();
+                ClaimedPending ();
+                FlushPending ();
+                FlushDue ();
+                ExpireHandshakes ();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys ().iterator ();
+                while (keys.hasNext ()) {
+                    SelectionKey key = keys.next ();
+                    keys.remove ();
+                    HandleKey (key);
+                }
+            } catch (IOException e) {
+                ServerLog.Warn ("EventLoop: Error in selector, carrying on regardless");
+            }
+        }
+
+        for (SelectionKey key : new ArrayList<> (selector.keys ())) {
+            ((ChannelConnection) key.attachment ()).Close ();
+        }
+        SocketChannel channel;
+        while ((channel = toRegister.poll ()) != null) {
+            server.HandshakeEnded ();
+            try {
+                channel.close ();
+            } catch (IOException e) {
+                //
+            }
+        }
+        try {
+            selector.close ();
+        } catch (IOException e) {
+            //
+        }
+    }
+
+    private void RegisterPending () {
+        SocketChannel channel;
+        while ((channel = toRegister.poll ()) != null) {
+            try {
+                channel.configureBlocking (false);
+                ChannelConnection connection = new ChannelConnection (channel, this, server);
+                connection.setKey (channel.register (selector, SelectionKey.OP_READ, connection));
+                connection.HoldHandshakeSlot ();
+                if (handshakeNanos > 0) {
+                    connection.setHandshakeDeadline (System.nanoTime () + handshakeNanos);
+                    handshaking.add (connection);
+                }
+            } catch (IOException e) {
+                ServerLog.Warn ("EventLoop: Error in registering a connection, dropped connection");
+                server.HandshakeEnded ();
+                try {
+                    channel.close ();
+                } catch (IOException e1) {
+                    //
+                }
+            }
+        }
+    }
+
+    private void ClaimedPending () {
+        ChannelConnection connection;
+        while ((connection = claimed.poll ()) != null) {
+            if (connection.getChannel ().isOpen ()) {
+                try {
+                    connection.OnClaimed ();
+                } catch (IOException | CancelledKeyException e) {
+                    connection.Close ();
+                }
+            }
+        }
+    }
+
+    private void FlushPending () {
+        ChannelConnection connection;
+        while ((connection = toFlush.poll ()) != null) {
+            if (connection.getChannel ().isOpen ()) {
+                try {
+                    connection.OnFlush (connection.isFlushUrgent ());
+                } catch (IOException | CancelledKeyException e) {
+                    connection.Close ();
+                }
+            }
+        }
+    }
+
+    private void FlushDue () {
+        long now = System.nanoTime ();
+        ChannelConnection connection;
+        while ((connection = deferred.peek ()) != null && connection.getFlushDeadline () - now <= 0) {
+            deferred.poll ();
+            if (connection.getChannel ().isOpen ()) {
+                try {
+                    connection.OnDeferredFlush ();
+                } catch (IOException | CancelledKeyException e) {
+                    connection.Close ();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The earlier of a deferred flush and a handshake deadline, either of which may be 'null'
+     */
+    private static long NextDeadline (ChannelConnection first, ChannelConnection joining) {
+        if (joining == null) {
+            return first.getFlushDeadline ();
+        }
+        if (first == null || joining.getHandshakeDeadline () - first.getFlushDeadline () < 0) {
+            return joining.getHandshakeDeadline ();
+        }
+        return first.getFlushDeadline ();
+    }
+
+    /**
+     * Closes connections that have had '--handshake-timeout' to send a username and not done so. Every connection
+     * on a loop gets the same timeout, so deadlines come due in the order connections were registered
+     */
+    private void ExpireHandshakes () {
+        long now = System.nanoTime ();
+        ChannelConnection connection;
+        while ((connection = handshaking.peek ()) != null && connection.getHandshakeDeadline () - now <= 0) {
+            handshaking.poll ();
+            if (connection.getChannel ().isOpen () && connection.isHandshaking ()) {
+                ServerLog.Debug ("EventLoop: Closed a connection that never sent a username");
+                connection.Close ();
+            }
+        }
+    }
+
+    private void HandleKey (SelectionKey key) {
+        ChannelConnection connection = (ChannelConnection) key.attachment ();
+        try {
+            if (key.isValid () && key.isReadable ()) {
+                connection.OnReadable ();
+            }
+            if (key.isValid () && key.isWritable ()) {
+                connection.OnFlush (true);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            connection.Close ();
+        }
+    }
+}
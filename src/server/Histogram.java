@@ -0,0 +1,98 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram in the style of HdrHistogram: values are counted in log-linear buckets, eight to
+ * every power of two, so any recorded value is known to within 12.5% whatever its size. Recording is one bucket
+ * index calculation and one atomic increment, with nothing allocated; reading walks every bucket, so is left to
+ * whoever asks for a report
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+
+    public Histogram () {
+        counts = new AtomicLongArray (BUCKETS);
+    }
+
+    /**
+     * @param value The value to count; negative values count as 0
+     */
+    public void Record (long value) {
+        counts.getAndIncrement (Index (Math.max (0, value)));
+    }
+
+    private static int Index (long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros (value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + ((int) (value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return The smallest value that falls in bucket 'index'
+     */
+    private static long LowestValue (int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * @return The largest value that falls in bucket 'index'
+     */
+    private static long HighestValue (int index) {
+        return index == BUCKETS - 1 ? Long.MAX_VALUE : LowestValue (index + 1) - 1;
+    }
+
+    /**
+     * @return How many values have been recorded
+     */
+    public long Count () {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get (i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return The value at that percentile, rounded up to the top of its bucket, or 0 if nothing was recorded
+     */
+    public long Percentile (double percentile) {
+        long count = Count ();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max (1, (long) Math.ceil (count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get (i);
+            if (seen >= rank) {
+                return HighestValue (i);
+            }
+        }
+        return Max ();
+    }
+
+    /**
+     * @return The largest value recorded, rounded up to the top of its bucket, or 0 if nothing was recorded
+     */
+    public long Max () {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get (i) > 0) {
+                return HighestValue (i);
+            }
+        }
+        return 0;
+    }
+}
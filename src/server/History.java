@@ -0,0 +1,95 @@
+package server;
+
+import common.Frame;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The most recent chat frames said somewhere, kept so they can be replayed to whoever joins. A fixed ring of slots
+ * allocated up front: recording a frame claims the next sequence number and stores a reference to the frame, with
+ * no lock and no allocation, so it costs 'broadcast' next to nothing. The frames are the very ones that went out
+ * live, so a replay is written from their already encoded bytes.
+ *
+ * The ring holds at most 'capacity' frames; 'Recent' also stops at 'maxBytes' of payload, newest first
+ */
+class History {
+
+    private final int capacity;
+    private final long maxBytes;
+
+    private final AtomicReferenceArray<Frame> frames;
+    private final AtomicLongArray sequences;
+    private final AtomicLong next;
+
+    /**
+     * @param capacity The most frames kept; 0 keeps none
+     * @param maxBytes The most payload bytes 'Recent' hands back
+     */
+    History (int capacity, long maxBytes) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+
+        frames = new AtomicReferenceArray<> (capacity);
+        sequences = new AtomicLongArray (capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set (i, -1);
+        }
+        next = new AtomicLong ();
+    }
+
+    /**
+     * @param frame The chat frame to record, overwriting the oldest if the ring is full
+     */
+    void Add (Frame frame) {
+        if (capacity == 0) {
+            return;
+        }
+        long sequence = next.getAndIncrement ();
+        int slot = (int) (sequence % capacity);
+
+        // Readers check the slot's sequence on both sides of reading the frame, so mark it as in flux first
+        sequences.set (slot, -1);
+        frames.set (slot, frame);
+        sequences.set (slot, sequence);
+    }
+
+    /**
+     * @param count The most frames wanted
+     * @return Up to 'count' of the newest frames, oldest first, within 'maxBytes'. A frame still being recorded by
+     * another thread is left out
+     */
+    Frame[] Recent (int count) {
+        int wanted = Math.min (count, capacity);
+        Frame[] newestFirst = new Frame[Math.max (0, wanted)];
+        int found = 0;
+        long bytes = 0;
+
+        long newest = next.get () - 1;
+        for (long sequence = newest; sequence >= 0 && sequence > newest - capacity && found < wanted; sequence--) {
+            int slot = (int) (sequence % capacity);
+            long before = sequences.get (slot);
+            if (before > sequence) {
+                // Lapped by writers while we were reading; everything older is gone too
+                break;
+            }
+            Frame frame = frames.get (slot);
+            if (before != sequence || sequences.get (slot) != sequence) {
+                continue;
+            }
+
+            bytes += frame.PayloadLength ();
+            if (bytes > maxBytes) {
+                break;
+            }
+            newestFirst[found++] = frame;
+        }
+
+        Frame[] recent = new Frame[found];
+        for (int i = 0; i < found; i++) {
+            recent[i] = newestFirst[found - 1 - i];
+        }
+        return recent;
+    }
+}
@@ -0,0 +1,130 @@
+package server;
+
+import common.BinaryCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hot-path timings for every protocol command, kept in lock-free 'Histogram's indexed by opcode:
+ *
+ * 'parse' - turning the received bytes into a 'CommandView'
+ * 'lock' - waiting for 'ServerBase's membership lock or a room's lock (only the commands that take one)
+ * 'fanout' - carrying the command out, which for chat is handing the frame to every recipient's queue
+ *
+ * plus one histogram, 'delivery', of how long frames wait between being queued and being written to the socket.
+ * All times are in nanoseconds.
+ *
+ * Every command is counted, but reading the clock costs more than the rest of the bookkeeping put together, so
+ * each connection only times one in 'ServerConfig.getMetricsSample' of its commands and queue fills. The
+ * histograms hold those samples, which is plenty for percentiles at any real message rate
+ */
+public class Metrics {
+
+    private final int sampleMask;
+    private final LongAdder[] commands;
+    private final Histogram[] parse;
+    private final Histogram[] lockWait;
+    private final Histogram[] fanOut;
+    private final Histogram delivery;
+
+    /**
+     * @param sample Time one in this many events, rounded up to a power of two; 0 for none
+     */
+    Metrics (int sample) {
+        this.sampleMask = sample > 0 ? Integer.highestOneBit (sample * 2 - 1) - 1 : -1;
+
+        int opcodes = BinaryCodec.MaxOpcode () + 1;
+        commands = new LongAdder[opcodes];
+        parse = new Histogram[opcodes];
+        lockWait = new Histogram[opcodes];
+        fanOut = new Histogram[opcodes];
+        for (int opcode = 0; opcode < opcodes; opcode++) {
+            commands[opcode] = new LongAdder ();
+            parse[opcode] = new Histogram ();
+            lockWait[opcode] = new Histogram ();
+            fanOut[opcode] = new Histogram ();
+        }
+        delivery = new Histogram ();
+    }
+
+    /**
+     * @param sequence A per-connection count of the events being sampled
+     * @return 'true' if event number 'sequence' should be timed
+     */
+    boolean Sample (int sequence) {
+        return sampleMask >= 0 && (sequence & sampleMask) == 0;
+    }
+
+    /**
+     * Counts a command that was not timed
+     *
+     * @param opcode The command's opcode, or 0 if it was not recognised
+     */
+    void Command (int opcode) {
+        commands[opcode].increment ();
+    }
+
+    /**
+     * Counts a command and records its timings
+     *
+     * @param opcode The command's opcode, or 0 if it was not recognised
+     * @param received When parsing started
+     * @param parsed When parsing finished and handling started
+     * @param handled When handling finished
+     */
+    void Command (int opcode, long received, long parsed, long handled) {
+        commands[opcode].increment ();
+        parse[opcode].Record (parsed - received);
+        fanOut[opcode].Record (handled - parsed);
+    }
+
+    /**
+     * @param opcode The command that waited
+     * @param nanos How long it waited for the lock
+     */
+    void LockWait (int opcode, long nanos) {
+        lockWait[opcode].Record (nanos);
+    }
+
+    /**
+     * @param nanos How long the oldest frame in a write had been queued when the write completed
+     */
+    void Delivered (long nanos) {
+        delivery.Record (nanos);
+    }
+
+    /**
+     * @return One 'commands.command=count' line per command seen, then one line per non-empty histogram, of the
+     * form 'name.command=samples,p50,p99,p999,max'
+     */
+    public List<String> Report () {
+        List<String> lines = new ArrayList<> ();
+        for (int opcode = 0; opcode < commands.length; opcode++) {
+            long count = commands[opcode].sum ();
+            if (count > 0) {
+                lines.add ("commands." + Name (opcode) + "=" + count);
+            }
+        }
+        for (int opcode = 0; opcode < commands.length; opcode++) {
+            Report (lines, "parse." + Name (opcode), parse[opcode]);
+            Report (lines, "lock." + Name (opcode), lockWait[opcode]);
+            Report (lines, "fanout." + Name (opcode), fanOut[opcode]);
+        }
+        Report (lines, "delivery", delivery);
+        return lines;
+    }
+
+    private static String Name (int opcode) {
+        return opcode == 0 ? "unknown" : BinaryCodec.Command (opcode);
+    }
+
+    private static void Report (List<String> lines, String name, Histogram histogram) {
+        long count = histogram.Count ();
+        if (count > 0) {
+            lines.add (name + "=" + count + "," + histogram.Percentile (50) + "," + histogram.Percentile (99) + "," +
+                    histogram.Percentile (99.9) + "," + histogram.Max ());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded lock-free queue for many producers and a single consumer, linked the way Dmitry Vyukov's
+ * intrusive MPSC queue is: a producer swaps itself in as the tail with one 'getAndSet' and then links the old tail
+ * to it, so producers never retry and never wait on each other. Only the one consuming thread may 'Poll'.
+ *
+ * Between a producer's swap and its link the queue can look empty to the consumer even though something was
+ * offered; a consumer that goes to sleep on an empty queue has to be woken by the producer after 'Offer' returns
+ */
+class MpscQueue<T> {
+
+    private static final class Node<T> {
+        T value;
+        volatile Node<T> next;
+
+        Node (T value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReference<Node<T>> tail;
+    private Node<T> head;
+
+    MpscQueue () {
+        head = new Node<> (null);
+        tail = new AtomicReference<> (head);
+    }
+
+    /**
+     * Safe to call from any thread
+     *
+     * @param value The value to add; never 'null'
+     */
+    void Offer (T value) {
+        Node<T> node = new Node<> (value);
+        tail.getAndSet (node).next = node;
+    }
+
+    /**
+     * Only the consumer may call this
+     *
+     * @return The oldest value, or 'null' if there is none (or the next one is still being linked in)
+     */
+    T Poll () {
+        Node<T> next = head.next;
+        if (next == null) {
+            return null;
+        }
+        T value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+}
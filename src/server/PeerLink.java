@@ -0,0 +1,170 @@
+package server;
+
+import common.ChatterboxProtocol;
+import common.CommandView;
+import common.Exceptions.ParseException;
+import common.Frame;
+import common.MessageReader;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * One end of a link between two nodes of a 'Cluster', always in the v2 framing. Like a 'SocketConnection', frames
+ * for the other node are queued and written by the link's own writer thread, so relaying chat never waits on the
+ * network; a reader thread hands everything the other node sends to the 'Cluster'. The first frame each way is a
+ * 'NODE_HELLO' naming the sender, followed when the cluster has a secret by the 'NODE_AUTH' answering the other's
+ */
+class PeerLink {
+
+    /**
+     * How long the other node has to say hello (and authenticate) before the link is given up on
+     */
+    private static final int HELLO_TIMEOUT_MILLIS = 5000;
+
+    private final Socket socket;
+    private final Cluster cluster;
+    private final SendQueue outbound;
+    private final MessageReader reader;
+    private final OutputStream writer;
+
+    private volatile String node;
+    private String self;
+    private String challenge;
+
+    PeerLink (Socket socket, Cluster cluster, SendQueue outbound) throws IOException {
+        this.socket = socket;
+        this.cluster = cluster;
+        this.outbound = outbound;
+        this.reader = new MessageReader (socket.getInputStream ());
+        this.writer = new BufferedOutputStream (socket.getOutputStream ());
+        reader.SwitchToBinary ();
+        socket.setTcpNoDelay (true);
+    }
+
+    /**
+     * Says hello and starts the link's reader and writer threads
+     *
+     * @param self This node's name
+     */
+    void Start (String self) {
+        this.self = self;
+        this.challenge = cluster.Challenge ();
+        Send (Frame.Of (ChatterboxProtocol.NODE_HELLO, self, challenge));
+
+        Thread readerThread = new Thread (this::Read, "cluster-link-reader");
+        readerThread.setDaemon (true);
+        readerThread.start ();
+        Thread writerThread = new Thread (this::Write, "cluster-link-writer");
+        writerThread.setDaemon (true);
+        writerThread.start ();
+    }
+
+    /**
+     * @return The other node's name, or 'null' until its 'NODE_HELLO' has arrived
+     */
+    String getNode () {
+        return node;
+    }
+
+    /**
+     * Queues a frame for the other node. Safe to call from any thread. A link too far behind to take even control
+     * frames is closed, and the other node is treated as gone
+     *
+     * @param frame The frame to send
+     */
+    void Send (Frame frame) {
+        if (outbound.Offer (frame, Frame.Encoding.BINARY) == SendQueue.Result.OVERFLOW) {
+            ServerLog.Warn ("Link to node '" + node + "' is not keeping up; closing it");
+            Close ();
+        }
+    }
+
+    private void Read () {
+        try {
+            CommandView command = new CommandView ();
+            socket.setSoTimeout (HELLO_TIMEOUT_MILLIS);
+            if (!reader.ReadInto (command) || !ChatterboxProtocol.NODE_HELLO.equals (command.getCommand ()) ||
+                    command.getFieldCount () < 1) {
+                Close ();
+                return;
+            }
+            String claimed = command.Field (0);
+            if (cluster.IsSecured () && !Authenticate (command, claimed)) {
+                ServerLog.Warn ("Cluster: A link from " + socket.getRemoteSocketAddress () + " claiming to be node '" +
+                        claimed + "' did not prove it knows the cluster secret; closing it");
+                Close ();
+                return;
+            }
+            socket.setSoTimeout (0);
+            node = claimed;
+            if (!cluster.Linked (this)) {
+                Close ();
+                return;
+            }
+
+            while (reader.ReadInto (command)) {
+                cluster.Receive (this, command);
+            }
+        } catch (IOException | ParseException | RuntimeException e) {
+            // The other node went away, or sent something we cannot frame
+        }
+
+        Close ();
+        cluster.Unlinked (this);
+    }
+
+    /**
+     * Answers the other node's challenge, then checks its answer to ours
+     *
+     * @param command The other node's 'NODE_HELLO'; reused to read its 'NODE_AUTH'
+     * @param claimed The name it gave
+     * @return 'true' if it knows the secret
+     */
+    private boolean Authenticate (CommandView command, String claimed) throws IOException, ParseException {
+        if (command.getFieldCount () < 2 || claimed.equals (self)) {
+            return false;
+        }
+        Send (Frame.Of (ChatterboxProtocol.NODE_AUTH, cluster.Prove (command.Field (1), self)));
+        if (!reader.ReadInto (command) || !ChatterboxProtocol.NODE_AUTH.equals (command.getCommand ()) ||
+                command.getFieldCount () < 1) {
+            return false;
+        }
+        return MessageDigest.isEqual (command.FieldBytes (0),
+                cluster.Prove (challenge, claimed).getBytes (StandardCharsets.UTF_8));
+    }
+
+    private void Write () {
+        try {
+            Frame next = outbound.Take ();
+            while (next != null) {
+                next.WriteTo (writer, Frame.Encoding.BINARY);
+                next = outbound.Poll ();
+                if (next == null) {
+                    writer.flush ();
+                    next = outbound.Take ();
+                }
+            }
+            writer.flush ();
+        } catch (InterruptedException | IOException e) {
+            //
+        }
+        Close ();
+    }
+
+    /**
+     * Closes the link; its reader then tells the 'Cluster' the other node is gone
+     */
+    void Close () {
+        outbound.Close ();
+        try {
+            socket.close ();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
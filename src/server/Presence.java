@@ -0,0 +1,230 @@
+package server;
+
+import common.ChatterboxProtocol;
+import common.Frame;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tells connected users who has come and gone. Joins and leaves are collected for '--presence-millis' and sent
+ * together by a background thread, so a storm of N reconnects costs each user one frame per tick rather than N.
+ * A user who left and came back (or came and went) within one tick is not mentioned at all. Each user is told in
+ * the form they agreed on at connect: one 'PRESENCE' frame for 'CAPABILITY_PRESENCE_BATCH', nothing for
+ * 'CAPABILITY_NO_PRESENCE', and a 'USER_JOINED' or 'USER_LEFT' per user for everybody else. Users who agreed on
+ * 'CAPABILITY_USER_IDS' get the registry's 'USER_DELTA' since the one they were last sent instead, so they can keep
+ * their table up to date.
+ *
+ * With a tick of 0 nothing is collected, and each event goes out on the caller's thread as it happens
+ */
+class Presence {
+
+    private final UserRegistry users;
+    private final long tickNanos;
+    private final ReentrantLock lock;
+    private final ReentrantLock deltas;
+    private final LongAdder events;
+    private final LongAdder cancelled;
+    private final Thread ticker;
+
+    /**
+     * Who joined ('true') or left ('false') since the last tick, in order
+     */
+    private LinkedHashMap<String, Boolean> pending;
+    /**
+     * The membership version the last 'USER_DELTA' went up to; guarded by 'deltas'
+     */
+    private long announced;
+    private volatile boolean closed;
+
+    /**
+     * @param users The users to tell
+     * @param tickMillis How long to collect events for; 0 sends each at once
+     */
+    Presence (UserRegistry users, long tickMillis) {
+        this.users = users;
+        this.tickNanos = tickMillis * 1_000_000;
+        this.lock = new ReentrantLock ();
+        this.deltas = new ReentrantLock ();
+        this.announced = users.Version ();
+        this.events = new LongAdder ();
+        this.cancelled = new LongAdder ();
+        this.pending = new LinkedHashMap<> ();
+        if (tickNanos > 0) {
+            ticker = new Thread (this::Run, "presence");
+            ticker.setDaemon (true);
+            ticker.start ();
+        } else {
+            ticker = null;
+        }
+    }
+
+    /**
+     * Sends whatever is still pending and stops the tick thread
+     */
+    void Close () {
+        closed = true;
+        if (ticker != null) {
+            LockSupport.unpark (ticker);
+        }
+        Flush ();
+    }
+
+    /**
+     * @return How many joins and leaves have been recorded since startup
+     */
+    long getEvents () {
+        return events.sum ();
+    }
+
+    /**
+     * @return How many of them cancelled out within a tick, and so were never sent
+     */
+    long getCancelled () {
+        return cancelled.sum ();
+    }
+
+    void Joined (String username) {
+        Record (username, true);
+    }
+
+    void Left (String username) {
+        Record (username, false);
+    }
+
+    private void Record (String username, boolean joined) {
+        events.increment ();
+        if (ticker == null) {
+            Map<String, Boolean> one = new LinkedHashMap<> ();
+            one.put (username, joined);
+            Publish (one);
+            return;
+        }
+
+        lock.lock ();
+        try {
+            Boolean earlier = pending.get (username);
+            if (earlier != null && earlier != joined) {
+                pending.remove (username);
+                cancelled.add (2);
+            } else {
+                pending.put (username, joined);
+            }
+        } finally {
+            lock.unlock ();
+        }
+    }
+
+    private void Run () {
+        while (!closed) {
+            LockSupport.parkNanos (this, tickNanos);
+            Flush ();
+        }
+    }
+
+    private void Flush () {
+        Map<String, Boolean> due;
+        lock.lock ();
+        try {
+            if (pending.isEmpty ()) {
+                return;
+            }
+            due = pending;
+            pending = new LinkedHashMap<> ();
+        } finally {
+            lock.unlock ();
+        }
+
+        try {
+            Publish (due);
+        } catch (RuntimeException e) {
+            ServerLog.Warn ("Presence: Could not tell users about " + due.size () + " joins and leaves: " + e);
+        }
+    }
+
+    /**
+     * Sends one tick's worth of events to every current user, in whichever form they asked for
+     */
+    private void Publish (Map<String, Boolean> due) {
+        String[] names = new String[due.size ()];
+        Frame[] single = new Frame[due.size ()];
+        String[] fields = new String[due.size () + 1];
+        int joined = 0;
+        int left = due.size ();
+        int i = 0;
+        for (Map.Entry<String, Boolean> event : due.entrySet ()) {
+            names[i] = event.getKey ();
+            if (event.getValue ()) {
+                single[i] = Frame.Of (ChatterboxProtocol.USER_JOINED, names[i]);
+                fields[++joined] = names[i];
+            } else {
+                single[i] = Frame.Of (ChatterboxProtocol.USER_LEFT, names[i]);
+                fields[left--] = names[i];
+            }
+            i++;
+        }
+        fields[0] = String.valueOf (joined);
+        // Leaves were filled in from the back; put them back in the order they happened
+        for (int from = joined + 1, to = fields.length - 1; from < to; from++, to--) {
+            String swap = fields[from];
+            fields[from] = fields[to];
+            fields[to] = swap;
+        }
+        Frame batch = Frame.Of (ChatterboxProtocol.PRESENCE, fields);
+        Frame delta = null;
+        boolean deltaTaken = false;
+
+        ServerLog.Debug ("Told all users of ", due.size (), " joins and leaves");
+        for (ClientConnection target : users.Members ()) {
+            Set<String> capabilities = target.getCapabilities ();
+            if (capabilities.contains (ChatterboxProtocol.CAPABILITY_NO_PRESENCE)) {
+                continue;
+            }
+            if (capabilities.contains (ChatterboxProtocol.CAPABILITY_USER_IDS)) {
+                if (!deltaTaken) {
+                    delta = TakeDelta ();
+                    deltaTaken = true;
+                }
+                if (delta != null) {
+                    target.Send (delta);
+                }
+                continue;
+            }
+            // Nobody is told about their own arrival, though a batch may list it along with others
+            if (capabilities.contains (ChatterboxProtocol.CAPABILITY_PRESENCE_BATCH)) {
+                if (names.length > 1 || !names[0].equals (target.getUsername ())) {
+                    target.Send (batch);
+                }
+                continue;
+            }
+            for (int event = 0; event < names.length; event++) {
+                if (!names[event].equals (target.getUsername ())) {
+                    target.Send (single[event]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return What changed in the registry since the last call, or 'null' if nothing did. Deltas may overlap when
+     * calls race, which does no harm as a delta applies to any table between its two versions
+     */
+    private Frame TakeDelta () {
+        deltas.lock ();
+        try {
+            long latest = users.Version ();
+            if (latest == announced) {
+                return null;
+            }
+            Frame delta = users.UserTableSince (announced);
+            announced = latest;
+            return delta;
+        } finally {
+            deltas.unlock ();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A named chat room. Membership changes are made under the room's own lock, so joins and parts in one room
+ * never wait on another; the member array is copy-on-write, so sending to the room reads it without locking and
+ * costs only as much as the room is big
+ */
+class Room {
+
+    private final String name;
+    private final byte[] nameBytes;
+    private final ReentrantLock lock;
+    private final History history;
+
+    private volatile ClientConnection[] members;
+    private boolean closed;
+
+    Room (String name, ServerConfig config) {
+        this.name = name;
+        this.nameBytes = name.getBytes (StandardCharsets.UTF_8);
+        this.lock = new ReentrantLock ();
+        this.history = new History (config.getHistorySize (), config.getHistoryBytes ());
+        this.members = new ClientConnection[0];
+        this.closed = false;
+    }
+
+    String getName () {
+        return name;
+    }
+
+    /**
+     * @return The room name as UTF-8 bytes, shared by every frame about this room; must not be modified
+     */
+    byte[] getNameBytes () {
+        return nameBytes;
+    }
+
+    /**
+     * @return The room's recent chat
+     */
+    History getHistory () {
+        return history;
+    }
+
+    /**
+     * @return The lock 'Add' and 'Remove' must be called under
+     */
+    ReentrantLock getLock () {
+        return lock;
+    }
+
+    /**
+     * @return The current members. The array is shared and must not be modified
+     */
+    ClientConnection[] Members () {
+        return members;
+    }
+
+    /**
+     * Must be called holding 'getLock'
+     *
+     * @param client The connection to add
+     * @return 'false' if the room has already been closed, in which case the caller should look it up again
+     */
+    boolean Add (ClientConnection client) {
+        if (closed) {
+            return false;
+        }
+        if (!Contains (client)) {
+            ClientConnection[] updated = Arrays.copyOf (members, members.length + 1);
+            updated[members.length] = client;
+            members = updated;
+        }
+        return true;
+    }
+
+    /**
+     * Must be called holding 'getLock'. Closes the room once its last member has left
+     *
+     * @param client The connection to remove
+     * @return 'false' if 'client' was not a member
+     */
+    boolean Remove (ClientConnection client) {
+        ClientConnection[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == client) {
+                ClientConnection[] updated = new ClientConnection[current.length - 1];
+                System.arraycopy (current, 0, updated, 0, i);
+                System.arraycopy (current, i + 1, updated, i, current.length - i - 1);
+                members = updated;
+                closed = updated.length == 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 'true' once the last member has left; a closed room is never reopened
+     */
+    boolean IsClosed () {
+        return closed;
+    }
+
+    boolean Contains (ClientConnection client) {
+        for (ClientConnection member : members) {
+            if (member == client) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,283 @@
+package server;
+
+import common.Frame;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One connection's outbound frames, bounded by the number of bytes they take on the wire. Chat frames that would
+ * push it past its limit are handled by the configured 'ServerConfig.Overflow' policy; control frames (replies,
+ * errors, presence) are always queued, up to twice the limit, past which the consumer is considered hopeless and
+ * the queue overflows whatever the policy.
+ *
+ * Any thread may 'Offer'; only the connection's writer should take frames off it. Guarded by a 'ReentrantLock'
+ * rather than the monitor, so a virtual writer thread waiting on it does not pin its carrier
+ */
+class SendQueue {
+
+    /**
+     * What 'Offer' did with a frame
+     */
+    enum Result {
+        /** The frame was queued, possibly after dropping older chat to make room */
+        QUEUED,
+        /** The frame itself was dropped */
+        DROPPED,
+        /** The queue is over its limit and the policy is to disconnect; nothing was queued */
+        OVERFLOW,
+        /** The queue was closed; nothing was queued */
+        CLOSED
+    }
+
+    private static final class Entry {
+        final Frame frame;
+        final int length;
+
+        Entry (Frame frame, int length) {
+            this.frame = frame;
+            this.length = length;
+        }
+    }
+
+    private final ArrayDeque<Entry> entries;
+    private final long limit;
+    private final ServerConfig.Overflow policy;
+    private final LongAdder droppedTotal;
+    private final Metrics metrics;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+
+    private volatile long bytes;
+    private volatile int frames;
+    private volatile long dropped;
+    private int fills;
+    private long since;
+    private long takenSince;
+    private boolean closed;
+    private volatile boolean aborted;
+
+    /**
+     * @param limit The most bytes of chat that may be queued
+     * @param policy What to do with chat past the limit
+     * @param droppedTotal Server-wide count of dropped frames, added to on every drop
+     * @param metrics Decides which fills to time for 'getTakenSince'
+     */
+    SendQueue (long limit, ServerConfig.Overflow policy, LongAdder droppedTotal, Metrics metrics) {
+        this.entries = new ArrayDeque<> ();
+        this.limit = limit;
+        this.policy = policy;
+        this.droppedTotal = droppedTotal;
+        this.metrics = metrics;
+        this.lock = new ReentrantLock ();
+        this.notEmpty = lock.newCondition ();
+    }
+
+    /**
+     * @param frame The frame to queue
+     * @param encoding The encoding it will be written in
+     * @return What was done with the frame
+     */
+    Result Offer (Frame frame, Frame.Encoding encoding) {
+        // Encoding may mean compressing, which must not happen under the lock the writer needs
+        int length = frame.Length (encoding);
+        lock.lock ();
+        try {
+            if (closed) {
+                return Result.CLOSED;
+            }
+
+            if (bytes + length > limit) {
+                if (!frame.IsDroppable ()) {
+                    if (bytes + length > 2 * limit) {
+                        return Result.OVERFLOW;
+                    }
+                } else if (policy == ServerConfig.Overflow.DISCONNECT) {
+                    return Result.OVERFLOW;
+                } else if (policy == ServerConfig.Overflow.DROP_NEWEST || !DropOldest (limit - length)) {
+                    Count (1);
+                    return Result.DROPPED;
+                }
+            }
+
+            if (entries.isEmpty ()) {
+                since = metrics.Sample (++fills) ? System.nanoTime () : 0;
+            }
+            entries.add (new Entry (frame, length));
+            bytes += length;
+            frames++;
+            notEmpty.signal ();
+            return Result.QUEUED;
+        } finally {
+            lock.unlock ();
+        }
+    }
+
+    /**
+     * Drops queued chat, oldest first, until at most 'target' bytes are queued
+     *
+     * @return 'false' if that could not be done, in which case nothing was dropped
+     */
+    private boolean DropOldest (long target) {
+        long droppable = 0;
+        for (Entry entry : entries) {
+            if (entry.frame.IsDroppable ()) {
+                droppable += entry.length;
+            }
+        }
+        if (target < 0 || bytes - droppable > target) {
+            return false;
+        }
+
+        int count = 0;
+        Iterator<Entry> iterator = entries.iterator ();
+        while (bytes > target) {
+            Entry entry = iterator.next ();
+            if (entry.frame.IsDroppable ()) {
+                iterator.remove ();
+                bytes -= entry.length;
+                frames--;
+                count++;
+            }
+        }
+        Count (count);
+        return true;
+    }
+
+    private void Count (int count) {
+        dropped += count;
+        droppedTotal.add (count);
+    }
+
+    /**
+     * @return The next frame, or 'null' if the queue is empty
+     */
+    Frame Poll () {
+        lock.lock ();
+        try {
+            return Next ();
+        } finally {
+            lock.unlock ();
+        }
+    }
+
+    private Frame Next () {
+        Entry entry = entries.poll ();
+        if (entry == null) {
+            return null;
+        }
+        bytes -= entry.length;
+        frames--;
+        takenSince = since;
+        return entry.frame;
+    }
+
+    /**
+     * Waits for the next frame
+     *
+     * @return The next frame, or 'null' once the queue has been closed and emptied
+     * @throws InterruptedException If interrupted while waiting
+     */
+    Frame Take () throws InterruptedException {
+        lock.lock ();
+        try {
+            while (entries.isEmpty () && !closed) {
+                notEmpty.await ();
+            }
+            return Next ();
+        } finally {
+            lock.unlock ();
+        }
+    }
+
+    /**
+     * Waits, at most until a deadline, for the next frame
+     *
+     * @param deadline The 'System.nanoTime' to give up at; a deadline already passed makes this the same as 'Poll'
+     * @return The next frame, or 'null' if none came in time or the queue has been closed and emptied
+     * @throws InterruptedException If interrupted while waiting
+     */
+    Frame Poll (long deadline) throws InterruptedException {
+        lock.lock ();
+        try {
+            long remaining;
+            while (entries.isEmpty () && !closed && (remaining = deadline - System.nanoTime ()) > 0) {
+                notEmpty.awaitNanos (remaining);
+            }
+            return Next ();
+        } finally {
+            lock.unlock ();
+        }
+    }
+
+    /**
+     * Refuses any further frames. Those already queued are still handed out
+     */
+    void Close () {
+        lock.lock ();
+        try {
+            closed = true;
+            notEmpty.signalAll ();
+        } finally {
+            lock.unlock ();
+        }
+    }
+
+    /**
+     * Throws away everything queued and closes the queue with 'last' as the only frame left in it
+     *
+     * @param last The frame to send before the connection is closed
+     */
+    void Abort (Frame last) {
+        lock.lock ();
+        try {
+            entries.clear ();
+            entries.add (new Entry (last, 0));
+            bytes = 0;
+            frames = 1;
+            since = 0;
+            closed = true;
+            aborted = true;
+            notEmpty.signalAll ();
+        } finally {
+            lock.unlock ();
+        }
+    }
+
+    /**
+     * @return 'true' once 'Abort' has been called
+     */
+    boolean IsAborted () {
+        return aborted;
+    }
+
+    /**
+     * @return The number of frames this queue has dropped
+     */
+    long getDropped () {
+        return dropped;
+    }
+
+    long getBytes () {
+        return bytes;
+    }
+
+    int getFrames () {
+        return frames;
+    }
+
+    /**
+     * Only the queue's writer should call this. Rather than stamp every frame, the queue only notes when it last
+     * went from empty to holding something, so this is an upper bound on how long the last frame taken waited;
+     * and only one in 'ServerConfig.getMetricsSample' of those fills is timed at all
+     *
+     * @return The 'System.nanoTime' the queue last started filling, as of when the last frame was taken, or 0 if
+     * that fill was not timed
+     */
+    long getTakenSince () {
+        return takenSince;
+    }
+}
@@ -1,110 +1,970 @@
 package server;
 
 
+import common.BinaryCodec;
 import common.ChatterboxProtocol;
+import common.Compression;
 import common.Exceptions.InvalidRecipientException;
+import common.Exceptions.InvalidRoomException;
 import common.Exceptions.NameTakenException;
-import common.Exceptions.ParseException;
 import common.Exceptions.UserNotInitializedException;
+import common.Frame;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Coordinates between every connected user. Membership changes are serialized by a 'ReentrantLock' (not the
+ * monitor, which would pin a virtual thread to its carrier while held); everything
+ * else reads the lock-free 'UserRegistry' and only enqueues on each recipient's connection, so chat traffic never
+ * waits on a join, a leave, or a slow reader. With '--shards=N' the users are also split between 'Shard's, whose
+ * own threads do the fan-out, so one broadcast is N hand-offs for the sender rather than one send per user
+ */
 public class ServerBase {
-    private HashMap<String, ClientConnection> connectedUsers;
+    private static final int CONNECT = BinaryCodec.Opcode (ChatterboxProtocol.CONNECT);
+    private static final int DISCONNECT = BinaryCodec.Opcode (ChatterboxProtocol.DISCONNECT);
+    private static final int JOIN_ROOM = BinaryCodec.Opcode (ChatterboxProtocol.JOIN_ROOM);
+    private static final int PART_ROOM = BinaryCodec.Opcode (ChatterboxProtocol.PART_ROOM);
+    /**
+     * How many users 'Stats' lists by how much they have been throttled
+     */
+    private static final int MOST_THROTTLED = 10;
+
+    private final UserRegistry connectedUsers;
+    private final ReentrantLock membership;
+    private final ConcurrentHashMap<String, Room> rooms;
+    private final ServerConfig config;
+    private final History history;
+    private final ChatLog log;
+    private final Cluster cluster;
+    private final Shard[] shards;
+    private final Presence presence;
+    private final Semaphore handshakes;
+    /**
+     * The id given to the last user to connect; only changed under 'membership'
+     */
+    private int lastUserId;
+    /**
+     * How many connected users are sent compressed frames; only changed under 'membership'
+     */
+    private volatile int deflateUsers;
+
+    private final LongAdder droppedFrames;
+    private final LongAdder slowConsumerDisconnects;
+    private final LongAdder throttledCommands;
+    private final LongAdder socketWrites;
+    private final LongAdder framesWritten;
+    private final Metrics metrics;
 
     public ServerBase () {
-        this.connectedUsers = new HashMap<> ();
+        this (new ServerConfig ());
+    }
+
+    public ServerBase (ServerConfig config) {
+        this.connectedUsers = new UserRegistry ();
+        this.membership = new ReentrantLock ();
+        this.rooms = new ConcurrentHashMap<> ();
+        this.config = config;
+        this.history = new History (config.getHistorySize (), config.getHistoryBytes ());
+        this.log = OpenLog (config, history);
+
+        this.droppedFrames = new LongAdder ();
+        this.slowConsumerDisconnects = new LongAdder ();
+        this.throttledCommands = new LongAdder ();
+        this.socketWrites = new LongAdder ();
+        this.framesWritten = new LongAdder ();
+        this.metrics = new Metrics (config.getMetricsSample ());
+        this.shards = OpenShards (config.getShards ());
+        this.presence = new Presence (connectedUsers, config.getPresenceMillis ());
+        this.handshakes = config.getMaxHandshakes () > 0 ? new Semaphore (config.getMaxHandshakes ()) : null;
+
+        // Last, as other nodes may call in as soon as it starts
+        this.cluster = OpenCluster (config, this);
+        if (cluster != null) {
+            cluster.Start ();
+        }
+    }
+
+    /**
+     * @return 'count' started shards, or 'null' to deliver on the sending thread
+     */
+    private static Shard[] OpenShards (int count) {
+        if (count <= 0) {
+            return null;
+        }
+        Shard[] shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard (i);
+            shards[i].Start ();
+        }
+        return shards;
+    }
+
+    /**
+     * @throws UncheckedIOException If the cluster port cannot be opened
+     */
+    private static Cluster OpenCluster (ServerConfig config, ServerBase server) {
+        if (config.getNodeName () == null) {
+            return null;
+        }
+        try {
+            return new Cluster (config, server);
+        } catch (IOException e) {
+            throw new UncheckedIOException (e);
+        }
+    }
+
+    /**
+     * Opens the configured chat log, if any, and refills the main chat's history from its tail
+     *
+     * @throws UncheckedIOException If the log cannot be opened
+     */
+    private static ChatLog OpenLog (ServerConfig config, History history) {
+        if (config.getLogDirectory () == null) {
+            return null;
+        }
+
+        try {
+            ChatLog log = ChatLog.Open (Paths.get (config.getLogDirectory ()), config.getLogSegmentBytes (),
+                    config.getLogSyncMillis (), config.getLogQueueBytes ());
+            // The main chat's frames are mixed in with whispers and rooms, so look back a good way past the history
+            long from = Math.max (0, log.getNextOffset () - 10L * config.getHistorySize ());
+            log.Scan (from, (offset, timestamp, frame) -> {
+                if (frame.getCommand ().equals (ChatterboxProtocol.CHAT_RECEIVED)) {
+                    history.Add (frame);
+                }
+                return true;
+            });
+            ServerLog.Info ("Opened chat log at offset " + log.getNextOffset ());
+            return log;
+        } catch (IOException e) {
+            throw new UncheckedIOException (e);
+        }
+    }
+
+    /**
+     * Writes out anything still waiting to be logged; called on shutdown
+     */
+    public void close () {
+        if (cluster != null) {
+            cluster.Close ();
+        }
+        presence.Close ();
+        if (shards != null) {
+            for (Shard shard : shards) {
+                shard.Close ();
+            }
+        }
+        if (log != null) {
+            log.Close ();
+        }
+        ServerLog.Flush (1000);
+    }
+
+    /**
+     * @return The cluster this server is a node of, or 'null' if it runs on its own
+     */
+    public Cluster getCluster () {
+        return cluster;
+    }
+
+    /**
+     * @return The durable chat log, or 'null' if the server is not keeping one
+     */
+    public ChatLog getLog () {
+        return log;
+    }
+
+    public ServerConfig getConfig () {
+        return config;
+    }
+
+    /**
+     * @return How many chat frames have been dropped for slow consumers since startup
+     */
+    public long getDroppedFrames () {
+        return droppedFrames.sum ();
+    }
+
+    /**
+     * @return How many connections have been closed for falling too far behind since startup
+     */
+    public long getSlowConsumerDisconnects () {
+        return slowConsumerDisconnects.sum ();
+    }
+
+    /**
+     * @return How many tasks are waiting for the shards' threads; 0 when not sharded
+     */
+    public int getShardBacklog () {
+        int backlog = 0;
+        if (shards != null) {
+            for (Shard shard : shards) {
+                backlog += shard.getBacklog ();
+            }
+        }
+        return backlog;
+    }
+
+    /**
+     * @return How many chat frames the shards have dropped for a full backlog since startup; 0 when not sharded
+     */
+    public long getShardDropped () {
+        long dropped = 0;
+        if (shards != null) {
+            for (Shard shard : shards) {
+                dropped += shard.getDropped ();
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * @return How many commands have been turned away with 'THROTTLED' since startup
+     */
+    public long getThrottledCommands () {
+        return throttledCommands.sum ();
+    }
+
+    /**
+     * @return How many writes the transports have made to client sockets since startup
+     */
+    public long getSocketWrites () {
+        return socketWrites.sum ();
+    }
+
+    /**
+     * @return How many frames the transports have finished writing to client sockets since startup
+     */
+    public long getFramesWritten () {
+        return framesWritten.sum ();
+    }
+
+    /**
+     * @return The per-command timings
+     */
+    public Metrics getMetrics () {
+        return metrics;
+    }
+
+    /**
+     * @return How many users are connected
+     */
+    public int getConnectionCount () {
+        return connectedUsers.Size ();
+    }
+
+    /**
+     * @return How many accepted connections have not negotiated a username yet, as far as '--max-handshakes'
+     * keeps count; 0 when it is off
+     */
+    public int getHandshakesInFlight () {
+        return handshakes != null ? config.getMaxHandshakes () - handshakes.availablePermits () : 0;
+    }
+
+    /**
+     * Called by an acceptor before each accept: blocks while '--max-handshakes' connections are still
+     * negotiating, so a reconnect storm waits in the kernel's backlog rather than as half-set-up connections
+     *
+     * @throws InterruptedException If the acceptor is interrupted while waiting
+     */
+    void AwaitHandshakeSlot () throws InterruptedException {
+        if (handshakes != null) {
+            handshakes.acquire ();
+        }
+    }
+
+    /**
+     * Gives back a slot taken by 'AwaitHandshakeSlot', once the connection it was for has a username or is gone
+     */
+    void HandshakeEnded () {
+        if (handshakes != null) {
+            handshakes.release ();
+        }
     }
 
-    synchronized public void connect (ClientConnection client) throws NameTakenException, ParseException {
+    /**
+     * @return How many rooms have someone in them
+     */
+    public int getRoomCount () {
+        return rooms.size ();
+    }
+
+    /**
+     * Lists the connected users who have had the most commands throttled; costs as much as there are users, so is
+     * only for reports
+     *
+     * @param most How many users to list at most
+     * @return A 'throttled.<username>=chat:N,whisper:N,list:N' line for each, most throttled first
+     */
+    public List<String> ThrottledUsers (int most) {
+        List<ClientConnection> throttled = new ArrayList<> ();
+        for (ClientConnection client : connectedUsers.Members ()) {
+            if (Throttled (client) > 0) {
+                throttled.add (client);
+            }
+        }
+        throttled.sort ((a, b) -> Long.compare (Throttled (b), Throttled (a)));
+
+        List<String> lines = new ArrayList<> ();
+        for (ClientConnection client : throttled.subList (0, Math.min (most, throttled.size ()))) {
+            lines.add ("throttled." + client.getUsername () + "=chat:" + client.getThrottledChat () + ",whisper:" +
+                    client.getThrottledWhispers () + ",list:" + client.getThrottledLists ());
+        }
+        return lines;
+    }
+
+    private static long Throttled (ClientConnection client) {
+        return client.getThrottledChat () + client.getThrottledWhispers () + client.getThrottledLists ();
+    }
+
+    /**
+     * Adds up every connected user's send queue; costs as much as there are users, so is only for reports
+     *
+     * @return The total frames and bytes queued, and the deepest single queue, in frames
+     */
+    public long[] QueueDepths () {
+        long frames = 0;
+        long bytes = 0;
+        long deepest = 0;
+        for (ClientConnection client : connectedUsers.Members ()) {
+            frames += client.getQueuedFrames ();
+            bytes += client.getQueuedBytes ();
+            deepest = Math.max (deepest, client.getQueuedFrames ());
+        }
+        return new long[] {frames, bytes, deepest};
+    }
+
+    /**
+     * @param username The user asking
+     * @return 'true' if they may see the server's stats; with no '--admins' configured nobody may, and the stats
+     * are only published over JMX
+     */
+    public boolean IsAdmin (String username) {
+        return config.getAdmins ().contains (username);
+    }
+
+    /**
+     * Sends a user a 'STATS_REPORT' of the server's gauges, counters and per-command timings
+     *
+     * @param requestor The user asking; must already have been checked with 'IsAdmin'
+     */
+    public void getStats (ClientConnection requestor) {
+        List<String> lines = Stats ();
+        requestor.Send (Frame.Of (ChatterboxProtocol.STATS_REPORT, lines.toArray (new String[0])));
+    }
+
+    /**
+     * @return The server's gauges and counters followed by 'Metrics.Report', one 'name=value' per line
+     */
+    public List<String> Stats () {
+        long[] depths = QueueDepths ();
+        List<String> lines = new ArrayList<> ();
+        lines.add ("connections=" + getConnectionCount ());
+        lines.add ("rooms=" + getRoomCount ());
+        lines.add ("handshakes_in_flight=" + getHandshakesInFlight ());
+        lines.add ("presence_events=" + presence.getEvents ());
+        lines.add ("presence_cancelled=" + presence.getCancelled ());
+        lines.add ("queued_frames=" + depths[0]);
+        lines.add ("queued_bytes=" + depths[1]);
+        lines.add ("deepest_queue=" + depths[2]);
+        lines.add ("dropped_frames=" + getDroppedFrames ());
+        lines.add ("slow_consumer_disconnects=" + getSlowConsumerDisconnects ());
+        lines.add ("throttled_commands=" + getThrottledCommands ());
+        lines.addAll (ThrottledUsers (MOST_THROTTLED));
+        lines.add ("socket_writes=" + getSocketWrites ());
+        lines.add ("frames_written=" + getFramesWritten ());
+        lines.add ("log_events_dropped=" + ServerLog.getDropped ());
+        long[] compressed = Compression.getBytes ();
+        lines.add ("compressed_frames=" + Compression.getCompressedFrames ());
+        lines.add ("compressed_bytes_before=" + compressed[0]);
+        lines.add ("compressed_bytes_after=" + compressed[1]);
+        if (shards != null) {
+            lines.add ("shards=" + shards.length);
+            lines.add ("shard_backlog=" + getShardBacklog ());
+            lines.add ("shard_dropped=" + getShardDropped ());
+        }
+        if (log != null) {
+            lines.add ("log_pending=" + log.getPending ());
+            lines.add ("log_pending_bytes=" + log.getPendingBytes ());
+            lines.add ("log_dropped=" + log.getDropped ());
+            lines.add ("log_forces=" + log.getForces ());
+        }
+        lines.addAll (metrics.Report ());
+        return lines;
+    }
+
+    /**
+     * @param frames How many frames the write finished
+     * @param queuedSince The queue's 'SendQueue.getTakenSince' for the oldest of them; 0 if it was not sampled
+     */
+    void CountWrite (int frames, long queuedSince) {
+        socketWrites.increment ();
+        framesWritten.add (frames);
+        if (frames > 0 && queuedSince != 0) {
+            metrics.Delivered (System.nanoTime () - queuedSince);
+        }
+    }
+
+    /**
+     * Takes 'lock' for 'opcode', recording how long that took. Uncontended, it costs no clock reads at all
+     */
+    private void Lock (ReentrantLock lock, int opcode) {
+        if (lock.tryLock ()) {
+            metrics.LockWait (opcode, 0);
+            return;
+        }
+        long start = System.nanoTime ();
+        lock.lock ();
+        metrics.LockWait (opcode, System.nanoTime () - start);
+    }
+
+    LongAdder DroppedFrameCounter () {
+        return droppedFrames;
+    }
+
+    /**
+     * Called by a connection that has turned one of its user's commands away for coming too fast
+     */
+    void Throttled (ClientConnection client, String command) {
+        throttledCommands.increment ();
+        ServerLog.Debug ("Throttled user '", client.getUsername (), "' command '", command, "'");
+    }
+
+    void SlowConsumerDisconnected (ClientConnection client) {
+        slowConsumerDisconnects.increment ();
+        ServerLog.Warn ("User '" + client.getUsername () + "' is not keeping up with their messages; " +
+                "disconnecting them");
+    }
+
+    /**
+     * Names are sent in the middle of text protocol lines, so may not hold a space, a separator, or end in a ':'
+     * that would run into the separator after it
+     */
+    private static boolean IsValidName (String name) {
+        return !name.contains (" ") && !name.contains (ChatterboxProtocol.SEPARATOR) && !name.endsWith (":");
+    }
+
+    /**
+     * Connects a user, first waiting for the cluster to agree to their name if another node arbitrates it. Only for
+     * callers that can afford to wait; connections use 'Claim' and 'Admit', so their thread never does
+     *
+     * @param client The user, with their username set
+     * @throws NameTakenException If the name is invalid or already taken here or on another node
+     */
+    public void connect (ClientConnection client) throws NameTakenException {
+        if (!Claim (client.getUsername ()).join ()) {
+            throw new NameTakenException (client.getUsername ());
+        }
+        Admit (client);
+    }
+
+    /**
+     * Asks for a name for a user about to connect. Returns at once; if another node arbitrates the name, the answer
+     * completes on whichever thread hears back from it, 'false' if it does not answer in time
+     *
+     * @param username The name wanted
+     * @return 'true' once the name is free cluster-wide and held for this node, 'false' if it is invalid or taken
+     */
+    CompletableFuture<Boolean> Claim (String username) {
+        if (!IsValidName (username)) {
+            return CompletableFuture.completedFuture (false);
+        }
+        return cluster == null ? CompletableFuture.completedFuture (true) : cluster.Claim (username);
+    }
+
+    /**
+     * Gives back a name granted by 'Claim' whose connection went away before it could be used
+     *
+     * @param username The name
+     */
+    void Unclaim (String username) {
+        if (cluster != null) {
+            cluster.Release (username);
+        }
+    }
+
+    /**
+     * Connects a user whose name 'Claim' has granted
+     *
+     * @param client The user, with their username set
+     * @throws NameTakenException If another user of this server already has the name; the cluster's claim on it
+     * is theirs, so is kept
+     */
+    void Admit (ClientConnection client) throws NameTakenException {
         String username = client.getUsername ();
-        if (connectedUsers.containsKey (username) || username.contains (" ")) {
-            throw new NameTakenException (username);
-        } else {
-            String toSend = ChatterboxProtocol.USER_JOINED + ChatterboxProtocol.SEPARATOR + username;
-            TellAll (toSend);
-            System.out.println ("********************User '" + username + "' Has Joined********************");
-            connectedUsers.put (username, client);
+        Frame joined = Frame.Of (ChatterboxProtocol.USER_JOINED, username);
+        Lock (membership, CONNECT);
+        try {
+            if (connectedUsers.Get (username) != null) {
+                throw new NameTakenException (username);
+            }
+            // Queue the reply before publishing the new user, so it is the first thing they receive
             client.setConnected (true);
-            client.ParseServerCommand (ChatterboxProtocol.CONNECTED);
-            System.out.println ("Sent user '" + username + "' command '" + ChatterboxProtocol.CONNECTED + "'");
+            client.setUserId (++lastUserId);
+            if (client.getEncoding () == Frame.Encoding.DEFLATE) {
+                deflateUsers++;
+            }
+            client.Send (Frame.Handshake (ChatterboxProtocol.CONNECTED, HandshakeFields (client)));
+            Replay (client, history, config.getReplayOnJoin ());
+            connectedUsers.Add (client);
+            if (shards != null) {
+                ShardOf (username).getUsers ().Add (client);
+            }
+            if (cluster != null) {
+                cluster.Relay (joined);
+            }
+        } finally {
+            membership.unlock ();
         }
 
+        presence.Joined (username);
+        ServerLog.Info ("********************User '" + username + "' Has Joined********************");
+        ServerLog.Debug ("Sent user '", username, "' command '", ChatterboxProtocol.CONNECTED, "'");
+    }
 
+    /**
+     * @return The capabilities agreed with 'client', followed by its id if it agreed on 'CAPABILITY_USER_IDS'
+     */
+    private static Collection<String> HandshakeFields (ClientConnection client) {
+        Set<String> accepted = client.getCapabilities ();
+        if (!accepted.contains (ChatterboxProtocol.CAPABILITY_USER_IDS)) {
+            return accepted;
+        }
+        List<String> fields = new ArrayList<> (accepted);
+        fields.add ("id=" + client.getUserId ());
+        return fields;
     }
 
-    synchronized private void TellAll (String message) {
-        System.out.println ("Sent command '" + message + "' to all users");
-        for (String username : connectedUsers.keySet ()) {
-            try {
-                connectedUsers.get (username).ParseServerCommand (message);
-            } catch (ParseException e) {
-                e.printStackTrace ();
-            }
+    private void TellAll (ClientConnection[] targets, Frame message) {
+        TellAll (targets, message, null);
+    }
+
+    /**
+     * Compresses a chat frame on the sending thread, once, before it is handed to anyone's queue; otherwise the first
+     * compressed user's 'Send' would do it while holding their queue lock, stalling their writer
+     */
+    private void Prepare (Frame message) {
+        if (deflateUsers > 0) {
+            message.Compress (config.getCompressThreshold ());
         }
     }
 
+    /**
+     * Sends a frame to every connected user: straight to 'targets' from this thread, or when sharded as one task
+     * per shard, each of which sends to its own current users
+     */
+    private void FanOut (ClientConnection[] targets, Frame message, ClientConnection except) {
+        if (shards == null) {
+            TellAll (targets, message, except);
+            return;
+        }
+        ServerLog.Debug ("Sent command '", message, "' to all users");
+        for (Shard shard : shards) {
+            shard.Post (message, except);
+        }
+    }
 
-    synchronized public void disconnect (ClientConnection client) throws UserNotInitializedException, ParseException {
-        if (!connectedUsers.containsKey (client.getUsername ())) {
-            throw new UserNotInitializedException ();
+    /**
+     * Sends a frame to one user, from this thread or by handing it to the user's shard
+     */
+    private void Deliver (ClientConnection to, Frame message) {
+        if (shards == null) {
+            to.Send (message);
         } else {
-            client.ParseServerCommand (ChatterboxProtocol.DISCONNECTED);
+            ShardOf (to.getUsername ()).Post (to, message);
+        }
+    }
+
+    private Shard ShardOf (String username) {
+        return shards[Math.floorMod (username.hashCode (), shards.length)];
+    }
+
+    private void TellAll (ClientConnection[] targets, Frame message, ClientConnection except) {
+        ServerLog.Debug ("Sent command '", message, "' to all users");
+        for (ClientConnection target : targets) {
+            if (target != except) {
+                target.Send (message);
+            }
+        }
+    }
+
+    /**
+     * Sends a user the 'HISTORY' header followed by the recorded frames themselves
+     *
+     * @param client The user to replay to
+     * @param from The history to replay
+     * @param count The most frames to replay
+     * @param room The room the history is from, if any
+     */
+    private void Replay (ClientConnection client, History from, int count, String... room) {
+        if (count <= 0) {
+            return;
+        }
+        Frame[] recent = from.Recent (count);
+        if (recent.length == 0) {
+            return;
+        }
+
+        String[] fields = new String[room.length + 1];
+        fields[0] = String.valueOf (recent.length);
+        System.arraycopy (room, 0, fields, 1, room.length);
+        client.Send (Frame.Of (ChatterboxProtocol.HISTORY, fields));
+        for (Frame frame : recent) {
+            client.Send (frame);
+        }
+    }
+
+    /**
+     * Replays everything kept (up to the configured byte limit) of the main chat or a room to a user
+     *
+     * @param client The user asking
+     * @param room The room asked about, or 'null' for the main chat
+     * @throws InvalidRoomException If 'client' is not in 'room'
+     */
+    public void getHistory (ClientConnection client, String room) throws InvalidRoomException {
+        if (room == null) {
+            Replay (client, history, config.getHistorySize ());
+            return;
+        }
+
+        Room target = rooms.get (room);
+        if (target == null || !client.getRooms ().contains (room)) {
+            throw new InvalidRoomException (room);
+        }
+        Replay (client, target.getHistory (), config.getHistorySize (), room);
+    }
+
+
+    public void disconnect (ClientConnection client) throws UserNotInitializedException {
+        Frame left = Frame.Of (ChatterboxProtocol.USER_LEFT, client.getUsername ());
+        Lock (membership, DISCONNECT);
+        try {
+            if (!connectedUsers.Remove (client)) {
+                throw new UserNotInitializedException ();
+            }
+            if (shards != null) {
+                ShardOf (client.getUsername ()).getUsers ().Remove (client);
+            }
             client.setConnected (false);
-            connectedUsers.remove (client.getUsername ());
-            String toSend = ChatterboxProtocol.USER_LEFT + ChatterboxProtocol.SEPARATOR + client.getUsername ();
-            TellAll (toSend);
-            System.out.println ("*********************User '" + client.getUsername () + "' Has Left*********************");
+            if (client.getEncoding () == Frame.Encoding.DEFLATE) {
+                deflateUsers--;
+            }
+            if (cluster != null) {
+                cluster.Left (client.getUsername (), left);
+            }
+        } finally {
+            membership.unlock ();
         }
+
+        for (String room : client.getRooms ()) {
+            LeaveRoom (client, room);
+        }
+
+        client.Send (Frame.Of (ChatterboxProtocol.DISCONNECTED));
+        presence.Left (client.getUsername ());
+        ServerLog.Info ("*********************User '" + client.getUsername () + "' Has Left*********************");
     }
 
-    synchronized public void broadcast (String sender, String message) throws UserNotInitializedException,
-            ParseException {
-        if (!connectedUsers.containsKey (sender)) {
+    public void broadcast (String sender, String message) throws UserNotInitializedException {
+        broadcast (sender, message.getBytes (StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a chat message to every connected user
+     *
+     * @param sender The sending user's name
+     * @param message The message as UTF-8 bytes; kept by the outgoing frame, so must not be modified afterwards
+     * @throws UserNotInitializedException If 'sender' is not connected
+     */
+    public void broadcast (String sender, byte[] message) throws UserNotInitializedException {
+        ClientConnection from = connectedUsers.Get (sender);
+        if (from == null) {
             throw new UserNotInitializedException ();
-        } else {
-            TellAll (ChatterboxProtocol.CHAT_RECEIVED + ChatterboxProtocol.SEPARATOR + sender +
-                    ChatterboxProtocol.SEPARATOR + message);
+        }
+
+        Frame chat = Frame.OfBytes (ChatterboxProtocol.CHAT_RECEIVED, from.getUsernameBytes (), message);
+        history.Add (chat);
+        Prepare (chat);
+        FanOut (connectedUsers.Members (), chat, null);
+        if (cluster != null) {
+            cluster.Relay (chat);
+        }
+        if (log != null) {
+            log.Append (chat);
         }
     }
 
-    synchronized public void whisper (String sender, String recipient, String message) throws
-            UserNotInitializedException, InvalidRecipientException, ParseException {
+    public void whisper (String sender, String recipient, String message) throws
+            UserNotInitializedException, InvalidRecipientException {
+        whisper (sender, recipient, message.getBytes (StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a private message to one user, and an acknowledgement back to the sender
+     *
+     * @param sender The sending user's name
+     * @param recipient The receiving user's name
+     * @param message The message as UTF-8 bytes; kept by the outgoing frames, so must not be modified afterwards
+     * @throws UserNotInitializedException If 'sender' is not connected
+     * @throws InvalidRecipientException If 'recipient' is not connected
+     */
+    public void whisper (String sender, String recipient, byte[] message) throws
+            UserNotInitializedException, InvalidRecipientException {
+        ClientConnection from = connectedUsers.Get (sender);
+        ClientConnection to = connectedUsers.Get (recipient);
 
-        if (!connectedUsers.containsKey (sender)) {
+        if (from == null) {
             throw new UserNotInitializedException ();
-        } else if (!connectedUsers.containsKey (recipient)) {
-            throw new InvalidRecipientException (recipient);
+        } else if (to == null) {
+            // Maybe they are on another node
+            if (cluster == null || !cluster.Whisper (recipient, from.getUsernameBytes (), message)) {
+                throw new InvalidRecipientException (recipient);
+            }
+            from.Send (Frame.OfBytes (ChatterboxProtocol.WHISPER_SENT, recipient.getBytes (StandardCharsets.UTF_8),
+                    message));
         } else {
-            String toSender = ChatterboxProtocol.WHISPER_SENT +
-                    ChatterboxProtocol.SEPARATOR + recipient +
-                    ChatterboxProtocol.SEPARATOR + message;
-            String toRecipient = ChatterboxProtocol.WHISPER_RECEIVED +
-                    ChatterboxProtocol.SEPARATOR + sender +
-                    ChatterboxProtocol.SEPARATOR + message;
+            Frame toSender = Frame.OfBytes (ChatterboxProtocol.WHISPER_SENT, to.getUsernameBytes (), message);
+            Frame toRecipient = Frame.OfBytes (ChatterboxProtocol.WHISPER_RECEIVED, from.getUsernameBytes (),
+                    message);
 
-            System.out.println ("Sent command '" + toSender + "' to '" + sender + "'");
-            System.out.println ("Sent command '" + toRecipient + "' to '" + recipient + "'");
+            ServerLog.Debug ("Sent command '", toSender, "' to '", sender, "'");
+            ServerLog.Debug ("Sent command '", toRecipient, "' to '", recipient, "'");
 
-            connectedUsers.get (sender).ParseServerCommand (toSender);
-            connectedUsers.get (recipient).ParseServerCommand (toRecipient);
+            Prepare (toSender);
+            Prepare (toRecipient);
+            from.Send (toSender);
+            Deliver (to, toRecipient);
+            if (log != null) {
+                log.Append (toRecipient);
+            }
         }
 
     }
 
     public void getUserList (ClientConnection requestor) {
-        String userList = ChatterboxProtocol.USERS;
+        getUserList (requestor, -1);
+    }
+
+    /**
+     * Sends a user who is online: as a 'USER_DELTA' or 'USER_TABLE' if they agreed on 'CAPABILITY_USER_IDS', and
+     * as 'USERS' otherwise
+     *
+     * @param requestor The user asking
+     * @param since The membership version their table is at, or -1 if they have none
+     */
+    public void getUserList (ClientConnection requestor, long since) {
+        Frame userList;
+        if (cluster != null) {
+            userList = cluster.UserList (connectedUsers.Members ());
+        } else if (requestor.getCapabilities ().contains (ChatterboxProtocol.CAPABILITY_USER_IDS)) {
+            userList = connectedUsers.UserTableSince (since);
+        } else {
+            userList = connectedUsers.UserList ();
+        }
+        ServerLog.Debug ("Sent user '", requestor.getUsername (), "' command '", userList.getCommand (), "'");
+
+        requestor.Send (userList);
+    }
+
+    /**
+     * Adds a user to a room, creating the room if it does not exist yet, and tells everyone in it (the new member
+     * included). The new member also gets the room's recent chat replayed. Only that room's lock is taken
+     *
+     * @param client The joining user
+     * @param name The room's name
+     * @throws UserNotInitializedException If 'client' is not connected
+     * @throws InvalidRoomException If 'name' is not a valid room name
+     */
+    public void joinRoom (ClientConnection client, String name) throws UserNotInitializedException,
+            InvalidRoomException {
+        if (connectedUsers.Get (client.getUsername ()) != client) {
+            throw new UserNotInitializedException ();
+        } else if (name.isEmpty () || !IsValidName (name)) {
+            throw new InvalidRoomException (name);
+        }
+
+        while (true) {
+            Room room = rooms.computeIfAbsent (name, key -> new Room (key, config));
+            ClientConnection[] members;
+            Frame joined;
+            Lock (room.getLock (), JOIN_ROOM);
+            try {
+                if (client.getRooms ().contains (name)) {
+                    client.Send (Frame.OfBytes (ChatterboxProtocol.ROOM_JOINED, room.getNameBytes (),
+                            client.getUsernameBytes ()));
+                    return;
+                } else if (room.IsClosed ()) {
+                    // The last member left while we were looking it up; the next lookup makes a fresh room
+                    continue;
+                }
+                // Queue the joiner's own notice and replay before they can get any of the room's live chat
+                joined = Frame.OfBytes (ChatterboxProtocol.ROOM_JOINED, room.getNameBytes (),
+                        client.getUsernameBytes ());
+                client.Send (joined);
+                Replay (client, room.getHistory (), config.getReplayOnJoin (), name);
+                room.Add (client);
+                client.getRooms ().add (name);
+                members = room.Members ();
+            } finally {
+                room.getLock ().unlock ();
+            }
+
+            TellAll (members, joined, client);
+            return;
+        }
+    }
+
+    /**
+     * Removes a user from a room and tells everyone who was in it (the leaving member included)
+     *
+     * @param client The leaving user
+     * @param name The room's name
+     * @throws InvalidRoomException If 'client' is not in the room
+     */
+    public void partRoom (ClientConnection client, String name) throws InvalidRoomException {
+        Frame left = LeaveRoom (client, name);
+        if (left == null) {
+            throw new InvalidRoomException (name);
+        }
+        client.Send (left);
+    }
+
+    private Frame LeaveRoom (ClientConnection client, String name) {
+        Room room = rooms.get (name);
+        if (room == null) {
+            return null;
+        }
+
+        ClientConnection[] members;
+        Lock (room.getLock (), PART_ROOM);
+        try {
+            if (!room.Remove (client)) {
+                return null;
+            }
+            if (room.IsClosed ()) {
+                rooms.remove (name, room);
+            }
+            client.getRooms ().remove (name);
+            members = room.Members ();
+        } finally {
+            room.getLock ().unlock ();
+        }
 
-        for (String username : connectedUsers.keySet ()) {
-            userList = userList + ChatterboxProtocol.SEPARATOR + username;
+        Frame left = Frame.OfBytes (ChatterboxProtocol.ROOM_LEFT, room.getNameBytes (), client.getUsernameBytes ());
+        TellAll (members, left);
+        return left;
+    }
+
+    /**
+     * Sends a chat message to everyone in one room. Costs as much as the room is big, no matter how many users
+     * the server has, and takes no lock at all
+     *
+     * @param sender The sending user's name
+     * @param name The room's name
+     * @param message The message as UTF-8 bytes; kept by the outgoing frame, so must not be modified afterwards
+     * @throws UserNotInitializedException If 'sender' is not connected
+     * @throws InvalidRoomException If 'sender' is not in the room
+     */
+    public void roomBroadcast (String sender, String name, byte[] message) throws UserNotInitializedException,
+            InvalidRoomException {
+        ClientConnection from = connectedUsers.Get (sender);
+        if (from == null) {
+            throw new UserNotInitializedException ();
+        }
+        Room room = rooms.get (name);
+        if (room == null || !from.getRooms ().contains (name)) {
+            throw new InvalidRoomException (name);
         }
-        System.out.println ("Sent user '" + requestor.getUsername () + "' command '" + userList + "'");
 
+        Frame chat = Frame.OfBytes (ChatterboxProtocol.ROOM_CHAT_RECEIVED, room.getNameBytes (),
+                from.getUsernameBytes (), message);
+        room.getHistory ().Add (chat);
+        Prepare (chat);
+        TellAll (room.Members (), chat);
+        if (log != null) {
+            log.Append (chat);
+        }
+    }
+
+    //------------------------------------------<Cluster>-------------------------------------------//
+
+    /**
+     * @return 'true' if a user by that name is connected to this node
+     */
+    boolean HasUser (String username) {
+        return connectedUsers.Get (username) != null;
+    }
+
+    /**
+     * Adds a link to another node and sends it this node's users. Done under the membership lock, so no join or
+     * leave can fall between the list and the relays that follow it
+     *
+     * @return 'false' if the link's node was already linked
+     */
+    boolean LinkPeer (PeerLink link) {
+        membership.lock ();
         try {
-            requestor.ParseServerCommand (userList);
-        } catch (ParseException e) {
-            e.printStackTrace ();
+            if (!cluster.Add (link)) {
+                return false;
+            }
+            ClientConnection[] members = connectedUsers.Members ();
+            String[] names = new String[members.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = members[i].getUsername ();
+            }
+            link.Send (Frame.Of (ChatterboxProtocol.NODE_USERS, names));
+            return true;
+        } finally {
+            membership.unlock ();
+        }
+    }
+
+    /**
+     * Delivers chat relayed from another node to this node's users, keeping it in the history and log like local
+     * chat
+     */
+    void RemoteChat (Frame chat) {
+        history.Add (chat);
+        Prepare (chat);
+        FanOut (connectedUsers.Members (), chat, null);
+        if (log != null) {
+            log.Append (chat);
+        }
+    }
+
+    /**
+     * Tells this node's users about a user joining or leaving another node
+     */
+    void RemoteJoined (String username) {
+        presence.Joined (username);
+    }
+
+    void RemoteLeft (String username) {
+        presence.Left (username);
+    }
+
+    /**
+     * Delivers a whisper routed here from another node, if its recipient is still connected
+     */
+    void RemoteWhisper (String recipient, Frame whisper) {
+        ClientConnection to = connectedUsers.Get (recipient);
+        if (to != null) {
+            Deliver (to, whisper);
+            if (log != null) {
+                log.Append (whisper);
+            }
         }
     }
 }
@@ -0,0 +1,594 @@
+package server;
+
+import common.ChatterboxProtocol;
+import common.Compression;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Startup options for 'ChatterboxServer'. Every option is given on the command line as '--name=value'; anything
+ * not given keeps the default below
+ */
+public class ServerConfig {
+
+    /**
+     * How client connections are driven
+     */
+    public enum Mode {
+        /** One platform thread per connection, blocking socket I/O */
+        THREADS,
+        /** A fixed set of selector threads shared by every connection */
+        NIO,
+        /** One virtual thread per connection, blocking socket I/O; needs a JDK with virtual threads (21+) */
+        VIRTUAL
+    }
+
+    /**
+     * What a connection does with chat once its send buffer is full
+     */
+    public enum Overflow {
+        /** Throw away the oldest queued chat to make room */
+        DROP_OLDEST,
+        /** Throw away the new chat */
+        DROP_NEWEST,
+        /** Send 'FATAL_ERROR' and close the connection */
+        DISCONNECT
+    }
+
+    /**
+     * How eagerly a connection's queued frames are written out
+     */
+    public enum Flush {
+        /** Write as soon as anything is queued, batching only frames that are already waiting */
+        LATENCY,
+        /** Hold the first frame up to 'getCoalesceMicros' so more can join it in the same write */
+        THROUGHPUT
+    }
+
+    /**
+     * The least severe events 'ServerLog' writes, from most to least verbose
+     */
+    public enum LogLevel {
+        /** Every message sent, joins, leaves and errors */
+        DEBUG,
+        /** Joins, leaves, startup and errors */
+        INFO,
+        /** Errors only */
+        WARN,
+        /** Nothing at all */
+        OFF
+    }
+
+    /**
+     * How often one user may send one kind of command: 'perSecond' on average, with up to 'burst' at once. Given on
+     * the command line as 'perSecond/burst' (or just 'perSecond', for a burst of one second's worth); 0 is no limit
+     */
+    public static final class Limit {
+        public static final Limit NONE = new Limit (0, 0);
+
+        private final double perSecond;
+        private final int burst;
+
+        public Limit (double perSecond, int burst) {
+            this.perSecond = perSecond;
+            this.burst = burst;
+        }
+
+        static Limit Parse (String value) {
+            int slash = value.indexOf ('/');
+            double perSecond = Double.parseDouble (slash < 0 ? value : value.substring (0, slash));
+            if (perSecond <= 0) {
+                return NONE;
+            }
+            int burst = slash < 0 ? (int) Math.ceil (perSecond) : Integer.parseInt (value.substring (slash + 1));
+            return new Limit (perSecond, Math.max (1, burst));
+        }
+
+        public double getPerSecond () {
+            return perSecond;
+        }
+
+        public int getBurst () {
+            return burst;
+        }
+
+        /**
+         * @return 'false' for 'NONE'
+         */
+        public boolean isLimited () {
+            return perSecond > 0;
+        }
+
+        @Override
+        public String toString () {
+            return isLimited () ? perSecond + "/" + burst : "0";
+        }
+    }
+
+    /**
+     * Another node of a cluster, given on the command line as 'name@host:port' with the port it links on
+     */
+    public static final class Peer {
+        private final String name;
+        private final String host;
+        private final int port;
+
+        public Peer (String name, String host, int port) {
+            this.name = name;
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * @throws IllegalArgumentException If 'value' is not 'name@host:port', with a port from 1 to 65535
+         */
+        static Peer Parse (String value) {
+            int at = value.indexOf ('@');
+            int colon = value.lastIndexOf (':');
+            if (at <= 0 || colon <= at + 1) {
+                throw new IllegalArgumentException ("Expected a peer as 'name@host:port', got '" + value + "'");
+            }
+            int port;
+            try {
+                port = Integer.parseInt (value.substring (colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException ("Expected a peer as 'name@host:port', got '" + value + "'");
+            }
+            if (port < 1 || port > 65535) {
+                throw new IllegalArgumentException ("Peer port out of range in '" + value + "'");
+            }
+            return new Peer (value.substring (0, at), value.substring (at + 1, colon), port);
+        }
+
+        public String getName () {
+            return name;
+        }
+
+        public String getHost () {
+            return host;
+        }
+
+        public int getPort () {
+            return port;
+        }
+
+        @Override
+        public String toString () {
+            return name + "@" + host + ":" + port;
+        }
+    }
+
+    private Mode mode;
+    private int port;
+    private int backlog;
+    private int acceptors;
+    private int maxHandshakes;
+    private long handshakeTimeoutMillis;
+    private int eventLoops;
+    private int shards;
+    private long presenceMillis;
+    private LogLevel logLevel;
+    private int compressThreshold;
+    private long sendBufferBytes;
+    private Overflow overflow;
+    private Limit chatLimit;
+    private Limit whisperLimit;
+    private Limit listLimit;
+    private Flush flush;
+    private int coalesceBytes;
+    private long coalesceMicros;
+    private int historySize;
+    private long historyBytes;
+    private int replayOnJoin;
+    private String logDirectory;
+    private int logSegmentBytes;
+    private long logSyncMillis;
+    private long logQueueBytes;
+    private Set<String> admins;
+    private int metricsSample;
+    private String nodeName;
+    private int clusterPort;
+    private String clusterBind;
+    private String clusterSecret;
+    private Peer[] peers;
+
+    public ServerConfig () {
+        mode = Mode.THREADS;
+        port = ChatterboxProtocol.PORT;
+        backlog = 4096;
+        acceptors = 1;
+        maxHandshakes = 0;
+        handshakeTimeoutMillis = 0;
+        eventLoops = Runtime.getRuntime ().availableProcessors ();
+        shards = 0;
+        presenceMillis = 100;
+        logLevel = LogLevel.INFO;
+        compressThreshold = Compression.DEFAULT_THRESHOLD;
+        sendBufferBytes = 256 * 1024;
+        overflow = Overflow.DROP_OLDEST;
+        chatLimit = Limit.NONE;
+        whisperLimit = Limit.NONE;
+        listLimit = Limit.NONE;
+        flush = Flush.LATENCY;
+        coalesceBytes = 64 * 1024;
+        coalesceMicros = 500;
+        historySize = 100;
+        historyBytes = 64 * 1024;
+        replayOnJoin = 20;
+        logDirectory = null;
+        logSegmentBytes = 64 * 1024 * 1024;
+        logSyncMillis = 0;
+        logQueueBytes = 16 * 1024 * 1024;
+        admins = Collections.emptySet ();
+        metricsSample = 8;
+        nodeName = null;
+        clusterPort = 0;
+        clusterBind = "127.0.0.1";
+        clusterSecret = null;
+        peers = new Peer[0];
+    }
+
+    /**
+     * Builds a config from 'ChatterboxServer's command line arguments
+     *
+     * @param args Arguments of the form '--name=value'
+     * @return The parsed config
+     * @throws IllegalArgumentException If an argument is malformed or unknown, or '--max-handshakes' is given
+     * without a '--handshake-timeout'
+     */
+    public static ServerConfig Parse (String[] args) {
+        ServerConfig config = new ServerConfig ();
+        for (String arg : args) {
+            if (!arg.startsWith ("--") || !arg.contains ("=")) {
+                throw new IllegalArgumentException ("Expected '--name=value', got '" + arg + "'");
+            }
+            String name = arg.substring (2, arg.indexOf ('='));
+            String value = arg.substring (arg.indexOf ('=') + 1);
+
+            switch (name) {
+                case "mode":
+                    config.mode = Mode.valueOf (value.toUpperCase ());
+                    break;
+                case "port":
+                    config.port = Integer.parseInt (value);
+                    break;
+                case "backlog":
+                    config.backlog = Integer.parseInt (value);
+                    break;
+                case "acceptors":
+                    config.acceptors = Integer.parseInt (value);
+                    break;
+                case "max-handshakes":
+                    config.maxHandshakes = Integer.parseInt (value);
+                    break;
+                case "handshake-timeout":
+                    config.handshakeTimeoutMillis = Long.parseLong (value);
+                    break;
+                case "loops":
+                    config.eventLoops = Integer.parseInt (value);
+                    break;
+                case "shards":
+                    config.shards = Integer.parseInt (value);
+                    break;
+                case "presence-millis":
+                    config.presenceMillis = Long.parseLong (value);
+                    break;
+                case "log-level":
+                    config.logLevel = LogLevel.valueOf (value.toUpperCase ());
+                    break;
+                case "compress-threshold":
+                    config.compressThreshold = Integer.parseInt (value);
+                    break;
+                case "send-buffer":
+                    config.sendBufferBytes = Long.parseLong (value);
+                    break;
+                case "overflow":
+                    config.overflow = Overflow.valueOf (value.toUpperCase ().replace ('-', '_'));
+                    break;
+                case "chat-limit":
+                    config.chatLimit = Limit.Parse (value);
+                    break;
+                case "whisper-limit":
+                    config.whisperLimit = Limit.Parse (value);
+                    break;
+                case "list-limit":
+                    config.listLimit = Limit.Parse (value);
+                    break;
+                case "flush":
+                    config.flush = Flush.valueOf (value.toUpperCase ());
+                    break;
+                case "coalesce-bytes":
+                    config.coalesceBytes = Integer.parseInt (value);
+                    break;
+                case "coalesce-micros":
+                    config.coalesceMicros = Long.parseLong (value);
+                    break;
+                case "history":
+                    config.historySize = Integer.parseInt (value);
+                    break;
+                case "history-bytes":
+                    config.historyBytes = Long.parseLong (value);
+                    break;
+                case "replay":
+                    config.replayOnJoin = Integer.parseInt (value);
+                    break;
+                case "log-dir":
+                    config.logDirectory = value;
+                    break;
+                case "log-segment-bytes":
+                    config.logSegmentBytes = Integer.parseInt (value);
+                    break;
+                case "log-sync-millis":
+                    config.logSyncMillis = Long.parseLong (value);
+                    break;
+                case "log-queue-bytes":
+                    config.logQueueBytes = Long.parseLong (value);
+                    break;
+                case "metrics-sample":
+                    config.metricsSample = Integer.parseInt (value);
+                    break;
+                case "node":
+                    config.nodeName = value;
+                    break;
+                case "cluster-port":
+                    config.clusterPort = Integer.parseInt (value);
+                    break;
+                case "cluster-bind":
+                    config.clusterBind = value;
+                    break;
+                case "cluster-secret":
+                    config.clusterSecret = value.isEmpty () ? null : value;
+                    break;
+                case "peers":
+                    String[] peers = value.isEmpty () ? new String[0] : value.split (",", -1);
+                    config.peers = new Peer[peers.length];
+                    for (int i = 0; i < peers.length; i++) {
+                        config.peers[i] = Peer.Parse (peers[i]);
+                    }
+                    break;
+                case "admins":
+                    config.admins = new HashSet<> (Arrays.asList (value.split (",")));
+                    config.admins.remove ("");
+                    break;
+                default:
+                    throw new IllegalArgumentException ("Unknown option '" + name + "'");
+            }
+        }
+        // Otherwise connections that never send a name would hold the slots, and the server stop accepting, for ever
+        if (config.maxHandshakes > 0 && config.handshakeTimeoutMillis <= 0) {
+            throw new IllegalArgumentException ("'--max-handshakes' needs a '--handshake-timeout' as well");
+        }
+        return config;
+    }
+
+    public Mode getMode () {
+        return mode;
+    }
+
+    public int getPort () {
+        return port;
+    }
+
+    /**
+     * @return How many connections the kernel may hold that have not been accepted yet ('--backlog=4096'); the
+     * kernel caps it at 'net.core.somaxconn'
+     */
+    public int getBacklog () {
+        return backlog;
+    }
+
+    /**
+     * @return How many threads accept connections on the client port ('--acceptors=1')
+     */
+    public int getAcceptors () {
+        return acceptors;
+    }
+
+    /**
+     * @return How many accepted connections may still be negotiating a username before the server stops accepting
+     * more ('--max-handshakes=256'), leaving the rest in the backlog; 0, the default, accepts without limit. Needs
+     * a handshake timeout, so idle connections cannot hold every slot
+     */
+    public int getMaxHandshakes () {
+        return maxHandshakes;
+    }
+
+    /**
+     * @return How long an accepted connection has to negotiate a username before it is closed, in milliseconds
+     * ('--handshake-timeout=10000'); 0, the default, waits for ever, as a person may take their time choosing one
+     */
+    public long getHandshakeTimeoutMillis () {
+        return handshakeTimeoutMillis;
+    }
+
+    public int getEventLoops () {
+        return eventLoops;
+    }
+
+    /**
+     * @return How many 'Shard's users are split between ('--shards=4'); 0, the default, delivers everything on
+     * the sending thread instead
+     */
+    public int getShards () {
+        return shards;
+    }
+
+    /**
+     * @return How long joins and leaves are collected before users are told about them together
+     * ('--presence-millis=100'); 0 tells everybody about each one as it happens
+     */
+    public long getPresenceMillis () {
+        return presenceMillis;
+    }
+
+    /**
+     * @return How much the server logs to the console ('--log-level=debug'); per-message events are only at 'DEBUG'.
+     * The console log is shared by the whole JVM, so this is applied once, by 'ChatterboxServer.main'
+     */
+    public LogLevel getLogLevel () {
+        return logLevel;
+    }
+
+    /**
+     * @return The smallest chat payload, in bytes, sent compressed to clients that offer 'deflate'
+     * ('--compress-threshold=512'); 0 turns compression off
+     */
+    public int getCompressThreshold () {
+        return compressThreshold;
+    }
+
+    /**
+     * @return How many bytes of chat may be queued for one connection before 'getOverflow' applies
+     */
+    public long getSendBufferBytes () {
+        return sendBufferBytes;
+    }
+
+    public Overflow getOverflow () {
+        return overflow;
+    }
+
+    /**
+     * @return How often one user may send chat, to everyone or to a room ('--chat-limit=20/40'); unlimited unless
+     * given
+     */
+    public Limit getChatLimit () {
+        return chatLimit;
+    }
+
+    /**
+     * @return How often one user may whisper ('--whisper-limit=10/20'); unlimited unless given
+     */
+    public Limit getWhisperLimit () {
+        return whisperLimit;
+    }
+
+    /**
+     * @return How often one user may ask who is online, or an admin for 'STATS' ('--list-limit=1/5'); unlimited
+     * unless given
+     */
+    public Limit getListLimit () {
+        return listLimit;
+    }
+
+    public Flush getFlush () {
+        return flush;
+    }
+
+    /**
+     * @return The most bytes a connection hands to the kernel in one write
+     */
+    public int getCoalesceBytes () {
+        return coalesceBytes;
+    }
+
+    /**
+     * @return How long a frame may wait for company in 'THROUGHPUT' mode; always 0 in 'LATENCY' mode
+     */
+    public long getCoalesceMicros () {
+        return flush == Flush.THROUGHPUT ? coalesceMicros : 0;
+    }
+
+    /**
+     * @return How many chat messages are kept for replay, for the main chat and for each room
+     */
+    public int getHistorySize () {
+        return historySize;
+    }
+
+    /**
+     * @return The most payload bytes of history replayed at once
+     */
+    public long getHistoryBytes () {
+        return historyBytes;
+    }
+
+    /**
+     * @return How many of the kept messages are replayed to someone joining; 0 for none
+     */
+    public int getReplayOnJoin () {
+        return replayOnJoin;
+    }
+
+    /**
+     * @return Where to keep the durable chat log, or 'null' to keep none
+     */
+    public String getLogDirectory () {
+        return logDirectory;
+    }
+
+    public int getLogSegmentBytes () {
+        return logSegmentBytes;
+    }
+
+    /**
+     * @return The least time between forcing the chat log to disk; 0 forces once per batch of appends
+     */
+    public long getLogSyncMillis () {
+        return logSyncMillis;
+    }
+
+    /**
+     * @return How much chat may wait for the chat log's appender, by payload size ('--log-queue-bytes=16777216');
+     * past that, chat is delivered but not logged. 0 queues without limit
+     */
+    public long getLogQueueBytes () {
+        return logQueueBytes;
+    }
+
+    /**
+     * @return Time one in this many commands and queue fills per connection (rounded up to a power of two); 0
+     * times none, though commands are still counted
+     */
+    public int getMetricsSample () {
+        return metricsSample;
+    }
+
+    /**
+     * @return This server's name in a cluster ('--node=a'), or 'null' to run on its own
+     */
+    public String getNodeName () {
+        return nodeName;
+    }
+
+    /**
+     * @return The port other nodes link to; defaults to 'getPort' + 100
+     */
+    public int getClusterPort () {
+        return clusterPort != 0 ? clusterPort : port + 100;
+    }
+
+    /**
+     * @return The address the cluster port listens on ('--cluster-bind=127.0.0.1'); nodes on other hosts need it
+     * to be an interface they can reach, which should be on a network only the nodes share
+     */
+    public String getClusterBind () {
+        return clusterBind;
+    }
+
+    /**
+     * @return The secret every node of the cluster must be given to link to the others ('--cluster-secret=...'),
+     * or 'null' to let anything that reaches the cluster port link as a node
+     */
+    public String getClusterSecret () {
+        return clusterSecret;
+    }
+
+    /**
+     * @return The other nodes, each given as 'name@host:port' with their cluster port ('--peers=b@host:6889,...')
+     */
+    public Peer[] getPeers () {
+        return peers;
+    }
+
+    /**
+     * @return The users allowed to ask for 'STATS' ('--admins=alice,bob'); empty, the default, lets nobody, leaving
+     * the stats to JMX
+     */
+    public Set<String> getAdmins () {
+        return admins;
+    }
+}
@@ -0,0 +1,191 @@
+package server;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's console log, kept off the threads that move messages. Logging an event only checks the level and
+ * claims a slot in a ring allocated up front, storing the event's parts as they are; a background thread turns
+ * them into lines and writes them to 'System.out' in batches, so the console's lock and its I/O are never on a
+ * message's path. Per-message events are 'DEBUG' and so cost a single comparison unless '--log-level=debug'.
+ *
+ * When the ring is full the event is dropped and counted, rather than making the caller wait. Any thread may log.
+ * With nothing to write the writer parks until the next event is published, so an idle server never wakes it
+ */
+final class ServerLog {
+
+    private static final int CAPACITY = 1 << 14;
+    private static final long FLUSH_POLL_NANOS = 1_000_000;
+
+    /**
+     * One event; 'published' is the sequence number it was written for, once its other fields are complete
+     */
+    private static final class Slot {
+        volatile long published = -1;
+        Object a;
+        Object b;
+        Object c;
+        Object d;
+        Object e;
+    }
+
+    private static final Slot[] slots = new Slot[CAPACITY];
+    private static final AtomicLong claimed = new AtomicLong ();
+    private static final LongAdder dropped = new LongAdder ();
+    private static volatile long written;
+    private static volatile int threshold = ServerConfig.LogLevel.INFO.ordinal ();
+    private static final AtomicBoolean sleeping = new AtomicBoolean (false);
+    private static final Thread writer = new Thread (ServerLog::Write, "server-log");
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot ();
+        }
+        writer.setDaemon (true);
+        writer.start ();
+    }
+
+    private ServerLog () {
+    }
+
+    /**
+     * @param level The least severe level that is logged from now on
+     */
+    static void setLevel (ServerConfig.LogLevel level) {
+        threshold = level.ordinal ();
+    }
+
+    /**
+     * @return 'true' if events at 'level' are being logged
+     */
+    static boolean IsEnabled (ServerConfig.LogLevel level) {
+        return level.ordinal () >= threshold;
+    }
+
+    /**
+     * @return How many events have been dropped for a full ring since startup
+     */
+    static long getDropped () {
+        return dropped.sum ();
+    }
+
+    /**
+     * Logs a per-message event, made of parts that are only turned into text on the writer thread. The parts must
+     * not change afterwards
+     */
+    static void Debug (Object a, Object b, Object c) {
+        if (IsEnabled (ServerConfig.LogLevel.DEBUG)) {
+            Publish (a, b, c, null, null);
+        }
+    }
+
+    static void Debug (Object a, Object b, Object c, Object d, Object e) {
+        if (IsEnabled (ServerConfig.LogLevel.DEBUG)) {
+            Publish (a, b, c, d, e);
+        }
+    }
+
+    static void Debug (String message) {
+        if (IsEnabled (ServerConfig.LogLevel.DEBUG)) {
+            Publish (message, null, null, null, null);
+        }
+    }
+
+    static void Info (String message) {
+        if (IsEnabled (ServerConfig.LogLevel.INFO)) {
+            Publish (message, null, null, null, null);
+        }
+    }
+
+    static void Warn (String message) {
+        if (IsEnabled (ServerConfig.LogLevel.WARN)) {
+            Publish (message, null, null, null, null);
+        }
+    }
+
+    /**
+     * Waits, up to 'millis', for everything logged so far to be written; called on shutdown
+     */
+    static void Flush (long millis) {
+        long target = claimed.get ();
+        long deadline = System.nanoTime () + millis * 1_000_000;
+        while (written < target && System.nanoTime () < deadline) {
+            LockSupport.parkNanos (FLUSH_POLL_NANOS);
+        }
+    }
+
+    private static void Publish (Object a, Object b, Object c, Object d, Object e) {
+        long sequence;
+        do {
+            sequence = claimed.get ();
+            if (sequence - written >= CAPACITY) {
+                dropped.increment ();
+                return;
+            }
+        } while (!claimed.compareAndSet (sequence, sequence + 1));
+
+        Slot slot = slots[(int) (sequence & (CAPACITY - 1))];
+        slot.a = a;
+        slot.b = b;
+        slot.c = c;
+        slot.d = d;
+        slot.e = e;
+        slot.published = sequence;
+        if (sleeping.get () && sleeping.compareAndSet (true, false)) {
+            LockSupport.unpark (writer);
+        }
+    }
+
+    private static void Write () {
+        StringBuilder lines = new StringBuilder ();
+        long next = 0;
+        while (true) {
+            Slot slot = slots[(int) (next & (CAPACITY - 1))];
+            if (slot.published != next) {
+                if (lines.length () > 0) {
+                    // Looked up each time, so a caller that swaps 'System.out' still gets the output
+                    PrintStream out = System.out;
+                    out.print (lines);
+                    out.flush ();
+                    lines.setLength (0);
+                    written = next;
+                }
+                // Publishers unpark us once 'sleeping' is set; checking again after setting it closes the gap
+                sleeping.set (true);
+                if (slot.published != next) {
+                    LockSupport.park ();
+                }
+                sleeping.set (false);
+                continue;
+            }
+
+            Append (lines, slot.a);
+            Append (lines, slot.b);
+            Append (lines, slot.c);
+            Append (lines, slot.d);
+            Append (lines, slot.e);
+            lines.append (System.lineSeparator ());
+            slot.a = slot.b = slot.c = slot.d = slot.e = null;
+            next++;
+            if (lines.length () >= 1 << 16) {
+                System.out.print (lines);
+                lines.setLength (0);
+                written = next;
+            }
+        }
+    }
+
+    private static void Append (StringBuilder lines, Object part) {
+        if (part == null) {
+            return;
+        }
+        try {
+            lines.append (part);
+        } catch (RuntimeException e) {
+            lines.append ("<").append (e).append (">");
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package server;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Publishes a 'ServerBase's gauges and counters over JMX, so they can be watched with 'jconsole' or any other
+ * JMX client without going through the chat protocol. Every attribute is read on demand; nothing here touches the
+ * hot path
+ */
+public class ServerStats implements ServerStatsMBean {
+
+    private final ServerBase server;
+
+    private ServerStats (ServerBase server) {
+        this.server = server;
+    }
+
+    /**
+     * Registers 'server's stats with the platform MBean server
+     *
+     * @param server The server to publish
+     * @throws JMException If the name is already taken, for instance by another server in the same JVM
+     */
+    public static void Register (ServerBase server) throws JMException {
+        ManagementFactory.getPlatformMBeanServer ().registerMBean (new ServerStats (server),
+                new ObjectName ("chatterbox:type=Server"));
+    }
+
+    @Override
+    public int getConnections () {
+        return server.getConnectionCount ();
+    }
+
+    @Override
+    public int getRooms () {
+        return server.getRoomCount ();
+    }
+
+    @Override
+    public long getQueuedFrames () {
+        return server.QueueDepths ()[0];
+    }
+
+    @Override
+    public long getQueuedBytes () {
+        return server.QueueDepths ()[1];
+    }
+
+    @Override
+    public long getDeepestQueue () {
+        return server.QueueDepths ()[2];
+    }
+
+    @Override
+    public long getDroppedFrames () {
+        return server.getDroppedFrames ();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects () {
+        return server.getSlowConsumerDisconnects ();
+    }
+
+    @Override
+    public long getSocketWrites () {
+        return server.getSocketWrites ();
+    }
+
+    @Override
+    public long getFramesWritten () {
+        return server.getFramesWritten ();
+    }
+
+    @Override
+    public long getThrottledCommands () {
+        return server.getThrottledCommands ();
+    }
+
+    @Override
+    public String[] getReport () {
+        return server.Stats ().toArray (new String[0]);
+    }
+}
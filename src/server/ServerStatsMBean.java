@@ -0,0 +1,32 @@
+package server;
+
+/**
+ * The management interface 'ServerStats' publishes over JMX, as 'chatterbox:type=Server'
+ */
+public interface ServerStatsMBean {
+
+    int getConnections ();
+
+    int getRooms ();
+
+    long getQueuedFrames ();
+
+    long getQueuedBytes ();
+
+    long getDeepestQueue ();
+
+    long getDroppedFrames ();
+
+    long getSlowConsumerDisconnects ();
+
+    long getSocketWrites ();
+
+    long getFramesWritten ();
+
+    long getThrottledCommands ();
+
+    /**
+     * @return Everything 'ServerBase.Stats' reports, per-command timings included
+     */
+    String[] getReport ();
+}
@@ -0,0 +1,162 @@
+package server;
+
+import common.Frame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One partition of the connected users, picked by a hash of the username ('--shards=N'). A shard keeps its own
+ * 'UserRegistry' and owns one thread, the only one that ever hands frames to its users: a broadcast becomes one
+ * task per shard rather than one send per user on the sender's thread, and a whisper is handed straight to the
+ * recipient's shard. Tasks arrive on an 'MpscQueue', so posting never takes a lock; the owner sleeps when it has
+ * nothing to do and is woken by the next post.
+ *
+ * Posting never waits either, as the poster may be an 'EventLoop' with other connections to serve. Once
+ * 'BACKLOG_LIMIT' tasks are waiting, chat (anything 'Frame.IsDroppable') is thrown away and counted instead of
+ * queued, as a user's own 'SendQueue' would when full; replies, errors and presence are always queued.
+ *
+ * Adding and removing users stays with 'ServerBase', under its membership lock
+ */
+class Shard {
+
+    /**
+     * How many tasks may wait before chat posted to the shard is dropped
+     */
+    private static final int BACKLOG_LIMIT = 1 << 16;
+
+    /**
+     * A frame for one user, or for every user of the shard but 'except' when 'to' is 'null'
+     */
+    private static final class Delivery {
+        final Frame frame;
+        final ClientConnection to;
+        final ClientConnection except;
+
+        Delivery (Frame frame, ClientConnection to, ClientConnection except) {
+            this.frame = frame;
+            this.to = to;
+            this.except = except;
+        }
+    }
+
+    private final UserRegistry users;
+    private final MpscQueue<Delivery> tasks;
+    private final AtomicInteger backlog;
+    private final LongAdder dropped;
+    private final Thread owner;
+
+    private volatile boolean waiting;
+    private volatile boolean closed;
+
+    Shard (int index) {
+        this.users = new UserRegistry ();
+        this.tasks = new MpscQueue<> ();
+        this.backlog = new AtomicInteger ();
+        this.dropped = new LongAdder ();
+        this.owner = new Thread (this::Run, "shard-" + index);
+        owner.setDaemon (true);
+    }
+
+    void Start () {
+        owner.start ();
+    }
+
+    /**
+     * Stops the owner thread; anything still waiting is not delivered
+     */
+    void Close () {
+        closed = true;
+        LockSupport.unpark (owner);
+    }
+
+    /**
+     * @return The users that hash to this shard
+     */
+    UserRegistry getUsers () {
+        return users;
+    }
+
+    /**
+     * @return How many tasks are waiting for the owner
+     */
+    int getBacklog () {
+        return backlog.get ();
+    }
+
+    /**
+     * @return How many chat frames were dropped because the backlog was full
+     */
+    long getDropped () {
+        return dropped.sum ();
+    }
+
+    /**
+     * Queues a frame for every user of the shard
+     *
+     * @param frame The frame to send
+     * @param except A user to leave out, or 'null'
+     */
+    void Post (Frame frame, ClientConnection except) {
+        Enqueue (new Delivery (frame, null, except));
+    }
+
+    /**
+     * Queues a frame for one user of the shard
+     *
+     * @param to The user to send to
+     * @param frame The frame to send
+     */
+    void Post (ClientConnection to, Frame frame) {
+        Enqueue (new Delivery (frame, to, null));
+    }
+
+    private void Enqueue (Delivery delivery) {
+        if (backlog.get () >= BACKLOG_LIMIT && delivery.frame.IsDroppable ()) {
+            dropped.increment ();
+            return;
+        }
+        backlog.incrementAndGet ();
+        tasks.Offer (delivery);
+        if (waiting) {
+            LockSupport.unpark (owner);
+        }
+    }
+
+    private void Run () {
+        while (!closed) {
+            Delivery next = tasks.Poll ();
+            if (next == null) {
+                // Say we are going to sleep before looking one last time, so a post racing with us wakes us up
+                waiting = true;
+                next = tasks.Poll ();
+                if (next == null) {
+                    LockSupport.park (this);
+                    waiting = false;
+                    continue;
+                }
+                waiting = false;
+            }
+            backlog.decrementAndGet ();
+
+            try {
+                Deliver (next);
+            } catch (RuntimeException e) {
+                ServerLog.Warn ("Shard '" + owner.getName () + "' could not deliver '" + next.frame + "': " + e);
+            }
+        }
+    }
+
+    private void Deliver (Delivery delivery) {
+        if (delivery.to != null) {
+            delivery.to.Send (delivery.frame);
+            return;
+        }
+        for (ClientConnection target : users.Members ()) {
+            if (target != delivery.except) {
+                target.Send (delivery.frame);
+            }
+        }
+    }
+}
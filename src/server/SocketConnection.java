@@ -0,0 +1,187 @@
+package server;
+
+import common.CommandView;
+import common.Exceptions.ParseException;
+import common.Frame;
+import common.MessageReader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A 'ClientConnection' backed by a blocking 'Socket'. Each instance is run on its own thread by
+ * 'ChatterboxServer' when running in thread-per-connection mode (platform or virtual threads, depending on the
+ * factory it was given); that thread spends its idle time parked in a blocking read. Outbound lines are queued
+ * and written by a second, per-connection writer thread, so whoever sends to this user never waits on its socket;
+ * if the user stops reading, their queue's overflow policy decides what gives
+ */
+public class SocketConnection extends ClientConnection implements Runnable {
+
+    /**
+     * How long the reader waits for the writer to flush the last frames before closing the socket under it
+     */
+    private static final long CLOSE_GRACE_MILLIS = 5000;
+
+    /**
+     * The writer's batch buffer starts this big and grows up to 'ServerConfig.getCoalesceBytes' as needed
+     */
+    private static final int INITIAL_BATCH = 1024;
+
+    private final Socket socket;
+    private final ThreadFactory threads;
+
+    private MessageReader clientReader;
+    private OutputStream clientWriter;
+
+    public SocketConnection (Socket socket, ServerBase server, ThreadFactory threads) throws IOException {
+        super (server);
+        this.socket = socket;
+        this.threads = threads;
+
+        clientReader = new MessageReader (socket.getInputStream ());
+        clientWriter = socket.getOutputStream ();
+    }
+
+    @Override
+    public void run () {
+        Thread writer = threads.newThread (this::Write);
+        writer.setName (Thread.currentThread ().getName () + "-writer");
+        writer.start ();
+
+        //-----------------------------------<Main Phase>-----------------------------------//
+        boolean wasConnected = false;
+        long timeout = server.getConfig ().getHandshakeTimeoutMillis ();
+        long deadline = System.nanoTime () + timeout * 1_000_000;
+        try {
+            CommandView fromClient = new CommandView ();
+            while (connected || !wasConnected) {
+                if (!wasConnected && timeout > 0) {
+                    // Until the user has a name, each read only waits out what is left of the handshake
+                    long remaining = (deadline - System.nanoTime ()) / 1_000_000;
+                    if (remaining <= 0) {
+                        ServerLog.Debug ("SocketConnection: Closed a connection that never sent a username");
+                        break;
+                    }
+                    socket.setSoTimeout ((int) Math.min (Integer.MAX_VALUE, remaining));
+                }
+                if (!clientReader.ReadInto (fromClient, TimeCommand ())) {
+                    break;
+                }
+                HandleCommand (fromClient, clientReader.getParseStarted ());
+                CompletableFuture<Boolean> claim = getPendingClaim ();
+                if (claim != null) {
+                    // This thread is the connection's own, so it may wait out the node arbitrating the name
+                    claim.join ();
+                    FinishConnect ();
+                }
+                if (encoding != Frame.Encoding.TEXT) {
+                    clientReader.SwitchToBinary ();
+                }
+                if (connected && !wasConnected && timeout > 0) {
+                    socket.setSoTimeout (0);
+                }
+                wasConnected |= connected;
+            }
+        } catch (SocketTimeoutException e) {
+            ServerLog.Debug ("SocketConnection: Closed a connection that never sent a username");
+        } catch (IOException | ParseException e) {
+            // The client's socket went away, or it sent something we cannot frame
+        }
+
+        //---------------------------------<Shutdown Phase>---------------------------------//
+        Dropped ();
+        outbound.Close ();
+
+        // A writer still going after this is stuck on a client that has stopped reading
+        try {
+            writer.join (CLOSE_GRACE_MILLIS);
+        } catch (InterruptedException e) {
+            //
+        }
+        if (writer.isAlive ()) {
+            CloseSocket ();
+        }
+    }
+
+    /**
+     * The writer thread's loop: drains the outbound queue onto the socket until it is closed and empty or a write
+     * fails. Frames are copied into one batch buffer and written together, up to 'ServerConfig.getCoalesceBytes'
+     * per write; in throughput mode the batch is held open up to 'ServerConfig.getCoalesceMicros' for more to join
+     */
+    private void Write () {
+        int maxBatch = server.getConfig ().getCoalesceBytes ();
+        byte[] batch = new byte[Math.min (INITIAL_BATCH, maxBatch)];
+        long delay = server.getConfig ().getCoalesceMicros () * 1000;
+
+        try {
+            Frame next = outbound.Take ();
+            while (next != null) {
+                int used = 0;
+                int frames = 0;
+                long queuedSince = outbound.getTakenSince ();
+                long deadline = System.nanoTime () + delay;
+                while (next != null) {
+                    int length = next.Length (encoding);
+                    if (used + length > batch.length) {
+                        if (used + length > maxBatch) {
+                            break;
+                        }
+                        // Only connections that actually see bursts pay for a big batch buffer
+                        batch = Arrays.copyOf (batch, Math.min (maxBatch, Math.max (batch.length * 2, used + length)));
+                    }
+                    used += next.CopyTo (batch, used, encoding);
+                    frames++;
+                    next = outbound.Poll (deadline);
+                }
+
+                if (frames > 0) {
+                    clientWriter.write (batch, 0, used);
+                    server.CountWrite (frames, queuedSince);
+                } else {
+                    // Too big to batch
+                    next.WriteTo (clientWriter, encoding);
+                    server.CountWrite (1, queuedSince);
+                    next = null;
+                }
+                if (next == null) {
+                    next = outbound.Take ();
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            //
+        }
+
+        // Closing here also wakes the reader if it is still blocked on a dead client
+        CloseSocket ();
+    }
+
+    private void CloseSocket () {
+        try {
+            socket.close ();
+        } catch (IOException e) {
+            //
+        }
+    }
+
+    @Override
+    public void Send (Frame frame) {
+        Enqueue (frame);
+    }
+
+    /**
+     * Wakes the reader so it drops the user; the writer gets the 'FATAL_ERROR' out if the client ever reads again
+     */
+    @Override
+    protected void Overflowed () {
+        try {
+            socket.shutdownInput ();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often one user may send one kind of command: a bucket of 'Limit.getBurst' tokens, refilled at
+ * 'Limit.getPerSecond', one taken per command. Rather than a token count and a refill timer, the whole state is the
+ * time at which the bucket will be full again, in one 'AtomicLong'; taking a token is a read and a compare-and-set
+ * that pushes that time on by one token's worth, so no lock is taken and nothing runs in the background
+ */
+final class TokenBucket {
+
+    /**
+     * Nanoseconds it takes to refill one token
+     */
+    private final long interval;
+    /**
+     * How far ahead of now 'refilled' may be while a token is left: all but one of the bucket's tokens
+     */
+    private final long tolerance;
+    private final AtomicLong refilled;
+    /**
+     * Until when the user has already been told to wait, so a flood is answered once per wait rather than once per
+     * command
+     */
+    private final AtomicLong quietUntil;
+    private final AtomicLong throttled;
+
+    TokenBucket (ServerConfig.Limit limit) {
+        this.interval = Math.max (1, (long) (1e9 / limit.getPerSecond ()));
+        this.tolerance = interval * (limit.getBurst () - 1);
+        this.refilled = new AtomicLong (System.nanoTime ());
+        this.quietUntil = new AtomicLong (refilled.get ());
+        this.throttled = new AtomicLong ();
+    }
+
+    /**
+     * @param now The current 'System.nanoTime'
+     * @return 0 if a token was taken, otherwise how many nanoseconds until one will be, in which case nothing was
+     */
+    long Take (long now) {
+        while (true) {
+            long due = refilled.get ();
+            long ahead = due - now;
+            if (ahead > tolerance) {
+                throttled.incrementAndGet ();
+                return ahead - tolerance;
+            }
+            if (refilled.compareAndSet (due, (ahead > 0 ? due : now) + interval)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Called when 'Take' turned a command away, to decide whether to tell the user so
+     *
+     * @param now The 'System.nanoTime' passed to 'Take'
+     * @param wait What 'Take' returned
+     * @return 'true' for the first command turned away since the last wait told to the user ran out, which should
+     * be answered; the rest are dropped silently
+     */
+    boolean Notify (long now, long wait) {
+        long until = quietUntil.get ();
+        return now - until >= 0 && quietUntil.compareAndSet (until, now + wait);
+    }
+
+    /**
+     * @return How many times 'Take' has turned a command away
+     */
+    long getThrottled () {
+        return throttled.get ();
+    }
+}
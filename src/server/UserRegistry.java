@@ -0,0 +1,251 @@
+package server;
+
+import common.ChatterboxProtocol;
+import common.Frame;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The set of connected users. Lookups never lock; membership changes bump a version number, and the array of
+ * members used for fan-out and the pre-encoded 'USERS' and 'USER_TABLE' replies are rebuilt from the map at most
+ * once per version, the first time someone asks for them after a change.
+ *
+ * The last 'HISTORY' changes are also kept, so a client that has the table at a recent version can be sent just
+ * what changed since ('Delta'). Versions start from a random number, so one a client kept from an earlier run of
+ * the server is as good as never matched.
+ *
+ * 'Add' and 'Remove' must be serialized by the caller ('ServerBase' makes them under its own lock)
+ */
+class UserRegistry {
+
+    /**
+     * An immutable view of the membership at one version
+     */
+    private static final class Snapshot {
+        final long version;
+        final ClientConnection[] members;
+        volatile Frame userList;
+        volatile Frame userTable;
+
+        Snapshot (long version, ClientConnection[] members) {
+            this.version = version;
+            this.members = members;
+        }
+    }
+
+    /**
+     * How many changes are kept for 'Delta'; a power of two
+     */
+    private static final int HISTORY = 4096;
+
+    private final ConcurrentHashMap<String, ClientConnection> users;
+    private volatile long version;
+    private volatile Snapshot snapshot;
+    private final ReentrantLock rebuild;
+
+    /**
+     * The change that brought the registry to version 'v' is at 'v & (HISTORY - 1)': the user's id, and their
+     * name if they joined or 'null' if they left. Guarded by 'changes', as is every write to 'version'
+     */
+    private final long first;
+    private final int[] changedIds;
+    private final byte[][] changedNames;
+    private final ReentrantLock changes;
+
+    UserRegistry () {
+        users = new ConcurrentHashMap<> ();
+        first = ThreadLocalRandom.current ().nextInt (Integer.MAX_VALUE);
+        version = first;
+        snapshot = new Snapshot (first, new ClientConnection[0]);
+        rebuild = new ReentrantLock ();
+        changedIds = new int[HISTORY];
+        changedNames = new byte[HISTORY][];
+        changes = new ReentrantLock ();
+    }
+
+    /**
+     * @param username The name to look up
+     * @return The user's connection, or 'null' if nobody by that name is connected
+     */
+    ClientConnection Get (String username) {
+        return users.get (username);
+    }
+
+    /**
+     * @param client The connection to add under its username
+     * @return 'false' if the name was already taken, in which case nothing changed
+     */
+    boolean Add (ClientConnection client) {
+        if (users.putIfAbsent (client.getUsername (), client) != null) {
+            return false;
+        }
+        Changed (client.getUserId (), client.getUsernameBytes ());
+        return true;
+    }
+
+    /**
+     * @param client The connection to remove
+     * @return 'false' if 'client' was not the connection registered under its username
+     */
+    boolean Remove (ClientConnection client) {
+        if (!users.remove (client.getUsername (), client)) {
+            return false;
+        }
+        Changed (client.getUserId (), null);
+        return true;
+    }
+
+    private void Changed (int id, byte[] name) {
+        changes.lock ();
+        try {
+            int slot = (int) ((version + 1) & (HISTORY - 1));
+            changedIds[slot] = id;
+            changedNames[slot] = name;
+            version++;
+        } finally {
+            changes.unlock ();
+        }
+    }
+
+    /**
+     * @return Every connected user as of the latest change. The array is shared and must not be modified
+     */
+    ClientConnection[] Members () {
+        return Current ().members;
+    }
+
+    /**
+     * @return The 'USERS' reply for the latest membership, encoded at most once per change
+     */
+    Frame UserList () {
+        Snapshot current = Current ();
+        Frame userList = current.userList;
+        if (userList == null) {
+            byte[][] names = new byte[current.members.length][];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = current.members[i].getUsernameBytes ();
+            }
+            current.userList = userList = Frame.OfBytes (ChatterboxProtocol.USERS, names);
+        }
+        return userList;
+    }
+
+    /**
+     * @return The 'USER_TABLE' reply for the latest membership, encoded at most once per change
+     */
+    Frame UserTable () {
+        Snapshot current = Current ();
+        Frame userTable = current.userTable;
+        if (userTable == null) {
+            byte[][] fields = new byte[current.members.length * 2 + 1][];
+            fields[0] = Number (current.version);
+            for (int i = 0; i < current.members.length; i++) {
+                fields[i * 2 + 1] = Number (current.members[i].getUserId ());
+                fields[i * 2 + 2] = current.members[i].getUsernameBytes ();
+            }
+            current.userTable = userTable = Frame.OfBytes (ChatterboxProtocol.USER_TABLE, fields);
+        }
+        return userTable;
+    }
+
+    /**
+     * @param since The version of the table the client already has, or -1 if it has none
+     * @return A 'USER_DELTA' from 'since' to the latest version if one can be made and is smaller than the whole
+     * table, and the 'USER_TABLE' otherwise
+     */
+    Frame UserTableSince (long since) {
+        Frame delta = Delta (since);
+        return delta != null ? delta : UserTable ();
+    }
+
+    /**
+     * Lists who joined and who left between version 'from' and the latest. Users who came and went in between are
+     * listed as having left, so the delta applies to a table at any version between the two, not just 'from'
+     *
+     * @param from The version to start from
+     * @return The 'USER_DELTA', or 'null' if 'from' is not one of the last 'HISTORY' versions, or the delta would
+     * list more users than are connected
+     */
+    Frame Delta (long from) {
+        long to;
+        Map<Integer, byte[]> joined = new LinkedHashMap<> ();
+        List<Integer> left = new ArrayList<> ();
+        changes.lock ();
+        try {
+            to = version;
+            if (from < first || from > to || to - from > HISTORY) {
+                return null;
+            }
+            for (long v = from + 1; v <= to; v++) {
+                int slot = (int) (v & (HISTORY - 1));
+                if (changedNames[slot] != null) {
+                    joined.put (changedIds[slot], changedNames[slot]);
+                } else {
+                    joined.remove (changedIds[slot]);
+                    left.add (changedIds[slot]);
+                }
+            }
+        } finally {
+            changes.unlock ();
+        }
+
+        if (joined.size () * 2 + left.size () > users.size () * 2) {
+            return null;
+        }
+        byte[][] fields = new byte[3 + joined.size () * 2 + left.size ()][];
+        int i = 0;
+        fields[i++] = Number (to);
+        fields[i++] = Number (to - from);
+        fields[i++] = Number (joined.size ());
+        for (Map.Entry<Integer, byte[]> user : joined.entrySet ()) {
+            fields[i++] = Number (user.getKey ());
+            fields[i++] = user.getValue ();
+        }
+        for (int id : left) {
+            fields[i++] = Number (id);
+        }
+        return Frame.OfBytes (ChatterboxProtocol.USER_DELTA, fields);
+    }
+
+    private static byte[] Number (long number) {
+        return Long.toString (number).getBytes (StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return The membership version; changes every time a user is added or removed
+     */
+    long Version () {
+        return version;
+    }
+
+    int Size () {
+        return users.size ();
+    }
+
+    private Snapshot Current () {
+        Snapshot current = snapshot;
+        if (current.version == version) {
+            return current;
+        }
+
+        rebuild.lock ();
+        try {
+            long latest = version;
+            current = snapshot;
+            if (current.version != latest) {
+                current = new Snapshot (latest, users.values ().toArray (new ClientConnection[0]));
+                snapshot = current;
+            }
+            return current;
+        } finally {
+            rebuild.unlock ();
+        }
+    }
+}
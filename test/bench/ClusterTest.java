@@ -0,0 +1,186 @@
+package bench;
+
+import common.ChatterboxProtocol;
+import common.Exceptions.InvalidRecipientException;
+import common.Exceptions.NameTakenException;
+import common.Frame;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import server.ChatterboxServer;
+import server.ClientConnection;
+import server.ServerBase;
+import server.ServerConfig;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Links 'NODES' nodes in this JVM over loopback, sharing a cluster secret, each with 'USERS' in-memory users, and
+ * checks that chat and whispers reach users on other nodes, that usernames are unique across the nodes, that a node
+ * with the wrong secret is not linked, and that a lost node's users are gone from the others. How fast relaying is
+ * is measured by 'ClusterBenchmark'
+ */
+public class ClusterTest {
+
+    private static final int NODES = 3;
+    private static final int USERS = 10;
+    private static final int MESSAGES = 100;
+    private static final String SECRET = "cluster-test-secret";
+
+    /**
+     * An in-memory user that counts the chat it receives, and keeps the last whisper and user list it was sent
+     */
+    private static final class Receiver extends ClientConnection {
+
+        private final LongAdder delivered;
+        volatile String whispered;
+        volatile String users;
+
+        Receiver (ServerBase server, String username, LongAdder delivered) {
+            super (server);
+            this.username = username;
+            this.usernameBytes = username.getBytes (StandardCharsets.UTF_8);
+            this.delivered = delivered;
+        }
+
+        @Override
+        public void Send (Frame frame) {
+            if (ChatterboxProtocol.CHAT_RECEIVED.equals (frame.getCommand ())) {
+                delivered.increment ();
+            } else if (ChatterboxProtocol.WHISPER_RECEIVED.equals (frame.getCommand ())) {
+                whispered = frame.toString ();
+            } else if (ChatterboxProtocol.USERS.equals (frame.getCommand ())) {
+                users = frame.toString ();
+            }
+        }
+
+        /**
+         * @return How many users 'server' says are online, as this user would be told
+         */
+        int Known (ServerBase server) {
+            server.getUserList (this);
+            return users.split (ChatterboxProtocol.SEPARATOR, -1).length - 1;
+        }
+    }
+
+    private static ServerBase[] servers;
+    private static Receiver[][] receivers;
+    private static LongAdder delivered;
+
+    @BeforeAll
+    public static void Link () throws Exception {
+        ChatterboxServer.setLogLevel (ServerConfig.LogLevel.WARN);
+        servers = BenchSupport.Cluster (NODES, SECRET);
+
+        delivered = new LongAdder ();
+        receivers = new Receiver[NODES][USERS];
+        for (int n = 0; n < NODES; n++) {
+            for (int i = 0; i < USERS; i++) {
+                receivers[n][i] = new Receiver (servers[n], "n" + n + "u" + i, delivered);
+                servers[n].connect (receivers[n][i]);
+            }
+        }
+        for (int n = 0; n < NODES; n++) {
+            Receiver asking = receivers[n][0];
+            ServerBase server = servers[n];
+            Await (() -> asking.Known (server) == NODES * USERS, "node" + n + " to hear of every user");
+        }
+    }
+
+    @AfterAll
+    public static void Close () {
+        for (ServerBase server : servers) {
+            server.close ();
+        }
+    }
+
+    @Test
+    public void BroadcastReachesEveryNode () throws Exception {
+        long before = delivered.sum ();
+        for (int i = 0; i < MESSAGES; i++) {
+            for (int n = 0; n < NODES; n++) {
+                servers[n].broadcast ("n" + n + "u0", "message " + i);
+            }
+        }
+        long expected = (long) MESSAGES * NODES * NODES * USERS;
+        Await (() -> delivered.sum () - before >= expected, "broadcasts delivered");
+        Assertions.assertEquals (expected, delivered.sum () - before, "deliveries");
+    }
+
+    @Test
+    public void WhisperCrossesNodes () throws Exception {
+        Receiver recipient = receivers[NODES - 1][5];
+        servers[0].whisper ("n0u1", recipient.getUsername (), "psst");
+        Await (() -> recipient.whispered != null, "whisper delivered");
+        Assertions.assertTrue (recipient.whispered.endsWith ("n0u1" + ChatterboxProtocol.SEPARATOR + "psst"),
+                recipient.whispered);
+    }
+
+    @Test
+    public void NamesAreClaimedAcrossNodes () {
+        String taken = receivers[1][3].getUsername ();
+        Assertions.assertThrows (NameTakenException.class, () -> servers[0].connect (new Receiver (servers[0], taken,
+                new LongAdder ())));
+    }
+
+    @Test
+    public void WrongSecretIsNotLinked () throws Exception {
+        // Named to sort first, so it dials node0 rather than waiting to be dialled
+        ServerBase intruder = new ServerBase (ServerConfig.Parse (new String[] {"--node=a", "--cluster-port=" +
+                BenchSupport.FreePort (), "--peers=node0@localhost:" + servers[0].getConfig ().getClusterPort (),
+                "--cluster-secret=wrong", "--metrics-sample=0"}));
+        try {
+            // Long enough for a couple of dials to be turned away
+            Thread.sleep (2000);
+            Assertions.assertFalse (servers[0].getCluster ().getLinkedNodes ().contains ("a"), "intruder linked");
+            Assertions.assertTrue (intruder.getCluster ().getLinkedNodes ().isEmpty (), "intruder linked");
+        } finally {
+            intruder.close ();
+        }
+    }
+
+    @Test
+    public void LostNodeTakesItsUsers () throws Exception {
+        ServerBase[] pair = BenchSupport.Cluster (2, SECRET);
+        try {
+            Receiver staying = new Receiver (pair[0], "staying", new LongAdder ());
+            pair[0].connect (staying);
+            pair[1].connect (new Receiver (pair[1], "leaving", new LongAdder ()));
+            Await (() -> staying.Known (pair[0]) == 2, "node0 to hear of 'leaving'");
+
+            pair[1].close ();
+            Await (() -> staying.Known (pair[0]) == 1, "node0 to forget 'leaving'");
+            Assertions.assertTrue (pair[0].getCluster ().getLinkedNodes ().isEmpty (), "node1 still linked");
+            Assertions.assertThrows (InvalidRecipientException.class, () -> pair[0].whisper ("staying", "leaving",
+                    "still there?"));
+            // Nobody has the name any more, so it can be taken here
+            pair[0].connect (new Receiver (pair[0], "leaving", new LongAdder ()));
+        } finally {
+            for (ServerBase node : pair) {
+                node.close ();
+            }
+        }
+    }
+
+    /**
+     * A condition to wait for
+     */
+    private interface Condition {
+        boolean Holds ();
+    }
+
+    /**
+     * Waits up to 30 s for 'condition', failing as 'what' if it never holds
+     */
+    private static void Await (Condition condition, String what) throws InterruptedException {
+        long deadline = System.nanoTime () + 30_000_000_000L;
+        while (!condition.Holds ()) {
+            if (System.nanoTime () > deadline) {
+                Assertions.fail ("Timed out waiting for " + what);
+            }
+            Thread.sleep (20);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package bench;
+
+import common.ChatterboxProtocol;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import server.ChatterboxServer;
+import server.ServerBase;
+import server.ServerConfig;
+
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts an in-process 'ChatterboxServer' on a free port, connects a number of clients that then sit idle, and fails
+ * if the whole process burns more than 'MAX_CORE_FRACTION' of one core while nothing is being said; a read loop that
+ * busy-polls its connections costs a core or more
+ */
+public class IdleCpuTest {
+
+    private static final int CLIENTS = 1000;
+    private static final long SECONDS = 3;
+    private static final double MAX_CORE_FRACTION = 0.05;
+
+    @BeforeAll
+    public static void Quiet () {
+        ChatterboxServer.setLogLevel (ServerConfig.LogLevel.WARN);
+    }
+
+    @Test
+    public void ThreadsServerIdles () throws Exception {
+        Idle ("threads");
+    }
+
+    @Test
+    public void NioServerIdles () throws Exception {
+        Idle ("nio");
+    }
+
+    private static void Idle (String mode) throws Exception {
+        ChatterboxServer.Listener listener = BenchSupport.Serve (0, "--mode=" + mode);
+        ServerBase server = listener.getServer ();
+
+        List<Socket> sockets = new ArrayList<> ();
+        try {
+            for (int i = 0; i < CLIENTS; i++) {
+                Socket socket = new Socket ("localhost", listener.getPort ());
+                // Without presence, so joining costs each of them one reply rather than a notice per other client
+                socket.getOutputStream ().write ((ChatterboxProtocol.CONNECT + ChatterboxProtocol.SEPARATOR + mode +
+                        i + ChatterboxProtocol.SEPARATOR + ChatterboxProtocol.CAPABILITY_NO_PRESENCE + "\n").getBytes (
+                        StandardCharsets.UTF_8));
+                sockets.add (socket);
+            }
+            long deadline = System.nanoTime () + 30_000_000_000L;
+            while (server.getConnectionCount () < CLIENTS && System.nanoTime () < deadline) {
+                Thread.sleep (50);
+            }
+            Assertions.assertEquals (CLIENTS, server.getConnectionCount (), "clients connected");
+            // Let the join storm settle, and whatever it left the JIT and GC to do, before measuring
+            Thread.sleep (1000);
+
+            com.sun.management.OperatingSystemMXBean os =
+                    (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean ();
+            long cpuBefore = os.getProcessCpuTime ();
+            long wallBefore = System.nanoTime ();
+            Thread.sleep (SECONDS * 1000);
+            long cpu = os.getProcessCpuTime () - cpuBefore;
+            long wall = System.nanoTime () - wallBefore;
+
+            double fraction = (double) cpu / wall;
+            Assertions.assertTrue (fraction <= MAX_CORE_FRACTION, String.format ("%s server with %d idle clients " +
+                    "used %.1fms CPU over %.1fs, %.3f of one core; more than %.3f", mode, CLIENTS, cpu / 1e6,
+                    wall / 1e9, fraction, MAX_CORE_FRACTION));
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close ();
+            }
+            listener.close ();
+            server.close ();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package bench;
+
+import common.ChatterboxProtocol;
+import common.Exceptions.NameTakenException;
+import common.Exceptions.UserNotInitializedException;
+import common.Frame;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import server.ChatterboxServer;
+import server.ClientConnection;
+import server.ServerBase;
+import server.ServerConfig;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Counts what a reconnect storm costs in presence traffic. 'USERS' users are connected, then every one of them drops
+ * and comes back 'GAP_MILLIS' later, the drops spread evenly over 'SPREAD_MILLIS'. Every frame sent to any user from
+ * the first drop until things have settled is counted, with its binary size.
+ *
+ * The baseline is 'legacy' clients that take a 'USER_JOINED' / 'USER_LEFT' per user, sent as it happens
+ * ('--presence-millis=0', as before batching). Against it, with 'TICK_MILLIS' of collection, 'batch' clients that
+ * agreed on 'CAPABILITY_PRESENCE_BATCH' and 'ids' clients that agreed on 'CAPABILITY_USER_IDS' must be sent a small
+ * fraction of the frames and fewer bytes, and 'none' that agreed on 'CAPABILITY_NO_PRESENCE' only their own replies
+ */
+public class PresenceStormTest {
+
+    private static final int USERS = 5000;
+    private static final long SPREAD_MILLIS = 500;
+    private static final long GAP_MILLIS = 200;
+    private static final long TICK_MILLIS = 100;
+
+    /** How many times fewer frames batched presence must send than legacy */
+    private static final long MIN_FRAME_RATIO = 50;
+    /** The most bytes batched presence may send, as a fraction of legacy */
+    private static final double MAX_BATCH_BYTES = 0.9;
+
+    /**
+     * What every user of a run has been sent, once 'counting' is set
+     */
+    private static class Totals {
+        final LongAdder frames = new LongAdder ();
+        final LongAdder bytes = new LongAdder ();
+        volatile boolean counting;
+    }
+
+    /**
+     * A user that only counts what it is sent
+     */
+    private static class CountingConnection extends ClientConnection {
+        private final Totals totals;
+
+        CountingConnection (ServerBase server, String username, String capability, Totals totals) {
+            super (server);
+            this.username = username;
+            this.usernameBytes = username.getBytes (StandardCharsets.UTF_8);
+            this.encoding = Frame.Encoding.BINARY;
+            this.totals = totals;
+            if (capability != null) {
+                capabilities.add (capability);
+            }
+        }
+
+        @Override
+        public void Send (Frame frame) {
+            if (totals.counting) {
+                totals.frames.increment ();
+                totals.bytes.add (frame.Length (encoding));
+            }
+        }
+    }
+
+    @BeforeAll
+    public static void Quiet () {
+        ChatterboxServer.setLogLevel (ServerConfig.LogLevel.WARN);
+    }
+
+    @Test
+    public void BatchedPresenceSendsFarLess () throws Exception {
+        Totals legacy = Storm (null, 0);
+        Totals batch = Storm (ChatterboxProtocol.CAPABILITY_PRESENCE_BATCH, TICK_MILLIS);
+        Totals ids = Storm (ChatterboxProtocol.CAPABILITY_USER_IDS, TICK_MILLIS);
+        Totals none = Storm (ChatterboxProtocol.CAPABILITY_NO_PRESENCE, TICK_MILLIS);
+
+        Assertions.assertTrue (batch.frames.sum () * MIN_FRAME_RATIO <= legacy.frames.sum (), "batch frames " +
+                batch.frames.sum () + " against legacy " + legacy.frames.sum ());
+        Assertions.assertTrue (batch.bytes.sum () <= legacy.bytes.sum () * MAX_BATCH_BYTES, "batch bytes " +
+                batch.bytes.sum () + " against legacy " + legacy.bytes.sum ());
+        Assertions.assertTrue (ids.frames.sum () * MIN_FRAME_RATIO <= legacy.frames.sum (), "ids frames " +
+                ids.frames.sum () + " against legacy " + legacy.frames.sum ());
+        Assertions.assertTrue (ids.bytes.sum () <= legacy.bytes.sum (), "ids bytes " + ids.bytes.sum () +
+                " against legacy " + legacy.bytes.sum ());
+        // Only the replies each user is sent on coming back
+        Assertions.assertTrue (none.frames.sum () <= 2L * USERS, "none frames " + none.frames.sum ());
+    }
+
+    /**
+     * Runs one storm with every user agreeing on 'capability', or on nothing if it is 'null'
+     */
+    private static Totals Storm (String capability, long tick) throws NameTakenException,
+            UserNotInitializedException {
+        ServerBase server = new ServerBase (ServerConfig.Parse (new String[] {"--presence-millis=" + tick,
+                "--replay=0"}));
+        Totals totals = new Totals ();
+
+        ClientConnection[] connections = new ClientConnection[USERS];
+        for (int i = 0; i < USERS; i++) {
+            connections[i] = new CountingConnection (server, "user" + i, capability, totals);
+            server.connect (connections[i]);
+        }
+        // Let the joins above go out before counting starts; from then on, each user's own replies count too
+        Settle (tick);
+        totals.counting = true;
+
+        long start = System.nanoTime ();
+        long spacing = SPREAD_MILLIS * 1_000_000 / USERS;
+        int dropped = 0;
+        int back = 0;
+        while (back < USERS) {
+            long dropAt = start + dropped * spacing;
+            long backAt = start + back * spacing + GAP_MILLIS * 1_000_000;
+            if (dropped < USERS && dropAt - backAt <= 0) {
+                Await (dropAt);
+                server.disconnect (connections[dropped]);
+                dropped++;
+            } else {
+                Await (backAt);
+                connections[back] = new CountingConnection (server, "user" + back, capability, totals);
+                server.connect (connections[back]);
+                back++;
+            }
+        }
+        Settle (tick);
+        server.close ();
+        return totals;
+    }
+
+    private static void Await (long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime ()) > 0) {
+            LockSupport.parkNanos (remaining);
+        }
+    }
+
+    private static void Settle (long tick) {
+        Await (System.nanoTime () + (tick * 3 + 50) * 1_000_000);
+    }
+}
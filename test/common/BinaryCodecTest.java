@@ -0,0 +1,132 @@
+package common;
+
+import common.Exceptions.ParseException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+/**
+ * 'BinaryCodec' varints and frames surviving a round trip however they are split, and 'Decoder' refusing or
+ * waiting out frames that are cut short
+ */
+public class BinaryCodecTest {
+
+    /**
+     * Either side of every varint byte boundary a field length can reach
+     */
+    private static final int[] LENGTHS = {0, 1, 127, 128, 16383, 16384, 100_000};
+
+    private static byte[] Field (int length) {
+        byte[] field = new byte[length];
+        for (int i = 0; i < length; i++) {
+            field[i] = (byte) ('a' + i % 26);
+        }
+        return field;
+    }
+
+    @Test
+    public void VarintsRoundTrip () {
+        int[] values = {0, 1, 127, 128, 16383, 16384, 2097151, 2097152, BinaryCodec.MAX_FRAME_LENGTH,
+                Integer.MAX_VALUE};
+        for (int value : values) {
+            byte[] bytes = new byte[5];
+            int length = BinaryCodec.WriteVarint (bytes, 0, value);
+            Assertions.assertEquals (BinaryCodec.VarintLength (value), length, "length of " + value);
+
+            int decoded = 0;
+            for (int i = 0; i < length; i++) {
+                decoded |= (bytes[i] & 0x7F) << (7 * i);
+                Assertions.assertEquals (i < length - 1, (bytes[i] & 0x80) != 0, "continuation bit of " + value);
+            }
+            Assertions.assertEquals (value, decoded);
+        }
+    }
+
+    @Test
+    public void FramesRoundTripWhateverTheSplit () throws ParseException {
+        for (int length : LENGTHS) {
+            byte[] frame = BinaryCodec.Encode (ChatterboxProtocol.CHAT_RECEIVED, new byte[][] {Field (3),
+                    Field (length)});
+            for (int chunk : new int[] {1, 7, frame.length}) {
+                BinaryCodec.Decoder decoder = new BinaryCodec.Decoder ();
+                CommandView view = new CommandView ();
+                int fed = 0;
+                while (fed < frame.length) {
+                    Assertions.assertFalse (decoder.HasMessage (), "complete after " + fed + " bytes");
+                    int count = Math.min (chunk, frame.length - fed);
+                    fed += decoder.Feed (frame, fed, count);
+                }
+                Assertions.assertTrue (decoder.HasMessage (), "whole frame fed");
+                decoder.TakeInto (view);
+
+                Assertions.assertEquals (ChatterboxProtocol.CHAT_RECEIVED, view.getCommand ());
+                Assertions.assertEquals (2, view.getFieldCount ());
+                Assertions.assertArrayEquals (Field (3), view.FieldBytes (0));
+                Assertions.assertArrayEquals (Field (length), view.FieldBytes (1), "field of " + length);
+            }
+        }
+    }
+
+    @Test
+    public void BackToBackFramesAreTakenOneAtATime () throws ParseException {
+        byte[] first = BinaryCodec.Encode (ChatterboxProtocol.SEND_CHAT, new String[] {"one"});
+        byte[] second = BinaryCodec.Encode (ChatterboxProtocol.SEND_CHAT, new String[] {"two"});
+        byte[] both = Arrays.copyOf (first, first.length + second.length);
+        System.arraycopy (second, 0, both, first.length, second.length);
+
+        BinaryCodec.Decoder decoder = new BinaryCodec.Decoder ();
+        CommandView view = new CommandView ();
+        int consumed = decoder.Feed (both, 0, both.length);
+        Assertions.assertEquals (first.length, consumed, "stops at the end of the first frame");
+        decoder.TakeInto (view);
+        Assertions.assertEquals ("one", view.Field (0));
+
+        decoder.Feed (both, consumed, both.length - consumed);
+        decoder.TakeInto (view);
+        Assertions.assertEquals ("two", view.Field (0));
+    }
+
+    @Test
+    public void TruncatedFrameIsWaitedFor () throws ParseException {
+        byte[] frame = BinaryCodec.Encode (ChatterboxProtocol.SEND_CHAT, new byte[][] {Field (300)});
+        BinaryCodec.Decoder decoder = new BinaryCodec.Decoder ();
+        // Cut inside the length prefix, then inside the body
+        Assertions.assertEquals (1, decoder.Feed (frame, 0, 1));
+        Assertions.assertFalse (decoder.HasMessage ());
+        Assertions.assertEquals (frame.length - 2, decoder.Feed (frame, 1, frame.length - 2));
+        Assertions.assertFalse (decoder.HasMessage ());
+        decoder.Feed (frame, frame.length - 1, 1);
+        Assertions.assertTrue (decoder.HasMessage ());
+    }
+
+    @Test
+    public void FieldOverrunningItsFrameIsRefused () throws ParseException {
+        // One field claiming 10 bytes, with only 3 left in the frame
+        byte[] body = {(byte) BinaryCodec.Opcode (ChatterboxProtocol.SEND_CHAT), 10, 'a', 'b', 'c'};
+        Assertions.assertThrows (ParseException.class, () -> new CommandView ().ParseBinary (body, body.length));
+
+        // A field length whose varint runs off the end of the frame
+        byte[] cut = {(byte) BinaryCodec.Opcode (ChatterboxProtocol.SEND_CHAT), (byte) 0x80};
+        Assertions.assertThrows (ParseException.class, () -> new CommandView ().ParseBinary (cut, cut.length));
+
+        byte[] frame = {(byte) body.length, body[0], body[1], body[2], body[3], body[4]};
+        BinaryCodec.Decoder decoder = new BinaryCodec.Decoder ();
+        decoder.Feed (frame, 0, frame.length);
+        Assertions.assertThrows (ParseException.class, () -> decoder.TakeInto (new CommandView ()));
+    }
+
+    @Test
+    public void BadLengthsAreRefused () {
+        byte[] empty = {0};
+        Assertions.assertThrows (ParseException.class, () -> new BinaryCodec.Decoder ().Feed (empty, 0, 1));
+
+        byte[] tooBig = new byte[5];
+        int length = BinaryCodec.WriteVarint (tooBig, 0, BinaryCodec.MAX_FRAME_LENGTH + 1);
+        Assertions.assertThrows (ParseException.class, () -> new BinaryCodec.Decoder ().Feed (tooBig, 0, length));
+
+        byte[] endless = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80};
+        Assertions.assertThrows (ParseException.class, () -> new BinaryCodec.Decoder ().Feed (endless, 0,
+                endless.length));
+    }
+}
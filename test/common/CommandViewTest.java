@@ -0,0 +1,64 @@
+package common;
+
+import common.Exceptions.ParseException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 'CommandView.IsTextSafe' refusing binary fields that would not read back as themselves on the text protocol
+ */
+public class CommandViewTest {
+
+    /**
+     * @return A 'SEND_WHISPER' with 'recipient' and 'message', decoded from its binary frame
+     */
+    private static CommandView Whisper (String recipient, String message) throws ParseException {
+        byte[] frame = BinaryCodec.Encode (ChatterboxProtocol.SEND_WHISPER, new byte[][] {
+                recipient.getBytes (StandardCharsets.UTF_8), message.getBytes (StandardCharsets.UTF_8)});
+        BinaryCodec.Decoder decoder = new BinaryCodec.Decoder ();
+        decoder.Feed (frame, 0, frame.length);
+        CommandView view = new CommandView ();
+        decoder.TakeInto (view);
+        Assertions.assertEquals (2, view.getFieldCount ());
+        return view;
+    }
+
+    @Test
+    public void PlainFieldsAreSafe () throws ParseException {
+        Assertions.assertTrue (Whisper ("someone", "hello: there").IsTextSafe ());
+        Assertions.assertTrue (Whisper ("", "").IsTextSafe ());
+    }
+
+    @Test
+    public void LineBreaksAreUnsafeAnywhere () throws ParseException {
+        Assertions.assertFalse (Whisper ("some\none", "hello").IsTextSafe ());
+        Assertions.assertFalse (Whisper ("someone", "hello\nthere").IsTextSafe ());
+        Assertions.assertFalse (Whisper ("someone", "hello\r").IsTextSafe ());
+    }
+
+    @Test
+    public void SeparatorsAreUnsafeBeforeTheLastField () throws ParseException {
+        Assertions.assertFalse (Whisper ("some" + ChatterboxProtocol.SEPARATOR + "one", "hello").IsTextSafe ());
+        // A trailing ':' would run into the separator after it
+        Assertions.assertFalse (Whisper ("someone:", "hello").IsTextSafe ());
+        Assertions.assertTrue (Whisper ("some:one", "hello").IsTextSafe ());
+    }
+
+    @Test
+    public void SeparatorsAreSafeInTheLastField () throws ParseException {
+        Assertions.assertTrue (Whisper ("someone", "a" + ChatterboxProtocol.SEPARATOR + "b:").IsTextSafe ());
+    }
+
+    @Test
+    public void TextLinesAreSafe () {
+        byte[] line = (ChatterboxProtocol.SEND_WHISPER + ChatterboxProtocol.SEPARATOR + "someone" +
+                ChatterboxProtocol.SEPARATOR + "a" + ChatterboxProtocol.SEPARATOR + "b").getBytes (
+                StandardCharsets.UTF_8);
+        CommandView view = new CommandView ();
+        view.ParseText (line, 0, line.length);
+        Assertions.assertEquals ("a" + ChatterboxProtocol.SEPARATOR + "b", view.Field (1));
+        Assertions.assertTrue (view.IsTextSafe ());
+    }
+}
@@ -0,0 +1,54 @@
+package common;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 'Frame.Compress' deciding how a frame is written to connections that agreed on 'deflate'
+ */
+public class FrameTest {
+
+    private static final byte[] SENDER = "someone".getBytes (StandardCharsets.UTF_8);
+
+    private static Frame Chat (int size) {
+        byte[] message = new byte[size];
+        Arrays.fill (message, (byte) 'a');
+        return Frame.OfBytes (ChatterboxProtocol.CHAT_RECEIVED, SENDER, message);
+    }
+
+    @Test
+    public void PlainUntilCompressed () {
+        Frame frame = Chat (4096);
+        Assertions.assertEquals (frame.Length (Frame.Encoding.BINARY), frame.Length (Frame.Encoding.DEFLATE));
+    }
+
+    @Test
+    public void CompressedFromThreshold () {
+        Frame small = Chat (100);
+        small.Compress (512);
+        Assertions.assertEquals (small.Length (Frame.Encoding.BINARY), small.Length (Frame.Encoding.DEFLATE));
+
+        Frame large = Chat (4096);
+        large.Compress (512);
+        Assertions.assertTrue (large.Length (Frame.Encoding.DEFLATE) < large.Length (Frame.Encoding.BINARY));
+    }
+
+    @Test
+    public void ZeroThresholdNeverCompresses () {
+        Frame frame = Chat (4096);
+        frame.Compress (0);
+        Assertions.assertEquals (frame.Length (Frame.Encoding.BINARY), frame.Length (Frame.Encoding.DEFLATE));
+    }
+
+    @Test
+    public void OnlyChatIsCompressed () {
+        byte[] reason = new byte[4096];
+        Arrays.fill (reason, (byte) 'a');
+        Frame frame = Frame.OfBytes (ChatterboxProtocol.FATAL_ERROR, reason);
+        frame.Compress (1);
+        Assertions.assertEquals (frame.Length (Frame.Encoding.BINARY), frame.Length (Frame.Encoding.DEFLATE));
+    }
+}
@@ -0,0 +1,162 @@
+package server;
+
+import common.ChatterboxProtocol;
+import common.Frame;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 'ChatLog' finding the end of its log again on reopening, across segments, and ignoring a damaged last record
+ */
+public class ChatLogTest {
+
+    /** Room for a few records per segment */
+    private static final int SMALL_SEGMENT = 256;
+    private static final int LARGE_SEGMENT = 1 << 16;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    public static void Quiet () {
+        ChatterboxServer.setLogLevel (ServerConfig.LogLevel.WARN);
+    }
+
+    private static Frame Chat (int i) {
+        return Frame.Of (ChatterboxProtocol.CHAT_RECEIVED, "someone", "message " + i);
+    }
+
+    private void Write (int segmentBytes, int from, int to) throws IOException {
+        ChatLog log = ChatLog.Open (directory, segmentBytes, 0, 0);
+        Assertions.assertEquals (from, log.getNextOffset (), "offset on opening");
+        for (int i = from; i < to; i++) {
+            log.Append (Chat (i));
+        }
+        log.Close ();
+        Assertions.assertEquals (to, log.getNextOffset (), "offset on closing");
+    }
+
+    /**
+     * Reopens the log and checks it holds exactly the chat numbered 0 to 'count' - 1
+     */
+    private void AssertRecovered (int segmentBytes, int count) throws IOException {
+        ChatLog log = ChatLog.Open (directory, segmentBytes, 0, 0);
+        try {
+            Assertions.assertEquals (count, log.getNextOffset ());
+            List<String> scanned = new ArrayList<> ();
+            log.Scan (0, (offset, timestamp, frame) -> {
+                Assertions.assertEquals (scanned.size (), offset);
+                scanned.add (frame.toString ());
+                return true;
+            });
+            Assertions.assertEquals (count, scanned.size ());
+            for (int i = 0; i < count; i++) {
+                Assertions.assertEquals (Chat (i).toString (), scanned.get (i));
+            }
+        } finally {
+            log.Close ();
+        }
+    }
+
+    private List<Path> Segments () throws IOException {
+        List<Path> segments = new ArrayList<> ();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream (directory, "*.log")) {
+            for (Path file : files) {
+                segments.add (file);
+            }
+        }
+        segments.sort (null);
+        return segments;
+    }
+
+    /**
+     * @return Where each record in 'segment' starts, followed by where its records end
+     */
+    private static List<Integer> Records (ByteBuffer segment) {
+        List<Integer> positions = new ArrayList<> ();
+        int position = 0;
+        int length;
+        while (position + 16 <= segment.capacity () && (length = segment.getInt (position)) > 0) {
+            positions.add (position);
+            position += 16 + length;
+        }
+        positions.add (position);
+        return positions;
+    }
+
+    @Test
+    public void ReopenedLogCarriesOn () throws IOException {
+        Write (LARGE_SEGMENT, 0, 10);
+        AssertRecovered (LARGE_SEGMENT, 10);
+        Write (LARGE_SEGMENT, 10, 15);
+        AssertRecovered (LARGE_SEGMENT, 15);
+        Assertions.assertEquals (1, Segments ().size ());
+    }
+
+    @Test
+    public void RecoversAcrossSegments () throws IOException {
+        Write (SMALL_SEGMENT, 0, 20);
+        List<Path> segments = Segments ();
+        Assertions.assertTrue (segments.size () > 2, segments.size () + " segments");
+        Assertions.assertEquals (String.format ("%020d.log", 0), segments.get (0).getFileName ().toString ());
+
+        AssertRecovered (SMALL_SEGMENT, 20);
+        Write (SMALL_SEGMENT, 20, 30);
+        AssertRecovered (SMALL_SEGMENT, 30);
+
+        ChatLog log = ChatLog.Open (directory, SMALL_SEGMENT, 0, 0);
+        try {
+            List<Long> offsets = new ArrayList<> ();
+            log.Scan (13, (offset, timestamp, frame) -> offsets.add (offset) && offsets.size () < 5);
+            Assertions.assertEquals (List.of (13L, 14L, 15L, 16L, 17L), offsets);
+        } finally {
+            log.Close ();
+        }
+    }
+
+    @Test
+    public void CorruptLastRecordIsOverwritten () throws IOException {
+        Write (LARGE_SEGMENT, 0, 10);
+        try (FileChannel channel = FileChannel.open (Segments ().get (0), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer segment = channel.map (FileChannel.MapMode.READ_WRITE, 0, channel.size ());
+            List<Integer> records = Records (segment);
+            Assertions.assertEquals (11, records.size ());
+            // Flip a byte of the last record's frame, so its CRC no longer matches
+            int last = records.get (10) - 1;
+            segment.put (last, (byte) (segment.get (last) ^ 0xFF));
+        }
+
+        AssertRecovered (LARGE_SEGMENT, 9);
+        Write (LARGE_SEGMENT, 9, 12);
+        AssertRecovered (LARGE_SEGMENT, 12);
+    }
+
+    @Test
+    public void TornTailIsIgnored () throws IOException {
+        Write (LARGE_SEGMENT, 0, 10);
+        try (FileChannel channel = FileChannel.open (Segments ().get (0), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer segment = channel.map (FileChannel.MapMode.READ_WRITE, 0, channel.size ());
+            int end = Records (segment).get (10);
+            // A length whose record never reached the disk
+            segment.putInt (end, 40);
+        }
+
+        AssertRecovered (LARGE_SEGMENT, 10);
+        Write (LARGE_SEGMENT, 10, 12);
+        AssertRecovered (LARGE_SEGMENT, 12);
+    }
+}
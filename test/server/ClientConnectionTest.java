@@ -0,0 +1,83 @@
+package server;
+
+import common.ChatterboxProtocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 'ClientConnection.Dispatch' answering what it cannot carry out, and who may ask for 'STATS'
+ */
+public class ClientConnectionTest {
+
+    private ServerBase server;
+    private RecordingConnection alice;
+
+    @BeforeAll
+    public static void Quiet () {
+        ChatterboxServer.setLogLevel (ServerConfig.LogLevel.WARN);
+    }
+
+    @BeforeEach
+    public void Connect () throws Exception {
+        server = new ServerBase (new ServerConfig ());
+        alice = new RecordingConnection (server, "alice");
+        server.connect (alice);
+        server.connect (new RecordingConnection (server, "bob"));
+    }
+
+    @AfterEach
+    public void Close () {
+        server.close ();
+    }
+
+    @Test
+    public void TooFewFieldsIsAParseError () throws Exception {
+        String[] lines = {"send_chat", "send_whisper::bob", "join_room", "part_room", "send_room::lobby"};
+        for (String line : lines) {
+            alice.ParseUserCommand (line);
+            Assertions.assertEquals (ChatterboxProtocol.PARSE_ERROR, alice.Last (), line);
+        }
+    }
+
+    @Test
+    public void UnknownCommandIsAParseError () throws Exception {
+        alice.ParseUserCommand ("no_such_command::x");
+        Assertions.assertEquals (ChatterboxProtocol.PARSE_ERROR, alice.Last ());
+    }
+
+    @Test
+    public void CompleteCommandIsCarriedOut () throws Exception {
+        alice.ParseUserCommand ("send_whisper::bob::hello");
+        Assertions.assertEquals (ChatterboxProtocol.WHISPER_SENT + ChatterboxProtocol.SEPARATOR + "bob" +
+                ChatterboxProtocol.SEPARATOR + "hello", alice.Last ());
+    }
+
+    @Test
+    public void StatsAreForNobodyByDefault () throws Exception {
+        alice.ParseUserCommand (ChatterboxProtocol.STATS);
+        Assertions.assertEquals (ChatterboxProtocol.PARSE_ERROR, alice.Last ());
+    }
+
+    @Test
+    public void StatsAreForAdminsAndLimited () throws Exception {
+        ServerBase limited = new ServerBase (ServerConfig.Parse (new String[] {"--admins=carol", "--list-limit=1/1"}));
+        try {
+            RecordingConnection carol = new RecordingConnection (limited, "carol");
+            RecordingConnection dave = new RecordingConnection (limited, "dave");
+            limited.connect (carol);
+            limited.connect (dave);
+
+            dave.ParseUserCommand (ChatterboxProtocol.STATS);
+            Assertions.assertEquals (ChatterboxProtocol.PARSE_ERROR, dave.Last ());
+            carol.ParseUserCommand (ChatterboxProtocol.STATS);
+            Assertions.assertTrue (carol.Last ().startsWith (ChatterboxProtocol.STATS_REPORT), carol.Last ());
+            carol.ParseUserCommand (ChatterboxProtocol.STATS);
+            Assertions.assertTrue (carol.Last ().startsWith (ChatterboxProtocol.THROTTLED), carol.Last ());
+        } finally {
+            limited.close ();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package server;
+
+import common.ChatterboxProtocol;
+import common.CommandView;
+import common.Frame;
+import common.MessageReader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A connect whose name another node arbitrates. That node is played by the test, over a real link to node 'a', so
+ * it answers 'NODE_CLAIM' only once the test has seen the connection left waiting rather than blocked
+ */
+public class ClusterClaimTest {
+
+    private ServerSocket peerListener;
+    private Socket peer;
+    private MessageReader fromNode;
+    private OutputStream toNode;
+    private ServerBase node;
+
+    @BeforeAll
+    public static void Quiet () {
+        ChatterboxServer.setLogLevel (ServerConfig.LogLevel.OFF);
+    }
+
+    @BeforeEach
+    public void Link () throws Exception {
+        peerListener = new ServerSocket (0, 1, InetAddress.getLoopbackAddress ());
+        int clusterPort;
+        try (ServerSocket free = new ServerSocket (0, 1, InetAddress.getLoopbackAddress ())) {
+            clusterPort = free.getLocalPort ();
+        }
+        // Named to sort first, so it dials 'b'
+        node = new ServerBase (ServerConfig.Parse (new String[] {"--node=a", "--cluster-port=" + clusterPort,
+                "--peers=b@localhost:" + peerListener.getLocalPort ()}));
+        peer = peerListener.accept ();
+        fromNode = new MessageReader (peer.getInputStream ());
+        fromNode.SwitchToBinary ();
+        toNode = peer.getOutputStream ();
+        Frame.Of (ChatterboxProtocol.NODE_HELLO, "b", "").WriteTo (toNode, Frame.Encoding.BINARY);
+        toNode.flush ();
+
+        long deadline = System.nanoTime () + 10_000_000_000L;
+        while (!node.getCluster ().getLinkedNodes ().contains ("b")) {
+            Assertions.assertTrue (System.nanoTime () < deadline, "Timed out waiting for the link");
+            Thread.sleep (10);
+        }
+    }
+
+    @AfterEach
+    public void Close () throws Exception {
+        node.close ();
+        peer.close ();
+        peerListener.close ();
+    }
+
+    @Test
+    public void GrantedClaimConnects () throws Exception {
+        RecordingConnection user = Waiting ();
+        Answer (Expect (ChatterboxProtocol.NODE_CLAIM), "ok");
+        Finish (user);
+        Assertions.assertTrue (user.isConnected (), "connected");
+        Assertions.assertTrue (user.lines.get (0).startsWith (ChatterboxProtocol.CONNECTED), user.lines.get (0));
+    }
+
+    @Test
+    public void RefusedClaimIsNameTaken () throws Exception {
+        RecordingConnection user = Waiting ();
+        Answer (Expect (ChatterboxProtocol.NODE_CLAIM), "taken");
+        Finish (user);
+        Assertions.assertFalse (user.isConnected (), "connected");
+        Assertions.assertEquals (ChatterboxProtocol.NAME_TAKEN_ERROR + ChatterboxProtocol.SEPARATOR +
+                user.getUsername (), user.Last ());
+    }
+
+    @Test
+    public void DroppedWhileClaimingGivesTheNameBack () throws Exception {
+        RecordingConnection user = Waiting ();
+        user.Dropped ();
+        Answer (Expect (ChatterboxProtocol.NODE_CLAIM), "ok");
+        CommandView left = Expect (ChatterboxProtocol.USER_LEFT);
+        Assertions.assertEquals (user.getUsername (), left.Field (0));
+        Assertions.assertTrue (user.lines.isEmpty (), user.lines.toString ());
+    }
+
+    /**
+     * Sends a connect for a name 'b' arbitrates, and checks it came back without an answer
+     */
+    private RecordingConnection Waiting () {
+        String name = "user0";
+        for (int i = 1; Math.floorMod (name.hashCode (), 2) != 1; i++) {
+            name = "user" + i;
+        }
+        RecordingConnection user = new RecordingConnection (node, "");
+        user.Receive (ChatterboxProtocol.CONNECT + ChatterboxProtocol.SEPARATOR + name);
+        Assertions.assertNotNull (user.getPendingClaim (), "claim pending");
+        Assertions.assertFalse (user.getPendingClaim ().isDone (), "claim decided");
+        Assertions.assertTrue (user.lines.isEmpty (), user.lines.toString ());
+        return user;
+    }
+
+    /**
+     * What a transport does once the claim is decided
+     */
+    private static void Finish (RecordingConnection user) {
+        CompletableFuture<Boolean> claim = user.getPendingClaim ();
+        claim.join ();
+        user.FinishConnect ();
+    }
+
+    /**
+     * Reads from node 'a' until a frame of type 'type' arrives
+     */
+    private CommandView Expect (String type) throws Exception {
+        CommandView command = new CommandView ();
+        while (fromNode.ReadInto (command)) {
+            if (type.equals (command.getCommand ())) {
+                return command;
+            }
+        }
+        return Assertions.fail ("Link closed before a '" + type + "'");
+    }
+
+    private void Answer (CommandView claim, String answer) throws Exception {
+        Frame.Of (ChatterboxProtocol.NODE_CLAIMED, claim.Field (0), answer).WriteTo (toNode, Frame.Encoding.BINARY);
+        toNode.flush ();
+    }
+}
@@ -0,0 +1,44 @@
+package server;
+
+import common.CommandView;
+import common.Frame;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An in-memory user that keeps every frame it is sent, as its text line
+ */
+class RecordingConnection extends ClientConnection {
+
+    final List<String> lines = new ArrayList<> ();
+
+    RecordingConnection (ServerBase server, String username) {
+        super (server);
+        this.username = username;
+        this.usernameBytes = username.getBytes (StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Handles a text protocol line as if it had come in over the network
+     */
+    void Receive (String line) {
+        byte[] bytes = line.getBytes (StandardCharsets.UTF_8);
+        CommandView command = new CommandView ();
+        command.ParseText (bytes, 0, bytes.length);
+        HandleCommand (command, 0);
+    }
+
+    @Override
+    public synchronized void Send (Frame frame) {
+        lines.add (frame.toString ());
+    }
+
+    /**
+     * @return The last line sent, or 'null' if none has been
+     */
+    synchronized String Last () {
+        return lines.isEmpty () ? null : lines.get (lines.size () - 1);
+    }
+}
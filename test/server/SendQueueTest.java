@@ -0,0 +1,134 @@
+package server;
+
+import common.ChatterboxProtocol;
+import common.Frame;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 'SendQueue' applying each 'ServerConfig.Overflow' policy to chat past its limit, while control frames are kept
+ * up to twice the limit whatever the policy
+ */
+public class SendQueueTest {
+
+    /** How many chat frames fit in a queue's limit */
+    private static final int FITS = 4;
+
+    private static Frame Chat (int i) {
+        return Frame.Of (ChatterboxProtocol.CHAT_RECEIVED, "someone", "message " + i);
+    }
+
+    private static Frame Control (int i) {
+        return Frame.Of (ChatterboxProtocol.USER_JOINED, "user " + i);
+    }
+
+    private final LongAdder droppedTotal = new LongAdder ();
+
+    /**
+     * @return A queue with room for 'FITS' chat frames
+     */
+    private SendQueue Queue (ServerConfig.Overflow policy) {
+        long limit = FITS * Chat (0).Length (Frame.Encoding.TEXT);
+        return new SendQueue (limit, policy, droppedTotal, new Metrics (0));
+    }
+
+    private static void Fill (SendQueue queue) {
+        for (int i = 0; i < FITS; i++) {
+            Assertions.assertEquals (SendQueue.Result.QUEUED, queue.Offer (Chat (i), Frame.Encoding.TEXT));
+        }
+    }
+
+    /**
+     * Takes everything off 'queue' and checks it is the chat numbered 'from' to 'to'
+     */
+    private static void AssertChat (SendQueue queue, int from, int to) {
+        for (int i = from; i <= to; i++) {
+            Assertions.assertEquals (Chat (i).toString (), queue.Poll ().toString ());
+        }
+        Assertions.assertNull (queue.Poll ());
+        Assertions.assertEquals (0, queue.getBytes ());
+        Assertions.assertEquals (0, queue.getFrames ());
+    }
+
+    @Test
+    public void DropOldestMakesRoomForNewChat () {
+        SendQueue queue = Queue (ServerConfig.Overflow.DROP_OLDEST);
+        Fill (queue);
+        Assertions.assertEquals (SendQueue.Result.QUEUED, queue.Offer (Chat (FITS), Frame.Encoding.TEXT));
+        Assertions.assertEquals (SendQueue.Result.QUEUED, queue.Offer (Chat (FITS + 1), Frame.Encoding.TEXT));
+
+        Assertions.assertEquals (2, queue.getDropped ());
+        Assertions.assertEquals (2, droppedTotal.sum ());
+        AssertChat (queue, 2, FITS + 1);
+    }
+
+    @Test
+    public void DropOldestNeverDropsControlFrames () {
+        SendQueue queue = Queue (ServerConfig.Overflow.DROP_OLDEST);
+        long limit = FITS * Chat (0).Length (Frame.Encoding.TEXT);
+        int controls = 0;
+        while (queue.getBytes () + Chat (0).Length (Frame.Encoding.TEXT) <= limit) {
+            Assertions.assertEquals (SendQueue.Result.QUEUED, queue.Offer (Control (controls++),
+                    Frame.Encoding.TEXT));
+        }
+
+        // There is no chat to drop to make room, so the new chat goes instead
+        long bytes = queue.getBytes ();
+        Assertions.assertEquals (SendQueue.Result.DROPPED, queue.Offer (Chat (0), Frame.Encoding.TEXT));
+        Assertions.assertEquals (1, queue.getDropped ());
+        Assertions.assertEquals (bytes, queue.getBytes ());
+        Assertions.assertEquals (controls, queue.getFrames ());
+    }
+
+    @Test
+    public void DropNewestKeepsWhatIsQueued () {
+        SendQueue queue = Queue (ServerConfig.Overflow.DROP_NEWEST);
+        Fill (queue);
+        Assertions.assertEquals (SendQueue.Result.DROPPED, queue.Offer (Chat (FITS), Frame.Encoding.TEXT));
+
+        Assertions.assertEquals (1, queue.getDropped ());
+        Assertions.assertEquals (1, droppedTotal.sum ());
+        AssertChat (queue, 0, FITS - 1);
+    }
+
+    @Test
+    public void DisconnectOverflowsOnChat () {
+        SendQueue queue = Queue (ServerConfig.Overflow.DISCONNECT);
+        Fill (queue);
+        Assertions.assertEquals (SendQueue.Result.OVERFLOW, queue.Offer (Chat (FITS), Frame.Encoding.TEXT));
+
+        Assertions.assertEquals (0, queue.getDropped ());
+        AssertChat (queue, 0, FITS - 1);
+    }
+
+    @Test
+    public void ControlFramesAreKeptUpToTwiceTheLimit () {
+        for (ServerConfig.Overflow policy : ServerConfig.Overflow.values ()) {
+            SendQueue queue = Queue (policy);
+            long limit = FITS * Chat (0).Length (Frame.Encoding.TEXT);
+            Fill (queue);
+
+            int i = 0;
+            SendQueue.Result result;
+            while ((result = queue.Offer (Control (i), Frame.Encoding.TEXT)) == SendQueue.Result.QUEUED) {
+                i++;
+            }
+            Assertions.assertEquals (SendQueue.Result.OVERFLOW, result, policy.toString ());
+            Assertions.assertTrue (queue.getBytes () <= 2 * limit, policy.toString ());
+            Assertions.assertTrue (queue.getBytes () + Control (i).Length (Frame.Encoding.TEXT) > 2 * limit,
+                    policy.toString ());
+            Assertions.assertEquals (0, queue.getDropped (), policy.toString ());
+        }
+    }
+
+    @Test
+    public void ClosedQueueRefusesButHandsOut () {
+        SendQueue queue = Queue (ServerConfig.Overflow.DROP_OLDEST);
+        Fill (queue);
+        queue.Close ();
+        Assertions.assertEquals (SendQueue.Result.CLOSED, queue.Offer (Control (0), Frame.Encoding.TEXT));
+        AssertChat (queue, 0, FITS - 1);
+    }
+}
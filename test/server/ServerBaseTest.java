@@ -0,0 +1,64 @@
+package server;
+
+import common.Frame;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Settings of one 'ServerBase' staying its own when several share a JVM
+ */
+public class ServerBaseTest {
+
+    /**
+     * A user that agreed on 'deflate' and keeps what it was last sent, after compressing it as a transport would
+     */
+    private static final class DeflateConnection extends ClientConnection {
+        Frame last;
+
+        DeflateConnection (ServerBase server, String username) {
+            super (server);
+            this.username = username;
+            this.usernameBytes = username.getBytes (StandardCharsets.UTF_8);
+            this.encoding = Frame.Encoding.DEFLATE;
+        }
+
+        @Override
+        public void Send (Frame frame) {
+            Compress (frame);
+            last = frame;
+        }
+    }
+
+    @BeforeAll
+    public static void Quiet () {
+        ChatterboxServer.setLogLevel (ServerConfig.LogLevel.WARN);
+    }
+
+    @Test
+    public void CompressThresholdIsPerServer () throws Exception {
+        ServerBase compressing = new ServerBase (ServerConfig.Parse (new String[] {"--compress-threshold=64"}));
+        ServerBase plain = new ServerBase (ServerConfig.Parse (new String[] {"--compress-threshold=0"}));
+        try {
+            byte[] message = new byte[4096];
+            Arrays.fill (message, (byte) 'a');
+            DeflateConnection first = new DeflateConnection (compressing, "first");
+            DeflateConnection second = new DeflateConnection (plain, "second");
+            compressing.connect (first);
+            plain.connect (second);
+            compressing.broadcast ("first", message.clone ());
+            plain.broadcast ("second", message.clone ());
+
+            Assertions.assertTrue (first.last.Length (Frame.Encoding.DEFLATE) <
+                    first.last.Length (Frame.Encoding.BINARY), "compressed on the server that compresses");
+            Assertions.assertEquals (second.last.Length (Frame.Encoding.BINARY),
+                    second.last.Length (Frame.Encoding.DEFLATE), "plain on the server that does not");
+        } finally {
+            compressing.close ();
+            plain.close ();
+        }
+    }
+}
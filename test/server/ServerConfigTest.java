@@ -0,0 +1,32 @@
+package server;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 'ServerConfig.Parse' reading '--peers', and turning away entries the cluster could not dial
+ */
+public class ServerConfigTest {
+
+    @Test
+    public void PeersAreParsed () {
+        ServerConfig config = ServerConfig.Parse (new String[] {"--peers=b@localhost:6889,c@10.0.0.3:7000"});
+        ServerConfig.Peer[] peers = config.getPeers ();
+        Assertions.assertEquals (2, peers.length);
+        Assertions.assertEquals ("b", peers[0].getName ());
+        Assertions.assertEquals ("localhost", peers[0].getHost ());
+        Assertions.assertEquals (6889, peers[0].getPort ());
+        Assertions.assertEquals ("c@10.0.0.3:7000", peers[1].toString ());
+        Assertions.assertEquals (0, ServerConfig.Parse (new String[] {"--peers="}).getPeers ().length);
+    }
+
+    @Test
+    public void MalformedPeersAreRefused () {
+        String[] peers = {"b", "b@localhost", "b@localhost:", "b@localhost:port", "@localhost:6889", "b@:6889",
+                "b@localhost:0", "b@localhost:65536", "b@localhost:6889,", "b@localhost:6889,,c@localhost:6890"};
+        for (String peer : peers) {
+            Assertions.assertThrows (IllegalArgumentException.class,
+                    () -> ServerConfig.Parse (new String[] {"--peers=" + peer}), peer);
+        }
+    }
+}
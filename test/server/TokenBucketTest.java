@@ -0,0 +1,70 @@
+package server;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 'TokenBucket' letting a burst through, then one command per refill interval, and answering a flood once per wait
+ */
+public class TokenBucketTest {
+
+    private static final long INTERVAL = 100_000_000L;
+    private static final int BURST = 3;
+
+    private static TokenBucket Bucket () {
+        return new TokenBucket (new ServerConfig.Limit (1e9 / INTERVAL, BURST));
+    }
+
+    @Test
+    public void BurstThenThrottled () {
+        TokenBucket bucket = Bucket ();
+        long now = System.nanoTime ();
+        for (int i = 0; i < BURST; i++) {
+            Assertions.assertEquals (0, bucket.Take (now), "command " + i + " of the burst");
+        }
+        Assertions.assertEquals (INTERVAL, bucket.Take (now));
+        Assertions.assertEquals (INTERVAL / 2, bucket.Take (now + INTERVAL / 2));
+        Assertions.assertEquals (2, bucket.getThrottled ());
+    }
+
+    @Test
+    public void RefillsOneTokenPerInterval () {
+        TokenBucket bucket = Bucket ();
+        long now = System.nanoTime ();
+        for (int i = 0; i < BURST; i++) {
+            bucket.Take (now);
+        }
+        for (int i = 1; i <= 5; i++) {
+            long then = now + i * INTERVAL;
+            Assertions.assertEquals (0, bucket.Take (then), "after " + i + " intervals");
+            Assertions.assertEquals (INTERVAL, bucket.Take (then), "twice in interval " + i);
+        }
+    }
+
+    @Test
+    public void IdleBucketRefillsOnlyToItsBurst () {
+        TokenBucket bucket = Bucket ();
+        long later = System.nanoTime () + 100 * INTERVAL;
+        for (int i = 0; i < BURST; i++) {
+            Assertions.assertEquals (0, bucket.Take (later), "command " + i + " of the burst");
+        }
+        Assertions.assertTrue (bucket.Take (later) > 0, "more than a burst after idling");
+    }
+
+    @Test
+    public void FloodIsAnsweredOncePerWait () {
+        TokenBucket bucket = Bucket ();
+        long now = System.nanoTime ();
+        for (int i = 0; i < BURST; i++) {
+            bucket.Take (now);
+        }
+        long wait = bucket.Take (now);
+        Assertions.assertTrue (bucket.Notify (now, wait), "first command turned away");
+        Assertions.assertFalse (bucket.Notify (now + 1, bucket.Take (now + 1)), "second command turned away");
+        Assertions.assertFalse (bucket.Notify (now + wait - 1, bucket.Take (now + wait - 1)), "just before the wait");
+
+        long after = now + wait + INTERVAL / 2;
+        Assertions.assertEquals (0, bucket.Take (now + wait));
+        Assertions.assertTrue (bucket.Notify (after, bucket.Take (after)), "first turned away after the wait");
+    }
+}
@@ -0,0 +1,132 @@
+package server;
+
+import common.ChatterboxProtocol;
+import common.Frame;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+/**
+ * 'UserRegistry.Delta' reading its ring of changes once it has wrapped, and giving up on versions it no longer holds
+ */
+public class UserRegistryTest {
+
+    /** 'UserRegistry.HISTORY' */
+    private static final int HISTORY = 4096;
+
+    private static ServerBase server;
+
+    @BeforeAll
+    public static void Start () {
+        ChatterboxServer.setLogLevel (ServerConfig.LogLevel.WARN);
+        server = new ServerBase (new ServerConfig ());
+    }
+
+    @AfterAll
+    public static void Close () {
+        server.close ();
+    }
+
+    private static ClientConnection User (int id) {
+        RecordingConnection user = new RecordingConnection (server, "user" + id);
+        user.setUserId (id);
+        return user;
+    }
+
+    /**
+     * @return The fields of 'delta', or 'null' if there is none
+     */
+    private static String[] Fields (Frame delta) {
+        if (delta == null) {
+            return null;
+        }
+        String[] line = delta.toString ().trim ().split (ChatterboxProtocol.SEPARATOR, -1);
+        Assertions.assertEquals (ChatterboxProtocol.USER_DELTA, line[0]);
+        return Arrays.copyOfRange (line, 1, line.length);
+    }
+
+    @Test
+    public void DeltaReadsAcrossTheWrap () {
+        UserRegistry registry = new UserRegistry ();
+        long first = registry.Version ();
+        // One more than the ring holds, so the change after 'first' has been overwritten by the latest
+        for (int id = 0; id <= HISTORY; id++) {
+            Assertions.assertTrue (registry.Add (User (id)));
+        }
+        long latest = registry.Version ();
+        Assertions.assertEquals (first + HISTORY + 1, latest);
+
+        Assertions.assertNull (registry.Delta (first), "more than 'HISTORY' changes back");
+        String[] fields = Fields (registry.Delta (first + 1));
+        Assertions.assertNotNull (fields, "exactly 'HISTORY' changes back");
+        Assertions.assertEquals (Long.toString (latest), fields[0]);
+        Assertions.assertEquals (Integer.toString (HISTORY), fields[1]);
+        Assertions.assertEquals (Integer.toString (HISTORY), fields[2]);
+        for (int i = 0; i < HISTORY; i++) {
+            int id = i + 1;
+            Assertions.assertEquals (Integer.toString (id), fields[3 + i * 2]);
+            Assertions.assertEquals ("user" + id, fields[4 + i * 2]);
+        }
+        Assertions.assertEquals (3 + HISTORY * 2, fields.length);
+    }
+
+    @Test
+    public void DeltaAfterChurnListsOnlyWhatChanged () {
+        UserRegistry registry = new UserRegistry ();
+        ClientConnection[] stayers = new ClientConnection[10];
+        for (int id = 0; id < stayers.length; id++) {
+            stayers[id] = User (id);
+            registry.Add (stayers[id]);
+        }
+        // Around the ring more than once
+        for (int i = 0; i < HISTORY; i++) {
+            ClientConnection passing = User (100);
+            registry.Add (passing);
+            registry.Remove (passing);
+        }
+
+        long from = registry.Version ();
+        registry.Add (User (200));
+        registry.Remove (stayers[3]);
+        String[] fields = Fields (registry.Delta (from));
+        Assertions.assertArrayEquals (new String[] {Long.toString (from + 2), "2", "1", "200", "user200", "3"},
+                fields);
+        Assertions.assertArrayEquals (new String[] {Long.toString (from + 2), "0", "0"}, Fields (registry.Delta (
+                from + 2)));
+        Assertions.assertNull (registry.Delta (from + 3), "a version from the future");
+    }
+
+    @Test
+    public void CameAndWentIsListedAsLeft () {
+        UserRegistry registry = new UserRegistry ();
+        for (int id = 0; id < 10; id++) {
+            registry.Add (User (id));
+        }
+        long from = registry.Version ();
+        ClientConnection passing = User (50);
+        registry.Add (passing);
+        registry.Remove (passing);
+        Assertions.assertArrayEquals (new String[] {Long.toString (from + 2), "2", "0", "50"}, Fields (
+                registry.Delta (from)));
+    }
+
+    @Test
+    public void DeltaLargerThanTheTableIsRefused () {
+        UserRegistry registry = new UserRegistry ();
+        ClientConnection[] users = new ClientConnection[10];
+        for (int id = 0; id < users.length; id++) {
+            users[id] = User (id);
+            registry.Add (users[id]);
+        }
+        long from = registry.Version ();
+        for (int id = 1; id < users.length; id++) {
+            registry.Remove (users[id]);
+        }
+        // Nine leaving costs more than the one user left in the table
+        Assertions.assertNull (registry.Delta (from));
+        Assertions.assertTrue (registry.UserTableSince (from).toString ().startsWith (ChatterboxProtocol.USER_TABLE));
+    }
+}